@@ -0,0 +1,116 @@
+package uk.co.massimocarli.restmethod.test;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import uk.co.massimocarli.restmethod.util.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures the bytes allocated for every request by the copies of IOUtils with the
+ * per-call buffers and with the pooled ones
+ */
+public class BufferAllocationBenchmark extends AndroidTestCase {
+
+    private static final String TAG_LOG = BufferAllocationBenchmark.class.getName();
+
+    private static final int PAYLOAD_SIZE = 16 * 1024;
+
+    private static final int REQUESTS = 200;
+
+    private byte[] payload;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        payload = new byte[PAYLOAD_SIZE];
+        final Random random = new Random(7);
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) ('a' + random.nextInt(26));
+        }
+    }
+
+    public void testToByteArray() throws Exception {
+        // Warm up so the pool of this thread has its buffers
+        assertTrue(Arrays.equals(payload, IOUtils.toByteArrayForLength(new ByteArrayInputStream(payload), PAYLOAD_SIZE)));
+        final long before = measure(new IORunnable() {
+            @Override
+            public void run() throws IOException {
+                unpooledToByteArray(new ByteArrayInputStream(payload));
+            }
+        });
+        final long after = measure(new IORunnable() {
+            @Override
+            public void run() throws IOException {
+                IOUtils.toByteArrayForLength(new ByteArrayInputStream(payload), PAYLOAD_SIZE);
+            }
+        });
+        Log.i(TAG_LOG, "toByteArray allocation per request: before " + before + " bytes, after " + after + " bytes");
+        assertTrue(after < before);
+    }
+
+    public void testToString() throws Exception {
+        IOUtils.toStringForLength(new ByteArrayInputStream(payload), "UTF-8", PAYLOAD_SIZE);
+        final long before = measure(new IORunnable() {
+            @Override
+            public void run() throws IOException {
+                unpooledToString(new ByteArrayInputStream(payload));
+            }
+        });
+        final long after = measure(new IORunnable() {
+            @Override
+            public void run() throws IOException {
+                IOUtils.toStringForLength(new ByteArrayInputStream(payload), "UTF-8", PAYLOAD_SIZE);
+            }
+        });
+        Log.i(TAG_LOG, "toString allocation per request: before " + before + " bytes, after " + after + " bytes");
+        assertTrue(after < before);
+    }
+
+    private interface IORunnable {
+        void run() throws IOException;
+    }
+
+    private static long measure(final IORunnable runnable) throws IOException {
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        try {
+            for (int i = 0; i < REQUESTS; i++) {
+                runnable.run();
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        return Debug.getThreadAllocSize() / REQUESTS;
+    }
+
+    // The implementation of IOUtils before the BufferPool
+    private static byte[] unpooledToByteArray(final InputStream input) throws IOException {
+        final byte[] buffer = new byte[2048];
+        int numRead;
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        while ((numRead = input.read(buffer)) != -1) {
+            baos.write(buffer, 0, numRead);
+        }
+        return baos.toByteArray();
+    }
+
+    // The implementation of IOUtils before the BufferPool
+    private static String unpooledToString(final InputStream input) throws IOException {
+        final InputStreamReader reader = new InputStreamReader(input, "UTF-8");
+        final StringWriter writer = new StringWriter();
+        final char[] buffer = new char[2048];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            writer.write(buffer, 0, read);
+        }
+        return writer.getBuffer().toString();
+    }
+}
@@ -0,0 +1,239 @@
+package uk.co.massimocarli.restmethod.test;
+
+import android.test.AndroidTestCase;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import uk.co.massimocarli.restmethod.http.PipelinedCommandExecutor;
+import uk.co.massimocarli.restmethod.http.client.HttpClientRestCommandExecutor;
+import uk.co.massimocarli.restmethod.http.deserializer.FileDeserializer;
+import uk.co.massimocarli.restmethod.http.urlconnection.UrlConnectionCommandExecutor;
+import uk.co.massimocarli.restmethod.rest.CancellationHandle;
+import uk.co.massimocarli.restmethod.rest.RestCommand;
+import uk.co.massimocarli.restmethod.rest.RestCommandBuilder;
+import uk.co.massimocarli.restmethod.rest.RestCommandExecutor;
+import uk.co.massimocarli.restmethod.rest.RestCommandResult;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests for the cancellation of the RestCommands with the CancellationHandle. The server limits
+ * the bandwidth so a download or an upload takes some seconds if not cancelled. A cancelled
+ * RestCommand aborts its connection so the server stops before the end of the body.
+ */
+public class CancellationTest extends AndroidTestCase {
+
+    // The server port we're using
+    private final static int SERVER_PORT = 8085;
+
+    private final static String DOWNLOAD_URL = "http://127.0.0.1:" + SERVER_PORT + "/file.bin";
+
+    private final static int FILE_SIZE = 1024 * 1024;
+
+    private final static int BYTES_PER_SECOND = FILE_SIZE / 8;
+
+    private final static long CANCEL_DELAY = 300L;
+
+    // A loose bound for the end of the responses, much longer than a cancelled one
+    private final static long SERVER_TIMEOUT = 30000L;
+
+    private Server jettyServer;
+
+    private RangeDownloadHandler downloadHandler;
+
+    private File destination;
+
+    private final AtomicLong uploadReceived = new AtomicLong();
+
+    private final CountDownLatch uploadEnded = new CountDownLatch(1);
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        // work-around for Android defect 9431
+        System.setProperty("java.net.preferIPv4Stack", "true");
+        System.setProperty("java.net.preferIPv6Addresses", "false");
+        final byte[] content = new byte[FILE_SIZE];
+        new Random(42).nextBytes(content);
+        downloadHandler = new RangeDownloadHandler(content, "\"v1\"");
+        downloadHandler.setBytesPerSecond(BYTES_PER_SECOND);
+        jettyServer = new Server(SERVER_PORT);
+        jettyServer.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(final String target, final Request baseRequest, final HttpServletRequest request,
+                               final HttpServletResponse response) throws IOException, ServletException {
+                if ("POST".equals(request.getMethod())) {
+                    try {
+                        readSlowly(request.getInputStream());
+                    } finally {
+                        uploadEnded.countDown();
+                    }
+                    response.setStatus(HttpServletResponse.SC_OK);
+                    baseRequest.setHandled(true);
+                } else {
+                    downloadHandler.handle(target, baseRequest, request, response);
+                }
+            }
+        });
+        jettyServer.start();
+        destination = new File(getContext().getCacheDir(), "cancelled.bin");
+        destination.delete();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        jettyServer.stop();
+        destination.delete();
+    }
+
+    private void readSlowly(final InputStream input) throws IOException {
+        final byte[] buffer = new byte[BYTES_PER_SECOND / 10];
+        try {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                uploadReceived.addAndGet(read);
+                Thread.sleep(100L);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void cancelLater(final CancellationHandle cancellationHandle) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(CANCEL_DELAY);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                cancellationHandle.cancel();
+            }
+        }).start();
+    }
+
+    private void assertCancelledInFlight(final RestCommandExecutor executor) throws Exception {
+        final CancellationHandle cancellationHandle = CancellationHandle.create();
+        final RestCommand restCommand = RestCommandBuilder.get(DOWNLOAD_URL)
+                .withCancellationHandle(cancellationHandle)
+                .build();
+        cancelLater(cancellationHandle);
+        try {
+            executor.execute(getContext(), restCommand, FileDeserializer.get(destination, true));
+            fail("The RestCommand should be cancelled");
+        } catch (RestCommandExecutor.CancelledException e) {
+            // Expected
+        }
+        assertFalse(destination.exists());
+        // The connection has been aborted so the server stops sending before the end
+        assertTrue(downloadHandler.awaitNoActiveResponses(SERVER_TIMEOUT));
+        assertTrue(downloadHandler.getBytesSent() < FILE_SIZE);
+    }
+
+    public void testCancelUrlConnection() throws Exception {
+        assertCancelledInFlight(UrlConnectionCommandExecutor.create());
+    }
+
+    public void testCancelHttpClient() throws Exception {
+        assertCancelledInFlight(HttpClientRestCommandExecutor.create());
+    }
+
+    public void testCancelPipelined() throws Exception {
+        final PipelinedCommandExecutor executor = PipelinedCommandExecutor.create(UrlConnectionCommandExecutor.create());
+        try {
+            assertCancelledInFlight(executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testCancelledBeforeExecution() throws Exception {
+        final CancellationHandle cancellationHandle = CancellationHandle.create();
+        cancellationHandle.cancel();
+        final RestCommand restCommand = RestCommandBuilder.get(DOWNLOAD_URL)
+                .withCancellationHandle(cancellationHandle)
+                .build();
+        try {
+            UrlConnectionCommandExecutor.create().execute(getContext(), restCommand,
+                                                          FileDeserializer.get(destination, true));
+            fail("The RestCommand should be cancelled");
+        } catch (RestCommandExecutor.CancelledException e) {
+            // Expected
+        }
+        assertTrue(downloadHandler.getRanges().isEmpty());
+    }
+
+    public void testQueuedCommandRemoved() throws Exception {
+        downloadHandler.setBytesPerSecond(FILE_SIZE * 2);
+        final PipelinedCommandExecutor executor = PipelinedCommandExecutor.create(UrlConnectionCommandExecutor.create(),
+                                                                                  1, 1, 64 * 1024);
+        try {
+            final RestCommand restCommand = RestCommandBuilder.get(DOWNLOAD_URL).build();
+            final Future<RestCommandResult<Void>> first = executor.submit(getContext(), restCommand,
+                                                                          FileDeserializer.get(destination, true));
+            final Future<RestCommandResult<Void>> second = executor.submit(getContext(), restCommand,
+                                                                           FileDeserializer.get(destination, true));
+            assertTrue(second.cancel(false));
+            first.get();
+            try {
+                second.get();
+                fail("The second RestCommand should be cancelled");
+            } catch (CancellationException e) {
+                // Expected
+            }
+            // The second RestCommand never reached the server
+            assertEquals(1, downloadHandler.getRanges().size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testCancelUpload() throws Exception {
+        final CancellationHandle cancellationHandle = CancellationHandle.create();
+        // The upload would take 32 seconds
+        final RestCommand restCommand = RestCommandBuilder.post(DOWNLOAD_URL)
+                .setBinaryDocument(new byte[4 * FILE_SIZE])
+                .withCancellationHandle(cancellationHandle)
+                .build();
+        cancelLater(cancellationHandle);
+        try {
+            UrlConnectionCommandExecutor.create().execute(getContext(), restCommand, FileDeserializer.get(destination, true));
+            fail("The upload should be cancelled");
+        } catch (RestCommandExecutor.CancelledException e) {
+            // Expected
+        }
+        // The connection has been aborted so the server stops receiving before the end
+        assertTrue(uploadEnded.await(SERVER_TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(uploadReceived.get() < 4 * FILE_SIZE);
+    }
+
+    public void testListenersRemoved() throws Exception {
+        downloadHandler.setBytesPerSecond(FILE_SIZE * 4);
+        final CancellationHandle sharedHandle = CancellationHandle.create();
+        final PipelinedCommandExecutor executor = PipelinedCommandExecutor.create(UrlConnectionCommandExecutor.create());
+        try {
+            for (int i = 0; i < 3; i++) {
+                final RestCommand restCommand = RestCommandBuilder.get(DOWNLOAD_URL)
+                        .withCancellationHandle(sharedHandle)
+                        .build();
+                executor.submit(getContext(), restCommand, FileDeserializer.get(destination, true)).get();
+                destination.delete();
+            }
+            // The completed calls are not referenced by the shared handle
+            assertEquals(0, sharedHandle.getListenersCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
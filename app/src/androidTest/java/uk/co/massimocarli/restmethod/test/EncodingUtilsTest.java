@@ -0,0 +1,121 @@
+package uk.co.massimocarli.restmethod.test;
+
+import android.test.AndroidTestCase;
+import uk.co.massimocarli.restmethod.rest.RestCommand;
+import uk.co.massimocarli.restmethod.rest.RestCommandTemplate;
+import uk.co.massimocarli.restmethod.util.EncodingUtils;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests the percent encoding of the EncodingUtils and the expansion of the url templates
+ */
+public class EncodingUtilsTest extends AndroidTestCase {
+
+    // Unreserved, reserved, non ASCII and supplementary chars
+    private static final String[] VALUES = {
+            "", "abcXYZ019", "-_.*~", " ", "a b+c", ":/?#[]@!$&'()*+,;=", "%", "àèìòù €", "日本語", "😀"
+    };
+
+    private static String formEncoded(final String value, final String charset) throws UnsupportedEncodingException {
+        return EncodingUtils.appendFormEncoded(EncodingUtils.acquireBuilder(), value, charset).toString();
+    }
+
+    private static String pathEncoded(final String value, final String charset) throws UnsupportedEncodingException {
+        return EncodingUtils.appendPathEncoded(EncodingUtils.acquireBuilder(), value, charset).toString();
+    }
+
+    public void testFormEncodedAsUrlEncoder() throws Exception {
+        for (String charset : new String[]{"UTF-8", "ISO-8859-1", "Shift_JIS"}) {
+            for (String value : VALUES) {
+                assertEquals(value + " in " + charset, URLEncoder.encode(value, charset), formEncoded(value, charset));
+            }
+        }
+    }
+
+    public void testPathEncoded() throws Exception {
+        assertEquals("abcXYZ019-_.~", pathEncoded("abcXYZ019-_.~", "UTF-8"));
+        assertEquals("a%20b%2Bc", pathEncoded("a b+c", "UTF-8"));
+        assertEquals("%2A%2F%3F%23%25%26%3D", pathEncoded("*/?#%&=", "UTF-8"));
+        assertEquals("%C3%A8%E2%82%AC%F0%9F%98%80", pathEncoded("è€😀", "UTF-8"));
+        assertEquals("%E8", pathEncoded("è", "ISO-8859-1"));
+        // An unpaired surrogate is replaced by '?'
+        assertEquals("a%3Fz", pathEncoded("a\uD83Dz", "UTF-8"));
+    }
+
+    public void testUtf16WithoutByteOrderMark() throws Exception {
+        assertEquals("%00%E8", formEncoded("è", "UTF-16"));
+        assertEquals("%00%E8%20%AC", pathEncoded("è€", "utf-16"));
+    }
+
+    public void testUtf16MixedWithAscii() throws Exception {
+        for (String value : new String[]{"a b", "aèb c", "x&y=z", "a b&è€c"}) {
+            // URLEncoder writes the byte order mark before every run of encoded chars
+            assertEquals(value, URLEncoder.encode(value, "UTF-16").replace("%FE%FF", ""),
+                         formEncoded(value, "UTF-16"));
+            assertEquals(value, URLEncoder.encode(value, "UTF-16LE"), formEncoded(value, "UTF-16LE"));
+        }
+        assertEquals("a%00%20%00%26b", pathEncoded("a &b", "UTF-16"));
+        assertEquals("a%20%00b", pathEncoded("a b", "UTF-16LE"));
+    }
+
+    public void testUnsupportedCharset() throws Exception {
+        try {
+            formEncoded("è", "NOT-A-CHARSET");
+            fail("The charset is not supported");
+        } catch (UnsupportedEncodingException e) {
+            // Expected
+        }
+    }
+
+    public void testToHexString() throws Exception {
+        assertEquals("", EncodingUtils.toHexString(new byte[0]));
+        assertEquals("00017f80ff", EncodingUtils.toHexString(new byte[]{0, 1, 127, -128, -1}));
+    }
+
+    public void testTemplateExpansion() throws Exception {
+        final RestCommandTemplate template = RestCommandTemplate.compile(RestCommand.HTTP_METHOD.GET,
+                                                                         "http://host/users/{id}/items?q={query}");
+        assertEquals(2, template.placeholdersCount());
+        // The path values are path encoded and the querystring values are form encoded
+        assertEquals("http://host/users/a%20b%2Fc/items?q=a+b%26c%3D",
+                     template.expand("a b/c", "a b&c="));
+        assertEquals("http://host/users/%C3%A8/items?q=%E2%82%AC", template.expand("è", "€"));
+        assertEquals("http://host/users/%E8/items?q=%E8", template.withCharset("ISO-8859-1").expand("è", "è"));
+        final Map<String, String> values = new HashMap<String, String>();
+        values.put("query", "x");
+        values.put("id", "42");
+        assertEquals("http://host/users/42/items?q=x", template.expand(values));
+        assertEquals("http://host/users/42/items?q=x&key=a+b",
+                     template.withStaticParam("key", "a b").expand("42", "x"));
+        assertEquals("http://host/list?page=1",
+                     RestCommandTemplate.compile(RestCommand.HTTP_METHOD.GET, "http://host/list")
+                             .withStaticParam("page", "1").expand());
+    }
+
+    public void testTemplateValuesNotValid() throws Exception {
+        final RestCommandTemplate template = RestCommandTemplate.compile(RestCommand.HTTP_METHOD.GET,
+                                                                         "http://host/users/{id}");
+        try {
+            template.expand("1", "2");
+            fail("Too many values");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        try {
+            template.expand(new HashMap<String, String>());
+            fail("Missing value");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        try {
+            RestCommandTemplate.compile(RestCommand.HTTP_METHOD.GET, "http://host/users/{id");
+            fail("Placeholder not closed");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package uk.co.massimocarli.restmethod.test;
+
+import android.content.Context;
+import uk.co.massimocarli.restmethod.http.deserializer.Deserializer;
+import uk.co.massimocarli.restmethod.http.deserializer.ResponseDeserializerAdapter;
+import uk.co.massimocarli.restmethod.rest.ResponseMetadata;
+import uk.co.massimocarli.restmethod.rest.RestCommand;
+import uk.co.massimocarli.restmethod.rest.RestCommandExecutor;
+import uk.co.massimocarli.restmethod.rest.RestCommandResult;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This is a RestCommandExecutor that doesn't use the network. The body of every response is
+ * given by the implementation and it's read by the Deserializer as a real one. The requests
+ * are counted.
+ */
+public abstract class FakeRestCommandExecutor implements RestCommandExecutor {
+
+    /**
+     * The number of requests
+     */
+    private final AtomicInteger mRequestsCount = new AtomicInteger();
+
+    /**
+     * Creates the metadata of a 200 response with the given headers
+     *
+     * @param namesAndValues The names and the values of the headers
+     * @return The ResponseMetadata
+     */
+    public static ResponseMetadata okMetadata(final String... namesAndValues) {
+        return new ResponseMetadata() {
+            @Override
+            public int getStatusCode() {
+                return 200;
+            }
+
+            @Override
+            public String getStatusMessage() {
+                return "OK";
+            }
+
+            @Override
+            public String getHeader(final String name) {
+                for (int i = 0; i < namesAndValues.length; i += 2) {
+                    if (namesAndValues[i].equalsIgnoreCase(name)) {
+                        return namesAndValues[i + 1];
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * @return The number of requests executed
+     */
+    public int getRequestsCount() {
+        return mRequestsCount.get();
+    }
+
+    @Override
+    public <T> RestCommandResult<T> execute(final Context context, final RestCommand restCommand,
+                                            final Deserializer<? extends T> deserializer)
+            throws RestCommandException {
+        mRequestsCount.incrementAndGet();
+        final ResponseMetadata metadata = metadataFor(restCommand);
+        try {
+            final T result = ResponseDeserializerAdapter.realise(deserializer, openBody(restCommand), metadata,
+                                                                 context);
+            return RestCommandResult.get(result, metadata);
+        } catch (IOException e) {
+            throw new RestCommandException("Error", e);
+        }
+    }
+
+    /**
+     * @param restCommand The RestCommand executed
+     * @return The metadata of the response. A 200 without headers by default
+     */
+    protected ResponseMetadata metadataFor(final RestCommand restCommand) {
+        return okMetadata();
+    }
+
+    /**
+     * @param restCommand The RestCommand executed
+     * @return The body of the response
+     * @throws IOException In case of error
+     */
+    protected abstract InputStream openBody(RestCommand restCommand) throws IOException;
+}
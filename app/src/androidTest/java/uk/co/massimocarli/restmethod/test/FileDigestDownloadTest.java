@@ -0,0 +1,103 @@
+package uk.co.massimocarli.restmethod.test;
+
+import android.test.AndroidTestCase;
+import org.eclipse.jetty.server.Server;
+import uk.co.massimocarli.restmethod.http.deserializer.FileDeserializer;
+import uk.co.massimocarli.restmethod.http.urlconnection.UrlConnectionCommandExecutor;
+import uk.co.massimocarli.restmethod.rest.RestCommand;
+import uk.co.massimocarli.restmethod.rest.RestCommandBuilder;
+import uk.co.massimocarli.restmethod.rest.RestCommandExecutor;
+import uk.co.massimocarli.restmethod.util.EncodingUtils;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.util.Random;
+
+/**
+ * Tests for the digest computed by the FileDeserializer while the data are saved
+ */
+public class FileDigestDownloadTest extends AndroidTestCase {
+
+    // The server port we're using
+    private final static int SERVER_PORT = 8084;
+
+    private final static String DOWNLOAD_URL = "http://127.0.0.1:" + SERVER_PORT + "/file.bin";
+
+    private final static int FILE_SIZE = 1024 * 1024;
+
+    private Server jettyServer;
+
+    private RangeDownloadHandler downloadHandler;
+
+    private String expectedDigest;
+
+    private File destination;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        // work-around for Android defect 9431
+        System.setProperty("java.net.preferIPv4Stack", "true");
+        System.setProperty("java.net.preferIPv6Addresses", "false");
+        final byte[] content = new byte[FILE_SIZE];
+        new Random(42).nextBytes(content);
+        expectedDigest = EncodingUtils.toHexString(MessageDigest.getInstance("SHA-256").digest(content));
+        downloadHandler = new RangeDownloadHandler(content, "\"v1\"");
+        jettyServer = new Server(SERVER_PORT);
+        jettyServer.setHandler(downloadHandler);
+        jettyServer.start();
+        destination = new File(getContext().getCacheDir(), "digest.bin");
+        destination.delete();
+        new File(destination.getAbsolutePath() + "_tmp").delete();
+        new File(destination.getAbsolutePath() + "_tmp.meta").delete();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        jettyServer.stop();
+        destination.delete();
+    }
+
+    public void testDigestComputed() throws Exception {
+        final RestCommand restCommand = RestCommandBuilder.get(DOWNLOAD_URL).build();
+        final FileDeserializer deserializer = FileDeserializer.get(destination, true)
+                .withDigest("SHA-256")
+                .withSyncPolicy(FileDeserializer.SyncPolicy.ON_COMPLETE);
+        UrlConnectionCommandExecutor.create().execute(getContext(), restCommand, deserializer);
+        assertEquals(expectedDigest, deserializer.getLastDigest());
+        assertEquals(FILE_SIZE, destination.length());
+    }
+
+    public void testDigestMismatch() throws Exception {
+        final RestCommand restCommand = RestCommandBuilder.get(DOWNLOAD_URL).build();
+        final FileDeserializer deserializer = FileDeserializer.get(destination, true)
+                .withExpectedDigest("SHA-256", expectedDigest.replace(expectedDigest.charAt(0),
+                                                                      expectedDigest.charAt(0) == '0' ? '1' : '0'));
+        try {
+            UrlConnectionCommandExecutor.create().execute(getContext(), restCommand, deserializer);
+            fail("The digest should not match");
+        } catch (RestCommandExecutor.RestCommandException e) {
+            // Expected
+        }
+        assertFalse(destination.exists());
+        assertFalse(new File(destination.getAbsolutePath() + "_tmp").exists());
+    }
+
+    public void testDigestOfResumedDownload() throws Exception {
+        final RestCommandExecutor executor = UrlConnectionCommandExecutor.create();
+        final RestCommand restCommand = RestCommandBuilder.get(DOWNLOAD_URL).build();
+        final FileDeserializer deserializer = FileDeserializer.resumable(destination)
+                .withExpectedDigest("SHA-256", expectedDigest)
+                .withSyncPolicy(FileDeserializer.SyncPolicy.PERIODIC);
+        downloadHandler.breakOnceAfter(FILE_SIZE / 2);
+        try {
+            deserializer.download(getContext(), executor, restCommand);
+            fail("The connection should break");
+        } catch (RestCommandExecutor.RestCommandException e) {
+            // Expected
+        }
+        deserializer.download(getContext(), executor, restCommand);
+        // The digest covers the data of both the attempts
+        assertEquals(expectedDigest, deserializer.getLastDigest());
+        assertEquals(FILE_SIZE, destination.length());
+    }
+}
@@ -0,0 +1,136 @@
+package uk.co.massimocarli.restmethod.test;
+
+import android.test.AndroidTestCase;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import uk.co.massimocarli.restmethod.http.client.HttpClientRestCommandExecutor;
+import uk.co.massimocarli.restmethod.http.deserializer.StringDeserializer;
+import uk.co.massimocarli.restmethod.http.urlconnection.UrlConnectionCommandExecutor;
+import uk.co.massimocarli.restmethod.rest.RestCommand;
+import uk.co.massimocarli.restmethod.rest.RestCommandBuilder;
+import uk.co.massimocarli.restmethod.rest.RestCommandExecutor;
+import uk.co.massimocarli.restmethod.rest.RestCommandResult;
+import uk.co.massimocarli.restmethod.util.EncodingUtils;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+
+/**
+ * Tests the upload of the FileDocuments with both the executors. The server answers with the
+ * Content-Length header, the Content-Type and the MD5 of the body it received.
+ */
+public class FileUploadTest extends AndroidTestCase {
+
+    // The server port we're using
+    private final static int SERVER_PORT = 8087;
+
+    private final static String UPLOAD_URL = "http://127.0.0.1:" + SERVER_PORT + "/upload";
+
+    private final static int SMALL_FILE_SIZE = 10 * 1024;
+
+    // Bigger than the window of the mapping
+    private final static int BIG_FILE_SIZE = 9 * 1024 * 1024 + 17;
+
+    private Server jettyServer;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        // work-around for Android defect 9431
+        System.setProperty("java.net.preferIPv4Stack", "true");
+        System.setProperty("java.net.preferIPv6Addresses", "false");
+        jettyServer = new Server(SERVER_PORT);
+        jettyServer.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(final String target, final Request baseRequest, final HttpServletRequest request,
+                               final HttpServletResponse response) throws IOException, ServletException {
+                final MessageDigest digest;
+                try {
+                    digest = MessageDigest.getInstance("MD5");
+                } catch (Exception e) {
+                    throw new ServletException(e);
+                }
+                final InputStream input = request.getInputStream();
+                final byte[] buffer = new byte[8192];
+                long received = 0L;
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                    received += read;
+                }
+                response.setStatus(HttpServletResponse.SC_OK);
+                response.getWriter().write(request.getHeader("Content-Length") + " " + received + " "
+                                                   + request.getContentType() + " "
+                                                   + EncodingUtils.toHexString(digest.digest()));
+                baseRequest.setHandled(true);
+            }
+        });
+        jettyServer.start();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        jettyServer.stop();
+    }
+
+    private File createFile(final int size) throws Exception {
+        final File file = new File(getContext().getCacheDir(), "upload_" + size + ".bin");
+        final byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        final FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(content);
+        } finally {
+            output.close();
+        }
+        return file;
+    }
+
+    private void assertUpload(final RestCommandExecutor executor, final int size) throws Exception {
+        final File file = createFile(size);
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("MD5");
+            final byte[] content = new byte[size];
+            new Random(size).nextBytes(content);
+            final String expected = size + " " + size + " image/png " + EncodingUtils.toHexString(digest.digest(content));
+            final RestCommand restCommand = RestCommandBuilder.put(UPLOAD_URL)
+                    .setFileDocument(file, "image/png")
+                    .build();
+            final RestCommandResult<String> result = executor.execute(getContext(), restCommand,
+                                                                      StringDeserializer.getDefault());
+            assertEquals(expected, result.getResult());
+            // The traffic counts the uploaded File too
+            assertTrue(result.getTrafficData() > size + expected.length());
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testUrlConnectionUpload() throws Exception {
+        assertUpload(UrlConnectionCommandExecutor.create(), SMALL_FILE_SIZE);
+        assertUpload(UrlConnectionCommandExecutor.create(), BIG_FILE_SIZE);
+    }
+
+    public void testHttpClientUpload() throws Exception {
+        assertUpload(HttpClientRestCommandExecutor.create(), SMALL_FILE_SIZE);
+        assertUpload(HttpClientRestCommandExecutor.create(), BIG_FILE_SIZE);
+    }
+
+    public void testFileDocumentExclusive() throws Exception {
+        try {
+            RestCommandBuilder.post(UPLOAD_URL)
+                    .setBinaryDocument(new byte[1])
+                    .setFileDocument(new File("missing.bin"), null);
+            fail("Only one document is allowed");
+        } catch (IllegalStateException ise) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package uk.co.massimocarli.restmethod.test;
+
+/**
+ * Samples the used heap in a background thread to find the peak of memory used by a block
+ * of code. It's not precise as an allocation tracker but it's enough to compare two
+ * implementations.
+ */
+public class HeapSampler {
+
+    private final Thread samplerThread;
+
+    private volatile boolean running = true;
+
+    private volatile long peak;
+
+    private final long baseline;
+
+    private HeapSampler() {
+        System.gc();
+        System.runFinalization();
+        System.gc();
+        baseline = usedMemory();
+        peak = baseline;
+        samplerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    final long used = usedMemory();
+                    if (used > peak) {
+                        peak = used;
+                    }
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "HeapSampler");
+        samplerThread.start();
+    }
+
+    public static HeapSampler start() {
+        return new HeapSampler();
+    }
+
+    /**
+     * Stops the sampling
+     *
+     * @return The peak of heap used over the baseline in bytes
+     */
+    public long stop() throws InterruptedException {
+        final long used = usedMemory();
+        if (used > peak) {
+            peak = used;
+        }
+        running = false;
+        samplerThread.join();
+        return peak - baseline;
+    }
+
+    private static long usedMemory() {
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,177 @@
+package uk.co.massimocarli.restmethod.test;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import uk.co.massimocarli.restmethod.http.client.HttpClientRestCommandExecutor;
+import uk.co.massimocarli.restmethod.http.deserializer.Deserializer;
+import uk.co.massimocarli.restmethod.rest.RestClientConf;
+import uk.co.massimocarli.restmethod.rest.RestCommand;
+import uk.co.massimocarli.restmethod.rest.RestCommandBuilder;
+import uk.co.massimocarli.restmethod.rest.RestCommandResult;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that the HttpClient implementation streams the response to the Deserializer. The server
+ * sends the first half of the body and then waits for the Deserializer to read it before it sends
+ * the rest: only a streamed response can be read before the server has finished writing.
+ */
+public class HttpClientStreamingTest extends AndroidTestCase {
+
+    // The server port we're using
+    private final static int SERVER_PORT = 8086;
+
+    private final static String DOWNLOAD_URL = "http://127.0.0.1:" + SERVER_PORT + "/file.bin";
+
+    private final static int FILE_SIZE = 256 * 1024;
+
+    // How long the server waits for the Deserializer before it sends the rest of the body
+    private final static long GATE_TIMEOUT = 2000L;
+
+    private Server jettyServer;
+
+    private GatedHandler gatedHandler;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        // work-around for Android defect 9431
+        System.setProperty("java.net.preferIPv4Stack", "true");
+        System.setProperty("java.net.preferIPv6Addresses", "false");
+        final byte[] content = new byte[FILE_SIZE];
+        new Random(42).nextBytes(content);
+        gatedHandler = new GatedHandler(content);
+        jettyServer = new Server(SERVER_PORT);
+        jettyServer.setHandler(gatedHandler);
+        jettyServer.start();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        jettyServer.stop();
+    }
+
+    /**
+     * The handler that sends the first half of the content and waits for the gate to be opened,
+     * or for the timeout, before it sends the second half
+     */
+    private static final class GatedHandler extends AbstractHandler {
+
+        private final byte[] mContent;
+
+        private volatile CountDownLatch mGate = new CountDownLatch(1);
+
+        private volatile boolean mOpenedWhileWriting;
+
+        private GatedHandler(final byte[] content) {
+            this.mContent = content;
+        }
+
+        void openGate() {
+            mGate.countDown();
+        }
+
+        boolean isOpenedWhileWriting() {
+            return mOpenedWhileWriting;
+        }
+
+        @Override
+        public void handle(String target, Request request, HttpServletRequest httpServletRequest,
+                           HttpServletResponse httpServletResponse) throws IOException, ServletException {
+            request.setHandled(true);
+            final CountDownLatch gate = new CountDownLatch(1);
+            mGate = gate;
+            mOpenedWhileWriting = false;
+            httpServletResponse.setStatus(HttpServletResponse.SC_OK);
+            httpServletResponse.setContentLength(mContent.length);
+            httpServletResponse.setContentType("application/octet-stream");
+            final OutputStream output = httpServletResponse.getOutputStream();
+            output.write(mContent, 0, mContent.length / 2);
+            output.flush();
+            try {
+                mOpenedWhileWriting = gate.await(GATE_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+            output.write(mContent, mContent.length / 2, mContent.length - mContent.length / 2);
+        }
+    }
+
+    /**
+     * The Deserializer that opens the gate of the server when it has read the first half of
+     * the body and then reads the rest
+     */
+    private final class GateOpeningDeserializer implements Deserializer<Integer> {
+
+        private final int mGateAfter;
+
+        private GateOpeningDeserializer(final int gateAfter) {
+            this.mGateAfter = gateAfter;
+        }
+
+        @Override
+        public Integer realise(final InputStream inputStream, final Context context) throws IOException {
+            final byte[] buffer = new byte[4096];
+            int bytesRead = 0;
+            int read;
+            while (bytesRead < mGateAfter && (read = inputStream.read(buffer)) != -1) {
+                bytesRead += read;
+            }
+            gatedHandler.openGate();
+            while ((read = inputStream.read(buffer)) != -1) {
+                bytesRead += read;
+            }
+            return bytesRead;
+        }
+    }
+
+    public void testResponseStreamed() throws Exception {
+        final RestCommand restCommand = RestCommandBuilder.get(DOWNLOAD_URL).build();
+        final RestCommandResult<Integer> result = HttpClientRestCommandExecutor.create()
+                .execute(getContext(), restCommand, new GateOpeningDeserializer(FILE_SIZE / 2));
+        assertEquals(FILE_SIZE, result.getResult().intValue());
+        // The Deserializer received the data before the server sent all of them
+        assertTrue(gatedHandler.isOpenedWhileWriting());
+    }
+
+    public void testResponseBufferedOnRequest() throws Exception {
+        final RestCommand restCommand = RestCommandBuilder.get(DOWNLOAD_URL).build();
+        final RestClientConf conf = RestClientConf.getDefault().withBufferedResponses(true);
+        final RestCommandResult<Integer> result = HttpClientRestCommandExecutor.create(conf)
+                .execute(getContext(), restCommand, new GateOpeningDeserializer(FILE_SIZE / 2));
+        assertEquals(FILE_SIZE, result.getResult().intValue());
+        // The Deserializer starts when all the data are in memory
+        assertFalse(gatedHandler.isOpenedWhileWriting());
+    }
+
+    public void testConnectionReleasedAfterPartialRead() throws Exception {
+        final RestCommand restCommand = RestCommandBuilder.get(DOWNLOAD_URL).build();
+        final HttpClientRestCommandExecutor executor = HttpClientRestCommandExecutor.create();
+        // The Deserializer reads only the first bytes but the next requests work
+        for (int i = 0; i < 3; i++) {
+            final RestCommandResult<Integer> result = executor.execute(getContext(), restCommand,
+                                                                       new Deserializer<Integer>() {
+                                                                           @Override
+                                                                           public Integer realise(final InputStream inputStream,
+                                                                                                  final Context context)
+                                                                                   throws IOException {
+                                                                               final int read = inputStream.read();
+                                                                               gatedHandler.openGate();
+                                                                               return read;
+                                                                           }
+                                                                       });
+            assertEquals(200, result.getStatusCode());
+        }
+    }
+}
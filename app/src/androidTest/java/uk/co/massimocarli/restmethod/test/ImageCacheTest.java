@@ -0,0 +1,154 @@
+package uk.co.massimocarli.restmethod.test;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import uk.co.massimocarli.restmethod.cache.DiskCache;
+import uk.co.massimocarli.restmethod.cache.ImageCache;
+import uk.co.massimocarli.restmethod.rest.ResponseMetadata;
+import uk.co.massimocarli.restmethod.rest.RestCommand;
+import uk.co.massimocarli.restmethod.rest.RestCommandBuilder;
+import uk.co.massimocarli.restmethod.rest.RestCommandExecutor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests for the memory and disk levels of the ImageCache. The images are served by a fake
+ * RestCommandExecutor that counts the requests
+ */
+public class ImageCacheTest extends AndroidTestCase {
+
+    private byte[] jpegData;
+
+    private final FakeRestCommandExecutor fakeExecutor = new FakeRestCommandExecutor() {
+        @Override
+        protected ResponseMetadata metadataFor(final RestCommand restCommand) {
+            return okMetadata(ResponseMetadata.CONTENT_LENGTH_HEADER, String.valueOf(jpegData.length));
+        }
+
+        @Override
+        protected InputStream openBody(final RestCommand restCommand) {
+            return new ByteArrayInputStream(jpegData);
+        }
+    };
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        final Bitmap source = Bitmap.createBitmap(800, 600, Bitmap.Config.ARGB_8888);
+        source.eraseColor(Color.RED);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        source.compress(Bitmap.CompressFormat.JPEG, 90, output);
+        source.recycle();
+        jpegData = output.toByteArray();
+    }
+
+    public void testLevels() throws Exception {
+        final ImageCache imageCache = ImageCache.create(getContext(), 4 * 1024 * 1024, 1024 * 1024, fakeExecutor);
+        final RestCommand restCommand = RestCommandBuilder.get("http://example.com/image_" + System.nanoTime()).build();
+        // Cold view: one download and one decoding
+        final Bitmap first = imageCache.load(getContext(), restCommand, 200, 200);
+        assertEquals(200, first.getWidth());
+        assertEquals(1, fakeExecutor.getRequestsCount());
+        assertEquals(1, imageCache.getNetworkLoads());
+        // Repeat view: no network and no decoding
+        assertSame(first, imageCache.load(getContext(), restCommand, 200, 200));
+        assertEquals(1, imageCache.getMemoryHits());
+        assertEquals(1, fakeExecutor.getRequestsCount());
+        // After the memory is cleared we decode from disk
+        imageCache.clearMemory();
+        assertNotNull(imageCache.load(getContext(), restCommand, 200, 200));
+        assertEquals(1, imageCache.getDiskHits());
+        assertEquals(1, fakeExecutor.getRequestsCount());
+    }
+
+    public void testBitmapReuse() throws Exception {
+        // A memory cache of a single image so every load evicts the previous one
+        final ImageCache imageCache = ImageCache.create(getContext(), 200 * 150 * 4 * 4, 1024 * 1024, fakeExecutor);
+        for (int i = 0; i < 6; i++) {
+            final RestCommand restCommand = RestCommandBuilder.get("http://example.com/reuse_" + i).build();
+            final Bitmap bitmap = imageCache.load(getContext(), restCommand, 200, 150);
+            assertNotNull(bitmap);
+            // Not shown anymore
+            imageCache.release(bitmap);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // Before KitKat the sampled images cannot reuse a Bitmap
+            assertTrue(imageCache.getBitmapPool().getReuseCount() > 0);
+        }
+    }
+
+    public void testShownBitmapNotReused() throws Exception {
+        // A memory cache of a single image so every load evicts the previous one
+        final ImageCache imageCache = ImageCache.create(getContext(), 200 * 150 * 4 * 4, 1024 * 1024, fakeExecutor);
+        final RestCommand shownCommand = RestCommandBuilder.get("http://example.com/shown_" + System.nanoTime()).build();
+        final Bitmap shown = imageCache.load(getContext(), shownCommand, 200, 150);
+        final int[] pixels = new int[shown.getWidth() * shown.getHeight()];
+        shown.getPixels(pixels, 0, shown.getWidth(), 0, 0, shown.getWidth(), shown.getHeight());
+        for (int i = 0; i < 4; i++) {
+            final RestCommand restCommand = RestCommandBuilder.get("http://example.com/other_" + i).build();
+            final Bitmap bitmap = imageCache.load(getContext(), restCommand, 200, 150);
+            // The evicted Bitmap is still shown so it's not used for the decoding
+            assertNotSame(shown, bitmap);
+            imageCache.release(bitmap);
+        }
+        imageCache.clearMemory();
+        assertFalse(shown.isRecycled());
+        final int[] pixelsAfter = new int[pixels.length];
+        shown.getPixels(pixelsAfter, 0, shown.getWidth(), 0, 0, shown.getWidth(), shown.getHeight());
+        assertTrue(Arrays.equals(pixels, pixelsAfter));
+        // After the release the Bitmap goes into the pool
+        imageCache.release(shown);
+        assertSame(shown, imageCache.getBitmapPool().take(shown.getWidth(), shown.getHeight(),
+                                                          shown.getConfig(), 1));
+    }
+
+    public void testConcurrentDiskWrites() throws Exception {
+        final File directory = new File(getContext().getCacheDir(), "disk_cache_test");
+        final File[] oldFiles = directory.listFiles();
+        if (oldFiles != null) {
+            for (File oldFile : oldFiles) {
+                oldFile.delete();
+            }
+        }
+        final DiskCache diskCache = DiskCache.open(directory, 1024 * 1024);
+        final String key = "http://example.com/concurrent_" + System.nanoTime();
+        final int writers = 4;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(writers);
+        final IOException[] errors = new IOException[writers];
+        for (int i = 0; i < writers; i++) {
+            final int index = i;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        diskCache.put(key, new ByteArrayInputStream(jpegData), jpegData.length);
+                    } catch (IOException e) {
+                        errors[index] = e;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+        for (IOException error : errors) {
+            assertNull(error);
+        }
+        final File file = diskCache.get(key);
+        assertEquals(jpegData.length, file.length());
+        assertEquals(jpegData.length, diskCache.getCurrentBytes());
+        diskCache.remove(key);
+    }
+}
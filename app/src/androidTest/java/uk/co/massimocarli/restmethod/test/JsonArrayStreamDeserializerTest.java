@@ -0,0 +1,136 @@
+package uk.co.massimocarli.restmethod.test;
+
+import android.test.AndroidTestCase;
+import android.util.JsonReader;
+import org.json.JSONObject;
+import uk.co.massimocarli.restmethod.http.deserializer.JsonArrayStreamDeserializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests for the element by element reading of the JSON arrays
+ */
+public class JsonArrayStreamDeserializerTest extends AndroidTestCase {
+
+    private static final int RECORDS_COUNT = 50000;
+
+    private byte[] recordsBytes;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        final StringBuilder builder = new StringBuilder("{\"version\":3,\"meta\":{\"a\":[1,2]},\"records\":[");
+        for (int i = 0; i < RECORDS_COUNT; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append("{\"id\":").append(i).append(",\"name\":\"Record ").append(i).append("\"}");
+        }
+        builder.append("]}");
+        recordsBytes = builder.toString().getBytes("UTF-8");
+    }
+
+    private static final JsonArrayStreamDeserializer.ElementReader<Long> ID_READER =
+            new JsonArrayStreamDeserializer.ElementReader<Long>() {
+                @Override
+                public Long read(final JsonReader jsonReader) throws IOException {
+                    long id = -1;
+                    jsonReader.beginObject();
+                    while (jsonReader.hasNext()) {
+                        if ("id".equals(jsonReader.nextName())) {
+                            id = jsonReader.nextLong();
+                        } else {
+                            jsonReader.skipValue();
+                        }
+                    }
+                    jsonReader.endObject();
+                    return id;
+                }
+            };
+
+    public void testInlineHandler() throws Exception {
+        final AtomicLong idSum = new AtomicLong();
+        final Integer count = JsonArrayStreamDeserializer.create(ID_READER,
+                new JsonArrayStreamDeserializer.ElementHandler<Long>() {
+                    @Override
+                    public void onElement(final Long element, final int index) throws IOException {
+                        assertEquals(index, element.intValue());
+                        idSum.addAndGet(element);
+                    }
+                }).withArrayField("records").realise(new ByteArrayInputStream(recordsBytes), getContext());
+        assertEquals(RECORDS_COUNT, count.intValue());
+        assertEquals((long) RECORDS_COUNT * (RECORDS_COUNT - 1) / 2, idSum.get());
+    }
+
+    public void testPipelinedHandler() throws Exception {
+        final AtomicInteger handled = new AtomicInteger();
+        final Thread readerThread = Thread.currentThread();
+        final Integer count = JsonArrayStreamDeserializer.pipelined(
+                JsonArrayStreamDeserializer.JSON_OBJECT_READER,
+                new JsonArrayStreamDeserializer.ElementHandler<JSONObject>() {
+                    @Override
+                    public void onElement(final JSONObject element, final int index) throws IOException {
+                        assertNotSame(readerThread, Thread.currentThread());
+                        assertEquals("Record " + index, element.optString("name"));
+                        handled.incrementAndGet();
+                    }
+                }, 64).withArrayField("records").realise(new ByteArrayInputStream(recordsBytes), getContext());
+        assertEquals(RECORDS_COUNT, count.intValue());
+        // All the elements are handled when realise returns
+        assertEquals(RECORDS_COUNT, handled.get());
+    }
+
+    public void testPipelinedHandlerFailure() throws Exception {
+        try {
+            JsonArrayStreamDeserializer.pipelined(ID_READER,
+                    new JsonArrayStreamDeserializer.ElementHandler<Long>() {
+                        @Override
+                        public void onElement(final Long element, final int index) throws IOException {
+                            if (index == 1000) {
+                                throw new IOException("Disk full");
+                            }
+                        }
+                    }, 16).withArrayField("records").realise(new ByteArrayInputStream(recordsBytes), getContext());
+            fail("The error of the handler should stop the reading");
+        } catch (IOException e) {
+            assertEquals("Disk full", e.getMessage());
+        }
+    }
+
+    public void testPipelinedReaderFailure() throws Exception {
+        final byte[] brokenBytes = "[{\"id\":1},{\"id\":2},{\"id\":\"three\"},{\"id\":4}]".getBytes("UTF-8");
+        final AtomicInteger handled = new AtomicInteger();
+        try {
+            JsonArrayStreamDeserializer.pipelined(ID_READER,
+                    new JsonArrayStreamDeserializer.ElementHandler<Long>() {
+                        @Override
+                        public void onElement(final Long element, final int index) throws IOException {
+                            handled.incrementAndGet();
+                        }
+                    }, 16).realise(new ByteArrayInputStream(brokenBytes), getContext());
+            fail("The id is not a number");
+        } catch (IOException e) {
+            // Expected
+        }
+        final int handledAtFailure = handled.get();
+        assertTrue(handledAtFailure <= 2);
+        // The handler is not called after the failure has been reported
+        Thread.sleep(100L);
+        assertEquals(handledAtFailure, handled.get());
+    }
+
+    public void testArrayOfWrongType() throws Exception {
+        try {
+            JsonArrayStreamDeserializer.create(ID_READER, new JsonArrayStreamDeserializer.ElementHandler<Long>() {
+                @Override
+                public void onElement(final Long element, final int index) throws IOException {
+                }
+            }).realise(new ByteArrayInputStream("{\"records\":[]}".getBytes("UTF-8")), getContext());
+            fail("The root is not an array");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}
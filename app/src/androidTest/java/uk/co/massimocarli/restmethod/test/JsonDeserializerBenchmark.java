@@ -0,0 +1,109 @@
+package uk.co.massimocarli.restmethod.test;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.util.JsonReader;
+import android.util.Log;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import uk.co.massimocarli.restmethod.http.deserializer.JsonArrayDeserializer;
+import uk.co.massimocarli.restmethod.http.deserializer.JsonDeserializer;
+import uk.co.massimocarli.restmethod.http.deserializer.JsonStreamDeserializer;
+import uk.co.massimocarli.restmethod.http.deserializer.StringDeserializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * Compares the peak memory of the streaming JSON Deserializers with the String based parsing
+ * on a multi-MB response
+ */
+public class JsonDeserializerBenchmark extends AndroidTestCase {
+
+    private static final String TAG_LOG = JsonDeserializerBenchmark.class.getName();
+
+    private static final int ITEMS_COUNT = 20000;
+
+    private byte[] jsonArrayBytes;
+
+    private byte[] jsonObjectBytes;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        final StringBuilder builder = new StringBuilder();
+        builder.append('[');
+        for (int i = 0; i < ITEMS_COUNT; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append("{\"id\":").append(i)
+                    .append(",\"name\":\"Item number ").append(i).append(" with a \\\"quoted\\\" name\"")
+                    .append(",\"price\":").append(i * 1.5)
+                    .append(",\"available\":").append(i % 2 == 0)
+                    .append(",\"tags\":[\"first\",\"second\",null]}");
+        }
+        builder.append(']');
+        jsonArrayBytes = builder.toString().getBytes("UTF-8");
+        jsonObjectBytes = ("{\"items\":" + builder + "}").getBytes("UTF-8");
+        Log.i(TAG_LOG, "Payload size " + jsonArrayBytes.length + " bytes");
+    }
+
+    public void testSameTreeOfStringParsing() throws Exception {
+        final JSONArray streamed = JsonArrayDeserializer.get()
+                .realise(new ByteArrayInputStream(jsonArrayBytes), getContext());
+        final JSONArray parsed = new JSONArray(new String(jsonArrayBytes, "UTF-8"));
+        assertEquals(parsed.toString(), streamed.toString());
+        final JSONObject streamedObject = JsonDeserializer.get()
+                .realise(new ByteArrayInputStream(jsonObjectBytes), getContext());
+        assertEquals(ITEMS_COUNT, streamedObject.getJSONArray("items").length());
+    }
+
+    public void testNotExpectedType() throws Exception {
+        assertNull(JsonDeserializer.get().realise(new ByteArrayInputStream(jsonArrayBytes), getContext()));
+        assertNull(JsonArrayDeserializer.get().realise(new ByteArrayInputStream(jsonObjectBytes), getContext()));
+    }
+
+    public void testPeakMemoryOfTree() throws Exception {
+        HeapSampler sampler = HeapSampler.start();
+        final String jsonString = StringDeserializer.getDefault()
+                .realise(new ByteArrayInputStream(jsonArrayBytes), getContext());
+        JSONArray stringTree = new JSONArray(jsonString);
+        final long stringPeak = sampler.stop();
+        assertEquals(ITEMS_COUNT, stringTree.length());
+        stringTree = null;
+        sampler = HeapSampler.start();
+        JSONArray streamTree = JsonArrayDeserializer.get()
+                .realise(new ByteArrayInputStream(jsonArrayBytes), getContext());
+        final long streamPeak = sampler.stop();
+        assertEquals(ITEMS_COUNT, streamTree.length());
+        Log.i(TAG_LOG, "Tree peak memory: String " + stringPeak + " bytes, streaming " + streamPeak + " bytes");
+    }
+
+    public void testPeakMemoryOfModel() throws Exception {
+        final JsonStreamDeserializer<Double> totalPriceDeserializer = new JsonStreamDeserializer<Double>() {
+            @Override
+            protected Double read(final JsonReader jsonReader, final Context context) throws IOException {
+                double total = 0;
+                jsonReader.beginArray();
+                while (jsonReader.hasNext()) {
+                    jsonReader.beginObject();
+                    while (jsonReader.hasNext()) {
+                        if ("price".equals(jsonReader.nextName())) {
+                            total += jsonReader.nextDouble();
+                        } else {
+                            jsonReader.skipValue();
+                        }
+                    }
+                    jsonReader.endObject();
+                }
+                jsonReader.endArray();
+                return total;
+            }
+        };
+        final HeapSampler sampler = HeapSampler.start();
+        final Double total = totalPriceDeserializer.realise(new ByteArrayInputStream(jsonArrayBytes), getContext());
+        final long modelPeak = sampler.stop();
+        assertEquals(1.5 * ITEMS_COUNT * (ITEMS_COUNT - 1) / 2, total, 0.001);
+        Log.i(TAG_LOG, "Model peak memory: streaming " + modelPeak + " bytes");
+    }
+}
@@ -0,0 +1,35 @@
+package uk.co.massimocarli.restmethod.test;
+
+import android.test.AndroidTestCase;
+import uk.co.massimocarli.restmethod.http.deserializer.JsonArrayDeserializer;
+import uk.co.massimocarli.restmethod.http.deserializer.JsonDeserializer;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * Tests the results of the JsonDeserializer and of the JsonArrayDeserializer for the bodies that
+ * are empty or not valid
+ */
+public class JsonDeserializerTest extends AndroidTestCase {
+
+    private static ByteArrayInputStream body(final String json) throws Exception {
+        return new ByteArrayInputStream(json.getBytes("UTF-8"));
+    }
+
+    public void testValidBody() throws Exception {
+        assertEquals(1, JsonDeserializer.get().realise(body("{\"a\":1}"), getContext()).getInt("a"));
+        assertEquals(2, JsonArrayDeserializer.get().realise(body("[1,2]"), getContext()).length());
+    }
+
+    public void testEmptyBody() throws Exception {
+        assertNull(JsonDeserializer.get().realise(body(""), getContext()));
+        assertNull(JsonArrayDeserializer.get().realise(body(""), getContext()));
+        assertNull(JsonDeserializer.get().realise(body("  \n"), getContext()));
+    }
+
+    public void testNotValidBody() throws Exception {
+        assertNull(JsonDeserializer.get().realise(body("{\"a\":"), getContext()));
+        assertNull(JsonDeserializer.get().realise(body("[1,2]"), getContext()));
+        assertNull(JsonArrayDeserializer.get().realise(body("{\"a\":1}"), getContext()));
+    }
+}
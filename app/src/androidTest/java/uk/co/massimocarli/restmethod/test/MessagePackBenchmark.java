@@ -0,0 +1,123 @@
+package uk.co.massimocarli.restmethod.test;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import uk.co.massimocarli.restmethod.http.MessagePackWriter;
+import uk.co.massimocarli.restmethod.http.deserializer.ContentNegotiatingDeserializer;
+import uk.co.massimocarli.restmethod.http.deserializer.Deserializer;
+import uk.co.massimocarli.restmethod.http.deserializer.JsonDeserializer;
+import uk.co.massimocarli.restmethod.http.deserializer.MessagePackDeserializer;
+import uk.co.massimocarli.restmethod.rest.ResponseMetadata;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * Compares the MessagePack Deserializer with the JSON one on the same data sets: size of the
+ * payload, parse time and bytes allocated for every parsing
+ */
+public class MessagePackBenchmark extends AndroidTestCase {
+
+    private static final String TAG_LOG = MessagePackBenchmark.class.getName();
+
+    private static final int ITERATIONS = 10;
+
+    private byte[] jsonListBytes;
+
+    private byte[] messagePackListBytes;
+
+    private byte[] jsonNumbersBytes;
+
+    private byte[] messagePackNumbersBytes;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        // A list of records with strings and a data set with numbers only
+        final JSONArray items = new JSONArray();
+        final JSONArray numbers = new JSONArray();
+        for (int i = 0; i < 5000; i++) {
+            final JSONObject item = new JSONObject();
+            item.put("id", i);
+            item.put("name", "Item number " + i + " with a \"quoted\" name");
+            item.put("price", i * 1.5);
+            item.put("available", i % 2 == 0);
+            item.put("tags", new JSONArray().put("first").put("second").put(JSONObject.NULL));
+            items.put(item);
+            numbers.put(new JSONArray().put(i).put(i * 1000003L).put(-i).put(i / 7.0));
+        }
+        final JSONObject list = new JSONObject().put("items", items);
+        final JSONObject matrix = new JSONObject().put("rows", numbers);
+        jsonListBytes = list.toString().getBytes("UTF-8");
+        messagePackListBytes = MessagePackWriter.toByteArray(list);
+        jsonNumbersBytes = matrix.toString().getBytes("UTF-8");
+        messagePackNumbersBytes = MessagePackWriter.toByteArray(matrix);
+    }
+
+    public void testSameTree() throws Exception {
+        final JSONObject fromJson = JsonDeserializer.get().realise(new ByteArrayInputStream(jsonListBytes), getContext());
+        final JSONObject fromMessagePack = MessagePackDeserializer.get()
+                .realise(new ByteArrayInputStream(messagePackListBytes), getContext());
+        assertEquals(fromJson.toString(), fromMessagePack.toString());
+    }
+
+    public void testNegotiation() throws Exception {
+        final ContentNegotiatingDeserializer<JSONObject> deserializer = ContentNegotiatingDeserializer.jsonOrMessagePack();
+        final JSONObject fromMessagePack = deserializer.realise(new ByteArrayInputStream(messagePackListBytes),
+                                                                FakeRestCommandExecutor.okMetadata(ResponseMetadata.CONTENT_TYPE_HEADER, "application/x-msgpack"), getContext());
+        final JSONObject fromJson = deserializer.realise(new ByteArrayInputStream(jsonListBytes),
+                                                         FakeRestCommandExecutor.okMetadata(ResponseMetadata.CONTENT_TYPE_HEADER, "application/json; charset=utf-8"), getContext());
+        assertEquals(fromJson.toString(), fromMessagePack.toString());
+    }
+
+    public void testListDataSet() throws Exception {
+        compare("list", jsonListBytes, messagePackListBytes);
+    }
+
+    public void testNumbersDataSet() throws Exception {
+        compare("numbers", jsonNumbersBytes, messagePackNumbersBytes);
+    }
+
+    private void compare(final String name, final byte[] jsonBytes, final byte[] messagePackBytes) throws Exception {
+        // Warm up and check that the two formats give the same content
+        final JSONObject fromJson = parse(JsonDeserializer.get(), jsonBytes);
+        final JSONObject fromMessagePack = parse(MessagePackDeserializer.get(), messagePackBytes);
+        assertEquals(fromJson.toString(), fromMessagePack.toString());
+        final long jsonTime = time(JsonDeserializer.get(), jsonBytes);
+        final long messagePackTime = time(MessagePackDeserializer.get(), messagePackBytes);
+        final long jsonAllocation = allocation(JsonDeserializer.get(), jsonBytes);
+        final long messagePackAllocation = allocation(MessagePackDeserializer.get(), messagePackBytes);
+        // The times depend on the device so we only log them
+        Log.i(TAG_LOG, name + " size: JSON " + jsonBytes.length + " bytes, MessagePack " + messagePackBytes.length
+                + " bytes");
+        Log.i(TAG_LOG, name + " parse time: JSON " + jsonTime + "us, MessagePack " + messagePackTime + "us");
+        Log.i(TAG_LOG, name + " allocation: JSON " + jsonAllocation + " bytes, MessagePack " + messagePackAllocation
+                + " bytes");
+        assertTrue(messagePackBytes.length < jsonBytes.length);
+    }
+
+    private JSONObject parse(final Deserializer<JSONObject> deserializer, final byte[] bytes) throws IOException {
+        return deserializer.realise(new ByteArrayInputStream(bytes), getContext());
+    }
+
+    private long time(final Deserializer<JSONObject> deserializer, final byte[] bytes) throws IOException {
+        final long startTime = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertNotNull(parse(deserializer, bytes));
+        }
+        return (System.nanoTime() - startTime) / 1000L / ITERATIONS;
+    }
+
+    private long allocation(final Deserializer<JSONObject> deserializer, final byte[] bytes) throws IOException {
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        try {
+            parse(deserializer, bytes);
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        return Debug.getThreadAllocSize();
+    }
+}
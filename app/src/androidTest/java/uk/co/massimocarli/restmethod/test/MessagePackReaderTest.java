@@ -0,0 +1,91 @@
+package uk.co.massimocarli.restmethod.test;
+
+import android.test.AndroidTestCase;
+import uk.co.massimocarli.restmethod.http.MessagePackWriter;
+import uk.co.massimocarli.restmethod.http.deserializer.MessagePackReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests the MessagePackReader with values longer than its buffer and with lengths not valid
+ */
+public class MessagePackReaderTest extends AndroidTestCase {
+
+    // A length of about 2GB for a value of a few bytes
+    private static final byte[] HUGE_LENGTH = {(byte) 0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xF0};
+
+    private static MessagePackReader reader(final byte[] bytes) {
+        return new MessagePackReader(new ByteArrayInputStream(bytes));
+    }
+
+    private static byte[] withHugeLength(final int format) {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write(format);
+        output.write(HUGE_LENGTH, 0, HUGE_LENGTH.length);
+        output.write(new byte[16], 0, 16);
+        return output.toByteArray();
+    }
+
+    public void testLongValues() throws Exception {
+        final byte[] binary = new byte[200 * 1024];
+        new Random(42).nextBytes(binary);
+        final char[] chars = new char[100 * 1024];
+        Arrays.fill(chars, 'è');
+        final String string = new String(chars);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final MessagePackWriter writer = new MessagePackWriter(output);
+        writer.writeBinary(binary).writeString(string).writeMapHeader(1).writeString(string).writeLong(1L);
+        writer.close();
+        final MessagePackReader reader = reader(output.toByteArray());
+        assertTrue(Arrays.equals(binary, reader.readBinary()));
+        assertEquals(string, reader.readString());
+        assertEquals(1, reader.readMapHeader());
+        assertEquals(string, reader.readName());
+        assertEquals(1L, reader.readLong());
+        reader.close();
+    }
+
+    public void testBinaryLengthNotValid() throws Exception {
+        try {
+            reader(withHugeLength(0xC6)).readBinary();
+            fail("The binary value is truncated");
+        } catch (EOFException e) {
+            // Expected
+        }
+    }
+
+    public void testStringLengthNotValid() throws Exception {
+        try {
+            reader(withHugeLength(0xDB)).readString();
+            fail("The String is truncated");
+        } catch (EOFException e) {
+            // Expected
+        }
+        try {
+            reader(withHugeLength(0xDB)).readName();
+            fail("The name is truncated");
+        } catch (EOFException e) {
+            // Expected
+        }
+    }
+
+    public void testSkipLengthNotValid() throws Exception {
+        try {
+            reader(withHugeLength(0xC6)).skipValue();
+            fail("The binary value is truncated");
+        } catch (EOFException e) {
+            // Expected
+        }
+        try {
+            reader(withHugeLength(0xDF)).skipValue();
+            fail("The map is truncated");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}
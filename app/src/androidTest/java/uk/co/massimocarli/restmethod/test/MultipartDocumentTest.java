@@ -0,0 +1,114 @@
+package uk.co.massimocarli.restmethod.test;
+
+import android.test.AndroidTestCase;
+import uk.co.massimocarli.restmethod.rest.MultipartDocument;
+import uk.co.massimocarli.restmethod.rest.RestCommandBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Tests the MultipartDocument built with the RestCommandBuilder
+ */
+public class MultipartDocumentTest extends AndroidTestCase {
+
+    private static final String URL = "http://127.0.0.1/upload";
+
+    private static final String CONTENT_TYPE_PREFIX = "multipart/form-data; boundary=";
+
+    private File partFile;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        partFile = new File(getContext().getCacheDir(), "multipart_part.bin");
+        writeFile(new byte[1000], false);
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        partFile.delete();
+    }
+
+    private void writeFile(final byte[] content, final boolean append) throws IOException {
+        final FileOutputStream output = new FileOutputStream(partFile, append);
+        output.write(content);
+        output.close();
+    }
+
+    private MultipartDocument document(final RestCommandBuilder builder) {
+        return builder.build().getMultipartDocument();
+    }
+
+    private static String boundaryOf(final MultipartDocument document) {
+        final String contentType = document.getContentType();
+        assertTrue(contentType.startsWith(CONTENT_TYPE_PREFIX));
+        return contentType.substring(CONTENT_TYPE_PREFIX.length());
+    }
+
+    public void testBoundary() throws Exception {
+        final RestCommandBuilder builder = RestCommandBuilder.post(URL).addFormField("first", "1");
+        final MultipartDocument oneField = document(builder);
+        final MultipartDocument twoFields = document(builder.addFormField("second", "2"));
+        // The parts added later keep the boundary but another document has a new one
+        assertEquals(boundaryOf(oneField), boundaryOf(twoFields));
+        assertFalse(boundaryOf(oneField).equals(boundaryOf(document(RestCommandBuilder.post(URL)
+                                                                             .addFormField("first", "1")))));
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        twoFields.writeTo(output);
+        final String body = output.toString("UTF-8");
+        final String boundary = boundaryOf(twoFields);
+        assertTrue(body.startsWith("--" + boundary + "\r\n"));
+        assertTrue(body.endsWith("\r\n--" + boundary + "--\r\n"));
+        assertEquals(2, twoFields.partsCount());
+        assertEquals(1, oneField.partsCount());
+    }
+
+    public void testContentLength() throws Exception {
+        final MultipartDocument document = document(RestCommandBuilder.post(URL)
+                                                            .addFormField("field", "àèì")
+                                                            .addBinaryPart("binary", "data.bin", null, new byte[10])
+                                                            .addFilePart("file", partFile));
+        final long contentLength = document.getContentLength();
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        document.writeTo(output, contentLength);
+        assertEquals(contentLength, output.size());
+    }
+
+    public void testFileChangedAfterLength() throws Exception {
+        final MultipartDocument document = document(RestCommandBuilder.post(URL).addFilePart("file", partFile));
+        final long contentLength = document.getContentLength();
+        writeFile(new byte[10], true);
+        try {
+            document.writeTo(new ByteArrayOutputStream(), contentLength);
+            fail("The body would not match the declared length");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    public void testMissingFile() throws Exception {
+        final MultipartDocument document = document(RestCommandBuilder.post(URL).addFilePart("file", partFile));
+        partFile.delete();
+        assertEquals(-1L, document.getContentLength());
+        try {
+            document.writeTo(new ByteArrayOutputStream());
+            fail("The File doesn't exist");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    public void testEscapedDisposition() throws Exception {
+        final MultipartDocument document = document(RestCommandBuilder.post(URL)
+                                                            .addBinaryPart("a\"b\r\nX-Injected: 1", "c\"d.txt",
+                                                                           null, new byte[1]));
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        document.writeTo(output);
+        final String body = output.toString("UTF-8");
+        assertTrue(body.contains("Content-Disposition: form-data; name=\"a%22b%0D%0AX-Injected: 1\"; "
+                                         + "filename=\"c%22d.txt\"\r\n"));
+        assertFalse(body.contains("\r\nX-Injected"));
+    }
+}
@@ -0,0 +1,151 @@
+package uk.co.massimocarli.restmethod.test;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import uk.co.massimocarli.restmethod.http.PipelinedCommandExecutor;
+import uk.co.massimocarli.restmethod.http.deserializer.Deserializer;
+import uk.co.massimocarli.restmethod.http.deserializer.StringDeserializer;
+import uk.co.massimocarli.restmethod.rest.RestCommand;
+import uk.co.massimocarli.restmethod.rest.RestCommandBuilder;
+import uk.co.massimocarli.restmethod.rest.RestCommandExecutor;
+import uk.co.massimocarli.restmethod.rest.RestCommandResult;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Tests for the PipelinedCommandExecutor. The fake RestCommandExecutor gives a body that arrives
+ * slowly as from the network and the Deserializer is slow too so we can check that the two
+ * stages overlap.
+ */
+public class PipelinedCommandExecutorTest extends AndroidTestCase {
+
+    private static final int CHUNKS = 10;
+
+    private static final long CHUNK_DELAY = 20L;
+
+    private static final byte[] CHUNK = "0123456789abcdef".getBytes();
+
+    private final RestCommandExecutor slowExecutor = new FakeRestCommandExecutor() {
+        @Override
+        protected InputStream openBody(final RestCommand restCommand) {
+            return new SlowInputStream();
+        }
+    };
+
+    /**
+     * The slow Deserializer counts the bytes with a delay for every chunk
+     */
+    private final Deserializer<Integer> slowDeserializer = new Deserializer<Integer>() {
+        @Override
+        public Integer realise(final InputStream inputStream, final Context context) throws IOException {
+            final byte[] buffer = new byte[CHUNK.length];
+            int total = 0;
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                total += read;
+                sleep(CHUNK_DELAY);
+            }
+            return total;
+        }
+    };
+
+    public void testResult() throws Exception {
+        final PipelinedCommandExecutor executor = PipelinedCommandExecutor.create(slowExecutor, 2, 2, 64);
+        try {
+            final RestCommand restCommand = RestCommandBuilder.get("http://localhost/slow").build();
+            final RestCommandResult<String> result = executor.execute(getContext(), restCommand,
+                                                                      StringDeserializer.create("UTF-8"));
+            assertEquals(200, result.getStatusCode());
+            final StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < CHUNKS; i++) {
+                expected.append(new String(CHUNK));
+            }
+            assertEquals(expected.toString(), result.getResult());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testStagesOverlap() throws Exception {
+        final int commands = 4;
+        final PipelinedCommandExecutor executor = PipelinedCommandExecutor.create(slowExecutor, commands, commands,
+                                                                                  CHUNK.length * 2);
+        try {
+            final RestCommand restCommand = RestCommandBuilder.get("http://localhost/slow").build();
+            final long startTime = System.currentTimeMillis();
+            final List<Future<RestCommandResult<Integer>>> futures = new ArrayList<Future<RestCommandResult<Integer>>>();
+            for (int i = 0; i < commands; i++) {
+                futures.add(executor.submit(getContext(), restCommand, slowDeserializer));
+            }
+            for (Future<RestCommandResult<Integer>> future : futures) {
+                assertEquals(Integer.valueOf(CHUNKS * CHUNK.length), future.get().getResult());
+            }
+            final long elapsed = System.currentTimeMillis() - startTime;
+            // Reading and parsing in sequence would take the double of a single stage
+            assertTrue("Elapsed " + elapsed, elapsed < 2 * CHUNKS * CHUNK_DELAY * 3 / 2);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testDeserializerFailure() throws Exception {
+        final PipelinedCommandExecutor executor = PipelinedCommandExecutor.create(slowExecutor, 1, 1, 64);
+        try {
+            final RestCommand restCommand = RestCommandBuilder.get("http://localhost/slow").build();
+            executor.execute(getContext(), restCommand, new Deserializer<Object>() {
+                @Override
+                public Object realise(final InputStream inputStream, final Context context) throws IOException {
+                    inputStream.read();
+                    throw new IOException("Parse error");
+                }
+            });
+            fail("The error of the Deserializer should be thrown");
+        } catch (RestCommandExecutor.RestCommandException e) {
+            // Expected
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void sleep(final long delay) throws IOException {
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted");
+        }
+    }
+
+    /**
+     * The stream that gives a chunk with a delay as from the network
+     */
+    private static final class SlowInputStream extends InputStream {
+
+        private int mChunks;
+
+        private ByteArrayInputStream mCurrent = new ByteArrayInputStream(new byte[0]);
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+            if (mCurrent.available() == 0) {
+                if (mChunks == CHUNKS) {
+                    return -1;
+                }
+                sleep(CHUNK_DELAY);
+                mChunks++;
+                mCurrent = new ByteArrayInputStream(CHUNK);
+            }
+            return mCurrent.read(bytes, offset, length);
+        }
+    }
+}
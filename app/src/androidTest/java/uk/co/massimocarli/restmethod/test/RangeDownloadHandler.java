@@ -0,0 +1,245 @@
+package uk.co.massimocarli.restmethod.test;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This is a stand-in server for the downloads with the Range header. It serves a content from
+ * memory with an ETag and it can be configured to break the connection once after a given
+ * number of bytes. Every connection can be throttled to simulate a link with limited bandwidth
+ * per connection.
+ */
+public class RangeDownloadHandler extends AbstractHandler {
+
+    /**
+     * The content to serve
+     */
+    private byte[] mContent;
+
+    /**
+     * The ETag of the content
+     */
+    private String mETag;
+
+    /**
+     * If false the Range header is ignored
+     */
+    private boolean mRangeSupported = true;
+
+    /**
+     * The number of bytes after which we break the connection once. Negative to never break
+     */
+    private long mBreakAfter = -1L;
+
+    /**
+     * The status of the next response to a segment. Not positive for a normal response
+     */
+    private int mSegmentStatus;
+
+    /**
+     * The max bytes per second of every response. Not positive for no limit
+     */
+    private int mBytesPerSecond;
+
+    /**
+     * The total of the bytes of the content sent
+     */
+    private long mBytesSent;
+
+    /**
+     * The responses being written and the max number of them written at the same time
+     */
+    private int mActiveResponses;
+    private int mMaxActiveResponses;
+
+    /**
+     * The Range headers received
+     */
+    private final List<String> mRanges = new ArrayList<String>();
+
+    public RangeDownloadHandler(final byte[] content, final String eTag) {
+        setContent(content, eTag);
+    }
+
+    /**
+     * Changes the content as if the resource was modified
+     */
+    public synchronized void setContent(final byte[] content, final String eTag) {
+        mContent = content;
+        mETag = eTag;
+    }
+
+    public synchronized void setRangeSupported(final boolean rangeSupported) {
+        mRangeSupported = rangeSupported;
+    }
+
+    /**
+     * The server breaks the connection once after the given number of bytes of a response
+     */
+    public synchronized void breakOnceAfter(final long breakAfter) {
+        mBreakAfter = breakAfter;
+    }
+
+    /**
+     * Limits the bytes per second of every response
+     */
+    public synchronized void respondOnceToSegment(final int status) {
+        mSegmentStatus = status;
+    }
+
+    public synchronized void setBytesPerSecond(final int bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    public synchronized long getBytesSent() {
+        return mBytesSent;
+    }
+
+    public synchronized int getMaxActiveResponses() {
+        return mMaxActiveResponses;
+    }
+
+    /**
+     * Waits until no response is being written
+     *
+     * @param timeout The max time to wait in milliseconds
+     * @return True if no response is being written
+     */
+    public synchronized boolean awaitNoActiveResponses(final long timeout) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        while (mActiveResponses > 0 && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return mActiveResponses == 0;
+    }
+
+    public synchronized List<String> getRanges() {
+        return new ArrayList<String>(mRanges);
+    }
+
+    @Override
+    public void handle(String target, Request request, HttpServletRequest httpServletRequest,
+                       HttpServletResponse httpServletResponse) throws IOException, ServletException {
+        final byte[] content;
+        final String eTag;
+        final boolean rangeSupported;
+        final int bytesPerSecond;
+        synchronized (this) {
+            content = mContent;
+            eTag = mETag;
+            rangeSupported = mRangeSupported;
+            bytesPerSecond = mBytesPerSecond;
+        }
+        request.setHandled(true);
+        final String range = httpServletRequest.getHeader("Range");
+        final String ifRange = httpServletRequest.getHeader("If-Range");
+        final int segmentStatus;
+        synchronized (this) {
+            mRanges.add(range);
+            // The probe asks for the first byte only
+            segmentStatus = range != null && !"bytes=0-0".equals(range) ? mSegmentStatus : 0;
+            if (segmentStatus > 0) {
+                mSegmentStatus = 0;
+            }
+        }
+        if (segmentStatus > 0) {
+            httpServletResponse.setStatus(segmentStatus);
+            return;
+        }
+        int first = 0;
+        int last = content.length - 1;
+        httpServletResponse.setHeader("ETag", eTag);
+        httpServletResponse.setHeader("Accept-Ranges", rangeSupported ? "bytes" : "none");
+        if (rangeSupported && range != null && (ifRange == null || ifRange.equals(eTag))) {
+            // bytes=first-last or bytes=first-
+            final String bytes = range.substring("bytes=".length());
+            final int dashIndex = bytes.indexOf('-');
+            first = Integer.parseInt(bytes.substring(0, dashIndex));
+            if (dashIndex < bytes.length() - 1) {
+                last = Math.min(last, Integer.parseInt(bytes.substring(dashIndex + 1)));
+            }
+            if (first >= content.length) {
+                httpServletResponse.setStatus(416);
+                httpServletResponse.setHeader("Content-Range", "bytes */" + content.length);
+                return;
+            }
+            httpServletResponse.setStatus(206);
+            httpServletResponse.setHeader("Content-Range", "bytes " + first + "-" + last + "/" + content.length);
+        } else {
+            httpServletResponse.setStatus(HttpServletResponse.SC_OK);
+        }
+        final int length = last - first + 1;
+        httpServletResponse.setContentLength(length);
+        httpServletResponse.setContentType("application/octet-stream");
+        final OutputStream output = httpServletResponse.getOutputStream();
+        final long breakAfter;
+        synchronized (this) {
+            // Only a response longer than the limit consumes it
+            breakAfter = mBreakAfter >= 0 && mBreakAfter < length ? mBreakAfter : -1L;
+            if (breakAfter >= 0) {
+                mBreakAfter = -1L;
+            }
+        }
+        synchronized (this) {
+            mActiveResponses++;
+            mMaxActiveResponses = Math.max(mMaxActiveResponses, mActiveResponses);
+        }
+        try {
+            if (breakAfter >= 0) {
+                write(output, content, first, (int) breakAfter, bytesPerSecond);
+                output.flush();
+                // We break the connection before the end of the content
+                request.getHttpChannel().getEndPoint().close();
+                return;
+            }
+            write(output, content, first, length, bytesPerSecond);
+        } finally {
+            synchronized (this) {
+                mActiveResponses--;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes the content with the given max bytes per second
+     */
+    private void write(final OutputStream output, final byte[] content, final int offset, final int length,
+                       final int bytesPerSecond) throws IOException {
+        // We write slices of 1/10 of second
+        final int sliceSize = bytesPerSecond > 0 ? Math.max(1, bytesPerSecond / 10) : length;
+        final long startTime = System.nanoTime();
+        int written = 0;
+        while (written < length) {
+            final int slice = Math.min(sliceSize, length - written);
+            output.write(content, offset + written, slice);
+            written += slice;
+            synchronized (this) {
+                mBytesSent += slice;
+            }
+            if (bytesPerSecond > 0) {
+                output.flush();
+                final long expectedTime = written * 1000L / bytesPerSecond;
+                final long elapsedTime = (System.nanoTime() - startTime) / 1000000L;
+                if (expectedTime > elapsedTime) {
+                    try {
+                        Thread.sleep(expectedTime - elapsedTime);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted");
+                    }
+                }
+            }
+        }
+    }
+}
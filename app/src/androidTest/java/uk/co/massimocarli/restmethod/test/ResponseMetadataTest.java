@@ -0,0 +1,62 @@
+package uk.co.massimocarli.restmethod.test;
+
+import android.test.AndroidTestCase;
+import uk.co.massimocarli.restmethod.rest.ResponseMetadata;
+import uk.co.massimocarli.restmethod.rest.RestCommandResult;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests for the parsing of the headers into ResponseMetadata
+ */
+public class ResponseMetadataTest extends AndroidTestCase {
+
+    private static ResponseMetadata metadata(final int statusCode, final String... headers) {
+        final Map<String, String> headersMap = new HashMap<String, String>();
+        for (int i = 0; i < headers.length; i += 2) {
+            headersMap.put(headers[i].toLowerCase(), headers[i + 1]);
+        }
+        return new ResponseMetadata() {
+            @Override
+            public int getStatusCode() {
+                return statusCode;
+            }
+
+            @Override
+            public String getStatusMessage() {
+                return "Message";
+            }
+
+            @Override
+            public String getHeader(final String name) {
+                return headersMap.get(name.toLowerCase());
+            }
+        };
+    }
+
+    public void testContentType() {
+        final ResponseMetadata metadata = metadata(200, "Content-Type", "application/json; charset=\"ISO-8859-1\"",
+                                                   "Content-Length", "1234");
+        assertTrue(metadata.isSuccessful());
+        assertEquals("application/json", metadata.getContentType());
+        assertEquals("ISO-8859-1", metadata.getCharset("UTF-8"));
+        assertEquals(1234L, metadata.getContentLength());
+    }
+
+    public void testMissingHeaders() {
+        final ResponseMetadata metadata = metadata(404);
+        assertFalse(metadata.isSuccessful());
+        assertNull(metadata.getContentType());
+        assertEquals("UTF-8", metadata.getCharset("UTF-8"));
+        assertEquals(-1L, metadata.getContentLength());
+        assertEquals("UTF-8", metadata(200, "Content-Type", "text/plain").getCharset("UTF-8"));
+    }
+
+    public void testResultHeaders() {
+        final RestCommandResult<String> result = RestCommandResult.get("body", metadata(201, "ETag", "\"abc\""));
+        assertEquals(201, result.getStatusCode());
+        assertEquals("\"abc\"", result.getHeader("etag"));
+        assertNull(RestCommandResult.get("body", 200, "OK").getHeader("ETag"));
+    }
+}
@@ -0,0 +1,86 @@
+package uk.co.massimocarli.restmethod.test;
+
+import android.test.AndroidTestCase;
+import uk.co.massimocarli.restmethod.rest.CancellationHandle;
+import uk.co.massimocarli.restmethod.rest.RestCommand;
+import uk.co.massimocarli.restmethod.rest.RestCommandBuilder;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Tests the immutability of the RestCommand and its cache key
+ */
+public class RestCommandTest extends AndroidTestCase {
+
+    private static final String URL = "http://127.0.0.1/items";
+
+    public void testImmutable() throws Exception {
+        final RestCommandBuilder builder = RestCommandBuilder.get(URL)
+                .addParam("first", "1")
+                .addHeader("X-First", "a");
+        final RestCommand first = builder.build();
+        final String firstUrl = first.getEncodedUrl();
+        // The changes of the builder after the build are not seen by the RestCommand
+        final RestCommand second = builder.addParam("second", "2").addHeader("X-Second", "b").build();
+        assertEquals(1, first.paramsCount());
+        assertEquals(1, first.headersCount());
+        assertNull(first.getHeader("X-Second"));
+        assertEquals(firstUrl, first.getEncodedUrl());
+        assertEquals(2, second.paramsCount());
+        assertEquals(2, second.headersCount());
+        assertFalse(firstUrl.equals(second.getEncodedUrl()));
+        final Iterator<Map.Entry<String, String>> params = first.getParams().iterator();
+        params.next();
+        try {
+            params.remove();
+            fail("The params of a RestCommand can't be removed");
+        } catch (UnsupportedOperationException e) {
+            // Expected
+        }
+    }
+
+    public void testNewBuilderRoundTrip() throws Exception {
+        final CancellationHandle cancellationHandle = CancellationHandle.create();
+        final RestCommand original = RestCommandBuilder.post(URL)
+                .addParam("name", "value à")
+                .addHeader("X-Header", "header")
+                .withCharset("ISO-8859-1")
+                .withTrafficStats(false)
+                .withCancellationHandle(cancellationHandle)
+                .build();
+        final RestCommand copy = original.newBuilder().build();
+        assertEquals(original.getHttpMethod(), copy.getHttpMethod());
+        assertEquals(original.getUrl(), copy.getUrl());
+        assertEquals(original.getCharset(), copy.getCharset());
+        assertEquals(original.getHeader("X-Header"), copy.getHeader("X-Header"));
+        assertEquals(original.getParamName(0), copy.getParamName(0));
+        assertEquals(original.getParamValue(0), copy.getParamValue(0));
+        assertEquals(original.isTrafficStatsEnabled(), copy.isTrafficStatsEnabled());
+        assertSame(original.getCancellationHandle(), copy.getCancellationHandle());
+        assertEquals(original.getCacheKey(), copy.getCacheKey());
+        // A modified copy doesn't change the original
+        final RestCommand modified = original.newBuilder().addParam("other", "1").build();
+        assertEquals(2, modified.paramsCount());
+        assertEquals(1, original.paramsCount());
+        assertFalse(original.getCacheKey().equals(modified.getCacheKey()));
+    }
+
+    public void testCacheKeyWithBody() throws Exception {
+        final String firstKey = RestCommandBuilder.post(URL).setStringDocument("first").build().getCacheKey();
+        final String secondKey = RestCommandBuilder.post(URL).setStringDocument("second").build().getCacheKey();
+        assertFalse(firstKey.equals(secondKey));
+        assertEquals(firstKey, RestCommandBuilder.post(URL).setStringDocument("first").build().getCacheKey());
+        assertFalse(RestCommandBuilder.post(URL).setBinaryDocument(new byte[]{1}).build().getCacheKey()
+                            .equals(RestCommandBuilder.post(URL).setBinaryDocument(new byte[]{2}).build().getCacheKey()));
+        assertEquals(RestCommandBuilder.get(URL).build().getCacheKey(),
+                     RestCommandBuilder.get(URL).build().getCacheKey());
+    }
+
+    public void testNotCacheable() throws Exception {
+        final File file = new File(getContext().getCacheDir(), "not_cacheable.bin");
+        assertNull(RestCommandBuilder.post(URL).addFormField("field", "value").build().getCacheKey());
+        assertNull(RestCommandBuilder.post(URL).setFileDocument(file, null).build().getCacheKey());
+    }
+}
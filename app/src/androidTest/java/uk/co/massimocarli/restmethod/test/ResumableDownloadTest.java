@@ -0,0 +1,116 @@
+package uk.co.massimocarli.restmethod.test;
+
+import android.test.AndroidTestCase;
+import org.eclipse.jetty.server.Server;
+import uk.co.massimocarli.restmethod.http.deserializer.FileDeserializer;
+import uk.co.massimocarli.restmethod.http.urlconnection.UrlConnectionCommandExecutor;
+import uk.co.massimocarli.restmethod.rest.RestCommand;
+import uk.co.massimocarli.restmethod.rest.RestCommandBuilder;
+import uk.co.massimocarli.restmethod.rest.RestCommandExecutor;
+import uk.co.massimocarli.restmethod.util.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests for the resumable mode of the FileDeserializer against the RangeDownloadHandler
+ */
+public class ResumableDownloadTest extends AndroidTestCase {
+
+    // The server port we're using
+    private final static int SERVER_PORT = 8082;
+
+    private final static String DOWNLOAD_URL = "http://127.0.0.1:" + SERVER_PORT + "/file.bin";
+
+    private final static int FILE_SIZE = 1024 * 1024;
+
+    private Server jettyServer;
+
+    private RangeDownloadHandler downloadHandler;
+
+    private byte[] content;
+
+    private File destination;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        // work-around for Android defect 9431
+        System.setProperty("java.net.preferIPv4Stack", "true");
+        System.setProperty("java.net.preferIPv6Addresses", "false");
+        content = new byte[FILE_SIZE];
+        new Random(42).nextBytes(content);
+        downloadHandler = new RangeDownloadHandler(content, "\"v1\"");
+        jettyServer = new Server(SERVER_PORT);
+        jettyServer.setHandler(downloadHandler);
+        jettyServer.start();
+        destination = new File(getContext().getCacheDir(), "download.bin");
+        destination.delete();
+        new File(destination.getAbsolutePath() + "_tmp").delete();
+        new File(destination.getAbsolutePath() + "_tmp.meta").delete();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        jettyServer.stop();
+        destination.delete();
+    }
+
+    private void assertDownloaded(final byte[] expected) throws Exception {
+        final FileInputStream input = new FileInputStream(destination);
+        try {
+            assertTrue(Arrays.equals(expected, IOUtils.toByteArray(input)));
+        } finally {
+            input.close();
+        }
+    }
+
+    private void downloadBrokenOnce(final FileDeserializer deserializer, final RestCommandExecutor executor,
+                                    final RestCommand restCommand) throws Exception {
+        try {
+            deserializer.download(getContext(), executor, restCommand);
+            fail("The connection should break");
+        } catch (RestCommandExecutor.RestCommandException e) {
+            // Expected
+        }
+        assertFalse(destination.exists());
+    }
+
+    public void testResumeAfterBrokenConnection() throws Exception {
+        final RestCommandExecutor executor = UrlConnectionCommandExecutor.create();
+        final RestCommand restCommand = RestCommandBuilder.get(DOWNLOAD_URL).build();
+        final FileDeserializer deserializer = FileDeserializer.resumable(destination);
+        downloadHandler.breakOnceAfter(FILE_SIZE / 2);
+        downloadBrokenOnce(deserializer, executor, restCommand);
+        deserializer.download(getContext(), executor, restCommand);
+        assertDownloaded(content);
+        assertEquals("bytes=" + FILE_SIZE / 2 + "-", downloadHandler.getRanges().get(1));
+        // Nothing is transferred twice
+        assertEquals(FILE_SIZE, downloadHandler.getBytesSent());
+    }
+
+    public void testRestartWhenChanged() throws Exception {
+        final RestCommandExecutor executor = UrlConnectionCommandExecutor.create();
+        final RestCommand restCommand = RestCommandBuilder.get(DOWNLOAD_URL).build();
+        final FileDeserializer deserializer = FileDeserializer.resumable(destination);
+        downloadHandler.breakOnceAfter(FILE_SIZE / 2);
+        downloadBrokenOnce(deserializer, executor, restCommand);
+        final byte[] newContent = new byte[FILE_SIZE / 4];
+        new Random(7).nextBytes(newContent);
+        downloadHandler.setContent(newContent, "\"v2\"");
+        deserializer.download(getContext(), executor, restCommand);
+        assertDownloaded(newContent);
+    }
+
+    public void testRestartWithoutRangeSupport() throws Exception {
+        final RestCommandExecutor executor = UrlConnectionCommandExecutor.create();
+        final RestCommand restCommand = RestCommandBuilder.get(DOWNLOAD_URL).build();
+        final FileDeserializer deserializer = FileDeserializer.resumable(destination);
+        downloadHandler.setRangeSupported(false);
+        downloadHandler.breakOnceAfter(FILE_SIZE / 2);
+        downloadBrokenOnce(deserializer, executor, restCommand);
+        deserializer.download(getContext(), executor, restCommand);
+        assertDownloaded(content);
+    }
+}
@@ -0,0 +1,160 @@
+package uk.co.massimocarli.restmethod.test;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * This is a stand-in server for the resumable upload protocol. It keeps the received bytes in
+ * memory and it can be configured to fail once after a given number of bytes to simulate a
+ * broken connection, to fail the first time it receives every chunk or to stop accepting bytes
+ * answering always 308.
+ */
+public class ResumableUploadHandler extends AbstractHandler {
+
+    /**
+     * The bytes acknowledged so far
+     */
+    private final ByteArrayOutputStream mReceived = new ByteArrayOutputStream();
+
+    /**
+     * The total of the bytes received including the ones we discarded
+     */
+    private long mTotalReceived;
+
+    /**
+     * The offset after which we fail once. Negative to never fail
+     */
+    private long mFailAfter = -1L;
+
+    /**
+     * If true the first chunk received at every offset fails
+     */
+    private boolean mFailEveryChunk;
+
+    /**
+     * The offsets of the chunks we made fail
+     */
+    private final Set<Long> mFailedOffsets = new HashSet<Long>();
+
+    /**
+     * The offset after which we discard the chunks and answer 308. Negative to never stall
+     */
+    private long mStallAfter = -1L;
+
+    /**
+     * The number of requests
+     */
+    private int mRequestCount;
+
+    /**
+     * The server fails once when it receives a chunk beyond the given offset
+     *
+     * @param failAfter The offset after which the server fails
+     */
+    public synchronized void failOnceAfter(final long failAfter) {
+        mFailAfter = failAfter;
+    }
+
+    /**
+     * The server fails the first time it receives a chunk at every offset
+     */
+    public synchronized void failEveryChunkOnce() {
+        mFailEveryChunk = true;
+    }
+
+    /**
+     * The server discards the chunks and answers always 308 when it has the given number of
+     * bytes, even if it has all the File
+     *
+     * @param stallAfter The offset after which the server stalls
+     */
+    public synchronized void stallAfter(final long stallAfter) {
+        mStallAfter = stallAfter;
+    }
+
+    /**
+     * @return The bytes acknowledged by the server
+     */
+    public synchronized byte[] getReceived() {
+        return mReceived.toByteArray();
+    }
+
+    /**
+     * @return The number of bytes received including the discarded ones
+     */
+    public synchronized long getTotalReceived() {
+        return mTotalReceived;
+    }
+
+    /**
+     * @return The number of requests
+     */
+    public synchronized int getRequestCount() {
+        return mRequestCount;
+    }
+
+    @Override
+    public synchronized void handle(String target, Request request, HttpServletRequest httpServletRequest,
+                                    HttpServletResponse httpServletResponse) throws IOException, ServletException {
+        if (!"PUT".equals(httpServletRequest.getMethod())) {
+            return;
+        }
+        mRequestCount++;
+        request.setHandled(true);
+        final String contentRange = httpServletRequest.getHeader("Content-Range");
+        // bytes first-last/total or bytes */total
+        final String range = contentRange.substring("bytes ".length());
+        final long total = Long.parseLong(range.substring(range.indexOf('/') + 1));
+        final boolean stalled = mStallAfter >= 0 && mReceived.size() >= mStallAfter;
+        if (!range.startsWith("*")) {
+            final long first = Long.parseLong(range.substring(0, range.indexOf('-')));
+            final byte[] chunk = readAll(httpServletRequest.getInputStream());
+            mTotalReceived += chunk.length;
+            if (mFailAfter >= 0 && first + chunk.length > mFailAfter) {
+                // We simulate a failure so the chunk is lost
+                mFailAfter = -1L;
+                httpServletResponse.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return;
+            }
+            if (mFailEveryChunk && mFailedOffsets.add(first)) {
+                httpServletResponse.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return;
+            }
+            if (first == mReceived.size() && !stalled) {
+                mReceived.write(chunk, 0, chunk.length);
+            }
+        }
+        if (mReceived.size() >= total && !(mStallAfter >= 0 && mReceived.size() >= mStallAfter)) {
+            httpServletResponse.setStatus(HttpServletResponse.SC_CREATED);
+            httpServletResponse.getWriter().print("DONE");
+        } else {
+            httpServletResponse.setStatus(308);
+            if (mReceived.size() > 0) {
+                httpServletResponse.setHeader("Range", "bytes=0-" + (mReceived.size() - 1));
+            }
+        }
+    }
+
+    /**
+     * Reads all the bytes of the request
+     */
+    private static byte[] readAll(final InputStream inputStream) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+
+}
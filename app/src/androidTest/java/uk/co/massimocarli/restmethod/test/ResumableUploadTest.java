@@ -0,0 +1,148 @@
+package uk.co.massimocarli.restmethod.test;
+
+import android.test.AndroidTestCase;
+import org.eclipse.jetty.server.Server;
+import uk.co.massimocarli.restmethod.http.deserializer.StringDeserializer;
+import uk.co.massimocarli.restmethod.http.upload.ResumableUpload;
+import uk.co.massimocarli.restmethod.http.upload.ResumableUploader;
+import uk.co.massimocarli.restmethod.rest.RestCommandExecutor;
+import uk.co.massimocarli.restmethod.rest.RestCommandResult;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests for the resumable upload against the ResumableUploadHandler stand-in server
+ */
+public class ResumableUploadTest extends AndroidTestCase {
+
+    // The server port we're using
+    private final static int SERVER_PORT = 8081;
+
+    private final static String UPLOAD_URL = "http://127.0.0.1:" + SERVER_PORT + "/upload";
+
+    private final static int FILE_SIZE = 1024 * 1024;
+
+    private final static int CHUNK_SIZE = 64 * 1024;
+
+    private Server jettyServer;
+
+    private ResumableUploadHandler uploadHandler;
+
+    private File fileToUpload;
+
+    private byte[] fileContent;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        // work-around for Android defect 9431
+        System.setProperty("java.net.preferIPv4Stack", "true");
+        System.setProperty("java.net.preferIPv6Addresses", "false");
+        uploadHandler = new ResumableUploadHandler();
+        jettyServer = new Server(SERVER_PORT);
+        jettyServer.setHandler(uploadHandler);
+        jettyServer.start();
+        fileContent = new byte[FILE_SIZE];
+        new Random(42).nextBytes(fileContent);
+        fileToUpload = new File(getContext().getCacheDir(), "upload.bin");
+        final FileOutputStream output = new FileOutputStream(fileToUpload);
+        output.write(fileContent);
+        output.close();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        jettyServer.stop();
+        fileToUpload.delete();
+    }
+
+    /**
+     * The upload fails in the middle and it's resumed without sending the whole file again
+     */
+    public void testResumeAfterFailure() throws IOException {
+        uploadHandler.failOnceAfter(FILE_SIZE / 2);
+        final ResumableUpload upload = ResumableUpload.create(UPLOAD_URL, fileToUpload)
+                .withChunkSize(CHUNK_SIZE);
+        final RestCommandResult<String> result = ResumableUploader.create()
+                .upload(getContext(), upload, StringDeserializer.getDefault());
+        assertEquals(201, result.getStatusCode());
+        assertEquals("DONE", result.getResult());
+        assertTrue(Arrays.equals(fileContent, uploadHandler.getReceived()));
+        // Only the failed chunk is sent twice
+        assertEquals(FILE_SIZE + CHUNK_SIZE, uploadHandler.getTotalReceived());
+    }
+
+    /**
+     * Every chunk fails once but the upload is still advancing so it's never stopped
+     */
+    public void testFailureOnEveryChunk() throws IOException {
+        uploadHandler.failEveryChunkOnce();
+        final ResumableUpload upload = ResumableUpload.create(UPLOAD_URL, fileToUpload)
+                .withChunkSize(CHUNK_SIZE)
+                .withMaxRetries(1);
+        final RestCommandResult<String> result = ResumableUploader.create()
+                .upload(getContext(), upload, StringDeserializer.getDefault());
+        assertEquals(201, result.getStatusCode());
+        assertTrue(Arrays.equals(fileContent, uploadHandler.getReceived()));
+        // Every chunk is sent twice
+        assertEquals(2L * FILE_SIZE, uploadHandler.getTotalReceived());
+    }
+
+    /**
+     * The upload gives up and a new uploader, as after a restart, resumes it from the
+     * persisted offset
+     */
+    public void testResumeAfterRestart() throws IOException {
+        uploadHandler.failOnceAfter(FILE_SIZE / 2);
+        final ResumableUpload upload = ResumableUpload.create(UPLOAD_URL, fileToUpload)
+                .withChunkSize(CHUNK_SIZE)
+                .withMaxRetries(0);
+        try {
+            ResumableUploader.create().upload(getContext(), upload, StringDeserializer.getDefault());
+            fail("The upload should fail");
+        } catch (RestCommandExecutor.RestCommandException e) {
+            // Expected
+        }
+        final RestCommandResult<String> result = ResumableUploader.create()
+                .upload(getContext(), upload, StringDeserializer.getDefault());
+        assertEquals(201, result.getStatusCode());
+        assertTrue(Arrays.equals(fileContent, uploadHandler.getReceived()));
+        assertEquals(FILE_SIZE + CHUNK_SIZE, uploadHandler.getTotalReceived());
+    }
+
+    /**
+     * The server never acknowledges new bytes so the upload fails instead of looping
+     */
+    public void testNoProgress() throws IOException {
+        uploadHandler.stallAfter(FILE_SIZE / 2);
+        assertUploadFails(FILE_SIZE / 2);
+    }
+
+    /**
+     * The server has all the bytes but it keeps answering 308 so the upload fails instead
+     * of looping
+     */
+    public void testNeverCompleted() throws IOException {
+        uploadHandler.stallAfter(FILE_SIZE);
+        assertUploadFails(FILE_SIZE);
+    }
+
+    private void assertUploadFails(final int expectedReceived) {
+        final ResumableUpload upload = ResumableUpload.create(UPLOAD_URL, fileToUpload)
+                .withChunkSize(CHUNK_SIZE)
+                .withMaxRetries(2);
+        try {
+            ResumableUploader.create().upload(getContext(), upload, StringDeserializer.getDefault());
+            fail("The upload should fail");
+        } catch (RestCommandExecutor.RestCommandException e) {
+            // Expected
+        }
+        assertEquals(expectedReceived, uploadHandler.getReceived().length);
+        // The chunks, a status query and a chunk for every retry
+        assertTrue(uploadHandler.getRequestCount() <= FILE_SIZE / CHUNK_SIZE + 2 * 3);
+    }
+
+}
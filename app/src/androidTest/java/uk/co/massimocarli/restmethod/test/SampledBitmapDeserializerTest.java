@@ -0,0 +1,63 @@
+package uk.co.massimocarli.restmethod.test;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import uk.co.massimocarli.restmethod.http.deserializer.SampledBitmapDeserializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+
+/**
+ * Tests for the decoding of the Bitmaps at the target size
+ */
+public class SampledBitmapDeserializerTest extends AndroidTestCase {
+
+    private static final String TAG_LOG = SampledBitmapDeserializerTest.class.getName();
+
+    private byte[] jpegData;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        final Bitmap source = Bitmap.createBitmap(2000, 1500, Bitmap.Config.ARGB_8888);
+        source.eraseColor(Color.BLUE);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        source.compress(Bitmap.CompressFormat.JPEG, 90, output);
+        source.recycle();
+        jpegData = output.toByteArray();
+    }
+
+    public void testInSampleSize() {
+        assertEquals(1, SampledBitmapDeserializer.calculateInSampleSize(200, 200, 200, 200));
+        assertEquals(8, SampledBitmapDeserializer.calculateInSampleSize(4000, 3000, 200, 200));
+        assertEquals(4, SampledBitmapDeserializer.calculateInSampleSize(4000, 3000, 200, 600));
+    }
+
+    public void testMarkableStream() throws Exception {
+        final SampledBitmapDeserializer deserializer = SampledBitmapDeserializer.create(200, 200);
+        final Bitmap bitmap = deserializer.realise(new ByteArrayInputStream(jpegData), getContext());
+        assertEquals(250, bitmap.getWidth());
+        assertEquals(187, bitmap.getHeight());
+        assertEquals(jpegData.length, deserializer.getBytesRead());
+        Log.i(TAG_LOG, "Bytes allocated " + deserializer.getBytesAllocated() + " instead of "
+                + deserializer.getFullResolutionBytes());
+        assertTrue(deserializer.getBytesAllocated() * 16 <= deserializer.getFullResolutionBytes());
+    }
+
+    public void testSpooledStream() throws Exception {
+        final SampledBitmapDeserializer deserializer = SampledBitmapDeserializer.create(500, 500)
+                .withConfig(Bitmap.Config.RGB_565);
+        // A stream that doesn't support mark so the data are spooled to a File
+        final Bitmap bitmap = deserializer.realise(new FilterInputStream(new ByteArrayInputStream(jpegData)) {
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        }, getContext());
+        assertEquals(1000, bitmap.getWidth());
+        assertEquals(Bitmap.Config.RGB_565, bitmap.getConfig());
+        assertEquals(1, deserializer.getDecodedCount());
+    }
+}
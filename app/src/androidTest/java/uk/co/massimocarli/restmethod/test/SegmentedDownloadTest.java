@@ -0,0 +1,203 @@
+package uk.co.massimocarli.restmethod.test;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+import org.eclipse.jetty.server.Server;
+import uk.co.massimocarli.restmethod.http.deserializer.FileDeserializer;
+import uk.co.massimocarli.restmethod.http.download.SegmentedDownloader;
+import uk.co.massimocarli.restmethod.http.urlconnection.UrlConnectionCommandExecutor;
+import uk.co.massimocarli.restmethod.rest.RestCommand;
+import uk.co.massimocarli.restmethod.rest.RestCommandBuilder;
+import uk.co.massimocarli.restmethod.rest.RestCommandExecutor;
+import uk.co.massimocarli.restmethod.rest.RestCommandResult;
+import uk.co.massimocarli.restmethod.util.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for the SegmentedDownloader against the RangeDownloadHandler. The segmented download is
+ * compared with the single stream of the FileDeserializer on a server that limits the bandwidth
+ * of every connection checking that the segments are downloaded in parallel.
+ */
+public class SegmentedDownloadTest extends AndroidTestCase {
+
+    private static final String TAG_LOG = SegmentedDownloadTest.class.getName();
+
+    // The server port we're using
+    private final static int SERVER_PORT = 8083;
+
+    private final static String DOWNLOAD_URL = "http://127.0.0.1:" + SERVER_PORT + "/file.bin";
+
+    private final static int FILE_SIZE = 2 * 1024 * 1024;
+
+    private final static int SEGMENTS = 4;
+
+    private Server jettyServer;
+
+    private RangeDownloadHandler downloadHandler;
+
+    private byte[] content;
+
+    private File destination;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        // work-around for Android defect 9431
+        System.setProperty("java.net.preferIPv4Stack", "true");
+        System.setProperty("java.net.preferIPv6Addresses", "false");
+        content = new byte[FILE_SIZE];
+        new Random(42).nextBytes(content);
+        downloadHandler = new RangeDownloadHandler(content, "\"v1\"");
+        jettyServer = new Server(SERVER_PORT);
+        jettyServer.setHandler(downloadHandler);
+        jettyServer.start();
+        destination = new File(getContext().getCacheDir(), "segmented.bin");
+        destination.delete();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        jettyServer.stop();
+        destination.delete();
+    }
+
+    private void assertDownloaded(final byte[] expected) throws Exception {
+        final FileInputStream input = new FileInputStream(destination);
+        try {
+            assertTrue(Arrays.equals(expected, IOUtils.toByteArray(input)));
+        } finally {
+            input.close();
+        }
+    }
+
+    public void testSegmentedDownload() throws Exception {
+        final RestCommand restCommand = RestCommandBuilder.get(DOWNLOAD_URL).build();
+        final RestCommandResult<File> result = SegmentedDownloader.create()
+                .withSegments(SEGMENTS)
+                .download(getContext(), restCommand, destination);
+        assertEquals(destination, result.getResult());
+        assertDownloaded(content);
+        // The probe and one request for every segment
+        assertEquals(SEGMENTS + 1, downloadHandler.getRanges().size());
+        assertEquals("bytes=0-0", downloadHandler.getRanges().get(0));
+    }
+
+    public void testRetryOfBrokenSegment() throws Exception {
+        final RestCommand restCommand = RestCommandBuilder.get(DOWNLOAD_URL).build();
+        final int breakAfter = FILE_SIZE / SEGMENTS / 2;
+        downloadHandler.breakOnceAfter(breakAfter);
+        SegmentedDownloader.create()
+                .withSegments(SEGMENTS)
+                .download(getContext(), restCommand, destination);
+        assertDownloaded(content);
+        // Only the segment that was broken is requested again
+        assertEquals(SEGMENTS + 2, downloadHandler.getRanges().size());
+        // The bytes received before the break are not downloaded again
+        assertTrue(downloadHandler.getBytesSent() - (FILE_SIZE + 1) < breakAfter);
+    }
+
+    public void testRetryOfUnavailableSegment() throws Exception {
+        final RestCommand restCommand = RestCommandBuilder.get(DOWNLOAD_URL).build();
+        downloadHandler.respondOnceToSegment(503);
+        SegmentedDownloader.create()
+                .withSegments(SEGMENTS)
+                .download(getContext(), restCommand, destination);
+        assertDownloaded(content);
+        // The segment that got the error is requested again
+        assertEquals(SEGMENTS + 2, downloadHandler.getRanges().size());
+    }
+
+    public void testSegmentNotSatisfiable() throws Exception {
+        final RestCommand restCommand = RestCommandBuilder.get(DOWNLOAD_URL).build();
+        downloadHandler.respondOnceToSegment(416);
+        try {
+            SegmentedDownloader.create()
+                    .withSegments(SEGMENTS)
+                    .download(getContext(), restCommand, destination);
+            fail("The resource has changed");
+        } catch (RestCommandExecutor.RestCommandException e) {
+            // Expected
+        }
+        assertFalse(destination.exists());
+    }
+
+    public void testWithoutRangeSupport() throws Exception {
+        final RestCommand restCommand = RestCommandBuilder.get(DOWNLOAD_URL).build();
+        downloadHandler.setRangeSupported(false);
+        SegmentedDownloader.create()
+                .withSegments(SEGMENTS)
+                .download(getContext(), restCommand, destination);
+        assertDownloaded(content);
+        // The whole file comes with the first response
+        assertEquals(1, downloadHandler.getRanges().size());
+    }
+
+    public void testFailureDeletesFile() throws Exception {
+        final RestCommand restCommand = RestCommandBuilder.get(DOWNLOAD_URL).build();
+        downloadHandler.breakOnceAfter(FILE_SIZE / SEGMENTS / 2);
+        try {
+            SegmentedDownloader.create()
+                    .withSegments(SEGMENTS)
+                    .withMaxRetries(0)
+                    .download(getContext(), restCommand, destination);
+            fail("The download should fail");
+        } catch (RestCommandExecutor.RestCommandException e) {
+            // Expected
+        }
+        assertFalse(destination.exists());
+        assertFalse(new File(destination.getAbsolutePath() + "_tmp").exists());
+    }
+
+    public void testParallelRangesAgainstSingleStream() throws Exception {
+        // Every connection is limited as on a link with high latency
+        downloadHandler.setBytesPerSecond(FILE_SIZE / 4);
+        final RestCommand restCommand = RestCommandBuilder.get(DOWNLOAD_URL).build();
+        final RestCommandExecutor executor = UrlConnectionCommandExecutor.create();
+        long startTime = System.nanoTime();
+        executor.execute(getContext(), restCommand, FileDeserializer.get(destination, true));
+        final long singleTime = (System.nanoTime() - startTime) / 1000000L;
+        assertDownloaded(content);
+        assertEquals(1, downloadHandler.getMaxActiveResponses());
+        destination.delete();
+        startTime = System.nanoTime();
+        SegmentedDownloader.create()
+                .withSegments(SEGMENTS)
+                .download(getContext(), restCommand, destination);
+        final long segmentedTime = (System.nanoTime() - startTime) / 1000000L;
+        assertDownloaded(content);
+        // The times depend on the device so we only log them
+        Log.i(TAG_LOG, "Single stream " + singleTime + "ms, " + SEGMENTS + " segments " + segmentedTime + "ms");
+        // The single stream, the probe and the segments that cover the File without overlapping
+        final List<String> ranges = downloadHandler.getRanges();
+        assertEquals(SEGMENTS + 2, ranges.size());
+        assertNull(ranges.get(0));
+        assertEquals("bytes=0-0", ranges.get(1));
+        final List<long[]> segments = new ArrayList<long[]>();
+        for (String range : ranges.subList(2, ranges.size())) {
+            final int dashIndex = range.indexOf('-');
+            segments.add(new long[]{Long.parseLong(range.substring("bytes=".length(), dashIndex)),
+                    Long.parseLong(range.substring(dashIndex + 1))});
+        }
+        Collections.sort(segments, new Comparator<long[]>() {
+            @Override
+            public int compare(final long[] lhs, final long[] rhs) {
+                return lhs[0] < rhs[0] ? -1 : (lhs[0] == rhs[0] ? 0 : 1);
+            }
+        });
+        long next = 0L;
+        for (long[] segment : segments) {
+            assertEquals(next, segment[0]);
+            next = segment[1] + 1;
+        }
+        assertEquals(FILE_SIZE, next);
+        // Every segment takes about a second so all of them are downloaded at the same time
+        assertEquals(SEGMENTS, downloadHandler.getMaxActiveResponses());
+    }
+}
@@ -0,0 +1,109 @@
+package uk.co.massimocarli.restmethod.test;
+
+import android.test.AndroidTestCase;
+import uk.co.massimocarli.restmethod.http.deserializer.SpooledBody;
+import uk.co.massimocarli.restmethod.util.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests for the SpooledBody on the heap and into the temporary files
+ */
+public class SpooledBodyTest extends AndroidTestCase {
+
+    private static final int THRESHOLD = 64 * 1024;
+
+    private static byte[] payload(final int length) {
+        final byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private void assertBody(final byte[] expected, final SpooledBody body) throws Exception {
+        assertEquals(expected.length, body.getLength());
+        // The stream can be read many times
+        for (int i = 0; i < 2; i++) {
+            final InputStream input = body.openStream();
+            try {
+                assertTrue(Arrays.equals(expected, IOUtils.toByteArray(input)));
+            } finally {
+                input.close();
+            }
+        }
+        final ByteBuffer buffer = body.asByteBuffer();
+        assertTrue(buffer.isReadOnly());
+        assertEquals(expected.length, buffer.remaining());
+        final int middle = expected.length / 2;
+        assertEquals(expected[middle], buffer.get(middle));
+        final byte[] read = new byte[expected.length];
+        buffer.get(read);
+        assertTrue(Arrays.equals(expected, read));
+        // Every ByteBuffer has its own position
+        assertEquals(expected.length, body.asByteBuffer().remaining());
+    }
+
+    public void testSmallBodyStaysOnHeap() throws Exception {
+        for (long expectedLength : new long[]{-1L, 1000L, 999L, 1001L}) {
+            final byte[] data = payload(1000);
+            final SpooledBody body = SpooledBody.spool(new ByteArrayInputStream(data), expectedLength,
+                                                       THRESHOLD, getContext());
+            try {
+                assertFalse(body.isOnDisk());
+                assertNull(body.getFile());
+                assertBody(data, body);
+            } finally {
+                body.close();
+            }
+        }
+    }
+
+    public void testBodyAtThresholdStaysOnHeap() throws Exception {
+        final byte[] data = payload(THRESHOLD);
+        final SpooledBody body = SpooledBody.spool(new ByteArrayInputStream(data), -1L, THRESHOLD, getContext());
+        try {
+            assertFalse(body.isOnDisk());
+            assertBody(data, body);
+        } finally {
+            body.close();
+        }
+    }
+
+    public void testBigBodyGoesToFile() throws Exception {
+        for (long expectedLength : new long[]{-1L, 10L, THRESHOLD * 4}) {
+            final byte[] data = payload(THRESHOLD * 4);
+            final SpooledBody body = SpooledBody.spool(new ByteArrayInputStream(data), expectedLength,
+                                                       THRESHOLD, getContext());
+            final File file = body.getFile();
+            try {
+                assertTrue(body.isOnDisk());
+                assertTrue(file.exists());
+                assertEquals(data.length, file.length());
+                assertBody(data, body);
+            } finally {
+                body.close();
+            }
+            assertFalse(file.exists());
+            try {
+                body.openStream();
+                fail("A closed SpooledBody cannot be read");
+            } catch (IllegalStateException ise) {
+                // Expected
+            }
+        }
+    }
+
+    public void testCleanDeletesLeftFiles() throws Exception {
+        final SpooledBody body = SpooledBody.spool(new ByteArrayInputStream(payload(THRESHOLD + 1)), -1L,
+                                                   THRESHOLD, getContext());
+        final File file = body.getFile();
+        assertTrue(file.exists());
+        assertTrue(SpooledBody.clean(getContext()) >= 1);
+        assertFalse(file.exists());
+        body.close();
+    }
+}
@@ -0,0 +1,65 @@
+package uk.co.massimocarli.restmethod.test;
+
+import android.test.AndroidTestCase;
+import uk.co.massimocarli.restmethod.stats.TrafficStats;
+import uk.co.massimocarli.restmethod.util.StripedCounter;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests for the StripedCounter updated by many threads and for the TrafficStats that uses it
+ */
+public class StripedCounterTest extends AndroidTestCase {
+
+    private static final int THREADS = 8;
+
+    private static final int ADDS_PER_THREAD = 100000;
+
+    public void testConcurrentAdds() throws Exception {
+        final StripedCounter counter = new StripedCounter();
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch endLatch = new CountDownLatch(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                        for (int j = 0; j < ADDS_PER_THREAD; j++) {
+                            counter.add(3L);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        endLatch.countDown();
+                    }
+                }
+            }.start();
+        }
+        startLatch.countDown();
+        endLatch.await();
+        assertEquals(3L * THREADS * ADDS_PER_THREAD, counter.sum());
+        assertEquals(3L * THREADS * ADDS_PER_THREAD, counter.sumThenReset());
+        assertEquals(0L, counter.sum());
+    }
+
+    public void testReset() throws Exception {
+        final StripedCounter counter = new StripedCounter();
+        counter.increment();
+        counter.add(41L);
+        assertEquals(42L, counter.sum());
+        counter.reset();
+        assertEquals(0L, counter.sum());
+    }
+
+    public void testTrafficStatsSession() throws Exception {
+        final TrafficStats trafficStats = TrafficStats.getInstance(getContext());
+        trafficStats.startSession();
+        final long totalBefore = trafficStats.getTotalTraffic();
+        trafficStats.addTraffic(1000L);
+        // The traffic is counted only on WiFi or mobile networks
+        final long added = trafficStats.getLastSessionData();
+        assertTrue(added == 0L || added == 1000L);
+        assertEquals(totalBefore + added, trafficStats.getTotalTraffic());
+    }
+}
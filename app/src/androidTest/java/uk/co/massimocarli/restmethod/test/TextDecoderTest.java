@@ -0,0 +1,52 @@
+package uk.co.massimocarli.restmethod.test;
+
+import android.test.AndroidTestCase;
+import uk.co.massimocarli.restmethod.util.TextDecoder;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Tests for the decoding of the text with the fast path and with the CharsetDecoder
+ */
+public class TextDecoderTest extends AndroidTestCase {
+
+    private static final String[] CHARSETS = {"UTF-8", "US-ASCII", "ISO-8859-1", "UTF-16", "Shift_JIS"};
+
+    private static String sampleText(final int length) {
+        final StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append(i % 7 == 0 ? '中' : i % 5 == 0 ? 'é' : (char) ('a' + i % 26));
+        }
+        return builder.toString();
+    }
+
+    // A stream that returns few bytes at every read so chars are split between reads
+    private static InputStream slowStream(final byte[] data) {
+        return new FilterInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+                return super.read(buffer, offset, Math.min(length, 5));
+            }
+        };
+    }
+
+    public void testDecodeWithAndWithoutLength() throws Exception {
+        final String text = sampleText(40000);
+        for (String charset : CHARSETS) {
+            final byte[] data = text.getBytes(charset);
+            final String expected = new String(data, charset);
+            assertEquals(charset, expected, TextDecoder.decode(slowStream(data), charset, data.length));
+            assertEquals(charset, expected, TextDecoder.decode(slowStream(data), charset, -1L));
+            // A wrong Content-Length must not break the decoding
+            assertEquals(charset, expected, TextDecoder.decode(slowStream(data), charset, data.length / 3));
+        }
+    }
+
+    public void testEmptyStream() throws Exception {
+        assertEquals("", TextDecoder.decode(new ByteArrayInputStream(new byte[0]), "UTF-8", 0));
+        assertEquals("", TextDecoder.decode(new ByteArrayInputStream(new byte[0]), "UTF-16", -1L));
+    }
+}
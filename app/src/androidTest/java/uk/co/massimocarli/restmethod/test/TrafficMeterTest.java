@@ -0,0 +1,65 @@
+package uk.co.massimocarli.restmethod.test;
+
+import android.test.AndroidTestCase;
+import uk.co.massimocarli.restmethod.http.deserializer.StringDeserializer;
+import uk.co.massimocarli.restmethod.rest.RestCommand;
+import uk.co.massimocarli.restmethod.rest.RestCommandBuilder;
+import uk.co.massimocarli.restmethod.stats.TrafficCounterDecorator;
+import uk.co.massimocarli.restmethod.stats.TrafficMeter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Tests for the counting of the bytes of the requests and of the responses
+ */
+public class TrafficMeterTest extends AndroidTestCase {
+
+    private static final int PAYLOAD_SIZE = 10000;
+
+    public void testResponseCountedOnce() throws Exception {
+        final TrafficMeter trafficMeter = TrafficMeter.create();
+        final InputStream input = trafficMeter.countResponse(new ByteArrayInputStream(new byte[PAYLOAD_SIZE]));
+        final byte[] buffer = new byte[4096];
+        assertEquals(0, input.read());
+        assertEquals(10, input.skip(10));
+        while (input.read(buffer, 0, buffer.length) != -1) {
+            // The end of the stream must not change the count
+        }
+        assertEquals(-1, input.read());
+        assertEquals(PAYLOAD_SIZE, trafficMeter.getResponseBytes());
+        assertEquals(0L, trafficMeter.getRequestBytes());
+    }
+
+    public void testRequestCounted() throws Exception {
+        final TrafficMeter trafficMeter = TrafficMeter.create();
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+        final OutputStream output = trafficMeter.countRequest(target);
+        output.write(1);
+        output.write(new byte[PAYLOAD_SIZE - 1]);
+        output.close();
+        assertEquals(PAYLOAD_SIZE, target.size());
+        assertEquals(PAYLOAD_SIZE, trafficMeter.getRequestBytes());
+    }
+
+    public void testDecoratorCountsBody() throws Exception {
+        final TrafficCounterDecorator<String> decorator =
+                new TrafficCounterDecorator<String>(StringDeserializer.getDefault());
+        final String text = "Some text to count";
+        assertEquals(text, decorator.realise(new ByteArrayInputStream(text.getBytes("UTF-8")), getContext()));
+        assertEquals(text.length(), decorator.getDataCount());
+    }
+
+    public void testRequestHeadersEstimate() throws Exception {
+        final RestCommand plain = RestCommandBuilder.get("http://127.0.0.1/resource").build();
+        final RestCommand withHeader = plain.newBuilder().addHeader("Accept", "application/json").build();
+        final long difference = TrafficMeter.estimateRequestHeadersLength(withHeader)
+                - TrafficMeter.estimateRequestHeadersLength(plain);
+        assertEquals("Accept: application/json\r\n".length(), difference);
+        final TrafficMeter trafficMeter = TrafficMeter.create();
+        trafficMeter.addHeaders(plain, null);
+        assertEquals(TrafficMeter.estimateRequestHeadersLength(plain), trafficMeter.getTotalBytes());
+    }
+}
@@ -0,0 +1,118 @@
+package uk.co.massimocarli.restmethod.test;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+import uk.co.massimocarli.restmethod.stats.TrafficStats;
+import uk.co.massimocarli.restmethod.util.NetworkTypeMonitor;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the background persistence of the TrafficStats
+ */
+public class TrafficStatsTest extends AndroidTestCase {
+
+    // The same preferences of the TrafficStats
+    private static final String PREFS_NAME = "stats.TrafficStats";
+
+    private static final long TRAFFIC = 2 * TrafficStats.FLUSH_THRESHOLD;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        // The traffic is counted only on WiFi or mobile networks
+        NetworkTypeMonitor.get(getContext()).setNetworkTypeOverride(NetworkTypeMonitor.NetworkType.WIFI);
+    }
+
+    protected void tearDown() throws Exception {
+        NetworkTypeMonitor.get(getContext()).setNetworkTypeOverride(null);
+        final TrafficStats trafficStats = TrafficStats.getInstance(getContext());
+        trafficStats.setOnStatsSavedListener(null);
+        trafficStats.setFlushInterval(TrafficStats.FLUSH_INTERVAL);
+        super.tearDown();
+    }
+
+    private long savedWiFiTraffic() {
+        return getContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).getLong("WiFiTotalTraffic", 0L);
+    }
+
+    private void assertSaved(final TrafficStats trafficStats) {
+        final SharedPreferences prefs = getContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        assertEquals(trafficStats.getWiFiTotalTraffic(), prefs.getLong("WiFiTotalTraffic", 0L));
+        assertEquals(trafficStats.get3GTotalTraffic(), prefs.getLong("3GTotalTraffic", 0L));
+    }
+
+    public void testAddTrafficDoesNotWrite() throws Exception {
+        final TrafficStats trafficStats = TrafficStats.getInstance(getContext());
+        assertTrue(trafficStats.awaitSave(2000L));
+        final CountDownLatch writerBlocked = new CountDownLatch(1);
+        final CountDownLatch releaseWriter = new CountDownLatch(1);
+        trafficStats.setOnStatsSavedListener(new TrafficStats.OnStatsSavedListener() {
+            @Override
+            public void onStatsSaved(final TrafficStats stats) {
+                writerBlocked.countDown();
+                try {
+                    releaseWriter.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        try {
+            // The writer is blocked into the listener of this save
+            trafficStats.addTraffic(10L);
+            trafficStats.flush();
+            assertTrue(writerBlocked.await(10L, TimeUnit.SECONDS));
+            final long savedTraffic = savedWiFiTraffic();
+            final long wiFiTotal = trafficStats.getWiFiTotalTraffic();
+            // The adds complete while the writer can't write
+            for (int i = 0; i < 1000; i++) {
+                trafficStats.addTraffic(TRAFFIC);
+            }
+            assertEquals(wiFiTotal + 1000 * TRAFFIC, trafficStats.getWiFiTotalTraffic());
+            assertEquals(savedTraffic, savedWiFiTraffic());
+        } finally {
+            trafficStats.setOnStatsSavedListener(null);
+            releaseWriter.countDown();
+        }
+        assertTrue(trafficStats.awaitSave(2000L));
+        assertSaved(trafficStats);
+    }
+
+    public void testSavedWithinInterval() throws Exception {
+        final TrafficStats trafficStats = TrafficStats.getInstance(getContext());
+        assertTrue(trafficStats.awaitSave(2000L));
+        trafficStats.setFlushInterval(100L);
+        final CountDownLatch saved = new CountDownLatch(1);
+        trafficStats.setOnStatsSavedListener(new TrafficStats.OnStatsSavedListener() {
+            @Override
+            public void onStatsSaved(final TrafficStats stats) {
+                saved.countDown();
+            }
+        });
+        final long wiFiTotal = trafficStats.getWiFiTotalTraffic();
+        trafficStats.addTraffic(10L);
+        assertEquals(wiFiTotal + 10L, trafficStats.getWiFiTotalTraffic());
+        // The writer saves the traffic after the interval without any other call
+        assertTrue(saved.await(10L, TimeUnit.SECONDS));
+        assertSaved(trafficStats);
+    }
+
+    public void testHistoryOpenedByWriter() throws Exception {
+        final TrafficStats trafficStats = TrafficStats.getInstance(getContext());
+        // The history is opened by the first task of the writer
+        assertTrue(trafficStats.awaitSave(2000L));
+        assertNotNull(trafficStats.getHistory());
+    }
+
+    public void testResetSaved() throws Exception {
+        final TrafficStats trafficStats = TrafficStats.getInstance(getContext());
+        trafficStats.addTraffic(TRAFFIC);
+        assertTrue(trafficStats.getWiFiTotalTraffic() >= TRAFFIC);
+        trafficStats.reset();
+        assertTrue(trafficStats.awaitSave(2000L));
+        assertEquals(0L, trafficStats.getTotalTraffic());
+        assertSaved(trafficStats);
+    }
+}
@@ -0,0 +1,128 @@
+package uk.co.massimocarli.restmethod.test;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import uk.co.massimocarli.restmethod.http.deserializer.JsonArrayDeserializer;
+import uk.co.massimocarli.restmethod.http.deserializer.JsonName;
+import uk.co.massimocarli.restmethod.http.deserializer.TypedJsonDeserializer;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the TypedJsonDeserializer with the manual mapping of the JSONObjects
+ */
+public class TypedJsonDeserializerBenchmark extends AndroidTestCase {
+
+    private static final String TAG_LOG = TypedJsonDeserializerBenchmark.class.getName();
+
+    private static final int ITEMS_COUNT = 20000;
+
+    private static final int RUNS = 5;
+
+    public enum Status {
+        ACTIVE, DELETED
+    }
+
+    public static class Owner {
+        String name;
+        int age;
+    }
+
+    public static class Item {
+        long id;
+        String name;
+        double price;
+        boolean available;
+        @JsonName("status_code")
+        Status status;
+        List<String> tags;
+        Owner owner;
+        transient int notMapped;
+    }
+
+    private byte[] jsonBytes;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        final StringBuilder builder = new StringBuilder();
+        builder.append('[');
+        for (int i = 0; i < ITEMS_COUNT; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append("{\"id\":").append(i)
+                    .append(",\"name\":\"Item ").append(i).append('"')
+                    .append(",\"price\":").append(i * 1.5)
+                    .append(",\"available\":").append(i % 2 == 0)
+                    .append(",\"status_code\":\"").append(i % 3 == 0 ? "DELETED" : "ACTIVE").append('"')
+                    .append(",\"unknown\":{\"x\":[1,2,3]}")
+                    .append(",\"tags\":[\"first\",\"second\"]")
+                    .append(",\"owner\":{\"name\":\"Owner ").append(i).append("\",\"age\":").append(i % 90).append("}}");
+        }
+        builder.append(']');
+        jsonBytes = builder.toString().getBytes("UTF-8");
+    }
+
+    public void testMapping() throws Exception {
+        final List<Item> items = TypedJsonDeserializer.listOf(Item.class)
+                .realise(new ByteArrayInputStream(jsonBytes), getContext());
+        assertEquals(ITEMS_COUNT, items.size());
+        final Item item = items.get(3);
+        assertEquals(3L, item.id);
+        assertEquals("Item 3", item.name);
+        assertEquals(4.5, item.price, 0.0001);
+        assertFalse(item.available);
+        assertEquals(Status.DELETED, item.status);
+        assertEquals(2, item.tags.size());
+        assertEquals("Owner 3", item.owner.name);
+        assertEquals(3, item.owner.age);
+    }
+
+    public void testBenchmark() throws Exception {
+        for (int run = 0; run < RUNS; run++) {
+            HeapSampler sampler = HeapSampler.start();
+            long start = SystemClock.elapsedRealtime();
+            final JSONArray jsonArray = JsonArrayDeserializer.get()
+                    .realise(new ByteArrayInputStream(jsonBytes), getContext());
+            final List<Item> manualItems = new ArrayList<Item>(jsonArray.length());
+            for (int i = 0; i < jsonArray.length(); i++) {
+                manualItems.add(toItem(jsonArray.getJSONObject(i)));
+            }
+            final long manualTime = SystemClock.elapsedRealtime() - start;
+            final long manualPeak = sampler.stop();
+            sampler = HeapSampler.start();
+            start = SystemClock.elapsedRealtime();
+            final List<Item> typedItems = TypedJsonDeserializer.listOf(Item.class)
+                    .realise(new ByteArrayInputStream(jsonBytes), getContext());
+            final long typedTime = SystemClock.elapsedRealtime() - start;
+            final long typedPeak = sampler.stop();
+            assertEquals(manualItems.size(), typedItems.size());
+            Log.i(TAG_LOG, "Run " + run + ": JSONObject " + manualTime + " ms " + manualPeak
+                    + " bytes, typed " + typedTime + " ms " + typedPeak + " bytes");
+        }
+    }
+
+    private static Item toItem(final JSONObject jsonObject) throws Exception {
+        final Item item = new Item();
+        item.id = jsonObject.getLong("id");
+        item.name = jsonObject.getString("name");
+        item.price = jsonObject.getDouble("price");
+        item.available = jsonObject.getBoolean("available");
+        item.status = Status.valueOf(jsonObject.getString("status_code"));
+        final JSONArray tags = jsonObject.getJSONArray("tags");
+        item.tags = new ArrayList<String>(tags.length());
+        for (int i = 0; i < tags.length(); i++) {
+            item.tags.add(tags.getString(i));
+        }
+        final JSONObject owner = jsonObject.getJSONObject("owner");
+        item.owner = new Owner();
+        item.owner.name = owner.getString("name");
+        item.owner.age = owner.getInt("age");
+        return item;
+    }
+}
@@ -0,0 +1,93 @@
+package uk.co.massimocarli.restmethod.test;
+
+import android.test.AndroidTestCase;
+import uk.co.massimocarli.restmethod.http.deserializer.TypedJsonDeserializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Tests the types of fields the TypedJsonDeserializer can and can't create
+ */
+public class TypedJsonDeserializerTest extends AndroidTestCase {
+
+    public static class Node {
+        public String name;
+        public Node next;
+        public List<List<Integer>> values;
+    }
+
+    public static class Counter {
+        public String name;
+        public int count;
+        public boolean enabled;
+    }
+
+    public static class WithRawList {
+        public String name;
+        @SuppressWarnings("rawtypes")
+        public List values;
+    }
+
+    public static class WithInterface {
+        public String name;
+        public CharSequence value;
+    }
+
+    private <T> T realise(final Class<T> type, final String json) throws IOException {
+        return TypedJsonDeserializer.of(type).realise(new ByteArrayInputStream(json.getBytes("UTF-8")), getContext());
+    }
+
+    public void testNestedTypes() throws Exception {
+        final Node node = realise(Node.class, "{\"name\":\"first\",\"next\":{\"name\":\"second\",\"next\":null},"
+                + "\"values\":[[1,2],[],null]}");
+        assertEquals("first", node.name);
+        assertEquals("second", node.next.name);
+        assertNull(node.next.next);
+        assertEquals(3, node.values.size());
+        assertEquals(Integer.valueOf(2), node.values.get(0).get(1));
+        assertTrue(node.values.get(1).isEmpty());
+        assertNull(node.values.get(2));
+    }
+
+    public void testRawList() throws Exception {
+        // The field is not a problem if it's not in the JSON
+        assertEquals("name", realise(WithRawList.class, "{\"name\":\"name\"}").name);
+        try {
+            realise(WithRawList.class, "{\"name\":\"name\",\"values\":[1]}");
+            fail("The type of the elements is not known");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    public void testInterface() throws Exception {
+        assertNull(realise(WithInterface.class, "{\"name\":\"name\",\"value\":null}").value);
+        try {
+            realise(WithInterface.class, "{\"name\":\"name\",\"value\":\"value\"}");
+            fail("An interface can't be created");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    public void testValueOfWrongType() throws Exception {
+        for (String json : new String[]{"{\"count\":\"many\"}", "{\"enabled\":1}", "{\"count\":{}}",
+                "{\"name\":[]}", "[]"}) {
+            try {
+                realise(Counter.class, json);
+                fail("The JSON is not valid for the class: " + json);
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+        try {
+            TypedJsonDeserializer.listOf(Counter.class)
+                    .realise(new ByteArrayInputStream("{}".getBytes("UTF-8")), getContext());
+            fail("The JSON is not an array");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package uk.co.massimocarli.restmethod.cache;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * This is the LRU cache of the decoded Bitmaps sized by their number of bytes. Every Bitmap
+ * has two reference counts: the number of entries of the cache and the number of times it's
+ * shown, that is acquired and not released yet. A Bitmap is given to the BitmapPool for the
+ * next decoding only when both the counts are zero so a Bitmap still shown is never reused or
+ * recycled even if it's evicted. A Bitmap acquired and never released is not reused.
+ */
+public final class BitmapMemoryCache extends LruCache<String, Bitmap> {
+
+    /**
+     * The BitmapPool for the Bitmaps not used anymore. It can be null
+     */
+    private final BitmapPool mBitmapPool;
+
+    /**
+     * The reference counts of the Bitmaps into the cache or shown
+     */
+    private final Map<Bitmap, RefCount> mRefCounts = new IdentityHashMap<Bitmap, RefCount>();
+
+    /**
+     * The reference counts of a Bitmap
+     */
+    private static final class RefCount {
+
+        /**
+         * The number of entries of the cache with the Bitmap
+         */
+        private int mCacheCount;
+
+        /**
+         * The number of times the Bitmap is shown
+         */
+        private int mDisplayCount;
+    }
+
+    /**
+     * Creates a BitmapMemoryCache with the given max size
+     *
+     * @param maxBytes   The max number of bytes of the Bitmaps into the cache
+     * @param bitmapPool The BitmapPool for the Bitmaps not used anymore or null
+     */
+    public BitmapMemoryCache(final int maxBytes, final BitmapPool bitmapPool) {
+        super(maxBytes);
+        this.mBitmapPool = bitmapPool;
+    }
+
+    /**
+     * Puts a Bitmap into the cache counting the reference. The Bitmaps must be put with this
+     * method and not with put() for the reference counts.
+     *
+     * @param key    The key of the Bitmap
+     * @param bitmap The Bitmap
+     */
+    public void cache(final String key, final Bitmap bitmap) {
+        synchronized (mRefCounts) {
+            refCountOf(bitmap).mCacheCount++;
+        }
+        // The entryRemoved() of the replaced or evicted entries decreases their count
+        put(key, bitmap);
+    }
+
+    /**
+     * Returns the Bitmap for the given key counting it as shown. The caller must invoke
+     * release() when the Bitmap is not shown anymore.
+     *
+     * @param key The key of the Bitmap
+     * @return The Bitmap or null if not into the cache
+     */
+    public Bitmap acquire(final String key) {
+        // The lock prevents the eviction of the Bitmap from giving it to the pool between
+        // the get() and the count of the display
+        synchronized (mRefCounts) {
+            final Bitmap bitmap = get(key);
+            if (bitmap != null) {
+                refCountOf(bitmap).mDisplayCount++;
+            }
+            return bitmap;
+        }
+    }
+
+    /**
+     * Counts a Bitmap as shown. The caller must invoke release() when the Bitmap is not shown
+     * anymore.
+     *
+     * @param bitmap The Bitmap shown
+     */
+    public void acquire(final Bitmap bitmap) {
+        synchronized (mRefCounts) {
+            refCountOf(bitmap).mDisplayCount++;
+        }
+    }
+
+    /**
+     * Says that a Bitmap is not shown anymore. When it's not into the cache too it's given
+     * to the BitmapPool
+     *
+     * @param bitmap The Bitmap not shown anymore
+     */
+    public void release(final Bitmap bitmap) {
+        synchronized (mRefCounts) {
+            final RefCount refCount = mRefCounts.get(bitmap);
+            if (refCount == null || refCount.mDisplayCount == 0) {
+                // Not acquired from this cache
+                return;
+            }
+            refCount.mDisplayCount--;
+            if (!removeIfUnused(bitmap, refCount)) {
+                return;
+            }
+        }
+        recycle(bitmap);
+    }
+
+    /**
+     * @return True if the Bitmap is into the cache or shown
+     */
+    public boolean isReferenced(final Bitmap bitmap) {
+        synchronized (mRefCounts) {
+            return mRefCounts.containsKey(bitmap);
+        }
+    }
+
+    @Override
+    protected int sizeOf(final String key, final Bitmap value) {
+        return (int) BitmapPool.sizeOf(value);
+    }
+
+    @Override
+    protected void entryRemoved(final boolean evicted, final String key, final Bitmap oldValue,
+                                final Bitmap newValue) {
+        synchronized (mRefCounts) {
+            final RefCount refCount = mRefCounts.get(oldValue);
+            if (refCount == null || refCount.mCacheCount == 0) {
+                // Put without cache()
+                return;
+            }
+            refCount.mCacheCount--;
+            if (!removeIfUnused(oldValue, refCount)) {
+                return;
+            }
+        }
+        recycle(oldValue);
+    }
+
+    /**
+     * Removes the counts of the Bitmap if both are zero
+     *
+     * @return True if the Bitmap is not used anymore
+     */
+    private boolean removeIfUnused(final Bitmap bitmap, final RefCount refCount) {
+        if (refCount.mCacheCount > 0 || refCount.mDisplayCount > 0) {
+            return false;
+        }
+        mRefCounts.remove(bitmap);
+        return true;
+    }
+
+    /**
+     * Gives a Bitmap not used anymore to the BitmapPool
+     */
+    private void recycle(final Bitmap bitmap) {
+        if (mBitmapPool != null) {
+            mBitmapPool.put(bitmap);
+        }
+    }
+
+    /**
+     * @return The RefCount of the Bitmap creating it if needed
+     */
+    private RefCount refCountOf(final Bitmap bitmap) {
+        RefCount refCount = mRefCounts.get(bitmap);
+        if (refCount == null) {
+            refCount = new RefCount();
+            mRefCounts.put(bitmap, refCount);
+        }
+        return refCount;
+    }
+}
@@ -0,0 +1,183 @@
+package uk.co.massimocarli.restmethod.cache;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * This is the pool of the Bitmaps that are not used anymore and that can be reused for the
+ * decoding of new images through the inBitmap option. The pool keeps at most a given number of
+ * bytes and recycles the oldest Bitmaps when it's full.
+ * <p/>
+ * Before KitKat a Bitmap can be reused only for an image of the same size decoded without
+ * sampling. From KitKat a Bitmap can be reused for every image that fits into its memory.
+ */
+public final class BitmapPool {
+
+    /**
+     * The max number of bytes of the Bitmaps into the pool
+     */
+    private final long mMaxBytes;
+
+    /**
+     * The Bitmaps into the pool. The oldest is the first
+     */
+    private final LinkedList<Bitmap> mBitmaps = new LinkedList<Bitmap>();
+
+    /**
+     * The current number of bytes into the pool
+     */
+    private long mCurrentBytes;
+
+    /**
+     * The number of Bitmaps reused
+     */
+    private long mReuseCount;
+
+    /**
+     * Private constructor
+     */
+    private BitmapPool(final long maxBytes) {
+        this.mMaxBytes = maxBytes;
+    }
+
+    /**
+     * This static factory method creates a BitmapPool with the given max size
+     *
+     * @param maxBytes The max number of bytes of the Bitmaps into the pool
+     * @return The BitmapPool
+     */
+    public static BitmapPool create(final long maxBytes) {
+        return new BitmapPool(maxBytes);
+    }
+
+    /**
+     * Gives a Bitmap not used anymore to the pool. Only mutable Bitmaps can be reused.
+     *
+     * @param bitmap The Bitmap to reuse. It must not be used by the caller anymore
+     */
+    public synchronized void put(final Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        final long size = sizeOf(bitmap);
+        if (size > mMaxBytes) {
+            return;
+        }
+        mBitmaps.addLast(bitmap);
+        mCurrentBytes += size;
+        while (mCurrentBytes > mMaxBytes) {
+            final Bitmap oldest = mBitmaps.removeFirst();
+            mCurrentBytes -= sizeOf(oldest);
+            oldest.recycle();
+        }
+    }
+
+    /**
+     * Sets the inBitmap of the options if a Bitmap of the pool can be used for the decoding.
+     * The options must contain the bounds of the image and the inSampleSize.
+     *
+     * @param options The options for the decoding
+     */
+    public void prepareOptions(final BitmapFactory.Options options) {
+        final int sampleSize = Math.max(options.inSampleSize, 1);
+        final int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        final int height = (options.outHeight + sampleSize - 1) / sampleSize;
+        final Bitmap.Config config = options.inPreferredConfig != null
+                ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+        options.inBitmap = take(width, height, config, sampleSize);
+    }
+
+    /**
+     * Takes a Bitmap that can be used to decode an image of the given size
+     *
+     * @param width      The width of the decoded image
+     * @param height     The height of the decoded image
+     * @param config     The config of the decoded image
+     * @param sampleSize The inSampleSize of the decoding
+     * @return The Bitmap to reuse or null if not available
+     */
+    public synchronized Bitmap take(final int width, final int height, final Bitmap.Config config,
+                                    final int sampleSize) {
+        final Iterator<Bitmap> iterator = mBitmaps.iterator();
+        while (iterator.hasNext()) {
+            final Bitmap candidate = iterator.next();
+            if (canReuse(candidate, width, height, config, sampleSize)) {
+                iterator.remove();
+                mCurrentBytes -= sizeOf(candidate);
+                mReuseCount++;
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Recycles all the Bitmaps into the pool
+     */
+    public synchronized void clear() {
+        for (Bitmap bitmap : mBitmaps) {
+            bitmap.recycle();
+        }
+        mBitmaps.clear();
+        mCurrentBytes = 0;
+    }
+
+    /**
+     * @return The current number of bytes into the pool
+     */
+    public synchronized long getCurrentBytes() {
+        return mCurrentBytes;
+    }
+
+    /**
+     * @return The number of Bitmaps reused
+     */
+    public synchronized long getReuseCount() {
+        return mReuseCount;
+    }
+
+    /**
+     * @return True if the candidate can be used for the decoding of an image of the given size
+     */
+    private static boolean canReuse(final Bitmap candidate, final int width, final int height,
+                                    final Bitmap.Config config, final int sampleSize) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return (long) width * height * bytesPerPixel(config) <= allocationByteCount(candidate);
+        }
+        return sampleSize == 1 && candidate.getWidth() == width && candidate.getHeight() == height
+                && candidate.getConfig() == config;
+    }
+
+    /**
+     * @return The number of bytes of the memory of the Bitmap
+     */
+    static long sizeOf(final Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return allocationByteCount(bitmap);
+        }
+        return bitmap.getByteCount();
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static long allocationByteCount(final Bitmap bitmap) {
+        return bitmap.getAllocationByteCount();
+    }
+
+    /**
+     * @return The bytes for a pixel for the given config
+     */
+    private static int bytesPerPixel(final Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+}
@@ -0,0 +1,218 @@
+package uk.co.massimocarli.restmethod.cache;
+
+import android.util.Log;
+import uk.co.massimocarli.restmethod.util.BufferPool;
+import uk.co.massimocarli.restmethod.util.EncodingUtils;
+import uk.co.massimocarli.restmethod.util.IOUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * This is a simple LRU cache of the encoded data on File system. Every entry is a file whose
+ * name is the MD5 of the key. The last modified date of the files is the last access time so
+ * the oldest files are deleted when the cache is bigger than its max size.
+ */
+public final class DiskCache {
+
+    /*
+     * The Tag for the log
+     */
+    private static final String LOG_TAG = DiskCache.class.getName();
+
+    /**
+     * The suffix of the files still in writing
+     */
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /*
+     * The number of the locks for the writings of the keys
+     */
+    private static final int KEY_LOCKS = 32;
+
+    /**
+     * The directory of the cache
+     */
+    private final File mDirectory;
+
+    /**
+     * The max size of the cache in bytes
+     */
+    private final long mMaxBytes;
+
+    /**
+     * The current size of the cache in bytes
+     */
+    private long mCurrentBytes;
+
+    /**
+     * The locks for the writings. The writings of the same key share the same temporary file
+     * so they must not run at the same time
+     */
+    private final Object[] mKeyLocks = new Object[KEY_LOCKS];
+
+    /**
+     * Private constructor
+     */
+    private DiskCache(final File directory, final long maxBytes) {
+        this.mDirectory = directory;
+        this.mMaxBytes = maxBytes;
+        for (int i = 0; i < KEY_LOCKS; i++) {
+            mKeyLocks[i] = new Object();
+        }
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(TMP_SUFFIX)) {
+                    // Broken writing of a previous process
+                    file.delete();
+                } else {
+                    mCurrentBytes += file.length();
+                }
+            }
+        }
+    }
+
+    /**
+     * This static factory method creates a DiskCache into the given directory
+     *
+     * @param directory The directory for the cache
+     * @param maxBytes  The max size of the cache in bytes
+     * @return The DiskCache
+     */
+    public static DiskCache open(final File directory, final long maxBytes) {
+        return new DiskCache(directory, maxBytes);
+    }
+
+    /**
+     * Returns the file with the data for the given key
+     *
+     * @param key The key of the data
+     * @return The File with the data or null if not into the cache
+     */
+    public File get(final String key) {
+        final File file = fileFor(key);
+        if (!file.exists()) {
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Saves the data of the InputStream for the given key. The InputStream is not closed.
+     * Concurrent writings of the same key are serialized and the last one wins.
+     *
+     * @param key            The key of the data
+     * @param inputStream    The InputStream with the data
+     * @param expectedLength The expected length of the data or -1 if not known
+     * @return The File with the data
+     * @throws java.io.IOException In case of error writing the data
+     */
+    public File put(final String key, final InputStream inputStream, final long expectedLength) throws IOException {
+        final File file = fileFor(key);
+        final File tmpFile = new File(file.getAbsolutePath() + TMP_SUFFIX);
+        synchronized (mKeyLocks[(file.getName().hashCode() & 0x7FFFFFFF) % KEY_LOCKS]) {
+            FileOutputStream output = null;
+            try {
+                output = new FileOutputStream(tmpFile);
+                IOUtils.copy(inputStream, output, BufferPool.bufferSizeFor(expectedLength));
+            } catch (IOException e) {
+                IOUtils.closeQuietly(output);
+                tmpFile.delete();
+                throw e;
+            } finally {
+                IOUtils.closeQuietly(output);
+            }
+            synchronized (this) {
+                if (file.exists()) {
+                    mCurrentBytes -= file.length();
+                }
+                if (!tmpFile.renameTo(file)) {
+                    tmpFile.delete();
+                    throw new IOException("Unable to save " + file);
+                }
+                mCurrentBytes += file.length();
+                trim();
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Removes the data for the given key
+     *
+     * @param key The key of the data
+     */
+    public synchronized void remove(final String key) {
+        final File file = fileFor(key);
+        final long length = file.length();
+        if (file.delete()) {
+            mCurrentBytes -= length;
+        }
+    }
+
+    /**
+     * @return The current size of the cache in bytes
+     */
+    public synchronized long getCurrentBytes() {
+        return mCurrentBytes;
+    }
+
+    /**
+     * Deletes the least recently used files until the size is under the max
+     */
+    private void trim() {
+        if (mCurrentBytes <= mMaxBytes) {
+            return;
+        }
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(final File lhs, final File rhs) {
+                final long lhsTime = lhs.lastModified();
+                final long rhsTime = rhs.lastModified();
+                return lhsTime < rhsTime ? -1 : (lhsTime == rhsTime ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (mCurrentBytes <= mMaxBytes) {
+                break;
+            }
+            if (file.getName().endsWith(TMP_SUFFIX)) {
+                continue;
+            }
+            final long length = file.length();
+            if (file.delete()) {
+                mCurrentBytes -= length;
+                Log.d(LOG_TAG, "Evicted " + file.getName());
+            }
+        }
+    }
+
+    /**
+     * @return The File for the given key
+     */
+    private File fileFor(final String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            return new File(mDirectory, EncodingUtils.toHexString(digest));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        } catch (IOException e) {
+            throw new IllegalStateException("UTF-8 not available", e);
+        }
+    }
+}
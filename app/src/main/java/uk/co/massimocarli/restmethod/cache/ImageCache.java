@@ -0,0 +1,313 @@
+package uk.co.massimocarli.restmethod.cache;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import uk.co.massimocarli.restmethod.http.RestExecutor;
+import uk.co.massimocarli.restmethod.http.deserializer.ResponseDeserializer;
+import uk.co.massimocarli.restmethod.http.deserializer.SampledBitmapDeserializer;
+import uk.co.massimocarli.restmethod.rest.ResponseMetadata;
+import uk.co.massimocarli.restmethod.rest.RestCommand;
+import uk.co.massimocarli.restmethod.rest.RestCommandExecutor;
+import uk.co.massimocarli.restmethod.rest.RestCommandResult;
+import uk.co.massimocarli.restmethod.util.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This is the two levels cache for the images. The decoded Bitmaps are kept into a
+ * BitmapMemoryCache and the encoded data into a DiskCache, both with the cache key of the
+ * RestCommand. An image already in memory costs nothing, an image on disk costs one decoding
+ * and only the other images are downloaded. The decoding reuses the Bitmaps of the BitmapPool.
+ * <p/>
+ * Every Bitmap returned by load() or getFromMemory() is counted as shown and it must be given
+ * back with release() when it's not shown anymore. Only the Bitmaps not shown and not into the
+ * memory cache are reused, so a Bitmap never released is simply left to the garbage collector.
+ */
+public final class ImageCache {
+
+    /*
+     * The Tag for the log
+     */
+    private static final String LOG_TAG = ImageCache.class.getName();
+
+    /**
+     * The name of the directory of the DiskCache into the cache directory
+     */
+    private static final String DISK_CACHE_DIR = "image_cache";
+
+    /**
+     * The BitmapPool for the decoding
+     */
+    private final BitmapPool mBitmapPool;
+
+    /**
+     * The cache of the decoded Bitmaps
+     */
+    private final BitmapMemoryCache mMemoryCache;
+
+    /**
+     * The cache of the encoded data
+     */
+    private final DiskCache mDiskCache;
+
+    /**
+     * The RestCommandExecutor for the download of the images
+     */
+    private final RestCommandExecutor mRestCommandExecutor;
+
+    /*
+     * The counters of the images loaded from every level
+     */
+    private final AtomicLong mMemoryHits = new AtomicLong();
+    private final AtomicLong mDiskHits = new AtomicLong();
+    private final AtomicLong mNetworkLoads = new AtomicLong();
+
+    /**
+     * Private constructor
+     */
+    private ImageCache(final BitmapPool bitmapPool, final BitmapMemoryCache memoryCache,
+                       final DiskCache diskCache, final RestCommandExecutor restCommandExecutor) {
+        this.mBitmapPool = bitmapPool;
+        this.mMemoryCache = memoryCache;
+        this.mDiskCache = diskCache;
+        this.mRestCommandExecutor = restCommandExecutor;
+    }
+
+    /**
+     * This static factory method creates an ImageCache that downloads the images with the
+     * RestExecutor
+     *
+     * @param context     The Context
+     * @param memoryBytes The max size of the memory cache in bytes
+     * @param diskBytes   The max size of the disk cache in bytes
+     * @return The ImageCache
+     */
+    public static ImageCache create(final Context context, final int memoryBytes, final long diskBytes) {
+        return create(context, memoryBytes, diskBytes, RestExecutor.get());
+    }
+
+    /**
+     * This static factory method creates an ImageCache that downloads the images with the
+     * given RestCommandExecutor. The BitmapPool can contain a quarter of the memory cache.
+     *
+     * @param context             The Context
+     * @param memoryBytes         The max size of the memory cache in bytes
+     * @param diskBytes           The max size of the disk cache in bytes
+     * @param restCommandExecutor The RestCommandExecutor for the downloads
+     * @return The ImageCache
+     */
+    public static ImageCache create(final Context context, final int memoryBytes, final long diskBytes,
+                                    final RestCommandExecutor restCommandExecutor) {
+        final BitmapPool bitmapPool = BitmapPool.create(memoryBytes / 4);
+        final BitmapMemoryCache memoryCache = new BitmapMemoryCache(memoryBytes, bitmapPool);
+        final DiskCache diskCache = DiskCache.open(new File(context.getCacheDir(), DISK_CACHE_DIR), diskBytes);
+        return new ImageCache(bitmapPool, memoryCache, diskCache, restCommandExecutor);
+    }
+
+    /**
+     * Returns the suggested size for the memory cache: an eighth of the memory of the application
+     *
+     * @param context The Context
+     * @return The suggested size in bytes
+     */
+    public static int defaultMemoryCacheSize(final Context context) {
+        final ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        return activityManager.getMemoryClass() * 1024 * 1024 / 8;
+    }
+
+    /**
+     * Returns the Bitmap for the given RestCommand decoded for the given size. The Bitmap
+     * must be given back with release() when it's not shown anymore.
+     *
+     * @param context      The Context
+     * @param restCommand  The RestCommand for the image
+     * @param targetWidth  The width the image will be shown at
+     * @param targetHeight The height the image will be shown at
+     * @return The Bitmap or null if the image is not available
+     * @throws RestCommandExecutor.RestCommandException In case of error downloading the image
+     * @throws IllegalArgumentException If the response of the RestCommand can't be cached
+     */
+    public Bitmap load(final Context context, final RestCommand restCommand, final int targetWidth,
+                       final int targetHeight) throws RestCommandExecutor.RestCommandException {
+        final String diskKey = restCommand.getCacheKey();
+        if (diskKey == null) {
+            throw new IllegalArgumentException("The response of " + restCommand.getUrl() + " can't be cached");
+        }
+        final String memoryKey = memoryKey(diskKey, targetWidth, targetHeight);
+        Bitmap bitmap = mMemoryCache.acquire(memoryKey);
+        if (bitmap != null) {
+            mMemoryHits.incrementAndGet();
+            return bitmap;
+        }
+        File file = mDiskCache.get(diskKey);
+        if (file != null) {
+            mDiskHits.incrementAndGet();
+        } else {
+            final RestCommandResult<File> result = mRestCommandExecutor.execute(context, restCommand,
+                                                                                new DiskCacheDeserializer(diskKey));
+            file = result.getResult();
+            if (file == null) {
+                Log.w(LOG_TAG, "Image not available " + result);
+                return null;
+            }
+            mNetworkLoads.incrementAndGet();
+        }
+        bitmap = decode(file, targetWidth, targetHeight);
+        if (bitmap == null) {
+            // The data are not a valid image
+            mDiskCache.remove(diskKey);
+            return null;
+        }
+        // We count the display before the Bitmap can be evicted
+        mMemoryCache.acquire(bitmap);
+        mMemoryCache.cache(memoryKey, bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Returns the Bitmap for the given RestCommand only if into the memory cache. The Bitmap
+     * must be given back with release() when it's not shown anymore.
+     *
+     * @param restCommand  The RestCommand for the image
+     * @param targetWidth  The width the image will be shown at
+     * @param targetHeight The height the image will be shown at
+     * @return The Bitmap or null if not into the memory cache
+     */
+    public Bitmap getFromMemory(final RestCommand restCommand, final int targetWidth, final int targetHeight) {
+        final String diskKey = restCommand.getCacheKey();
+        if (diskKey == null) {
+            return null;
+        }
+        return mMemoryCache.acquire(memoryKey(diskKey, targetWidth, targetHeight));
+    }
+
+    /**
+     * Says that a Bitmap returned by this ImageCache is not shown anymore so it can be reused
+     * when it's not into the memory cache. It must not be used by the caller after this call.
+     *
+     * @param bitmap The Bitmap not shown anymore
+     */
+    public void release(final Bitmap bitmap) {
+        mMemoryCache.release(bitmap);
+    }
+
+    /**
+     * Removes all the Bitmaps from memory. This should be called when the system asks to
+     * trim the memory. The Bitmaps still shown are not recycled and they are reused only
+     * after their release.
+     */
+    public void clearMemory() {
+        mMemoryCache.evictAll();
+        mBitmapPool.clear();
+    }
+
+    /**
+     * @return The number of images taken from the memory cache
+     */
+    public long getMemoryHits() {
+        return mMemoryHits.get();
+    }
+
+    /**
+     * @return The number of images decoded from the disk cache
+     */
+    public long getDiskHits() {
+        return mDiskHits.get();
+    }
+
+    /**
+     * @return The number of images downloaded
+     */
+    public long getNetworkLoads() {
+        return mNetworkLoads.get();
+    }
+
+    /**
+     * @return The BitmapPool of this ImageCache
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    /**
+     * Decodes the image of the File at the target size reusing a Bitmap of the pool if possible
+     */
+    private Bitmap decode(final File file, final int targetWidth, final int targetHeight) {
+        final String path = file.getAbsolutePath();
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inSampleSize = SampledBitmapDeserializer.calculateInSampleSize(options.outWidth, options.outHeight,
+                                                                               targetWidth, targetHeight);
+        options.inJustDecodeBounds = false;
+        mBitmapPool.prepareOptions(options);
+        try {
+            final Bitmap bitmap = BitmapFactory.decodeFile(path, options);
+            if (bitmap == null) {
+                // The Bitmap of the pool was not used
+                mBitmapPool.put(options.inBitmap);
+            }
+            return bitmap;
+        } catch (IllegalArgumentException iae) {
+            // The Bitmap of the pool cannot be used for this image
+            Log.d(LOG_TAG, "Unable to reuse Bitmap for " + path);
+            mBitmapPool.put(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeFile(path, options);
+        }
+    }
+
+    /**
+     * @return The key for the memory cache
+     */
+    private static String memoryKey(final String cacheKey, final int targetWidth, final int targetHeight) {
+        return cacheKey + "#" + targetWidth + "x" + targetHeight;
+    }
+
+    /**
+     * The Deserializer that saves the data into the DiskCache
+     */
+    private final class DiskCacheDeserializer implements ResponseDeserializer<File> {
+
+        /**
+         * The key of the data
+         */
+        private final String mKey;
+
+        private DiskCacheDeserializer(final String key) {
+            this.mKey = key;
+        }
+
+        @Override
+        public File realise(final InputStream inputStream, final ResponseMetadata metadata,
+                            final Context context) throws IOException {
+            if (!metadata.isSuccessful()) {
+                IOUtils.closeQuietly(inputStream);
+                return null;
+            }
+            return save(inputStream, metadata.getContentLength());
+        }
+
+        @Override
+        public File realise(final InputStream inputStream, final Context context) throws IOException {
+            return save(inputStream, -1L);
+        }
+
+        private File save(final InputStream inputStream, final long expectedLength) throws IOException {
+            try {
+                return mDiskCache.put(mKey, inputStream, expectedLength);
+            } finally {
+                IOUtils.closeQuietly(inputStream);
+            }
+        }
+    }
+}
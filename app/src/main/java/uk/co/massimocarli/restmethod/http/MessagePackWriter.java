@@ -0,0 +1,324 @@
+package uk.co.massimocarli.restmethod.http;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import uk.co.massimocarli.restmethod.util.BufferPool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * This is the writer of the MessagePack format we use for the bodies of the requests. Every
+ * value is written with the smallest encoding. The data are collected into a pooled buffer
+ * and written to the OutputStream when the buffer is full or on flush.
+ */
+public final class MessagePackWriter implements Closeable {
+
+    /**
+     * The Content-Type of the MessagePack documents
+     */
+    public static final String CONTENT_TYPE = "application/x-msgpack";
+
+    /**
+     * The stream to write to
+     */
+    private final OutputStream mOutputStream;
+
+    /**
+     * The pooled buffer
+     */
+    private byte[] mBuffer;
+
+    /**
+     * The number of bytes in the buffer
+     */
+    private int mCount;
+
+    /**
+     * Creates a MessagePackWriter on the given stream
+     *
+     * @param outputStream The stream to write to
+     */
+    public MessagePackWriter(final OutputStream outputStream) {
+        this.mOutputStream = outputStream;
+        this.mBuffer = BufferPool.acquireBytes(BufferPool.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Encodes the given value
+     *
+     * @param value The value as in writeValue
+     * @return The MessagePack bytes
+     * @throws IOException If the value is not supported
+     */
+    public static byte[] toByteArray(final Object value) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final MessagePackWriter writer = new MessagePackWriter(output);
+        try {
+            writer.writeValue(value);
+        } finally {
+            writer.close();
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Writes a nil value
+     */
+    public MessagePackWriter writeNil() throws IOException {
+        writeByte(0xC0);
+        return this;
+    }
+
+    /**
+     * Writes a boolean value
+     */
+    public MessagePackWriter writeBoolean(final boolean value) throws IOException {
+        writeByte(value ? 0xC3 : 0xC2);
+        return this;
+    }
+
+    /**
+     * Writes an integer value with the smallest encoding
+     */
+    public MessagePackWriter writeLong(final long value) throws IOException {
+        if (value >= 0) {
+            if (value <= 0x7F) {
+                writeByte((int) value);
+            } else if (value <= 0xFF) {
+                writeByte(0xCC);
+                writeRaw(value, 1);
+            } else if (value <= 0xFFFF) {
+                writeByte(0xCD);
+                writeRaw(value, 2);
+            } else if (value <= 0xFFFFFFFFL) {
+                writeByte(0xCE);
+                writeRaw(value, 4);
+            } else {
+                writeByte(0xCF);
+                writeRaw(value, 8);
+            }
+        } else {
+            if (value >= -32) {
+                writeByte((int) value & 0xFF);
+            } else if (value >= Byte.MIN_VALUE) {
+                writeByte(0xD0);
+                writeRaw(value, 1);
+            } else if (value >= Short.MIN_VALUE) {
+                writeByte(0xD1);
+                writeRaw(value, 2);
+            } else if (value >= Integer.MIN_VALUE) {
+                writeByte(0xD2);
+                writeRaw(value, 4);
+            } else {
+                writeByte(0xD3);
+                writeRaw(value, 8);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Writes a floating point value as float64
+     */
+    public MessagePackWriter writeDouble(final double value) throws IOException {
+        writeByte(0xCB);
+        writeRaw(Double.doubleToLongBits(value), 8);
+        return this;
+    }
+
+    /**
+     * Writes a String value encoded as UTF-8
+     */
+    public MessagePackWriter writeString(final String value) throws IOException {
+        final byte[] bytes = value.getBytes("UTF-8");
+        final int length = bytes.length;
+        if (length <= 31) {
+            writeByte(0xA0 | length);
+        } else if (length <= 0xFF) {
+            writeByte(0xD9);
+            writeRaw(length, 1);
+        } else if (length <= 0xFFFF) {
+            writeByte(0xDA);
+            writeRaw(length, 2);
+        } else {
+            writeByte(0xDB);
+            writeRaw(length, 4);
+        }
+        writeBytes(bytes, 0, length);
+        return this;
+    }
+
+    /**
+     * Writes a binary value
+     */
+    public MessagePackWriter writeBinary(final byte[] value) throws IOException {
+        final int length = value.length;
+        if (length <= 0xFF) {
+            writeByte(0xC4);
+            writeRaw(length, 1);
+        } else if (length <= 0xFFFF) {
+            writeByte(0xC5);
+            writeRaw(length, 2);
+        } else {
+            writeByte(0xC6);
+            writeRaw(length, 4);
+        }
+        writeBytes(value, 0, length);
+        return this;
+    }
+
+    /**
+     * Writes the header of an array. The elements must follow
+     */
+    public MessagePackWriter writeArrayHeader(final int size) throws IOException {
+        if (size <= 15) {
+            writeByte(0x90 | size);
+        } else if (size <= 0xFFFF) {
+            writeByte(0xDC);
+            writeRaw(size, 2);
+        } else {
+            writeByte(0xDD);
+            writeRaw(size, 4);
+        }
+        return this;
+    }
+
+    /**
+     * Writes the header of a map. The names and the values must follow
+     */
+    public MessagePackWriter writeMapHeader(final int size) throws IOException {
+        if (size <= 15) {
+            writeByte(0x80 | size);
+        } else if (size <= 0xFFFF) {
+            writeByte(0xDE);
+            writeRaw(size, 2);
+        } else {
+            writeByte(0xDF);
+            writeRaw(size, 4);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a value of one of the types of the JSON trees, a Map with String keys, a
+     * Collection or a byte[]
+     *
+     * @param value The value to write
+     * @return The MessagePackWriter itself
+     * @throws IOException If the value is not supported
+     */
+    public MessagePackWriter writeValue(final Object value) throws IOException {
+        if (value == null || value == JSONObject.NULL) {
+            writeNil();
+        } else if (value instanceof String) {
+            writeString((String) value);
+        } else if (value instanceof Boolean) {
+            writeBoolean((Boolean) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            writeLong(((Number) value).longValue());
+        } else if (value instanceof byte[]) {
+            writeBinary((byte[]) value);
+        } else if (value instanceof JSONObject) {
+            final JSONObject jsonObject = (JSONObject) value;
+            writeMapHeader(jsonObject.length());
+            final Iterator<?> names = jsonObject.keys();
+            while (names.hasNext()) {
+                final String name = (String) names.next();
+                writeString(name);
+                writeValue(jsonObject.opt(name));
+            }
+        } else if (value instanceof JSONArray) {
+            final JSONArray jsonArray = (JSONArray) value;
+            final int length = jsonArray.length();
+            writeArrayHeader(length);
+            for (int i = 0; i < length; i++) {
+                writeValue(jsonArray.opt(i));
+            }
+        } else if (value instanceof Map) {
+            final Map<?, ?> map = (Map<?, ?>) value;
+            writeMapHeader(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeString(String.valueOf(entry.getKey()));
+                writeValue(entry.getValue());
+            }
+        } else if (value instanceof Collection) {
+            final Collection<?> collection = (Collection<?>) value;
+            writeArrayHeader(collection.size());
+            for (Object item : collection) {
+                writeValue(item);
+            }
+        } else {
+            throw new IOException("Type " + value.getClass().getName() + " not supported");
+        }
+        return this;
+    }
+
+    /**
+     * Writes the buffered data to the stream
+     */
+    public void flush() throws IOException {
+        if (mCount > 0) {
+            mOutputStream.write(mBuffer, 0, mCount);
+            mCount = 0;
+        }
+        mOutputStream.flush();
+    }
+
+    /**
+     * Flushes the data, releases the buffer and closes the stream
+     */
+    @Override
+    public void close() throws IOException {
+        if (mBuffer == null) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            BufferPool.releaseBytes(mBuffer);
+            mBuffer = null;
+            mOutputStream.close();
+        }
+    }
+
+    private void writeByte(final int value) throws IOException {
+        if (mCount == mBuffer.length) {
+            flushBuffer();
+        }
+        mBuffer[mCount++] = (byte) value;
+    }
+
+    private void writeRaw(final long value, final int size) throws IOException {
+        if (mBuffer.length - mCount < size) {
+            flushBuffer();
+        }
+        for (int shift = (size - 1) * 8; shift >= 0; shift -= 8) {
+            mBuffer[mCount++] = (byte) (value >>> shift);
+        }
+    }
+
+    private void writeBytes(final byte[] bytes, final int offset, final int length) throws IOException {
+        if (length > mBuffer.length - mCount) {
+            flushBuffer();
+            if (length > mBuffer.length) {
+                mOutputStream.write(bytes, offset, length);
+                return;
+            }
+        }
+        System.arraycopy(bytes, offset, mBuffer, mCount, length);
+        mCount += length;
+    }
+
+    private void flushBuffer() throws IOException {
+        mOutputStream.write(mBuffer, 0, mCount);
+        mCount = 0;
+    }
+}
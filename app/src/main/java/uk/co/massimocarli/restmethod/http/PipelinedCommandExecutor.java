@@ -0,0 +1,481 @@
+package uk.co.massimocarli.restmethod.http;
+
+import android.content.Context;
+import android.util.Log;
+import uk.co.massimocarli.restmethod.http.deserializer.Deserializer;
+import uk.co.massimocarli.restmethod.http.deserializer.ResponseDeserializer;
+import uk.co.massimocarli.restmethod.http.deserializer.ResponseDeserializerAdapter;
+import uk.co.massimocarli.restmethod.rest.CancellationHandle;
+import uk.co.massimocarli.restmethod.rest.ResponseMetadata;
+import uk.co.massimocarli.restmethod.rest.RestCommand;
+import uk.co.massimocarli.restmethod.rest.RestCommandExecutor;
+import uk.co.massimocarli.restmethod.rest.RestCommandResult;
+import uk.co.massimocarli.restmethod.util.BufferPool;
+import uk.co.massimocarli.restmethod.util.BytePipe;
+import uk.co.massimocarli.restmethod.util.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This is a RestCommandExecutor that splits the execution of a RestCommand in two stages with
+ * their own thread pools. The I/O stage executes the RestCommand with the delegate executor and
+ * copies the body of the response into a bounded BytePipe. The deserialization stage reads from
+ * the pipe with the Deserializer. The two stages overlap so the parsing starts with the first
+ * bytes and a slow parser doesn't keep a core busy waiting for the network. The capacity of the
+ * pipe limits the memory used for every response.
+ * <p/>
+ * The submit method returns a Future. The execute method waits for the result on the calling
+ * thread. The cancellation of the Future, or of the CancellationHandle of the RestCommand,
+ * removes the RestCommand from the queue of the I/O stage if not started, aborts the connection
+ * and stops the Deserializer.
+ */
+public class PipelinedCommandExecutor implements RestCommandExecutor {
+
+    /**
+     * The Tag for the Log
+     */
+    private static final String TAG_LOG = PipelinedCommandExecutor.class.getName();
+
+    /**
+     * The default number of threads for the I/O stage
+     */
+    public static final int DEFAULT_IO_THREADS = 4;
+
+    /**
+     * The default capacity of the pipe between the stages
+     */
+    public static final int DEFAULT_PIPE_CAPACITY = 64 * 1024;
+
+    /**
+     * The RestCommandExecutor for the I/O stage
+     */
+    private final RestCommandExecutor mDelegate;
+
+    /**
+     * The pool for the I/O stage
+     */
+    private final ThreadPoolExecutor mIoExecutor;
+
+    /**
+     * The pool for the deserialization stage
+     */
+    private final ExecutorService mDeserializationExecutor;
+
+    /**
+     * The capacity of the pipe for every response
+     */
+    private final int mPipeCapacity;
+
+    /**
+     * The private constructor
+     */
+    private PipelinedCommandExecutor(final RestCommandExecutor delegate, final int ioThreads,
+                                     final int deserializationThreads, final int pipeCapacity) {
+        this.mDelegate = delegate;
+        // We need the ThreadPoolExecutor to remove the RestCommands cancelled while queued
+        this.mIoExecutor = new ThreadPoolExecutor(ioThreads, ioThreads, 0L, TimeUnit.MILLISECONDS,
+                                                  new LinkedBlockingQueue<Runnable>(),
+                                                  new StageThreadFactory("rest-io"));
+        this.mDeserializationExecutor = Executors.newFixedThreadPool(deserializationThreads,
+                                                                     new StageThreadFactory("rest-deserializer"));
+        this.mPipeCapacity = pipeCapacity;
+    }
+
+    /**
+     * This static Factory method returns a new instance with the given sizes
+     *
+     * @param delegate               The RestCommandExecutor for the I/O stage
+     * @param ioThreads              The number of threads for the I/O stage
+     * @param deserializationThreads The number of threads for the deserialization stage
+     * @param pipeCapacity           The capacity in bytes of the pipe for every response
+     * @return A new instance of the PipelinedCommandExecutor
+     */
+    public static PipelinedCommandExecutor create(final RestCommandExecutor delegate, final int ioThreads,
+                                                  final int deserializationThreads, final int pipeCapacity) {
+        if (ioThreads <= 0 || deserializationThreads <= 0) {
+            throw new IllegalArgumentException("The number of threads must be positive");
+        }
+        return new PipelinedCommandExecutor(delegate, ioThreads, deserializationThreads, pipeCapacity);
+    }
+
+    /**
+     * This static Factory method returns a new instance with the default sizes on the given
+     * delegate. The deserialization stage has a thread for every core.
+     *
+     * @param delegate The RestCommandExecutor for the I/O stage
+     * @return A new instance of the PipelinedCommandExecutor
+     */
+    public static PipelinedCommandExecutor create(final RestCommandExecutor delegate) {
+        return create(delegate, DEFAULT_IO_THREADS, Runtime.getRuntime().availableProcessors(),
+                      DEFAULT_PIPE_CAPACITY);
+    }
+
+    /**
+     * This static Factory method returns a new instance with the default sizes on the
+     * RestExecutor
+     *
+     * @return A new instance of the PipelinedCommandExecutor
+     */
+    public static PipelinedCommandExecutor create() {
+        return create(RestExecutor.get());
+    }
+
+    /**
+     * Submits the RestCommand to the pipeline
+     *
+     * @param context      The Context
+     * @param restCommand  The Command to execute
+     * @param deserializer The Deserializer to use
+     * @param <T>          The type of the object to create
+     * @return The Future for the RestCommandResult
+     */
+    public <T> Future<RestCommandResult<T>> submit(final Context context, final RestCommand restCommand,
+                                                   final Deserializer<? extends T> deserializer) {
+        final PipelinedCall<T> call = new PipelinedCall<T>(context, restCommand, deserializer);
+        call.listenCancellation();
+        mIoExecutor.execute(call);
+        return call;
+    }
+
+    @Override
+    public <T> RestCommandResult<T> execute(final Context context, final RestCommand restCommand,
+                                            final Deserializer<? extends T> deserializer)
+            throws RestCommandException {
+        final Future<RestCommandResult<T>> future = submit(context, restCommand, deserializer);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RestCommandException("Execution interrupted", e);
+        } catch (CancellationException e) {
+            throw new CancelledException();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RestCommandException) {
+                throw (RestCommandException) cause;
+            }
+            throw new RestCommandException("Error executing httpRequest", cause);
+        }
+    }
+
+    /**
+     * Stops the threads of the pipeline. The RestCommands already submitted are completed
+     */
+    public void shutdown() {
+        mIoExecutor.shutdown();
+        mDeserializationExecutor.shutdown();
+    }
+
+    /**
+     * Copies the body of the response into the pipe
+     *
+     * @param inputStream The body of the response
+     * @param pipe        The pipe to the deserialization stage
+     * @param bufferSize  The size of the buffer
+     */
+    private static void pump(final InputStream inputStream, final BytePipe pipe, final int bufferSize) {
+        final OutputStream sink = pipe.sink();
+        final byte[] buffer = BufferPool.acquireBytes(bufferSize);
+        try {
+            int read;
+            while ((read = inputStream.read(buffer, 0, bufferSize)) != -1) {
+                if (pipe.isSourceClosed()) {
+                    // The Deserializer doesn't need more data
+                    break;
+                }
+                sink.write(buffer, 0, read);
+            }
+            sink.close();
+        } catch (IOException e) {
+            if (!pipe.isSourceClosed()) {
+                pipe.fail(e);
+            }
+        } finally {
+            BufferPool.releaseBytes(buffer);
+            IOUtils.closeQuietly(inputStream);
+        }
+    }
+
+    /**
+     * The execution of a RestCommand in the pipeline. It runs the I/O stage and it's the
+     * Future of the result too. The result is ready when both the stages are completed.
+     */
+    private final class PipelinedCall<T> implements Runnable, Future<RestCommandResult<T>>,
+            ResponseDeserializer<Void> {
+
+        private final Context mContext;
+        private final RestCommand mRestCommand;
+        private final CancellationHandle mCancellationHandle;
+        private final Deserializer<? extends T> mDeserializer;
+        private final CountDownLatch mDone = new CountDownLatch(1);
+
+        /**
+         * The listener on the CancellationHandle. It's removed when the call is done so a
+         * shared handle doesn't keep the completed calls and their results
+         */
+        private final CancellationHandle.OnCancelListener mOnCancelListener =
+                new CancellationHandle.OnCancelListener() {
+                    @Override
+                    public void onCancel() {
+                        cancel(true);
+                    }
+                };
+
+        /**
+         * The stages not completed yet
+         */
+        private int mPendingStages = 2;
+        private T mValue;
+        private RestCommandResult<Void> mIoResult;
+        private Throwable mFailure;
+        private boolean mCancelled;
+        private BytePipe mPipe;
+        private Thread mDeserializationThread;
+
+        private PipelinedCall(final Context context, final RestCommand restCommand,
+                              final Deserializer<? extends T> deserializer) {
+            this.mContext = context;
+            this.mDeserializer = deserializer;
+            // We need a CancellationHandle to abort the connection of the delegate
+            if (restCommand.getCancellationHandle() != null) {
+                this.mRestCommand = restCommand;
+            } else {
+                this.mRestCommand = restCommand.newBuilder()
+                        .withCancellationHandle(CancellationHandle.create())
+                        .build();
+            }
+            this.mCancellationHandle = mRestCommand.getCancellationHandle();
+        }
+
+        /**
+         * Registers the listener on the CancellationHandle. It's invoked out of the constructor
+         * because the listener is called immediately if the handle is already cancelled
+         */
+        private void listenCancellation() {
+            mCancellationHandle.addOnCancelListener(mOnCancelListener);
+            if (isDone()) {
+                // Completed or failed before the registration
+                mCancellationHandle.removeOnCancelListener(mOnCancelListener);
+            }
+        }
+
+        /**
+         * Removes the listener on the CancellationHandle when the call is done
+         */
+        private void onDone() {
+            mCancellationHandle.removeOnCancelListener(mOnCancelListener);
+        }
+
+        @Override
+        public void run() {
+            if (isDone()) {
+                return;
+            }
+            try {
+                final RestCommandResult<Void> ioResult = mDelegate.execute(mContext, mRestCommand, this);
+                final boolean withoutBody;
+                synchronized (this) {
+                    mIoResult = ioResult;
+                    withoutBody = mPipe == null;
+                }
+                if (withoutBody) {
+                    // The delegate didn't give us any body
+                    onDeserialized(null);
+                }
+                onStageCompleted();
+            } catch (Throwable e) {
+                onFailure(e);
+            }
+        }
+
+        @Override
+        public Void realise(final InputStream inputStream, final Context context) throws IOException {
+            return realise(inputStream, null, context);
+        }
+
+        @Override
+        public Void realise(final InputStream inputStream, final ResponseMetadata metadata,
+                            final Context context) throws IOException {
+            final BytePipe pipe = new BytePipe(mPipeCapacity);
+            synchronized (this) {
+                if (mCancelled) {
+                    IOUtils.closeQuietly(inputStream);
+                    return null;
+                }
+                mPipe = pipe;
+            }
+            mDeserializationExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final InputStream source = pipe.source();
+                    synchronized (PipelinedCall.this) {
+                        if (mCancelled) {
+                            IOUtils.closeQuietly(source);
+                            return;
+                        }
+                        mDeserializationThread = Thread.currentThread();
+                    }
+                    try {
+                        onDeserialized(ResponseDeserializerAdapter.realise(mDeserializer, source, metadata, mContext));
+                    } catch (Throwable e) {
+                        onFailure(e);
+                    } finally {
+                        synchronized (PipelinedCall.this) {
+                            mDeserializationThread = null;
+                            // We clear the interrupt of a cancellation before the next task
+                            Thread.interrupted();
+                        }
+                        IOUtils.closeQuietly(source);
+                    }
+                }
+            });
+            if (inputStream == null) {
+                pipe.sink().close();
+            } else {
+                final long contentLength = metadata != null ? metadata.getContentLength() : -1L;
+                pump(inputStream, pipe, BufferPool.bufferSizeFor(contentLength));
+            }
+            return null;
+        }
+
+        private void onDeserialized(final T value) {
+            synchronized (this) {
+                mValue = value;
+            }
+            onStageCompleted();
+        }
+
+        private void onStageCompleted() {
+            final boolean done;
+            synchronized (this) {
+                mPendingStages--;
+                done = mPendingStages == 0;
+            }
+            if (done) {
+                // The listener is removed before the result is visible to get()
+                onDone();
+                mDone.countDown();
+            }
+        }
+
+        private void onFailure(final Throwable failure) {
+            final BytePipe pipe;
+            // The listener is removed before the failure is visible to get()
+            onDone();
+            synchronized (this) {
+                if (mFailure == null) {
+                    mFailure = failure;
+                }
+                pipe = mPipe;
+                mDone.countDown();
+            }
+            if (pipe != null) {
+                // We stop the other stage
+                IOUtils.closeQuietly(pipe.source());
+                pipe.fail(failure instanceof IOException ? (IOException) failure
+                                  : new IOException("Pipeline failed: " + failure));
+            }
+            Log.w(TAG_LOG, "Error executing " + mRestCommand.getUrl(), failure);
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            final BytePipe pipe;
+            synchronized (this) {
+                if (isDone()) {
+                    return false;
+                }
+                mCancelled = true;
+                pipe = mPipe;
+                if (mayInterruptIfRunning && mDeserializationThread != null) {
+                    // For the Deserializers that don't read from the pipe for a while
+                    mDeserializationThread.interrupt();
+                }
+                mDone.countDown();
+            }
+            // If not started yet the RestCommand doesn't use a thread anymore
+            mIoExecutor.remove(this);
+            // The delegate aborts the connection and the pump stops
+            mCancellationHandle.cancel();
+            if (pipe != null) {
+                IOUtils.closeQuietly(pipe.source());
+                pipe.fail(new IOException("Cancelled"));
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        @Override
+        public RestCommandResult<T> get() throws InterruptedException, ExecutionException {
+            mDone.await();
+            return result();
+        }
+
+        @Override
+        public RestCommandResult<T> get(final long timeout, final TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            if (!mDone.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return result();
+        }
+
+        private synchronized RestCommandResult<T> result() throws ExecutionException {
+            if (mCancelled) {
+                throw new CancellationException();
+            }
+            if (mFailure != null) {
+                throw new ExecutionException(mFailure);
+            }
+            final RestCommandResult<T> result = mIoResult.getMetadata() != null
+                    ? RestCommandResult.get(mValue, mIoResult.getMetadata())
+                    : RestCommandResult.get(mValue, mIoResult.getStatusCode(), mIoResult.getStatusMessage());
+            result.setTrafficData(mIoResult.getTrafficData());
+            return result;
+        }
+    }
+
+    /**
+     * The ThreadFactory for the threads of a stage
+     */
+    private static final class StageThreadFactory implements ThreadFactory {
+
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        private StageThreadFactory(final String name) {
+            this.mName = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, mName + "-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package uk.co.massimocarli.restmethod.http;
+
+import uk.co.massimocarli.restmethod.rest.RestCommand;
+import uk.co.massimocarli.restmethod.util.EncodingUtils;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * This is the Utility class that encodes the url and the form body of a RestCommand. It's
+ * shared by the UrlConnection and the HttpClient implementations so they encode the requests
+ * in the same way.
+ */
+public final class RestCommandEncoder {
+
+    /**
+     * The Content-Type for the form body
+     */
+    public static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+
+    /**
+     * Private constructor
+     */
+    private RestCommandEncoder() {
+        throw new AssertionError("Never instantiate me! I'm an Utility class!!!");
+    }
+
+    /**
+     * This method returns the url to invoke for the given RestCommand. If the method supports
+     * the querystring the params are added to the url.
+     *
+     * @param restCommand The RestCommand with the request information
+     * @return The url to invoke
+     * @throws java.io.UnsupportedEncodingException If the charset of the RestCommand is not supported
+     */
+    public static String buildUrl(final RestCommand restCommand) throws UnsupportedEncodingException {
+        final String url = restCommand.getUrl();
+        if (!restCommand.getHttpMethod().isQueryStringSupported() || !restCommand.hasParams()) {
+            return url;
+        }
+        final StringBuilder builder = EncodingUtils.acquireBuilder();
+        builder.append(url);
+        final char lastChar = url.length() > 0 ? url.charAt(url.length() - 1) : 0;
+        if (lastChar != '?' && lastChar != '&') {
+            // The url could already contain a querystring
+            builder.append(url.indexOf('?') < 0 ? '?' : '&');
+        }
+        appendParams(builder, restCommand);
+        return builder.toString();
+    }
+
+    /**
+     * This method returns the params of the RestCommand encoded as a form body
+     *
+     * @param restCommand The RestCommand with the params
+     * @return The body as bytes
+     * @throws java.io.UnsupportedEncodingException If the charset of the RestCommand is not supported
+     */
+    public static byte[] buildFormBody(final RestCommand restCommand) throws UnsupportedEncodingException {
+        final StringBuilder builder = EncodingUtils.acquireBuilder();
+        appendParams(builder, restCommand);
+        // The encoded params contain only ASCII chars
+        return EncodingUtils.toAsciiBytes(builder);
+    }
+
+    /**
+     * @param restCommand The RestCommand
+     * @return The Content-Type of the form body for the given RestCommand
+     */
+    public static String getFormContentType(final RestCommand restCommand) {
+        return FORM_CONTENT_TYPE + "; charset=" + restCommand.getCharset();
+    }
+
+    /**
+     * Appends the encoded params separated by &amp;
+     *
+     * @param builder     The StringBuilder to append to
+     * @param restCommand The RestCommand with the params
+     * @throws java.io.UnsupportedEncodingException If the charset of the RestCommand is not supported
+     */
+    private static void appendParams(final StringBuilder builder, final RestCommand restCommand)
+            throws UnsupportedEncodingException {
+        final String charset = restCommand.getCharset();
+        final int paramsCount = restCommand.paramsCount();
+        for (int i = 0; i < paramsCount; i++) {
+            if (i > 0) {
+                builder.append('&');
+            }
+            EncodingUtils.appendFormEncoded(builder, restCommand.getParamName(i), charset);
+            builder.append('=');
+            final String value = restCommand.getParamValue(i);
+            if (value != null) {
+                EncodingUtils.appendFormEncoded(builder, value, charset);
+            }
+        }
+    }
+
+}
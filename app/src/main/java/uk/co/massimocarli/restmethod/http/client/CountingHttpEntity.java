@@ -0,0 +1,40 @@
+package uk.co.massimocarli.restmethod.http.client;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import uk.co.massimocarli.restmethod.stats.TrafficMeter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * This is the HttpEntity that counts with a TrafficMeter the bytes of the entity of a request
+ * while the HttpClient writes it to the connection
+ */
+public class CountingHttpEntity extends HttpEntityWrapper {
+
+    /**
+     * The TrafficMeter for the bytes of the entity
+     */
+    private final TrafficMeter mTrafficMeter;
+
+    /**
+     * Creates a CountingHttpEntity for the given HttpEntity
+     *
+     * @param wrapped      The HttpEntity to send
+     * @param trafficMeter The TrafficMeter for the bytes of the entity
+     */
+    public CountingHttpEntity(final HttpEntity wrapped, final TrafficMeter trafficMeter) {
+        super(wrapped);
+        this.mTrafficMeter = trafficMeter;
+    }
+
+    @Override
+    public void writeTo(final OutputStream outputStream) throws IOException {
+        if (outputStream == null) {
+            throw new IllegalArgumentException("Output stream may not be null");
+        }
+        wrappedEntity.writeTo(mTrafficMeter.countRequest(outputStream));
+    }
+
+}
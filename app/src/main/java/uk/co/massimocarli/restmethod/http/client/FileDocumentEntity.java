@@ -0,0 +1,79 @@
+package uk.co.massimocarli.restmethod.http.client;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import uk.co.massimocarli.restmethod.rest.FileDocument;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * This is the HttpEntity that writes a FileDocument straight to the connection of the
+ * HttpClient with positional reads of the File. The length is read when the entity is
+ * created so the Content-Length header and the body always agree.
+ */
+public class FileDocumentEntity extends AbstractHttpEntity {
+
+    /**
+     * The document to send
+     */
+    private final FileDocument mFileDocument;
+
+    /**
+     * The length of the File when the entity was created
+     */
+    private final long mContentLength;
+
+    /**
+     * Creates a FileDocumentEntity for the given FileDocument
+     *
+     * @param fileDocument The document to send
+     * @throws FileNotFoundException If the File of the document doesn't exist
+     */
+    public FileDocumentEntity(final FileDocument fileDocument) throws FileNotFoundException {
+        this.mFileDocument = fileDocument;
+        this.mContentLength = fileDocument.getContentLength();
+        if (mContentLength < 0) {
+            throw new FileNotFoundException("File " + fileDocument.getFile() + " not found");
+        }
+        setContentType(fileDocument.getContentType());
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return mContentLength;
+    }
+
+    /**
+     * The HttpClient never invokes this method for a request entity
+     *
+     * @return The InputStream of the File
+     * @throws java.io.IOException In case of error
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        return new FileInputStream(mFileDocument.getFile());
+    }
+
+    @Override
+    public void writeTo(final OutputStream outputStream) throws IOException {
+        if (outputStream == null) {
+            throw new IllegalArgumentException("Output stream may not be null");
+        }
+        mFileDocument.writeTo(outputStream, mContentLength);
+        outputStream.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+}
@@ -10,11 +10,13 @@ import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import uk.co.massimocarli.restmethod.http.deserializer.Deserializer;
 import uk.co.massimocarli.restmethod.http.https.HttpsClient;
+import uk.co.massimocarli.restmethod.rest.CancellationHandle;
 import uk.co.massimocarli.restmethod.rest.RestClientConf;
 import uk.co.massimocarli.restmethod.rest.RestCommand;
 import uk.co.massimocarli.restmethod.rest.RestCommandExecutor;
 import uk.co.massimocarli.restmethod.rest.RestCommandResult;
 import uk.co.massimocarli.restmethod.stats.TrafficCounterDecorator;
+import uk.co.massimocarli.restmethod.stats.TrafficMeter;
 import uk.co.massimocarli.restmethod.stats.TrafficStats;
 
 import java.io.IOException;
@@ -84,16 +86,32 @@ public class HttpClientRestCommandExecutor implements RestCommandExecutor {
 
     @Override
     public <T> RestCommandResult<T> execute(Context context, RestCommand restCommand, Deserializer<? extends T> deserializer) throws RestCommandException {
+        final CancellationHandle cancellationHandle = restCommand.getCancellationHandle();
+        CancellationHandle.OnCancelListener onCancelListener = null;
         try {
+            if (cancellationHandle != null) {
+                cancellationHandle.throwIfCancelled();
+            }
             // We test if the traffic stats is enabled
             final boolean trafficStatsEnabled = restCommand.isTrafficStatsEnabled();
-            TrafficCounterDecorator trafficDeserializer = null;
+            // The TrafficMeter counts the body of the request, the body of the response and
+            // the headers
+            final TrafficMeter trafficMeter = trafficStatsEnabled ? TrafficMeter.create() : null;
             if (trafficStatsEnabled) {
-                trafficDeserializer = new TrafficCounterDecorator<T>(deserializer);
-                deserializer = trafficDeserializer;
+                deserializer = new TrafficCounterDecorator<T>(deserializer, trafficMeter);
             }
             // We get the HttpUriRequest from the RestCommand
-            final HttpUriRequest httpRequest = HttpClientUtility.fromRestCommand(restCommand);
+            final HttpUriRequest httpRequest = HttpClientUtility.fromRestCommand(restCommand, trafficMeter);
+            if (cancellationHandle != null) {
+                // The abort closes the connection and makes the blocked reads fail
+                onCancelListener = new CancellationHandle.OnCancelListener() {
+                    @Override
+                    public void onCancel() {
+                        httpRequest.abort();
+                    }
+                };
+                cancellationHandle.addOnCancelListener(onCancelListener);
+            }
             // We instantiate the HttpClient
             HttpClient httpClient = null;
             if (restCommand.getKeyStoreAdapter() != null) {
@@ -106,26 +124,45 @@ public class HttpClientRestCommandExecutor implements RestCommandExecutor {
                 configureHttpClient(httpClient);
             }
             // We create the ResponseHandler to manage the request
-            final ResponseHandler<RestCommandResult<T>> responseHandler = HttpClientUtility.createHttpDeserializer(context, deserializer);
+            final ResponseHandler<RestCommandResult<T>> responseHandler = HttpClientUtility.createHttpDeserializer(context, deserializer,
+                                                                                                                          cancellationHandle,
+                                                                                                                          isBufferedResponses());
             // We execute the command using the client and responseHandler
             final RestCommandResult<T> restCommandResult = httpClient.execute(httpRequest, responseHandler);
             // If the traffic is enabled we read the data and add to the stats
             if (trafficStatsEnabled) {
-                final long dataRead = trafficDeserializer.getDataCount();
-                Log.d(TAG_LOG, "Traffic stats enabled and data read: " + dataRead);
-                TrafficStats.getInstance(context).addTraffic(dataRead);
+                trafficMeter.addHeaders(restCommand, restCommandResult.getMetadata());
+                final long dataRead = trafficMeter.getTotalBytes();
+                Log.d(TAG_LOG, "Traffic stats enabled and data read: " + trafficMeter);
+                TrafficStats.getInstance(context).addTraffic(dataRead, restCommand.getUrl());
                 restCommandResult.setTrafficData(dataRead);
             }
             // We return the response
             return restCommandResult;
         } catch (IOException e) {
+            if (cancellationHandle != null && cancellationHandle.isCancelled()) {
+                // The error is the effect of the cancellation
+                Log.d(TAG_LOG, "RestCommand cancelled " + restCommand.getUrl());
+                throw new CancelledException();
+            }
             e.printStackTrace();
             // In this case we throw the exception up
             Log.e(TAG_LOG, "Error executing httpRequest", e);
             throw new RestCommandException("Error executing httpRequest", e);
+        } finally {
+            if (onCancelListener != null) {
+                cancellationHandle.removeOnCancelListener(onCancelListener);
+            }
         }
     }
 
+    /**
+     * @return True if the configuration asks to read the responses in memory
+     */
+    private boolean isBufferedResponses() {
+        return mHttpClientConf != null && mHttpClientConf.isBufferedResponses();
+    }
+
     /**
      * This is an utility method that configure the HttpClient with some information we can pass
      * from outside in a some way
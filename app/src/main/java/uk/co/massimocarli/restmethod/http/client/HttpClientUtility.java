@@ -4,26 +4,23 @@ import android.content.Context;
 import android.util.Log;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.NameValuePair;
 import org.apache.http.client.ResponseHandler;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.*;
 import org.apache.http.entity.BufferedHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.message.BasicNameValuePair;
+import uk.co.massimocarli.restmethod.http.RestCommandEncoder;
 import uk.co.massimocarli.restmethod.http.deserializer.Deserializer;
+import uk.co.massimocarli.restmethod.http.deserializer.ResponseDeserializerAdapter;
+import uk.co.massimocarli.restmethod.rest.CancellationHandle;
+import uk.co.massimocarli.restmethod.rest.ResponseMetadata;
 import uk.co.massimocarli.restmethod.rest.RestCommand;
 import uk.co.massimocarli.restmethod.rest.RestCommandExecutor;
 import uk.co.massimocarli.restmethod.rest.RestCommandResult;
+import uk.co.massimocarli.restmethod.stats.TrafficMeter;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
 
 /**
  * This is an Utility class that manages the RestCommand using objects from the Apache HttpClient
@@ -53,6 +50,20 @@ public final class HttpClientUtility {
      * @return The HttpUriRequest to execute with the HttpClient
      */
     public static HttpUriRequest fromRestCommand(final RestCommand restCommand) throws IOException {
+        return fromRestCommand(restCommand, null);
+    }
+
+    /**
+     * This method receives a RestCommand and creates a HttpUriRequest from that using
+     * headers, parameters and other stuffs. The bytes of the entity of the request are counted
+     * by the given TrafficMeter
+     *
+     * @param restCommand  The RestCommand to get the information from
+     * @param trafficMeter The TrafficMeter for the entity of the request or null
+     * @return The HttpUriRequest to execute with the HttpClient
+     */
+    public static HttpUriRequest fromRestCommand(final RestCommand restCommand,
+                                                 final TrafficMeter trafficMeter) throws IOException {
         final RestCommand.HTTP_METHOD httpMethod = restCommand.getHttpMethod();
         HttpUriRequest httpUriRequest = null;
         switch (httpMethod) {
@@ -74,25 +85,29 @@ public final class HttpClientUtility {
         }
         // We manage the possible headers
         if (restCommand.hasHeaders()) {
-            for (Map.Entry<String, String> header : restCommand.getHeaders()) {
-                httpUriRequest.addHeader(header.getKey(), header.getValue());
-                Log.d(TAG_LOG, "HTTP header " + header.getKey() + " added with value " + header.getValue());
+            final int headersCount = restCommand.headersCount();
+            for (int i = 0; i < headersCount; i++) {
+                httpUriRequest.addHeader(restCommand.getHeaderName(i), restCommand.getHeaderValue(i));
             }
         }
         if (httpMethod.isDocumentAllowed()) {
             // We manage the possible parameters
-            if (restCommand.hasParams()) {
-                List<NameValuePair> nameValuePairs = new ArrayList<NameValuePair>(restCommand.paramsCount());
-                for (Map.Entry<String, String> param : restCommand.getParams()) {
-                    nameValuePairs.add(new BasicNameValuePair(param.getKey(), param.getValue()));
-                    try {
-                        ((HttpEntityEnclosingRequestBase) httpUriRequest).setEntity(
-                                new UrlEncodedFormEntity(nameValuePairs, restCommand.getCharset()));
-                    } catch (UnsupportedEncodingException e) {
-                        e.printStackTrace();
-                        Log.e(TAG_LOG, "Encoding not supported ", e);
-                    }
-                }
+            if (restCommand.hasMultipartDocument()) {
+                // The parts are streamed when the HttpClient writes the entity
+                final HttpEntityEnclosingRequestBase httpEntityEnclosingRequestBase = (HttpEntityEnclosingRequestBase) httpUriRequest;
+                httpEntityEnclosingRequestBase.setEntity(new MultipartEntity(restCommand.getMultipartDocument()));
+                Log.d(TAG_LOG, "Multipart entity added to the request ");
+            } else if (restCommand.hasFileDocument()) {
+                // The File is streamed when the HttpClient writes the entity
+                final HttpEntityEnclosingRequestBase httpEntityEnclosingRequestBase = (HttpEntityEnclosingRequestBase) httpUriRequest;
+                httpEntityEnclosingRequestBase.setEntity(new FileDocumentEntity(restCommand.getFileDocument()));
+                Log.d(TAG_LOG, "File entity added to the request ");
+            } else if (restCommand.hasParams()) {
+                // The params are encoded once in the same way of the UrlConnection implementation
+                final ByteArrayEntity formEntity = new ByteArrayEntity(restCommand.getEncodedFormBody());
+                formEntity.setContentType(RestCommandEncoder.getFormContentType(restCommand));
+                ((HttpEntityEnclosingRequestBase) httpUriRequest).setEntity(formEntity);
+                Log.d(TAG_LOG, "Form entity added to the request ");
             } else if (restCommand.hasStringDocument()) {
                 // The request is Post or Put so we use another abstraction
                 final HttpEntityEnclosingRequestBase httpEntityEnclosingRequestBase = (HttpEntityEnclosingRequestBase) httpUriRequest;
@@ -107,12 +122,20 @@ public final class HttpClientUtility {
                 Log.d(TAG_LOG, "Binary entity added to the request ");
             }
         }
+        if (trafficMeter != null && httpUriRequest instanceof HttpEntityEnclosingRequestBase) {
+            final HttpEntityEnclosingRequestBase httpEntityEnclosingRequestBase = (HttpEntityEnclosingRequestBase) httpUriRequest;
+            final HttpEntity entity = httpEntityEnclosingRequestBase.getEntity();
+            if (entity != null) {
+                httpEntityEnclosingRequestBase.setEntity(new CountingHttpEntity(entity, trafficMeter));
+            }
+        }
         // We return the request to execute
         return httpUriRequest;
     }
 
     /**
-     * This method creates the ResponseHandler fom the Deserializer
+     * This method creates the ResponseHandler fom the Deserializer. The content of the entity
+     * is streamed to the Deserializer
      *
      * @param context      The Context
      * @param deserializer The Deserializer to user for parsing the HttpResponse
@@ -120,34 +143,79 @@ public final class HttpClientUtility {
      */
     public static <T> ResponseHandler<RestCommandResult<T>> createHttpDeserializer(final Context context,
                                                                                    final Deserializer<? extends T> deserializer) {
+        return createHttpDeserializer(context, deserializer, null, false);
+    }
+
+    /**
+     * This method creates the ResponseHandler fom the Deserializer. The content of the entity
+     * is streamed to the Deserializer unless the buffering is requested and the entity is
+     * always consumed at the end so the connection is released. The stream of the response
+     * fails as soon as the given CancellationHandle is cancelled
+     *
+     * @param context            The Context
+     * @param deserializer       The Deserializer to user for parsing the HttpResponse
+     * @param cancellationHandle The CancellationHandle of the RestCommand or null
+     * @param buffered           If true the entity is read in memory before the Deserializer
+     * @return The responseHandler We can use to manage the type object of type T.
+     */
+    public static <T> ResponseHandler<RestCommandResult<T>> createHttpDeserializer(final Context context,
+                                                                                   final Deserializer<? extends T> deserializer,
+                                                                                   final CancellationHandle cancellationHandle,
+                                                                                   final boolean buffered) {
         return new ResponseHandler<RestCommandResult<T>>() {
 
             @Override
             public RestCommandResult<T> handleResponse(
                     HttpResponse httpResponse) throws RestCommandExecutor.RestCommandException {
-                final int httpStatusCode = httpResponse.getStatusLine().getStatusCode();
-                final String httpStatusMessage = httpResponse.getStatusLine().getReasonPhrase();
+                final ResponseMetadata metadata = HttpResponseMetadata.from(httpResponse);
+                final int httpStatusCode = metadata.getStatusCode();
+                // We get the proper Entity from the httpResponse
+                final HttpEntity receivedHttpEntity = httpResponse.getEntity();
                 try {
-                    // We check for the httpResponse
-                    // We get the proper Entity from the httpResponse
-                    final HttpEntity receivedHttpEntity = httpResponse.getEntity();
-                    // We create the Buffered Entity from that
-                    BufferedHttpEntity bufferedEntity = new BufferedHttpEntity(receivedHttpEntity);
-                    // We read the InputStream from the entity
-                    InputStream resultInputStream = bufferedEntity.getContent();
+                    // We read the InputStream from the entity. Only on request we buffer it
+                    InputStream resultInputStream = null;
+                    if (receivedHttpEntity != null) {
+                        resultInputStream = buffered
+                                ? new BufferedHttpEntity(receivedHttpEntity).getContent()
+                                : receivedHttpEntity.getContent();
+                    }
+                    if (cancellationHandle != null) {
+                        resultInputStream = cancellationHandle.wrap(resultInputStream);
+                    }
                     // Using the Deserializer we get the object T
-                    final T result = deserializer.realise(resultInputStream, context);
+                    final T result = ResponseDeserializerAdapter.realise(deserializer, resultInputStream,
+                                                                         metadata, context);
                     // We return the value from the InputStreamConsumer
-                    return RestCommandResult.get(result, httpStatusCode, httpStatusMessage);
+                    return RestCommandResult.get(result, metadata);
                 } catch (IOException ioe) {
                     ioe.printStackTrace();
                     Log.e(TAG_LOG, "Error managing response", ioe);
                     throw new RestCommandExecutor.RestCommandException("Error managing response", ioe, httpStatusCode);
+                } finally {
+                    consumeQuietly(receivedHttpEntity, cancellationHandle);
                 }
             }
         };
     }
 
+    /**
+     * Consumes what the Deserializer didn't read of the entity so the connection can be
+     * released. After a cancellation the request is already aborted so we skip it
+     *
+     * @param httpEntity         The entity to consume
+     * @param cancellationHandle The CancellationHandle of the RestCommand or null
+     */
+    private static void consumeQuietly(final HttpEntity httpEntity, final CancellationHandle cancellationHandle) {
+        if (httpEntity == null || (cancellationHandle != null && cancellationHandle.isCancelled())) {
+            return;
+        }
+        try {
+            httpEntity.consumeContent();
+        } catch (IOException e) {
+            Log.w(TAG_LOG, "Error consuming the entity", e);
+        }
+    }
+
     /**
      * This build the querystring for the params when supported
      *
@@ -156,23 +224,7 @@ public final class HttpClientUtility {
      * @throws java.io.IOException In case of error
      */
     private static String buildQueryString(final RestCommand restCommand) throws IOException {
-        // We manage the possible parameters
-        StringBuilder url = new StringBuilder(restCommand.getUrl());
-        if (restCommand.getHttpMethod().isQueryStringSupported() && restCommand.hasParams()) {
-            url.append("?");
-            final int paramNumber = restCommand.paramsCount();
-            int currentParam = 0;
-            for (Map.Entry<String, String> param : restCommand.getParams()) {
-                url.append(param.getKey()).append("=").append(
-                        URLEncoder.encode(param.getValue(), restCommand.getCharset()));
-                currentParam++;
-                if (currentParam < paramNumber - 1) {
-                    url.append("&");
-                }
-                Log.d(TAG_LOG, "HTTP param " + param.getKey() + " added with value " + param.getValue());
-            }
-        }
-        return url.toString();
+        return restCommand.getEncodedUrl();
     }
 
 }
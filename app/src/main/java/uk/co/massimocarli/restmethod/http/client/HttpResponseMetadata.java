@@ -0,0 +1,67 @@
+package uk.co.massimocarli.restmethod.http.client;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import uk.co.massimocarli.restmethod.rest.ResponseMetadata;
+
+/**
+ * This is the ResponseMetadata that reads the information from the HttpResponse of the
+ * Apache HttpClient.
+ */
+public final class HttpResponseMetadata extends ResponseMetadata {
+
+    /**
+     * The HttpResponse
+     */
+    private final HttpResponse mHttpResponse;
+
+    /**
+     * Private constructor
+     */
+    private HttpResponseMetadata(final HttpResponse httpResponse) {
+        this.mHttpResponse = httpResponse;
+    }
+
+    /**
+     * This static factory method creates the ResponseMetadata for the given HttpResponse
+     *
+     * @param httpResponse The HttpResponse
+     * @return The ResponseMetadata of the response
+     */
+    public static HttpResponseMetadata from(final HttpResponse httpResponse) {
+        return new HttpResponseMetadata(httpResponse);
+    }
+
+    @Override
+    public int getStatusCode() {
+        return mHttpResponse.getStatusLine().getStatusCode();
+    }
+
+    @Override
+    public String getStatusMessage() {
+        return mHttpResponse.getStatusLine().getReasonPhrase();
+    }
+
+    @Override
+    public String getHeader(final String name) {
+        final Header header = mHttpResponse.getFirstHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+
+    @Override
+    public long getContentLength() {
+        final HttpEntity entity = mHttpResponse.getEntity();
+        return entity != null ? entity.getContentLength() : -1L;
+    }
+
+    @Override
+    public long getHeadersLength() {
+        // The status line and every header end with CRLF and the name is followed by ": "
+        long length = mHttpResponse.getStatusLine().toString().length() + 2;
+        for (Header header : mHttpResponse.getAllHeaders()) {
+            length += header.getName().length() + header.getValue().length() + 4;
+        }
+        return length + 2;
+    }
+}
@@ -0,0 +1,90 @@
+package uk.co.massimocarli.restmethod.http.client;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import uk.co.massimocarli.restmethod.rest.MultipartDocument;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * This is the HttpEntity that writes a MultipartDocument straight to the connection of the
+ * HttpClient without building the body in memory. The length is read when the entity is
+ * created so the Content-Length header and the body always agree.
+ */
+public class MultipartEntity extends AbstractHttpEntity {
+
+    /**
+     * The document to send
+     */
+    private final MultipartDocument mMultipartDocument;
+
+    /**
+     * The length of the document when the entity was created or -1 if not available
+     */
+    private final long mContentLength;
+
+    /**
+     * Creates a MultipartEntity for the given MultipartDocument
+     *
+     * @param multipartDocument The document to send
+     */
+    public MultipartEntity(final MultipartDocument multipartDocument) {
+        this.mMultipartDocument = multipartDocument;
+        setContentType(multipartDocument.getContentType());
+        this.mContentLength = multipartDocument.getContentLength();
+        setChunked(mContentLength < 0);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return mContentLength;
+    }
+
+    /**
+     * The HttpClient never invokes this method for a request entity. It's implemented
+     * buffering the whole document so it should not be used for big documents
+     *
+     * @return The InputStream with the whole document
+     * @throws java.io.IOException In case of error
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        writeDocument(outputStream);
+        return new ByteArrayInputStream(outputStream.toByteArray());
+    }
+
+    @Override
+    public void writeTo(final OutputStream outputStream) throws IOException {
+        if (outputStream == null) {
+            throw new IllegalArgumentException("Output stream may not be null");
+        }
+        writeDocument(outputStream);
+        outputStream.flush();
+    }
+
+    /**
+     * Writes the document with the length of the Content-Length header if known
+     */
+    private void writeDocument(final OutputStream outputStream) throws IOException {
+        if (mContentLength >= 0) {
+            mMultipartDocument.writeTo(outputStream, mContentLength);
+        } else {
+            mMultipartDocument.writeTo(outputStream);
+        }
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+}
@@ -0,0 +1,101 @@
+package uk.co.massimocarli.restmethod.http.deserializer;
+
+import android.content.Context;
+import org.json.JSONObject;
+import uk.co.massimocarli.restmethod.http.MessagePackWriter;
+import uk.co.massimocarli.restmethod.rest.ResponseMetadata;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * This is a Deserializer that chooses the Deserializer to use from the Content-Type of the
+ * response. It's used with the Accept header of the request when the server can answer with
+ * more formats. When the Content-Type is not known the default Deserializer is used.
+ */
+public final class ContentNegotiatingDeserializer<E> implements ResponseDeserializer<E> {
+
+    /**
+     * The Deserializer for the Content-Types not registered
+     */
+    private final Deserializer<? extends E> mDefaultDeserializer;
+
+    /**
+     * The Deserializers for the media types in lowercase
+     */
+    private final Map<String, Deserializer<? extends E>> mDeserializers;
+
+    /**
+     * Private constructor
+     */
+    private ContentNegotiatingDeserializer(final Deserializer<? extends E> defaultDeserializer,
+                                           final Map<String, Deserializer<? extends E>> deserializers) {
+        this.mDefaultDeserializer = defaultDeserializer;
+        this.mDeserializers = deserializers;
+    }
+
+    /**
+     * This is the static factory method for a ContentNegotiatingDeserializer
+     *
+     * @param defaultDeserializer The Deserializer for the Content-Types not registered
+     * @param <E>                 The type of the result
+     * @return The ContentNegotiatingDeserializer without media types
+     */
+    public static <E> ContentNegotiatingDeserializer<E> create(final Deserializer<? extends E> defaultDeserializer) {
+        return new ContentNegotiatingDeserializer<E>(defaultDeserializer,
+                                                     new HashMap<String, Deserializer<? extends E>>());
+    }
+
+    /**
+     * @return The ContentNegotiatingDeserializer for JSON objects sent as JSON or as MessagePack
+     */
+    public static ContentNegotiatingDeserializer<JSONObject> jsonOrMessagePack() {
+        return ContentNegotiatingDeserializer.<JSONObject>create(JsonDeserializer.get())
+                .with(MessagePackWriter.CONTENT_TYPE, MessagePackDeserializer.get())
+                .with("application/msgpack", MessagePackDeserializer.get());
+    }
+
+    /**
+     * Returns a copy of this ContentNegotiatingDeserializer with a Deserializer for the given
+     * media type
+     *
+     * @param mediaType    The media type as application/x-msgpack
+     * @param deserializer The Deserializer for the media type
+     * @return The new ContentNegotiatingDeserializer
+     */
+    public ContentNegotiatingDeserializer<E> with(final String mediaType, final Deserializer<? extends E> deserializer) {
+        final Map<String, Deserializer<? extends E>> deserializers =
+                new HashMap<String, Deserializer<? extends E>>(mDeserializers);
+        deserializers.put(mediaType.toLowerCase(Locale.US), deserializer);
+        return new ContentNegotiatingDeserializer<E>(mDefaultDeserializer, deserializers);
+    }
+
+    @Override
+    public E realise(final InputStream inputStream, final Context context) throws IOException {
+        return mDefaultDeserializer.realise(inputStream, context);
+    }
+
+    @Override
+    public E realise(final InputStream inputStream, final ResponseMetadata metadata,
+                     final Context context) throws IOException {
+        return ResponseDeserializerAdapter.realise(select(metadata.getContentType()), inputStream,
+                                                   metadata, context);
+    }
+
+    /**
+     * @return The Deserializer for the given Content-Type
+     */
+    private Deserializer<? extends E> select(final String contentType) {
+        if (contentType == null) {
+            return mDefaultDeserializer;
+        }
+        final int separatorIndex = contentType.indexOf(';');
+        final String mediaType = (separatorIndex >= 0 ? contentType.substring(0, separatorIndex) : contentType)
+                .trim().toLowerCase(Locale.US);
+        final Deserializer<? extends E> deserializer = mDeserializers.get(mediaType);
+        return deserializer != null ? deserializer : mDefaultDeserializer;
+    }
+}
@@ -2,23 +2,42 @@ package uk.co.massimocarli.restmethod.http.deserializer;
 
 import android.content.Context;
 import android.util.Log;
+import uk.co.massimocarli.restmethod.rest.ResponseMetadata;
+import uk.co.massimocarli.restmethod.rest.RestCommand;
+import uk.co.massimocarli.restmethod.rest.RestCommandBuilder;
+import uk.co.massimocarli.restmethod.rest.RestCommandExecutor;
+import uk.co.massimocarli.restmethod.rest.RestCommandResult;
+import uk.co.massimocarli.restmethod.util.BufferPool;
+import uk.co.massimocarli.restmethod.util.ContentRangeUtils;
+import uk.co.massimocarli.restmethod.util.EncodingUtils;
 import uk.co.massimocarli.restmethod.util.IOUtils;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * This is the implementation of the Deserializer that reads the data from a Stream and save
- * them to a specific directory on File system
+ * them to a specific directory on File system. The data are copied with a pooled buffer
+ * sized from the Content-Length of the response so no buffered streams are needed.
+ * <p/>
+ * In resumable mode the partial data of an interrupted download are kept with the ETag or
+ * the Last-Modified of the response. The RestCommand of the next attempt must be prepared
+ * with the prepare method that adds the Range and If-Range headers: if the server answers
+ * 206 the new data are appended, otherwise the download restarts from zero.
+ * <p/>
+ * The data are written through the FileChannel of the temporary file. A digest as MD5 or
+ * SHA-256 can be computed while the data flow so the File is verified without reading it again
+ * and the SyncPolicy decides when the data are forced to the storage device.
  * <p/>
  * Created by Massimo Carli on 05/11/2013.
  */
-public final class FileDeserializer implements Deserializer<Void> {
+public final class FileDeserializer implements ResponseDeserializer<Void> {
 
     /**
      * The name for this Deserializer implementation
@@ -28,6 +47,56 @@ public final class FileDeserializer implements Deserializer<Void> {
      * The Tag for the log
      */
     private static final String LOG_TAG = FileDeserializer.class.getName();
+
+    /**
+     * The suffix of the temporary file
+     */
+    private static final String TMP_SUFFIX = "_tmp";
+
+    /*
+     * The headers for the resumable mode
+     */
+    private static final String RANGE_HEADER = "Range";
+    private static final String IF_RANGE_HEADER = "If-Range";
+    private static final String CONTENT_RANGE_HEADER = "Content-Range";
+    private static final String ETAG_HEADER = "ETag";
+    private static final String LAST_MODIFIED_HEADER = "Last-Modified";
+    private static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+    private static final String IDENTITY_ENCODING = "identity";
+
+    /**
+     * The Http status code for partial content
+     */
+    private static final int HTTP_PARTIAL_CONTENT = 206;
+
+    /**
+     * The Http status code when the Range is not valid
+     */
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    /**
+     * The number of bytes between two syncs with the PERIODIC SyncPolicy
+     */
+    public static final long SYNC_INTERVAL = 1024 * 1024;
+
+    /**
+     * The policy for the sync of the data to the storage device
+     */
+    public enum SyncPolicy {
+        /**
+         * The data are never forced to the device. This is the cheapest policy
+         */
+        NONE,
+        /**
+         * The data are forced to the device before the temporary file is renamed
+         */
+        ON_COMPLETE,
+        /**
+         * The data are forced to the device every SYNC_INTERVAL bytes and at the end
+         */
+        PERIODIC
+    }
+
     /**
      * The File to save
      */
@@ -39,6 +108,31 @@ public final class FileDeserializer implements Deserializer<Void> {
      */
     private final boolean mOverwrite;
 
+    /**
+     * If true the partial data are kept and resumed
+     */
+    private final boolean mResumable;
+
+    /**
+     * The algorithm of the digest to compute or null
+     */
+    private final String mDigestAlgorithm;
+
+    /**
+     * The expected digest as hex String or null if we don't verify it
+     */
+    private final String mExpectedDigest;
+
+    /**
+     * The policy for the sync of the data
+     */
+    private final SyncPolicy mSyncPolicy;
+
+    /**
+     * The digest of the last download as hex String
+     */
+    private volatile String mLastDigest;
+
     /**
      * Private constructor that creates a FileDeserializer for a given File
      *
@@ -46,8 +140,7 @@ public final class FileDeserializer implements Deserializer<Void> {
      * @param overwrite If true the file is overwritten if already present
      */
     private FileDeserializer(final String fileName, final boolean overwrite) {
-        mFileToSave = new File(fileName);
-        mOverwrite = overwrite;
+        this(new File(fileName), overwrite, false);
     }
 
     /**
@@ -57,16 +150,39 @@ public final class FileDeserializer implements Deserializer<Void> {
      * @param overwrite If true the file is overwritten if already present
      */
     private FileDeserializer(final File file, final boolean overwrite) {
+        this(file, overwrite, false);
+    }
+
+    /**
+     * Private constructor that creates a FileDeserializer for a given File
+     *
+     * @param file      The  file to save
+     * @param overwrite If true the file is overwritten if already present
+     * @param resumable If true the partial data are kept and resumed
+     */
+    private FileDeserializer(final File file, final boolean overwrite, final boolean resumable) {
+        this(file, overwrite, resumable, null, null, SyncPolicy.NONE);
+    }
+
+    /**
+     * Private constructor that creates a FileDeserializer with all the options
+     */
+    private FileDeserializer(final File file, final boolean overwrite, final boolean resumable,
+                             final String digestAlgorithm, final String expectedDigest,
+                             final SyncPolicy syncPolicy) {
         mFileToSave = file;
         mOverwrite = overwrite;
+        mResumable = resumable;
+        mDigestAlgorithm = digestAlgorithm;
+        mExpectedDigest = expectedDigest;
+        mSyncPolicy = syncPolicy;
     }
 
     /**
      * Private constructor that creates a FileDeserializer with a given encoding
      */
     private FileDeserializer(final String directory, final String fileName, final boolean overwrite) {
-        mFileToSave = new File(directory, fileName);
-        mOverwrite = overwrite;
+        this(new File(directory, fileName), overwrite, false);
     }
 
     /**
@@ -107,8 +223,180 @@ public final class FileDeserializer implements Deserializer<Void> {
         return new FileDeserializer(directory, fileName, overwrite);
     }
 
+    /**
+     * This is the static factory method for the FileDeserializer in resumable mode. The file
+     * is always overwritten
+     *
+     * @param file The file to save
+     * @return The FileDeserializer instance
+     */
+    public static FileDeserializer resumable(final File file) {
+        return new FileDeserializer(file, true, true);
+    }
+
+    /**
+     * Returns a copy of this FileDeserializer that computes the digest of the data while they
+     * are saved. The result is available with getLastDigest
+     *
+     * @param algorithm The algorithm of the digest as MD5 or SHA-256
+     * @return The new FileDeserializer
+     */
+    public FileDeserializer withDigest(final String algorithm) {
+        checkAlgorithm(algorithm);
+        return new FileDeserializer(mFileToSave, mOverwrite, mResumable, algorithm, null, mSyncPolicy);
+    }
+
+    /**
+     * Returns a copy of this FileDeserializer that verifies the digest of the data. If the
+     * digest is different the temporary file is deleted and the download fails
+     *
+     * @param algorithm      The algorithm of the digest as MD5 or SHA-256
+     * @param expectedDigest The expected digest as hex String
+     * @return The new FileDeserializer
+     */
+    public FileDeserializer withExpectedDigest(final String algorithm, final String expectedDigest) {
+        checkAlgorithm(algorithm);
+        return new FileDeserializer(mFileToSave, mOverwrite, mResumable, algorithm, expectedDigest, mSyncPolicy);
+    }
+
+    /**
+     * Returns a copy of this FileDeserializer with the given SyncPolicy
+     *
+     * @param syncPolicy The policy for the sync of the data to the storage device
+     * @return The new FileDeserializer
+     */
+    public FileDeserializer withSyncPolicy(final SyncPolicy syncPolicy) {
+        return new FileDeserializer(mFileToSave, mOverwrite, mResumable, mDigestAlgorithm, mExpectedDigest,
+                                    syncPolicy);
+    }
+
+    /**
+     * @return The digest as hex String of the last File saved or null if not computed
+     */
+    public String getLastDigest() {
+        return mLastDigest;
+    }
+
+    /**
+     * Returns the RestCommand to use for the download. In resumable mode it's a copy of the
+     * given one that asks the data without compression and, if partial data are available,
+     * with the Range and If-Range headers.
+     *
+     * @param restCommand The RestCommand for the download
+     * @return The RestCommand to execute
+     */
+    public RestCommand prepare(final RestCommand restCommand) {
+        if (!mResumable) {
+            return restCommand;
+        }
+        // The ranges must be on the bytes of the file and not on the compressed ones
+        final RestCommandBuilder builder = restCommand.newBuilder()
+                .addHeader(ACCEPT_ENCODING_HEADER, IDENTITY_ENCODING);
+        final PartialDownloadState state = new PartialDownloadState(getTmpFile());
+        final long partialLength = state.getPartialLength();
+        final String ifRangeValue = state.getIfRangeValue();
+        if (partialLength > 0 && ifRangeValue != null) {
+            Log.d(LOG_TAG, "Resuming " + mFileToSave + " from byte " + partialLength);
+            builder.addHeader(RANGE_HEADER, "bytes=" + partialLength + "-")
+                    .addHeader(IF_RANGE_HEADER, ifRangeValue);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Utility method that prepares the RestCommand and executes it with this FileDeserializer
+     *
+     * @param context             The Context
+     * @param restCommandExecutor The RestCommandExecutor to use
+     * @param restCommand         The RestCommand for the download
+     * @return The RestCommandResult of the download
+     * @throws RestCommandExecutor.RestCommandException In case of error. The partial data are kept
+     */
+    public RestCommandResult<Void> download(final Context context, final RestCommandExecutor restCommandExecutor,
+                                            final RestCommand restCommand)
+            throws RestCommandExecutor.RestCommandException {
+        return restCommandExecutor.execute(context, prepare(restCommand), this);
+    }
+
     @Override
     public Void realise(InputStream inputStream, Context context) throws IOException {
+        return realise(inputStream, -1L, false);
+    }
+
+    @Override
+    public Void realise(final InputStream inputStream, final ResponseMetadata metadata,
+                        final Context context) throws IOException {
+        if (!mResumable) {
+            return realise(inputStream, metadata.getContentLength(), false);
+        }
+        final PartialDownloadState state = new PartialDownloadState(getTmpFile());
+        final int statusCode = metadata.getStatusCode();
+        if (statusCode == HTTP_RANGE_NOT_SATISFIABLE) {
+            // The partial data are not valid anymore
+            Log.d(LOG_TAG, "Range not satisfiable for " + mFileToSave);
+            state.clear();
+            IOUtils.closeQuietly(inputStream);
+            return null;
+        } else if (!metadata.isSuccessful()) {
+            // An error body is not the file and the partial data are still valid
+            IOUtils.closeQuietly(inputStream);
+            return null;
+        }
+        boolean append = false;
+        if (statusCode == HTTP_PARTIAL_CONTENT) {
+            final long partialLength = state.getPartialLength();
+            if (ContentRangeUtils.parseRangeStart(metadata.getHeader(CONTENT_RANGE_HEADER)) != partialLength) {
+                state.clear();
+                IOUtils.closeQuietly(inputStream);
+                throw new IOException("Content-Range not valid for " + mFileToSave + " of " + partialLength + " bytes");
+            }
+            Log.d(LOG_TAG, "Appending to " + partialLength + " bytes of " + mFileToSave);
+            append = true;
+        } else {
+            // The resource has changed or the server doesn't support Range so we restart
+            state.clear();
+            state.save(metadata.getHeader(ETAG_HEADER), metadata.getHeader(LAST_MODIFIED_HEADER));
+        }
+        try {
+            realise(inputStream, metadata.getContentLength(), append);
+        } catch (DigestMismatchException e) {
+            // The partial data are not valid
+            state.clear();
+            throw e;
+        }
+        state.complete();
+        return null;
+    }
+
+    /**
+     * Checks that the given digest algorithm is available
+     */
+    private static void checkAlgorithm(final String algorithm) {
+        try {
+            MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Digest " + algorithm + " not supported", e);
+        }
+    }
+
+    /**
+     * @return The temporary file for the download
+     */
+    private File getTmpFile() {
+        return new File(mFileToSave.getAbsolutePath() + TMP_SUFFIX);
+    }
+
+    /**
+     * Saves the data into the File
+     *
+     * @param inputStream    The stream to read from
+     * @param expectedLength The expected length of the data or -1 if not known
+     * @param append         If true the data are appended to the temporary file
+     * @return Always null
+     * @throws IOException In case of error
+     */
+    private Void realise(final InputStream inputStream, final long expectedLength,
+                         final boolean append) throws IOException {
         if (mFileToSave.exists() && !mOverwrite) {
             Log.d(LOG_TAG, mFileToSave + " is already present and overwrite is false!");
             return null;
@@ -119,23 +407,36 @@ public final class FileDeserializer implements Deserializer<Void> {
             containerDir.mkdirs();
             Log.d(LOG_TAG, "Folder " + containerDir + " created!");
         }
-        final String tempDestinationFile = mFileToSave.getAbsolutePath() + "_tmp";
+        final File tmpFile = getTmpFile();
+        final MessageDigest digest = createDigest();
         FileOutputStream tmp = null;
-        BufferedInputStream flushedInputStream = null;
-        OutputStream fos = null;
         try {
-            tmp = new FileOutputStream(tempDestinationFile);
-            flushedInputStream = new BufferedInputStream(inputStream);
-            fos = new BufferedOutputStream(tmp);
-            IOUtils.copy(flushedInputStream, fos);
-        } catch (Exception e) {
-            throw new IOException("Error downloading image " + e.getMessage());
+            if (append && digest != null) {
+                // The digest must include the data we already have
+                updateDigest(digest, tmpFile);
+            }
+            tmp = new FileOutputStream(tmpFile, append);
+            final FileChannel channel = tmp.getChannel();
+            final long syncInterval = mSyncPolicy == SyncPolicy.PERIODIC ? SYNC_INTERVAL : 0L;
+            IOUtils.copy(inputStream, channel, digest, syncInterval, BufferPool.bufferSizeFor(expectedLength));
+            if (mSyncPolicy != SyncPolicy.NONE) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            throw new IOException("Error downloading " + mFileToSave + ": " + e.getMessage(), e);
         } finally {
-            IOUtils.closeQuietly(fos);
             IOUtils.closeQuietly(tmp);
-            IOUtils.closeQuietly(flushedInputStream);
+            IOUtils.closeQuietly(inputStream);
+        }
+        if (digest != null) {
+            final String hexDigest = EncodingUtils.toHexString(digest.digest());
+            mLastDigest = hexDigest;
+            if (mExpectedDigest != null && !mExpectedDigest.equalsIgnoreCase(hexDigest)) {
+                tmpFile.delete();
+                throw new DigestMismatchException("Digest of " + mFileToSave + " is " + hexDigest
+                                                          + " instead of " + mExpectedDigest);
+            }
         }
-        File tmpFile = new File(tempDestinationFile);
         if (tmpFile.exists()) {
             // Renaming the temporary file
             tmpFile.renameTo(mFileToSave);
@@ -143,4 +444,45 @@ public final class FileDeserializer implements Deserializer<Void> {
         return null;
     }
 
+    /**
+     * @return The MessageDigest for the download or null if not needed
+     */
+    private MessageDigest createDigest() throws IOException {
+        if (mDigestAlgorithm == null) {
+            return null;
+        }
+        try {
+            return MessageDigest.getInstance(mDigestAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Digest " + mDigestAlgorithm + " not supported", e);
+        }
+    }
+
+    /**
+     * Updates the digest with the content of the given File
+     */
+    private static void updateDigest(final MessageDigest digest, final File file) throws IOException {
+        final FileInputStream input = new FileInputStream(file);
+        final byte[] buffer = BufferPool.acquireBytes(BufferPool.MAX_BUFFER_SIZE);
+        try {
+            int read;
+            while ((read = input.read(buffer, 0, BufferPool.MAX_BUFFER_SIZE)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            BufferPool.releaseBytes(buffer);
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * The exception when the digest of the data is not the expected one
+     */
+    public static final class DigestMismatchException extends IOException {
+
+        public DigestMismatchException(final String message) {
+            super(message);
+        }
+    }
+
 }
@@ -1,20 +1,23 @@
 package uk.co.massimocarli.restmethod.http.deserializer;
 
 import android.content.Context;
+import android.util.JsonReader;
+import android.util.MalformedJsonException;
 
 import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
 
 /**
- * Deserializer for JSON objects when it's an array and so we have to return JSONArray
+ * Deserializer for JSON objects when it's an array and so we have to return JSONArray. The
+ * JSONArray is built while the tokens are read from the stream without the String of the whole body.
+ * An empty body or a JSON that is not valid gives a null result.
  * <p/>
  * Created by Simone on 15/01/2014.
  */
-public class JsonArrayDeserializer implements Deserializer<JSONArray> {
+public class JsonArrayDeserializer extends JsonStreamDeserializer<JSONArray> {
 
     /**
      * The Singleton instance
@@ -35,13 +38,19 @@ public class JsonArrayDeserializer implements Deserializer<JSONArray> {
     }
 
     @Override
-    public JSONArray realise(InputStream inputStream, Context context) throws IOException {
-        final String jsonString = StringDeserializer.getDefault().realise(inputStream, context);
+    protected JSONArray read(final JsonReader jsonReader, final Context context) throws IOException {
         try {
-            final JSONArray jsonArray = new JSONArray(jsonString);
-            return jsonArray;
+            return JsonTreeReader.readArray(jsonReader);
         } catch (JSONException e) {
             e.printStackTrace();
+        } catch (MalformedJsonException e) {
+            e.printStackTrace();
+        } catch (EOFException e) {
+            // An empty body, as the one of a 204, gives null as the JSONArray parser did
+            e.printStackTrace();
+        } catch (IllegalStateException e) {
+            // The JSON is not of the expected type
+            e.printStackTrace();
         }
         return null;
     }
@@ -0,0 +1,305 @@
+package uk.co.massimocarli.restmethod.http.deserializer;
+
+import android.content.Context;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * This is the Deserializer for big JSON arrays. Every element is read and given to an
+ * ElementHandler as soon as it's parsed so only one element is in memory at a time. The
+ * result is the number of elements read.
+ * <p/>
+ * In the default mode the ElementHandler is called from the thread that reads the response
+ * so the reading waits for the handler to complete. In the pipelined mode the elements are
+ * given to a consumer thread through a bounded queue so the handler can persist an element
+ * while the next ones are downloaded. When the queue is full the reading waits for the
+ * consumer. If the reading fails the consumer thread is stopped before the error is reported
+ * so the handler is never called after realise has returned.
+ * <p/>
+ * A JSON that has not the expected structure makes the realise fail with an IOException.
+ */
+public class JsonArrayStreamDeserializer<E> extends JsonStreamDeserializer<Integer> {
+
+    /**
+     * This is the interface for the object that reads a single element of the array
+     */
+    public interface ElementReader<E> {
+
+        /**
+         * Reads the next element from the JsonReader
+         *
+         * @param jsonReader The JsonReader positioned at the beginning of the element
+         * @return The element
+         * @throws java.io.IOException In case of error reading the element
+         */
+        E read(JsonReader jsonReader) throws IOException;
+    }
+
+    /**
+     * This is the interface for the object that receives the elements of the array
+     */
+    public interface ElementHandler<E> {
+
+        /**
+         * Called for every element of the array
+         *
+         * @param element The element
+         * @param index   The index of the element into the array
+         * @throws java.io.IOException In case of error managing the element. It stops the reading
+         */
+        void onElement(E element, int index) throws IOException;
+    }
+
+    /**
+     * The ElementReader for arrays of objects as JSONObject
+     */
+    public static final ElementReader<JSONObject> JSON_OBJECT_READER = new ElementReader<JSONObject>() {
+        @Override
+        public JSONObject read(final JsonReader jsonReader) throws IOException {
+            try {
+                return JsonTreeReader.readObject(jsonReader);
+            } catch (JSONException e) {
+                final IOException ioe = new IOException("Error reading element: " + e.getMessage());
+                ioe.initCause(e);
+                throw ioe;
+            }
+        }
+    };
+
+    /**
+     * The object we use into the queue for the end of the array
+     */
+    private static final Object END_OF_ARRAY = new Object();
+
+    /**
+     * The object we use into the queue for the null elements
+     */
+    private static final Object NULL_ELEMENT = new Object();
+
+    /**
+     * The ElementReader for the elements
+     */
+    private final ElementReader<? extends E> mElementReader;
+
+    /**
+     * The ElementHandler for the elements
+     */
+    private final ElementHandler<? super E> mElementHandler;
+
+    /**
+     * The name of the field of the root object with the array. If null the array is the root
+     */
+    private final String mArrayField;
+
+    /**
+     * The capacity of the queue in pipelined mode. If 0 the handler is called in the same thread
+     */
+    private final int mQueueCapacity;
+
+    /**
+     * Private constructor
+     */
+    private JsonArrayStreamDeserializer(final ElementReader<? extends E> elementReader,
+                                        final ElementHandler<? super E> elementHandler,
+                                        final String arrayField, final int queueCapacity) {
+        this.mElementReader = elementReader;
+        this.mElementHandler = elementHandler;
+        this.mArrayField = arrayField;
+        this.mQueueCapacity = queueCapacity;
+    }
+
+    /**
+     * Creates a JsonArrayStreamDeserializer that calls the ElementHandler in the same thread
+     * that reads the response
+     *
+     * @param elementReader  The ElementReader for the elements
+     * @param elementHandler The ElementHandler for the elements
+     * @param <E>            The type of the elements
+     * @return The JsonArrayStreamDeserializer
+     */
+    public static <E> JsonArrayStreamDeserializer<E> create(final ElementReader<? extends E> elementReader,
+                                                            final ElementHandler<? super E> elementHandler) {
+        return new JsonArrayStreamDeserializer<E>(elementReader, elementHandler, null, 0);
+    }
+
+    /**
+     * Creates a JsonArrayStreamDeserializer that calls the ElementHandler in a consumer thread
+     * while the response is read
+     *
+     * @param elementReader  The ElementReader for the elements
+     * @param elementHandler The ElementHandler for the elements
+     * @param queueCapacity  The max number of elements read but not yet handled
+     * @param <E>            The type of the elements
+     * @return The JsonArrayStreamDeserializer
+     */
+    public static <E> JsonArrayStreamDeserializer<E> pipelined(final ElementReader<? extends E> elementReader,
+                                                               final ElementHandler<? super E> elementHandler,
+                                                               final int queueCapacity) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("The capacity of the queue must be positive");
+        }
+        return new JsonArrayStreamDeserializer<E>(elementReader, elementHandler, null, queueCapacity);
+    }
+
+    /**
+     * Returns a copy of this Deserializer that reads the array from a field of the root object
+     * as in <code>{"items":[...]}</code>. The other fields are skipped.
+     *
+     * @param arrayField The name of the field with the array
+     * @return The new JsonArrayStreamDeserializer
+     */
+    public JsonArrayStreamDeserializer<E> withArrayField(final String arrayField) {
+        return new JsonArrayStreamDeserializer<E>(mElementReader, mElementHandler, arrayField, mQueueCapacity);
+    }
+
+    @Override
+    protected Integer read(final JsonReader jsonReader, final Context context) throws IOException {
+        if (mArrayField != null) {
+            jsonReader.beginObject();
+            while (jsonReader.hasNext()) {
+                if (mArrayField.equals(jsonReader.nextName()) && jsonReader.peek() == JsonToken.BEGIN_ARRAY) {
+                    return mQueueCapacity > 0 ? readPipelined(jsonReader) : readInline(jsonReader);
+                }
+                jsonReader.skipValue();
+            }
+            throw new IOException("Field " + mArrayField + " not found");
+        }
+        return mQueueCapacity > 0 ? readPipelined(jsonReader) : readInline(jsonReader);
+    }
+
+    /**
+     * Reads the array calling the handler into the current thread
+     */
+    private int readInline(final JsonReader jsonReader) throws IOException {
+        int index = 0;
+        jsonReader.beginArray();
+        while (jsonReader.hasNext()) {
+            mElementHandler.onElement(mElementReader.read(jsonReader), index++);
+        }
+        jsonReader.endArray();
+        return index;
+    }
+
+    /**
+     * Reads the array putting the elements into the queue for the consumer thread
+     */
+    private int readPipelined(final JsonReader jsonReader) throws IOException {
+        final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(mQueueCapacity);
+        final Consumer consumer = new Consumer(queue);
+        final Thread consumerThread = new Thread(consumer, "JsonArrayConsumer");
+        consumerThread.start();
+        int index = 0;
+        boolean completed = false;
+        try {
+            jsonReader.beginArray();
+            while (jsonReader.hasNext()) {
+                final E element = mElementReader.read(jsonReader);
+                // This waits if the consumer is late
+                queue.put(element != null ? element : NULL_ELEMENT);
+                consumer.checkFailure();
+                index++;
+            }
+            jsonReader.endArray();
+            queue.put(END_OF_ARRAY);
+            consumerThread.join();
+            consumer.checkFailure();
+            completed = true;
+            return index;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted reading element " + index);
+        } finally {
+            if (!completed) {
+                // The handler must not be called after realise has returned
+                queue.clear();
+                consumerThread.interrupt();
+                joinUninterruptibly(consumerThread);
+            }
+        }
+    }
+
+    /**
+     * Waits for the end of the given thread also if the current thread is interrupted. The
+     * interrupted status is restored at the end
+     */
+    private static void joinUninterruptibly(final Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The Runnable that calls the ElementHandler for the elements into the queue
+     */
+    private class Consumer implements Runnable {
+
+        /**
+         * The queue with the elements
+         */
+        private final BlockingQueue<Object> mQueue;
+
+        /**
+         * The error of the handler if any
+         */
+        private volatile Throwable mFailure;
+
+        private Consumer(final BlockingQueue<Object> queue) {
+            this.mQueue = queue;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void run() {
+            int index = 0;
+            try {
+                while (true) {
+                    final Object item = mQueue.take();
+                    if (item == END_OF_ARRAY) {
+                        return;
+                    }
+                    mElementHandler.onElement(item == NULL_ELEMENT ? null : (E) item, index++);
+                }
+            } catch (InterruptedException e) {
+                // The reading has been stopped
+            } catch (Throwable t) {
+                mFailure = t;
+                // We release the reader if it's waiting for space into the queue
+                mQueue.clear();
+            }
+        }
+
+        /**
+         * Throws the error of the handler if any
+         */
+        private void checkFailure() throws IOException {
+            final Throwable failure = mFailure;
+            if (failure == null) {
+                return;
+            }
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            throw new IOException("Error handling element: " + failure);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package uk.co.massimocarli.restmethod.http.deserializer;
+
+import android.util.JsonReader;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This is the abstraction of the object that reads an instance of a class from a JsonReader.
+ * The JsonBinders are created only once for every class and then cached. If no JsonBinder has
+ * been registered for a class, a reflection based one is built the first time the class is used.
+ * A JsonBinder written by hand or generated at build time can be registered to avoid reflection
+ * at all.
+ * <p/>
+ * A JsonBinder is also an ElementReader so it can read the elements of a
+ * JsonArrayStreamDeserializer.
+ */
+public abstract class JsonBinder<T> implements JsonArrayStreamDeserializer.ElementReader<T> {
+
+    /**
+     * The cache of the JsonBinders for every class
+     */
+    private static final ConcurrentHashMap<Class<?>, JsonBinder<?>> sBinders =
+            new ConcurrentHashMap<Class<?>, JsonBinder<?>>();
+
+    /**
+     * This method returns the JsonBinder for the given class
+     *
+     * @param type The class to read
+     * @param <T>  The type to read
+     * @return The JsonBinder for the given class
+     * @throws IllegalArgumentException If the class cannot be read from JSON
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> JsonBinder<T> of(final Class<T> type) {
+        JsonBinder<T> binder = (JsonBinder<T>) sBinders.get(type);
+        if (binder == null) {
+            binder = new ReflectiveJsonBinder<T>(type);
+            final JsonBinder<T> previous = (JsonBinder<T>) sBinders.putIfAbsent(type, binder);
+            if (previous != null) {
+                binder = previous;
+            }
+        }
+        return binder;
+    }
+
+    /**
+     * This method registers the JsonBinder to use for a given class
+     *
+     * @param type   The class to read
+     * @param binder The JsonBinder for the class
+     * @param <T>    The type to read
+     */
+    public static <T> void register(final Class<T> type, final JsonBinder<T> binder) {
+        sBinders.put(type, binder);
+    }
+
+    /**
+     * This method reads the object from the JsonReader
+     *
+     * @param jsonReader The JsonReader positioned at the beginning of the object
+     * @return The object read
+     * @throws java.io.IOException In case of error reading the object
+     */
+    @Override
+    public abstract T read(JsonReader jsonReader) throws IOException;
+
+}
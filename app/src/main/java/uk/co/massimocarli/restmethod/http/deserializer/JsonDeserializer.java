@@ -1,19 +1,23 @@
 package uk.co.massimocarli.restmethod.http.deserializer;
 
 import android.content.Context;
+import android.util.JsonReader;
+import android.util.MalformedJsonException;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
 
 /**
- * Deserializer for JSON objects.
+ * Deserializer for JSON objects. The JSONObject is built while the tokens are read from the
+ * stream without the String of the whole body. An empty body or a JSON that is not valid gives a
+ * null result.
  * <p/>
  * Created by Simone on 15/01/2014.
  */
-public class JsonDeserializer implements Deserializer<JSONObject> {
+public class JsonDeserializer extends JsonStreamDeserializer<JSONObject> {
 
     /**
      * The Singleton instance
@@ -34,13 +38,19 @@ public class JsonDeserializer implements Deserializer<JSONObject> {
     }
 
     @Override
-    public JSONObject realise(InputStream inputStream, Context context) throws IOException {
-        final String jsonString = StringDeserializer.getDefault().realise(inputStream, context);
+    protected JSONObject read(final JsonReader jsonReader, final Context context) throws IOException {
         try {
-            final JSONObject jsonObject = new JSONObject(jsonString);
-            return jsonObject;
+            return JsonTreeReader.readObject(jsonReader);
         } catch (JSONException e) {
             e.printStackTrace();
+        } catch (MalformedJsonException e) {
+            e.printStackTrace();
+        } catch (EOFException e) {
+            // An empty body, as the one of a 204, gives null as the JSONObject parser did
+            e.printStackTrace();
+        } catch (IllegalStateException e) {
+            // The JSON is not of the expected type
+            e.printStackTrace();
         }
         return null;
     }
@@ -0,0 +1,20 @@
+package uk.co.massimocarli.restmethod.http.deserializer;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * This annotation sets the name of the JSON field for a field of a class read by a JsonBinder.
+ * Without it the name of the field is used.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface JsonName {
+
+    /**
+     * @return The name of the JSON field
+     */
+    String value();
+}
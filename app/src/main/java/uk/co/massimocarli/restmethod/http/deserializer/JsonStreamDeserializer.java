@@ -0,0 +1,77 @@
+package uk.co.massimocarli.restmethod.http.deserializer;
+
+import android.content.Context;
+import android.util.JsonReader;
+import uk.co.massimocarli.restmethod.rest.ResponseMetadata;
+import uk.co.massimocarli.restmethod.util.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * This is the base class for the Deserializers that parse the JSON directly from the
+ * InputStream using a JsonReader. The tokens are read as they arrive so we never create the
+ * String with the whole body. The implementations read the tokens and create the JSONObject
+ * tree or their own model.
+ * <p/>
+ * When the response is available the charset is the one of the Content-Type. A JSON that has
+ * not the structure the implementation expects makes the realise fail with an IOException.
+ */
+public abstract class JsonStreamDeserializer<E> implements ResponseDeserializer<E> {
+
+    /**
+     * The default encoding for JSON
+     */
+    private static final String DEFAULT_ENCODING = "UTF-8";
+
+    @Override
+    public E realise(final InputStream inputStream, final Context context) throws IOException {
+        return realise(inputStream, DEFAULT_ENCODING, context);
+    }
+
+    @Override
+    public E realise(final InputStream inputStream, final ResponseMetadata metadata,
+                     final Context context) throws IOException {
+        return realise(inputStream, metadata.getCharset(DEFAULT_ENCODING), context);
+    }
+
+    /**
+     * Reads the object with the given charset
+     */
+    private E realise(final InputStream inputStream, final String charset, final Context context) throws IOException {
+        final JsonReader jsonReader = new JsonReader(new InputStreamReader(inputStream, charset));
+        // The same tolerance of the org.json parser
+        jsonReader.setLenient(true);
+        try {
+            return read(jsonReader, context);
+        } catch (IllegalStateException e) {
+            // The JsonReader throws it when the JSON has not the expected structure
+            throw notValid(e);
+        } catch (NumberFormatException e) {
+            throw notValid(e);
+        } finally {
+            IOUtils.closeQuietly(jsonReader);
+        }
+    }
+
+    /**
+     * @return The IOException for a JSON not of the expected structure
+     */
+    private static IOException notValid(final RuntimeException cause) {
+        final IOException ioe = new IOException("JSON not valid: " + cause.getMessage());
+        ioe.initCause(cause);
+        return ioe;
+    }
+
+    /**
+     * This method reads the object of type E from the given JsonReader
+     *
+     * @param jsonReader The JsonReader to read the tokens from
+     * @param context    The Context
+     * @return The object of type E
+     * @throws java.io.IOException In case of error reading or parsing the stream
+     */
+    protected abstract E read(JsonReader jsonReader, Context context) throws IOException;
+
+}
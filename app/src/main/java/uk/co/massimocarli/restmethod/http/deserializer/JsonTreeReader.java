@@ -0,0 +1,120 @@
+package uk.co.massimocarli.restmethod.http.deserializer;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+
+/**
+ * Utility class that builds the JSONObject and JSONArray trees reading the tokens from a
+ * JsonReader. The numbers are converted in the same way of the org.json parser.
+ */
+public final class JsonTreeReader {
+
+    /**
+     * Private constructor
+     */
+    private JsonTreeReader() {
+        throw new AssertionError("Never instantiate me! I'm an Utility class!!!");
+    }
+
+    /**
+     * Reads a JSONObject from the JsonReader
+     *
+     * @param jsonReader The JsonReader positioned at the beginning of an object
+     * @return The JSONObject
+     * @throws java.io.IOException   In case of error reading the stream
+     * @throws org.json.JSONException In case of values not valid for a JSONObject
+     */
+    public static JSONObject readObject(final JsonReader jsonReader) throws IOException, JSONException {
+        final JSONObject jsonObject = new JSONObject();
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()) {
+            final String name = jsonReader.nextName();
+            jsonObject.put(name, readValue(jsonReader));
+        }
+        jsonReader.endObject();
+        return jsonObject;
+    }
+
+    /**
+     * Reads a JSONArray from the JsonReader
+     *
+     * @param jsonReader The JsonReader positioned at the beginning of an array
+     * @return The JSONArray
+     * @throws java.io.IOException   In case of error reading the stream
+     * @throws org.json.JSONException In case of values not valid for a JSONArray
+     */
+    public static JSONArray readArray(final JsonReader jsonReader) throws IOException, JSONException {
+        final JSONArray jsonArray = new JSONArray();
+        jsonReader.beginArray();
+        while (jsonReader.hasNext()) {
+            jsonArray.put(readValue(jsonReader));
+        }
+        jsonReader.endArray();
+        return jsonArray;
+    }
+
+    /**
+     * Reads the next value from the JsonReader
+     *
+     * @param jsonReader The JsonReader to read from
+     * @return The value as JSONObject, JSONArray, String, Boolean, Integer, Long, Double or
+     * JSONObject.NULL
+     * @throws java.io.IOException   In case of error reading the stream
+     * @throws org.json.JSONException In case of values not valid
+     */
+    public static Object readValue(final JsonReader jsonReader) throws IOException, JSONException {
+        final JsonToken token = jsonReader.peek();
+        switch (token) {
+            case BEGIN_OBJECT:
+                return readObject(jsonReader);
+            case BEGIN_ARRAY:
+                return readArray(jsonReader);
+            case STRING:
+                return jsonReader.nextString();
+            case NUMBER:
+                return toNumber(jsonReader.nextString());
+            case BOOLEAN:
+                return jsonReader.nextBoolean();
+            case NULL:
+                jsonReader.nextNull();
+                return JSONObject.NULL;
+            default:
+                throw new IOException("Unexpected token " + token);
+        }
+    }
+
+    /**
+     * Converts a number literal in the smallest type that contains it
+     *
+     * @param literal The number as String
+     * @return The number as Integer, Long or Double
+     */
+    static Number toNumber(final String literal) {
+        boolean decimal = false;
+        for (int i = 0; i < literal.length(); i++) {
+            final char c = literal.charAt(i);
+            if (c == '.' || c == 'e' || c == 'E') {
+                decimal = true;
+                break;
+            }
+        }
+        if (!decimal) {
+            try {
+                final long longValue = Long.parseLong(literal);
+                if (longValue >= Integer.MIN_VALUE && longValue <= Integer.MAX_VALUE) {
+                    return (int) longValue;
+                }
+                return longValue;
+            } catch (NumberFormatException nfe) {
+                // Too big for a long so we use a double
+            }
+        }
+        return Double.valueOf(literal);
+    }
+
+}
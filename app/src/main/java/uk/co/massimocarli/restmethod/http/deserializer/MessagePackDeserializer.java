@@ -0,0 +1,46 @@
+package uk.co.massimocarli.restmethod.http.deserializer;
+
+import android.content.Context;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+
+/**
+ * Deserializer for MessagePack maps. It creates the same JSONObject of the JsonDeserializer
+ * so the two formats can be used for the same endpoint.
+ */
+public class MessagePackDeserializer extends MessagePackStreamDeserializer<JSONObject> {
+
+    /**
+     * The Singleton instance
+     */
+    private static final MessagePackDeserializer sInstance = new MessagePackDeserializer();
+
+    /**
+     * @return The MessagePackDeserializer Singleton
+     */
+    public static MessagePackDeserializer get() {
+        return sInstance;
+    }
+
+    /**
+     * Private constructor
+     */
+    private MessagePackDeserializer() {
+    }
+
+    @Override
+    protected JSONObject read(final MessagePackReader reader, final Context context) throws IOException {
+        try {
+            if (reader.nextType() != MessagePackReader.ValueType.MAP) {
+                // The MessagePack is not of the expected type
+                return null;
+            }
+            return reader.readObject();
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+}
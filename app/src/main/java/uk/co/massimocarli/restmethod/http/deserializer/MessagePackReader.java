@@ -0,0 +1,615 @@
+package uk.co.massimocarli.restmethod.http.deserializer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import uk.co.massimocarli.restmethod.util.BufferPool;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * This is a pull reader for the MessagePack format. The values are read from a pooled buffer
+ * so the numbers and the short strings are decoded without intermediate arrays. The names of
+ * the maps are cached because the same names are repeated for every item of a list so they
+ * are decoded only once.
+ * <p/>
+ * The readValue method creates the same tree of the JsonTreeReader so a MessagePack response
+ * can replace a JSON one without changes to the code that uses the tree.
+ */
+public final class MessagePackReader implements Closeable {
+
+    /**
+     * The types of the MessagePack values
+     */
+    public enum ValueType {
+        NIL, BOOLEAN, INTEGER, FLOAT, STRING, BINARY, ARRAY, MAP, EXTENSION
+    }
+
+    /*
+     * The charset of the strings
+     */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /*
+     * The max length in bytes of the names we cache
+     */
+    private static final int MAX_CACHED_NAME_LENGTH = 32;
+
+    /*
+     * The number of slots of the cache of the names. It must be a power of 2
+     */
+    private static final int NAME_CACHE_SIZE = 64;
+
+    /*
+     * The max size of the first allocation for a string or a binary value. The lengths come
+     * from the data so the arrays grow only when the bytes arrive
+     */
+    private static final int MAX_INITIAL_ALLOCATION = 64 * 1024;
+
+    /**
+     * The stream to read from
+     */
+    private final InputStream mInputStream;
+
+    /**
+     * The pooled buffer
+     */
+    private byte[] mBuffer;
+
+    /**
+     * The position of the next byte to read in the buffer
+     */
+    private int mPosition;
+
+    /**
+     * The number of valid bytes in the buffer
+     */
+    private int mLimit;
+
+    /**
+     * The bytes of the cached names
+     */
+    private final byte[][] mNameBytes = new byte[NAME_CACHE_SIZE][];
+
+    /**
+     * The cached names
+     */
+    private final String[] mNames = new String[NAME_CACHE_SIZE];
+
+    /**
+     * Creates a MessagePackReader on the given stream
+     *
+     * @param inputStream The stream to read from
+     */
+    public MessagePackReader(final InputStream inputStream) {
+        this.mInputStream = inputStream;
+        this.mBuffer = BufferPool.acquireBytes(BufferPool.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @return The type of the next value without reading it
+     * @throws IOException In case of error or at the end of the stream
+     */
+    public ValueType nextType() throws IOException {
+        require(1);
+        final int format = mBuffer[mPosition] & 0xFF;
+        if (format <= 0x7F || format >= 0xE0) {
+            return ValueType.INTEGER;
+        } else if (format <= 0x8F) {
+            return ValueType.MAP;
+        } else if (format <= 0x9F) {
+            return ValueType.ARRAY;
+        } else if (format <= 0xBF) {
+            return ValueType.STRING;
+        }
+        switch (format) {
+            case 0xC0:
+                return ValueType.NIL;
+            case 0xC2:
+            case 0xC3:
+                return ValueType.BOOLEAN;
+            case 0xC4:
+            case 0xC5:
+            case 0xC6:
+                return ValueType.BINARY;
+            case 0xC7:
+            case 0xC8:
+            case 0xC9:
+            case 0xD4:
+            case 0xD5:
+            case 0xD6:
+            case 0xD7:
+            case 0xD8:
+                return ValueType.EXTENSION;
+            case 0xCA:
+            case 0xCB:
+                return ValueType.FLOAT;
+            case 0xCC:
+            case 0xCD:
+            case 0xCE:
+            case 0xCF:
+            case 0xD0:
+            case 0xD1:
+            case 0xD2:
+            case 0xD3:
+                return ValueType.INTEGER;
+            case 0xD9:
+            case 0xDA:
+            case 0xDB:
+                return ValueType.STRING;
+            case 0xDC:
+            case 0xDD:
+                return ValueType.ARRAY;
+            case 0xDE:
+            case 0xDF:
+                return ValueType.MAP;
+            default:
+                throw new IOException("Format 0x" + Integer.toHexString(format) + " not valid");
+        }
+    }
+
+    /**
+     * Reads a nil value
+     */
+    public void readNil() throws IOException {
+        if (readByte() != 0xC0) {
+            throw new IOException("Expected nil");
+        }
+    }
+
+    /**
+     * @return The boolean value
+     */
+    public boolean readBoolean() throws IOException {
+        final int format = readByte();
+        if (format == 0xC2) {
+            return false;
+        } else if (format == 0xC3) {
+            return true;
+        }
+        throw new IOException("Expected boolean but was 0x" + Integer.toHexString(format));
+    }
+
+    /**
+     * @return The integer value. A uint64 bigger than Long.MAX_VALUE is returned as negative
+     */
+    public long readLong() throws IOException {
+        final int format = readByte();
+        if (format <= 0x7F) {
+            return format;
+        } else if (format >= 0xE0) {
+            return (byte) format;
+        }
+        switch (format) {
+            case 0xCC:
+                return readByte();
+            case 0xCD:
+                return readRaw(2);
+            case 0xCE:
+                return readRaw(4);
+            case 0xCF:
+            case 0xD3:
+                return readRaw(8);
+            case 0xD0:
+                return (byte) readByte();
+            case 0xD1:
+                return (short) readRaw(2);
+            case 0xD2:
+                return (int) readRaw(4);
+            default:
+                throw new IOException("Expected integer but was 0x" + Integer.toHexString(format));
+        }
+    }
+
+    /**
+     * @return The floating point value. The integers are converted
+     */
+    public double readDouble() throws IOException {
+        require(1);
+        final int format = mBuffer[mPosition] & 0xFF;
+        if (format == 0xCA) {
+            mPosition++;
+            return Float.intBitsToFloat((int) readRaw(4));
+        } else if (format == 0xCB) {
+            mPosition++;
+            return Double.longBitsToDouble(readRaw(8));
+        }
+        return readLong();
+    }
+
+    /**
+     * @return The String value
+     */
+    public String readString() throws IOException {
+        return readString(readStringHeader());
+    }
+
+    /**
+     * @return The String value of the given length in bytes
+     */
+    private String readString(final int length) throws IOException {
+        if (length <= mBuffer.length) {
+            require(length);
+            final String value = new String(mBuffer, mPosition, length, UTF_8);
+            mPosition += length;
+            return value;
+        }
+        return new String(readFully(length), UTF_8);
+    }
+
+    /**
+     * Reads a String that is the name of a field. The names are cached so they are decoded
+     * only the first time
+     *
+     * @return The name
+     */
+    public String readName() throws IOException {
+        final int length = readStringHeader();
+        if (length > MAX_CACHED_NAME_LENGTH) {
+            return readString(length);
+        }
+        require(length);
+        int hash = length;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + mBuffer[mPosition + i];
+        }
+        final int slot = (hash ^ (hash >>> 16)) & (NAME_CACHE_SIZE - 1);
+        final byte[] cachedBytes = mNameBytes[slot];
+        if (cachedBytes != null && cachedBytes.length == length && sameBytes(cachedBytes, length)) {
+            mPosition += length;
+            return mNames[slot];
+        }
+        final byte[] nameBytes = new byte[length];
+        System.arraycopy(mBuffer, mPosition, nameBytes, 0, length);
+        final String name = new String(mBuffer, mPosition, length, UTF_8);
+        mPosition += length;
+        mNameBytes[slot] = nameBytes;
+        mNames[slot] = name;
+        return name;
+    }
+
+    /**
+     * @return The binary value
+     */
+    public byte[] readBinary() throws IOException {
+        return readFully(readBinaryHeader());
+    }
+
+    /**
+     * @return The length of the binary value
+     */
+    private int readBinaryHeader() throws IOException {
+        final int format = readByte();
+        final int length;
+        switch (format) {
+            case 0xC4:
+                length = readByte();
+                break;
+            case 0xC5:
+                length = (int) readRaw(2);
+                break;
+            case 0xC6:
+                length = toLength(readRaw(4));
+                break;
+            default:
+                throw new IOException("Expected binary but was 0x" + Integer.toHexString(format));
+        }
+        return length;
+    }
+
+    /**
+     * @return The number of the elements of the array
+     */
+    public int readArrayHeader() throws IOException {
+        final int format = readByte();
+        if (format >= 0x90 && format <= 0x9F) {
+            return format & 0x0F;
+        } else if (format == 0xDC) {
+            return (int) readRaw(2);
+        } else if (format == 0xDD) {
+            return toLength(readRaw(4));
+        }
+        throw new IOException("Expected array but was 0x" + Integer.toHexString(format));
+    }
+
+    /**
+     * @return The number of the entries of the map
+     */
+    public int readMapHeader() throws IOException {
+        final int format = readByte();
+        if (format >= 0x80 && format <= 0x8F) {
+            return format & 0x0F;
+        } else if (format == 0xDE) {
+            return (int) readRaw(2);
+        } else if (format == 0xDF) {
+            return toLength(readRaw(4));
+        }
+        throw new IOException("Expected map but was 0x" + Integer.toHexString(format));
+    }
+
+    /**
+     * Skips the next value with all its children
+     */
+    public void skipValue() throws IOException {
+        long pending = 1;
+        while (pending > 0) {
+            pending--;
+            switch (nextType()) {
+                case NIL:
+                case BOOLEAN:
+                    skip(1);
+                    break;
+                case INTEGER:
+                case FLOAT:
+                    readDouble();
+                    break;
+                case STRING:
+                    skip(readStringHeader());
+                    break;
+                case BINARY:
+                    skip(readBinaryHeader());
+                    break;
+                case ARRAY:
+                    pending += readArrayHeader();
+                    break;
+                case MAP:
+                    pending += 2L * readMapHeader();
+                    break;
+                case EXTENSION:
+                    readExtension();
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Reads the next value as a tree of the same types of the JsonTreeReader
+     *
+     * @return The value as JSONObject, JSONArray, String, Boolean, Integer, Long, Double,
+     * byte[] or JSONObject.NULL
+     * @throws IOException   In case of error reading the stream
+     * @throws JSONException In case of values not valid
+     */
+    public Object readValue() throws IOException, JSONException {
+        switch (nextType()) {
+            case NIL:
+                readNil();
+                return JSONObject.NULL;
+            case BOOLEAN:
+                return readBoolean();
+            case INTEGER:
+                return toNumber(readLong());
+            case FLOAT:
+                return readDouble();
+            case STRING:
+                return readString();
+            case BINARY:
+                return readBinary();
+            case ARRAY:
+                return readArray();
+            case MAP:
+                return readObject();
+            default:
+                return readExtension();
+        }
+    }
+
+    /**
+     * Reads a map as a JSONObject. The names that are not String are converted
+     *
+     * @return The JSONObject
+     */
+    public JSONObject readObject() throws IOException, JSONException {
+        final int size = readMapHeader();
+        final JSONObject jsonObject = new JSONObject();
+        for (int i = 0; i < size; i++) {
+            final String name = nextType() == ValueType.STRING ? readName() : String.valueOf(readValue());
+            jsonObject.put(name, readValue());
+        }
+        return jsonObject;
+    }
+
+    /**
+     * Reads an array as a JSONArray
+     *
+     * @return The JSONArray
+     */
+    public JSONArray readArray() throws IOException, JSONException {
+        final int size = readArrayHeader();
+        final JSONArray jsonArray = new JSONArray();
+        for (int i = 0; i < size; i++) {
+            jsonArray.put(readValue());
+        }
+        return jsonArray;
+    }
+
+    /**
+     * Releases the buffer and closes the stream
+     */
+    @Override
+    public void close() throws IOException {
+        if (mBuffer != null) {
+            BufferPool.releaseBytes(mBuffer);
+            mBuffer = null;
+        }
+        mInputStream.close();
+    }
+
+    /**
+     * Reads an extension value. We don't know the types so we return the data
+     */
+    private byte[] readExtension() throws IOException {
+        final int format = readByte();
+        final int length;
+        switch (format) {
+            case 0xD4:
+                length = 1;
+                break;
+            case 0xD5:
+                length = 2;
+                break;
+            case 0xD6:
+                length = 4;
+                break;
+            case 0xD7:
+                length = 8;
+                break;
+            case 0xD8:
+                length = 16;
+                break;
+            case 0xC7:
+                length = readByte();
+                break;
+            case 0xC8:
+                length = (int) readRaw(2);
+                break;
+            case 0xC9:
+                length = toLength(readRaw(4));
+                break;
+            default:
+                throw new IOException("Expected extension but was 0x" + Integer.toHexString(format));
+        }
+        // The type of the extension
+        readByte();
+        return readFully(length);
+    }
+
+    /**
+     * @return The length of the String
+     */
+    private int readStringHeader() throws IOException {
+        final int format = readByte();
+        if (format >= 0xA0 && format <= 0xBF) {
+            return format & 0x1F;
+        }
+        switch (format) {
+            case 0xD9:
+                return readByte();
+            case 0xDA:
+                return (int) readRaw(2);
+            case 0xDB:
+                return toLength(readRaw(4));
+            default:
+                throw new IOException("Expected string but was 0x" + Integer.toHexString(format));
+        }
+    }
+
+    /**
+     * @return True if the next bytes of the buffer are the same of the given ones
+     */
+    private boolean sameBytes(final byte[] bytes, final int length) {
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] != mBuffer[mPosition + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Converts an integer to the smallest type that contains it as the JsonTreeReader does
+     */
+    private static Number toNumber(final long value) {
+        if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            return (int) value;
+        }
+        return value;
+    }
+
+    /**
+     * Checks a length read as unsigned 32 bits
+     */
+    private static int toLength(final long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Length " + length + " not supported");
+        }
+        return (int) length;
+    }
+
+    /**
+     * @return The next byte as unsigned
+     */
+    private int readByte() throws IOException {
+        require(1);
+        return mBuffer[mPosition++] & 0xFF;
+    }
+
+    /**
+     * @return The next bytes as big endian unsigned value
+     */
+    private long readRaw(final int size) throws IOException {
+        require(size);
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            value = (value << 8) | (mBuffer[mPosition++] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Reads the given number of bytes into a new array. The array grows while the bytes are
+     * read so a length not valid gives an EOFException and not an OutOfMemoryError
+     */
+    private byte[] readFully(final int length) throws IOException {
+        byte[] bytes = new byte[Math.min(length, MAX_INITIAL_ALLOCATION)];
+        int read = 0;
+        while (read < length) {
+            if (read == bytes.length) {
+                bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * bytes.length));
+            }
+            if (mPosition < mLimit) {
+                final int buffered = Math.min(bytes.length - read, mLimit - mPosition);
+                System.arraycopy(mBuffer, mPosition, bytes, read, buffered);
+                mPosition += buffered;
+                read += buffered;
+            } else {
+                final int count = mInputStream.read(bytes, read, bytes.length - read);
+                if (count == -1) {
+                    throw new EOFException("Unexpected end of the MessagePack data");
+                }
+                read += count;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Skips the given number of bytes
+     */
+    private void skip(final int length) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            require(1);
+            final int skipped = Math.min(remaining, mLimit - mPosition);
+            mPosition += skipped;
+            remaining -= skipped;
+        }
+    }
+
+    /**
+     * Makes sure the buffer contains at least the given number of bytes. The count is never
+     * bigger than the buffer: the longer values are read with readFully()
+     */
+    private void require(final int count) throws IOException {
+        if (mLimit - mPosition >= count) {
+            return;
+        }
+        if (mPosition > 0) {
+            System.arraycopy(mBuffer, mPosition, mBuffer, 0, mLimit - mPosition);
+            mLimit -= mPosition;
+            mPosition = 0;
+        }
+        while (mLimit < count) {
+            final int read = mInputStream.read(mBuffer, mLimit, mBuffer.length - mLimit);
+            if (read == -1) {
+                throw new EOFException("Unexpected end of the MessagePack data");
+            }
+            mLimit += read;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package uk.co.massimocarli.restmethod.http.deserializer;
+
+import android.content.Context;
+import uk.co.massimocarli.restmethod.util.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This is the base class for the Deserializers of the MessagePack responses. The values are
+ * read with a MessagePackReader directly from the InputStream. The implementations read the
+ * values and create the JSONObject tree or their own model as the JsonStreamDeserializer does
+ * for JSON.
+ */
+public abstract class MessagePackStreamDeserializer<E> implements Deserializer<E> {
+
+    @Override
+    public E realise(final InputStream inputStream, final Context context) throws IOException {
+        final MessagePackReader reader = new MessagePackReader(inputStream);
+        try {
+            return read(reader, context);
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    /**
+     * This method reads the object of type E from the given MessagePackReader
+     *
+     * @param reader  The MessagePackReader to read the values from
+     * @param context The Context
+     * @return The object of type E
+     * @throws java.io.IOException In case of error reading or parsing the stream
+     */
+    protected abstract E read(MessagePackReader reader, Context context) throws IOException;
+
+}
@@ -0,0 +1,135 @@
+package uk.co.massimocarli.restmethod.http.deserializer;
+
+import android.util.Log;
+import uk.co.massimocarli.restmethod.util.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * This class keeps the validators of the response a partial download comes from. They are
+ * saved into a small file near the temporary file of the download so the next attempt can ask
+ * only the missing bytes with the Range and If-Range headers.
+ */
+final class PartialDownloadState {
+
+    /**
+     * The Tag for the Log
+     */
+    private static final String TAG_LOG = PartialDownloadState.class.getName();
+
+    /**
+     * The suffix of the file with the validators
+     */
+    private static final String META_SUFFIX = ".meta";
+
+    /*
+     * The keys of the properties
+     */
+    private static final String ETAG_KEY = "etag";
+    private static final String LAST_MODIFIED_KEY = "lastModified";
+
+    /**
+     * The temporary file with the partial data
+     */
+    private final File mTmpFile;
+
+    /**
+     * The file with the validators
+     */
+    private final File mMetaFile;
+
+    /**
+     * Creates the PartialDownloadState for the given temporary file
+     *
+     * @param tmpFile The temporary file with the partial data
+     */
+    PartialDownloadState(final File tmpFile) {
+        this.mTmpFile = tmpFile;
+        this.mMetaFile = new File(tmpFile.getAbsolutePath() + META_SUFFIX);
+    }
+
+    /**
+     * @return The number of bytes already downloaded
+     */
+    long getPartialLength() {
+        return mTmpFile.exists() ? mTmpFile.length() : 0L;
+    }
+
+    /**
+     * Returns the value for the If-Range header. A weak ETag cannot be used for a Range
+     * request so in that case we use the Last-Modified date.
+     *
+     * @return The value for the If-Range header or null if the partial data cannot be resumed
+     */
+    String getIfRangeValue() {
+        if (!mMetaFile.exists()) {
+            return null;
+        }
+        final Properties properties = new Properties();
+        FileInputStream input = null;
+        try {
+            input = new FileInputStream(mMetaFile);
+            properties.load(input);
+        } catch (IOException e) {
+            Log.w(TAG_LOG, "Error reading validators of " + mTmpFile, e);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+        final String etag = properties.getProperty(ETAG_KEY);
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return properties.getProperty(LAST_MODIFIED_KEY);
+    }
+
+    /**
+     * Saves the validators of the response. If no validator is available the data cannot be
+     * resumed and the file is deleted.
+     *
+     * @param etag         The ETag of the response or null
+     * @param lastModified The Last-Modified of the response or null
+     */
+    void save(final String etag, final String lastModified) {
+        if (etag == null && lastModified == null) {
+            mMetaFile.delete();
+            return;
+        }
+        final Properties properties = new Properties();
+        if (etag != null) {
+            properties.setProperty(ETAG_KEY, etag);
+        }
+        if (lastModified != null) {
+            properties.setProperty(LAST_MODIFIED_KEY, lastModified);
+        }
+        FileOutputStream output = null;
+        try {
+            output = new FileOutputStream(mMetaFile);
+            properties.store(output, null);
+        } catch (IOException e) {
+            Log.w(TAG_LOG, "Error saving validators of " + mTmpFile, e);
+            mMetaFile.delete();
+        } finally {
+            IOUtils.closeQuietly(output);
+        }
+    }
+
+    /**
+     * Deletes the partial data and the validators
+     */
+    void clear() {
+        mTmpFile.delete();
+        mMetaFile.delete();
+    }
+
+    /**
+     * Deletes only the validators because the download is complete
+     */
+    void complete() {
+        mMetaFile.delete();
+    }
+}
@@ -0,0 +1,385 @@
+package uk.co.massimocarli.restmethod.http.deserializer;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This is the JsonBinder that reads the fields of a class using reflection. The fields, their
+ * names and the readers of their types are resolved only once when the JsonBinder is created.
+ * The primitive fields are set with the typed methods of Field so the values are not boxed.
+ * The fields of types that can't be created, as the raw Lists and the interfaces, make the read
+ * fail with an IOException only if they are present in the JSON.
+ */
+final class ReflectiveJsonBinder<T> extends JsonBinder<T> {
+
+    /*
+     * The kinds of the supported fields
+     */
+    private static final int KIND_INT = 0;
+    private static final int KIND_LONG = 1;
+    private static final int KIND_DOUBLE = 2;
+    private static final int KIND_FLOAT = 3;
+    private static final int KIND_BOOLEAN = 4;
+    private static final int KIND_OBJECT = 5;
+
+    /**
+     * The constructor of the class
+     */
+    private final Constructor<T> mConstructor;
+
+    /**
+     * The bindings of the fields by JSON name
+     */
+    private final Map<String, FieldBinding> mBindings;
+
+    /**
+     * Creates the ReflectiveJsonBinder for the given class
+     *
+     * @param type The class to read
+     * @throws IllegalArgumentException If the class cannot be read from JSON
+     */
+    ReflectiveJsonBinder(final Class<T> type) {
+        try {
+            mConstructor = type.getDeclaredConstructor();
+            mConstructor.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(type.getName() + " needs a constructor without parameters");
+        }
+        mBindings = new HashMap<String, FieldBinding>();
+        for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                final int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                    continue;
+                }
+                final JsonName jsonName = field.getAnnotation(JsonName.class);
+                final String name = jsonName != null ? jsonName.value() : field.getName();
+                if (!mBindings.containsKey(name)) {
+                    field.setAccessible(true);
+                    mBindings.put(name, new FieldBinding(field));
+                }
+            }
+        }
+    }
+
+    @Override
+    public T read(final JsonReader jsonReader) throws IOException {
+        final T instance;
+        try {
+            instance = mConstructor.newInstance();
+        } catch (Exception e) {
+            throw new IOException("Error creating " + mConstructor.getDeclaringClass().getName() + ": " + e);
+        }
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()) {
+            final FieldBinding binding = mBindings.get(jsonReader.nextName());
+            if (binding == null || jsonReader.peek() == JsonToken.NULL && binding.mKind != KIND_OBJECT) {
+                jsonReader.skipValue();
+            } else {
+                binding.read(jsonReader, instance);
+            }
+        }
+        jsonReader.endObject();
+        return instance;
+    }
+
+    /**
+     * Resolves the ValueReader for a type. The types that can't be read get a ValueReader that
+     * fails with an IOException so the error is reported only if the field is in the JSON.
+     *
+     * @param type The type of the value
+     * @return The ValueReader for the type
+     */
+    private static ValueReader readerFor(final Type type) {
+        if (type == String.class) {
+            return STRING_READER;
+        } else if (type == Integer.class) {
+            return INTEGER_READER;
+        } else if (type == Long.class) {
+            return LONG_READER;
+        } else if (type == Double.class) {
+            return DOUBLE_READER;
+        } else if (type == Float.class) {
+            return FLOAT_READER;
+        } else if (type == Boolean.class) {
+            return BOOLEAN_READER;
+        } else if (type instanceof ParameterizedType) {
+            final Type rawType = ((ParameterizedType) type).getRawType();
+            // The list we create must be assignable to the field
+            if (rawType instanceof Class && List.class.isAssignableFrom((Class<?>) rawType)
+                    && ((Class<?>) rawType).isAssignableFrom(ArrayList.class)) {
+                return new ListReader(readerFor(((ParameterizedType) type).getActualTypeArguments()[0]));
+            }
+        } else if (type instanceof Class) {
+            final Class<?> typeClass = (Class<?>) type;
+            if (typeClass.isEnum()) {
+                return new EnumReader(typeClass);
+            } else if (!typeClass.isInterface() && !typeClass.isArray() && !typeClass.isPrimitive()
+                    && !Modifier.isAbstract(typeClass.getModifiers())) {
+                return new ObjectReader(typeClass);
+            }
+        }
+        return new UnsupportedReader(type);
+    }
+
+    /**
+     * The reader of the values of a type resolved only once for every field
+     */
+    private abstract static class ValueReader {
+
+        /**
+         * Reads a value that is not null
+         *
+         * @param jsonReader The JsonReader
+         * @return The value read
+         * @throws IOException In case of error
+         */
+        abstract Object readNotNull(JsonReader jsonReader) throws IOException;
+
+        /**
+         * Reads a value or a null
+         *
+         * @param jsonReader The JsonReader
+         * @return The value read or null
+         * @throws IOException In case of error
+         */
+        final Object read(final JsonReader jsonReader) throws IOException {
+            if (jsonReader.peek() == JsonToken.NULL) {
+                jsonReader.nextNull();
+                return null;
+            }
+            return readNotNull(jsonReader);
+        }
+    }
+
+    /*
+     * The readers of the boxed types
+     */
+    private static final ValueReader STRING_READER = new ValueReader() {
+        @Override
+        Object readNotNull(final JsonReader jsonReader) throws IOException {
+            return jsonReader.nextString();
+        }
+    };
+    private static final ValueReader INTEGER_READER = new ValueReader() {
+        @Override
+        Object readNotNull(final JsonReader jsonReader) throws IOException {
+            return jsonReader.nextInt();
+        }
+    };
+    private static final ValueReader LONG_READER = new ValueReader() {
+        @Override
+        Object readNotNull(final JsonReader jsonReader) throws IOException {
+            return jsonReader.nextLong();
+        }
+    };
+    private static final ValueReader DOUBLE_READER = new ValueReader() {
+        @Override
+        Object readNotNull(final JsonReader jsonReader) throws IOException {
+            return jsonReader.nextDouble();
+        }
+    };
+    private static final ValueReader FLOAT_READER = new ValueReader() {
+        @Override
+        Object readNotNull(final JsonReader jsonReader) throws IOException {
+            return (float) jsonReader.nextDouble();
+        }
+    };
+    private static final ValueReader BOOLEAN_READER = new ValueReader() {
+        @Override
+        Object readNotNull(final JsonReader jsonReader) throws IOException {
+            return jsonReader.nextBoolean();
+        }
+    };
+
+    /**
+     * The reader of a List with the reader of its elements
+     */
+    private static final class ListReader extends ValueReader {
+
+        private final ValueReader mElementReader;
+
+        private ListReader(final ValueReader elementReader) {
+            this.mElementReader = elementReader;
+        }
+
+        @Override
+        Object readNotNull(final JsonReader jsonReader) throws IOException {
+            final List<Object> list = new ArrayList<Object>();
+            jsonReader.beginArray();
+            while (jsonReader.hasNext()) {
+                list.add(mElementReader.read(jsonReader));
+            }
+            jsonReader.endArray();
+            return list;
+        }
+    }
+
+    /**
+     * The reader of the constants of an enum
+     */
+    private static final class EnumReader extends ValueReader {
+
+        private final Class<?> mEnumType;
+
+        private EnumReader(final Class<?> enumType) {
+            this.mEnumType = enumType;
+        }
+
+        @Override
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Object readNotNull(final JsonReader jsonReader) throws IOException {
+            final String name = jsonReader.nextString();
+            try {
+                return Enum.valueOf((Class<? extends Enum>) mEnumType, name);
+            } catch (IllegalArgumentException iae) {
+                throw new IOException("Value " + name + " not valid for " + mEnumType.getName());
+            }
+        }
+    }
+
+    /**
+     * The reader of a nested object. The JsonBinder is looked up at the first read so a class
+     * can contain fields of its own type
+     */
+    private static final class ObjectReader extends ValueReader {
+
+        private final Class<?> mType;
+
+        private volatile JsonBinder<?> mJsonBinder;
+
+        private ObjectReader(final Class<?> type) {
+            this.mType = type;
+        }
+
+        @Override
+        Object readNotNull(final JsonReader jsonReader) throws IOException {
+            JsonBinder<?> jsonBinder = mJsonBinder;
+            if (jsonBinder == null) {
+                try {
+                    jsonBinder = JsonBinder.of(mType);
+                } catch (IllegalArgumentException iae) {
+                    final IOException ioe = new IOException("Type " + mType.getName() + " not supported");
+                    ioe.initCause(iae);
+                    throw ioe;
+                }
+                mJsonBinder = jsonBinder;
+            }
+            return jsonBinder.read(jsonReader);
+        }
+    }
+
+    /**
+     * The reader of the types we can't create as the raw Lists and the interfaces
+     */
+    private static final class UnsupportedReader extends ValueReader {
+
+        private final Type mType;
+
+        private UnsupportedReader(final Type type) {
+            this.mType = type;
+        }
+
+        @Override
+        Object readNotNull(final JsonReader jsonReader) throws IOException {
+            throw new IOException("Type " + mType + " not supported");
+        }
+    }
+
+    /**
+     * The binding for a single field
+     */
+    private static final class FieldBinding {
+
+        /**
+         * The Field to set
+         */
+        private final Field mField;
+
+        /**
+         * The kind of the field
+         */
+        private final int mKind;
+
+        /**
+         * The reader of the values if the field is an object
+         */
+        private final ValueReader mValueReader;
+
+        private FieldBinding(final Field field) {
+            this.mField = field;
+            final Class<?> fieldType = field.getType();
+            if (fieldType == int.class) {
+                mKind = KIND_INT;
+            } else if (fieldType == long.class) {
+                mKind = KIND_LONG;
+            } else if (fieldType == double.class) {
+                mKind = KIND_DOUBLE;
+            } else if (fieldType == float.class) {
+                mKind = KIND_FLOAT;
+            } else if (fieldType == boolean.class) {
+                mKind = KIND_BOOLEAN;
+            } else if (fieldType.isPrimitive()) {
+                throw new IllegalArgumentException("Type of field " + field.getName() + " not supported");
+            } else {
+                mKind = KIND_OBJECT;
+            }
+            this.mValueReader = mKind == KIND_OBJECT ? readerFor(field.getGenericType()) : null;
+        }
+
+        /**
+         * Reads the value of the field from the JsonReader
+         */
+        private void read(final JsonReader jsonReader, final Object instance) throws IOException {
+            try {
+                switch (mKind) {
+                    case KIND_INT:
+                        mField.setInt(instance, jsonReader.nextInt());
+                        break;
+                    case KIND_LONG:
+                        mField.setLong(instance, jsonReader.nextLong());
+                        break;
+                    case KIND_DOUBLE:
+                        mField.setDouble(instance, jsonReader.nextDouble());
+                        break;
+                    case KIND_FLOAT:
+                        mField.setFloat(instance, (float) jsonReader.nextDouble());
+                        break;
+                    case KIND_BOOLEAN:
+                        mField.setBoolean(instance, jsonReader.nextBoolean());
+                        break;
+                    default:
+                        mField.set(instance, mValueReader.read(jsonReader));
+                }
+            } catch (IllegalAccessException e) {
+                throw new IOException("Error setting " + mField.getName() + ": " + e);
+            } catch (IllegalStateException e) {
+                // The JSON value is not of the type of the field
+                throw valueNotValid(e);
+            } catch (NumberFormatException e) {
+                throw valueNotValid(e);
+            }
+        }
+
+        /**
+         * @return The IOException for a JSON value not valid for the field
+         */
+        private IOException valueNotValid(final RuntimeException cause) {
+            final IOException ioe = new IOException("Value of " + mField.getName() + " not valid: "
+                                                            + cause.getMessage());
+            ioe.initCause(cause);
+            return ioe;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package uk.co.massimocarli.restmethod.http.deserializer;
+
+import android.content.Context;
+import uk.co.massimocarli.restmethod.rest.ResponseMetadata;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This is a Deserializer that also receives the metadata of the response so it can presize
+ * its buffers from the Content-Length, pick the charset from the Content-Type or skip the
+ * parsing of the error bodies. The executors call the realise method with the
+ * ResponseMetadata while the realise method of Deserializer is used where no metadata is
+ * available.
+ */
+public interface ResponseDeserializer<E> extends Deserializer<E> {
+
+    /**
+     * This method reads data from an inputStream and creates, if possible, an object or
+     * type E
+     *
+     * @param inputStream The stream to read from
+     * @param metadata    The metadata of the response
+     * @param context     The Context
+     * @return The object of type E
+     * @throws java.io.IOException The exception in case unable to create the object of type E
+     */
+    E realise(InputStream inputStream, ResponseMetadata metadata, Context context) throws IOException;
+
+}
@@ -0,0 +1,81 @@
+package uk.co.massimocarli.restmethod.http.deserializer;
+
+import android.content.Context;
+import uk.co.massimocarli.restmethod.rest.ResponseMetadata;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This is the adapter that makes every Deserializer a ResponseDeserializer. The metadata
+ * are ignored for the Deserializers that don't use them.
+ */
+public final class ResponseDeserializerAdapter<E> implements ResponseDeserializer<E> {
+
+    /**
+     * The adapted Deserializer
+     */
+    private final Deserializer<? extends E> mDeserializer;
+
+    /**
+     * Private constructor
+     *
+     * @param deserializer The Deserializer to adapt
+     */
+    private ResponseDeserializerAdapter(final Deserializer<? extends E> deserializer) {
+        this.mDeserializer = deserializer;
+    }
+
+    /**
+     * This static factory method returns the ResponseDeserializer for the given Deserializer
+     *
+     * @param deserializer The Deserializer to adapt
+     * @param <E>          The type of the result
+     * @return The Deserializer itself if already a ResponseDeserializer or its adapter
+     */
+    @SuppressWarnings("unchecked")
+    public static <E> ResponseDeserializer<E> adapt(final Deserializer<? extends E> deserializer) {
+        if (deserializer instanceof ResponseDeserializer) {
+            return (ResponseDeserializer<E>) deserializer;
+        }
+        return new ResponseDeserializerAdapter<E>(deserializer);
+    }
+
+    /**
+     * Utility method that reads the stream with the given Deserializer passing the metadata
+     * if it's a ResponseDeserializer
+     *
+     * @param deserializer The Deserializer to use
+     * @param inputStream  The stream to read from
+     * @param metadata     The metadata of the response
+     * @param context      The Context
+     * @param <E>          The type of the result
+     * @return The object of type E
+     * @throws java.io.IOException In case of error
+     */
+    public static <E> E realise(final Deserializer<? extends E> deserializer, final InputStream inputStream,
+                                final ResponseMetadata metadata, final Context context) throws IOException {
+        if (deserializer instanceof ResponseDeserializer) {
+            return ((ResponseDeserializer<? extends E>) deserializer).realise(inputStream, metadata, context);
+        }
+        return deserializer.realise(inputStream, context);
+    }
+
+    @Override
+    public E realise(final InputStream inputStream, final ResponseMetadata metadata,
+                     final Context context) throws IOException {
+        return mDeserializer.realise(inputStream, context);
+    }
+
+    @Override
+    public E realise(final InputStream inputStream, final Context context) throws IOException {
+        return mDeserializer.realise(inputStream, context);
+    }
+
+    /**
+     * @return The adapted Deserializer
+     */
+    public Deserializer<? extends E> getDeserializer() {
+        return mDeserializer;
+    }
+}
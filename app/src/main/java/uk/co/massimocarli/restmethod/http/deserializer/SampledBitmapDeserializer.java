@@ -0,0 +1,294 @@
+package uk.co.massimocarli.restmethod.http.deserializer;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import uk.co.massimocarli.restmethod.rest.ResponseMetadata;
+import uk.co.massimocarli.restmethod.util.IOUtils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This is the Deserializer for the Bitmaps that must be shown at a given size. A first pass
+ * reads only the bounds of the image. Then we compute the inSampleSize so the Bitmap is decoded
+ * at the smallest resolution not smaller than the target size. To read the data twice we use:
+ * <ul>
+ * <li>the mark and reset of the stream if supported</li>
+ * <li>a SpooledBody that keeps the small images on the heap and the big ones into a
+ * temporary file otherwise</li>
+ * </ul>
+ * The SampledBitmapDeserializer keeps the count of the bytes read and of the bytes of the
+ * decoded Bitmaps so the saving can be measured.
+ */
+public final class SampledBitmapDeserializer implements ResponseDeserializer<Bitmap> {
+
+    /*
+     * The Tag for the log
+     */
+    private static final String LOG_TAG = SampledBitmapDeserializer.class.getName();
+
+    /**
+     * The max length of the data we read in memory for the two passes
+     */
+    private static final int MAX_IN_MEMORY_LENGTH = 2 * 1024 * 1024;
+
+    /**
+     * The target width
+     */
+    private final int mTargetWidth;
+
+    /**
+     * The target height
+     */
+    private final int mTargetHeight;
+
+    /**
+     * The config for the Bitmaps
+     */
+    private final Bitmap.Config mConfig;
+
+    /**
+     * The number of bytes of the compressed images
+     */
+    private final AtomicLong mBytesRead = new AtomicLong();
+
+    /**
+     * The number of bytes allocated for the decoded Bitmaps
+     */
+    private final AtomicLong mBytesAllocated = new AtomicLong();
+
+    /**
+     * The number of bytes the Bitmaps would need at full resolution
+     */
+    private final AtomicLong mFullResolutionBytes = new AtomicLong();
+
+    /**
+     * The number of decoded Bitmaps
+     */
+    private final AtomicLong mDecodedCount = new AtomicLong();
+
+    /**
+     * Private constructor
+     */
+    private SampledBitmapDeserializer(final int targetWidth, final int targetHeight, final Bitmap.Config config) {
+        this.mTargetWidth = targetWidth;
+        this.mTargetHeight = targetHeight;
+        this.mConfig = config;
+    }
+
+    /**
+     * This static factory method creates a SampledBitmapDeserializer for the given target size
+     *
+     * @param targetWidth  The width the Bitmap will be shown at
+     * @param targetHeight The height the Bitmap will be shown at
+     * @return The SampledBitmapDeserializer for the given size
+     */
+    public static SampledBitmapDeserializer create(final int targetWidth, final int targetHeight) {
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            throw new IllegalArgumentException("Target size must be positive");
+        }
+        return new SampledBitmapDeserializer(targetWidth, targetHeight, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Returns a copy of this SampledBitmapDeserializer with the given config. With
+     * Bitmap.Config.RGB_565 the Bitmaps need half of the memory
+     *
+     * @param config The config of the Bitmaps
+     * @return The new SampledBitmapDeserializer
+     */
+    public SampledBitmapDeserializer withConfig(final Bitmap.Config config) {
+        return new SampledBitmapDeserializer(mTargetWidth, mTargetHeight, config);
+    }
+
+    @Override
+    public Bitmap realise(final InputStream inputStream, final Context context) throws IOException {
+        return realise(inputStream, -1L, context);
+    }
+
+    @Override
+    public Bitmap realise(final InputStream inputStream, final ResponseMetadata metadata,
+                         final Context context) throws IOException {
+        if (!metadata.isSuccessful()) {
+            // The error body is not an image
+            return null;
+        }
+        return realise(inputStream, metadata.getContentLength(), context);
+    }
+
+    /**
+     * Decodes the Bitmap with one of the two passes strategies
+     */
+    private Bitmap realise(final InputStream inputStream, final long contentLength,
+                           final Context context) throws IOException {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        try {
+            if (inputStream.markSupported()) {
+                final CountingInputStream countingStream = new CountingInputStream(inputStream);
+                countingStream.mark(Integer.MAX_VALUE);
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeStream(countingStream, null, options);
+                countingStream.reset();
+                prepareOptions(options);
+                final Bitmap bitmap = BitmapFactory.decodeStream(countingStream, null, options);
+                return completed(bitmap, options, countingStream.mCount);
+            }
+            return realiseFromSpool(inputStream, contentLength, options, context);
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+    }
+
+    /**
+     * Decodes the Bitmap from a SpooledBody with the data
+     */
+    private Bitmap realiseFromSpool(final InputStream inputStream, final long contentLength,
+                                    final BitmapFactory.Options options, final Context context) throws IOException {
+        final SpooledBody body = SpooledBody.spool(inputStream, contentLength, MAX_IN_MEMORY_LENGTH, context);
+        try {
+            options.inJustDecodeBounds = true;
+            decode(body, options);
+            prepareOptions(options);
+            return completed(decode(body, options), options, body.getLength());
+        } finally {
+            body.close();
+        }
+    }
+
+    /**
+     * Decodes the SpooledBody from its file if any or from its data
+     */
+    private static Bitmap decode(final SpooledBody body, final BitmapFactory.Options options) throws IOException {
+        if (body.isOnDisk()) {
+            return BitmapFactory.decodeFile(body.getFile().getAbsolutePath(), options);
+        }
+        final InputStream input = body.openStream();
+        try {
+            return BitmapFactory.decodeStream(input, null, options);
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Sets the options for the decoding after the bounds pass
+     */
+    private void prepareOptions(final BitmapFactory.Options options) throws IOException {
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Data is not a valid image");
+        }
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight,
+                                                     mTargetWidth, mTargetHeight);
+        options.inJustDecodeBounds = false;
+        options.inPreferredConfig = mConfig;
+    }
+
+    /**
+     * Updates the metrics for the decoded Bitmap
+     */
+    private Bitmap completed(final Bitmap bitmap, final BitmapFactory.Options options, final long bytesRead) {
+        mBytesRead.addAndGet(bytesRead);
+        if (bitmap != null) {
+            final int bytesPerPixel = bitmap.getRowBytes() / bitmap.getWidth();
+            mBytesAllocated.addAndGet((long) bitmap.getRowBytes() * bitmap.getHeight());
+            mFullResolutionBytes.addAndGet((long) options.outWidth * options.outHeight * bytesPerPixel);
+            mDecodedCount.incrementAndGet();
+            Log.d(LOG_TAG, "Decoded " + options.outWidth + "x" + options.outHeight + " image at "
+                    + bitmap.getWidth() + "x" + bitmap.getHeight() + " (inSampleSize " + options.inSampleSize + ")");
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns the biggest power of two that keeps the decoded size not smaller than the target
+     *
+     * @param width        The width of the image
+     * @param height       The height of the image
+     * @param targetWidth  The target width
+     * @param targetHeight The target height
+     * @return The inSampleSize to use
+     */
+    public static int calculateInSampleSize(final int width, final int height,
+                                            final int targetWidth, final int targetHeight) {
+        int inSampleSize = 1;
+        while (width / (inSampleSize * 2) >= targetWidth && height / (inSampleSize * 2) >= targetHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    /**
+     * @return The total number of bytes of the compressed images read
+     */
+    public long getBytesRead() {
+        return mBytesRead.get();
+    }
+
+    /**
+     * @return The total number of bytes allocated for the decoded Bitmaps
+     */
+    public long getBytesAllocated() {
+        return mBytesAllocated.get();
+    }
+
+    /**
+     * @return The total number of bytes the Bitmaps would have needed at full resolution
+     */
+    public long getFullResolutionBytes() {
+        return mFullResolutionBytes.get();
+    }
+
+    /**
+     * @return The number of decoded Bitmaps
+     */
+    public long getDecodedCount() {
+        return mDecodedCount.get();
+    }
+
+    /**
+     * The InputStream that counts the bytes of the last pass over a mark-able stream
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private long mCount;
+
+        private CountingInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int read = super.read();
+            if (read >= 0) {
+                mCount++;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            final int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(final long byteCount) throws IOException {
+            final long skipped = super.skip(byteCount);
+            mCount += skipped;
+            return skipped;
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            super.reset();
+            mCount = 0;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package uk.co.massimocarli.restmethod.http.deserializer;
+
+import android.content.Context;
+import android.util.Log;
+import uk.co.massimocarli.restmethod.util.BufferPool;
+import uk.co.massimocarli.restmethod.util.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * This is the body of a response read completely so that it can be accessed more than once
+ * or at random positions. A body smaller than the threshold stays on the heap while a bigger
+ * one is written into a temporary file of the spool directory in the cache directory. In both
+ * cases the data are available as a new InputStream at every call or as a read-only ByteBuffer
+ * that, for the files, is memory mapped so the body never needs the heap.
+ * <p/>
+ * The SpooledBody must be closed to delete its temporary file. The files left by a process
+ * that was killed are deleted the first time a body is spooled in the next process.
+ */
+public final class SpooledBody implements Closeable {
+
+    /*
+     * The Tag for the log
+     */
+    private static final String LOG_TAG = SpooledBody.class.getName();
+
+    /**
+     * The default max number of bytes we keep on the heap
+     */
+    public static final int DEFAULT_THRESHOLD = 256 * 1024;
+
+    /**
+     * The name of the directory of the temporary files into the cache directory
+     */
+    private static final String SPOOL_DIR = "spool";
+
+    /**
+     * The prefix of the temporary files
+     */
+    private static final String SPOOL_FILE_PREFIX = "body_";
+
+    /**
+     * This is true when the files of the previous processes have been deleted
+     */
+    private static boolean sSpoolDirCleaned;
+
+    /**
+     * The data if the body is on the heap
+     */
+    private final byte[] mData;
+
+    /**
+     * The temporary file if the body is on disk
+     */
+    private final File mFile;
+
+    /**
+     * The length of the body
+     */
+    private final long mLength;
+
+    /**
+     * The mapping of the file created at the first request
+     */
+    private ByteBuffer mMappedBuffer;
+
+    /**
+     * This is true when the body has been closed
+     */
+    private volatile boolean mClosed;
+
+    /**
+     * Private constructor
+     */
+    private SpooledBody(final byte[] data, final File file, final long length) {
+        this.mData = data;
+        this.mFile = file;
+        this.mLength = length;
+    }
+
+    /**
+     * This static factory method reads the given InputStream until its end and returns the
+     * SpooledBody with its data. The InputStream is not closed.
+     *
+     * @param inputStream    The InputStream to read
+     * @param expectedLength The expected length of the data or -1 if not known
+     * @param threshold      The max number of bytes to keep on the heap
+     * @param context        The Context for the cache directory
+     * @return The SpooledBody with the data
+     * @throws IOException In case of error reading the data or writing the file
+     */
+    public static SpooledBody spool(final InputStream inputStream, final long expectedLength,
+                                    final int threshold, final Context context) throws IOException {
+        if (threshold < 0 || threshold == Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Threshold not valid " + threshold);
+        }
+        if (expectedLength > threshold) {
+            // We know it's too big so we go directly to the file
+            return spoolToFile(inputStream, null, 0, expectedLength, context);
+        }
+        // We read into the heap at most threshold + 1 bytes to know if the body is bigger
+        final int limit = threshold + 1;
+        byte[] data = new byte[expectedLength >= 0 ? (int) expectedLength
+                : Math.min(BufferPool.DEFAULT_BUFFER_SIZE, limit)];
+        int count = 0;
+        while (count < limit) {
+            if (count == data.length) {
+                // If the length was right we don't need a copy
+                final int next = inputStream.read();
+                if (next == -1) {
+                    return new SpooledBody(data, null, count);
+                }
+                data = Arrays.copyOf(data, (int) Math.min(Math.max((long) data.length * 2, 1024L), limit));
+                data[count++] = (byte) next;
+                continue;
+            }
+            final int read = inputStream.read(data, count, data.length - count);
+            if (read == -1) {
+                return new SpooledBody(Arrays.copyOf(data, count), null, count);
+            }
+            count += read;
+        }
+        return spoolToFile(inputStream, data, count, expectedLength, context);
+    }
+
+    /**
+     * Writes the data already read and the rest of the InputStream into a temporary file
+     */
+    private static SpooledBody spoolToFile(final InputStream inputStream, final byte[] head, final int headLength,
+                                           final long expectedLength, final Context context) throws IOException {
+        final File spoolFile = File.createTempFile(SPOOL_FILE_PREFIX, null, getSpoolDir(context));
+        boolean completed = false;
+        OutputStream output = null;
+        try {
+            output = new FileOutputStream(spoolFile);
+            if (headLength > 0) {
+                output.write(head, 0, headLength);
+            }
+            IOUtils.copy(inputStream, output, BufferPool.bufferSizeFor(expectedLength));
+            output.close();
+            output = null;
+            completed = true;
+            Log.d(LOG_TAG, "Spooled " + spoolFile.length() + " bytes into " + spoolFile);
+            return new SpooledBody(null, spoolFile, spoolFile.length());
+        } finally {
+            IOUtils.closeQuietly(output);
+            if (!completed) {
+                deleteFile(spoolFile);
+            }
+        }
+    }
+
+    /**
+     * Returns the spool directory deleting the files of the previous processes the first time
+     */
+    private static synchronized File getSpoolDir(final Context context) throws IOException {
+        final File spoolDir = new File(context.getCacheDir(), SPOOL_DIR);
+        if (!sSpoolDirCleaned) {
+            sSpoolDirCleaned = true;
+            clean(context);
+        }
+        if (!spoolDir.isDirectory() && !spoolDir.mkdirs()) {
+            throw new IOException("Unable to create " + spoolDir);
+        }
+        return spoolDir;
+    }
+
+    /**
+     * Deletes all the temporary files of the spool directory. It must not be called while a
+     * SpooledBody on disk is in use.
+     *
+     * @param context The Context for the cache directory
+     * @return The number of deleted files
+     */
+    public static int clean(final Context context) {
+        final File[] files = new File(context.getCacheDir(), SPOOL_DIR).listFiles();
+        int deleted = 0;
+        if (files != null) {
+            for (File file : files) {
+                if (deleteFile(file)) {
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * @return The length of the body in bytes
+     */
+    public long getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return True if the body is into a temporary file and false if it's on the heap
+     */
+    public boolean isOnDisk() {
+        return mFile != null;
+    }
+
+    /**
+     * @return The temporary file with the body or null if the body is on the heap
+     */
+    public File getFile() {
+        checkNotClosed();
+        return mFile;
+    }
+
+    /**
+     * Returns a new InputStream for the body at every call so the data can be read many times
+     *
+     * @return A new InputStream from the beginning of the body
+     * @throws IOException In case of error opening the file
+     */
+    public InputStream openStream() throws IOException {
+        checkNotClosed();
+        if (mFile == null) {
+            return new ByteArrayInputStream(mData);
+        }
+        return new BufferedInputStream(new FileInputStream(mFile), BufferPool.bufferSizeFor(mLength));
+    }
+
+    /**
+     * Returns a read-only ByteBuffer with the body. A body on disk is memory mapped the first
+     * time and every call returns an independent view with its own position.
+     *
+     * @return The read-only ByteBuffer with the body
+     * @throws IOException In case of error mapping the file
+     */
+    public synchronized ByteBuffer asByteBuffer() throws IOException {
+        checkNotClosed();
+        if (mFile == null) {
+            return ByteBuffer.wrap(mData).asReadOnlyBuffer();
+        }
+        if (mMappedBuffer == null) {
+            if (mLength > Integer.MAX_VALUE) {
+                throw new IOException("Body of " + mLength + " bytes too big to be mapped");
+            }
+            FileInputStream input = null;
+            try {
+                input = new FileInputStream(mFile);
+                // The mapping remains valid after the close of the channel
+                mMappedBuffer = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, mLength);
+            } finally {
+                IOUtils.closeQuietly(input);
+            }
+        }
+        return mMappedBuffer.duplicate();
+    }
+
+    /**
+     * Deletes the temporary file if any. The streams and the ByteBuffers already returned
+     * can still be read.
+     */
+    @Override
+    public synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mMappedBuffer = null;
+        if (mFile != null) {
+            deleteFile(mFile);
+        }
+    }
+
+    /**
+     * Checks that the body has not been closed
+     */
+    private void checkNotClosed() {
+        if (mClosed) {
+            throw new IllegalStateException("SpooledBody already closed");
+        }
+    }
+
+    /**
+     * Deletes a file logging the failure
+     */
+    private static boolean deleteFile(final File file) {
+        if (!file.delete()) {
+            Log.w(LOG_TAG, "Unable to delete " + file);
+            return false;
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,81 @@
+package uk.co.massimocarli.restmethod.http.deserializer;
+
+import android.content.Context;
+import uk.co.massimocarli.restmethod.rest.ResponseMetadata;
+import uk.co.massimocarli.restmethod.util.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This is the base class for the Deserializers that need to read the body more than once or
+ * at random positions. The body is read into a SpooledBody that stays on the heap if smaller
+ * than the threshold and goes into a temporary file otherwise. The implementations read it as
+ * many InputStreams or as a memory mapped ByteBuffer and the temporary file is deleted when
+ * the read method returns.
+ */
+public abstract class SpoolingDeserializer<E> implements ResponseDeserializer<E> {
+
+    /**
+     * The max number of bytes kept on the heap
+     */
+    private final int mThreshold;
+
+    /**
+     * Creates a SpoolingDeserializer with the default threshold
+     */
+    protected SpoolingDeserializer() {
+        this(SpooledBody.DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Creates a SpoolingDeserializer with the given threshold
+     *
+     * @param threshold The max number of bytes kept on the heap
+     */
+    protected SpoolingDeserializer(final int threshold) {
+        this.mThreshold = threshold;
+    }
+
+    @Override
+    public E realise(final InputStream inputStream, final Context context) throws IOException {
+        return realise(inputStream, -1L, null, context);
+    }
+
+    @Override
+    public E realise(final InputStream inputStream, final ResponseMetadata metadata,
+                     final Context context) throws IOException {
+        return realise(inputStream, metadata.getContentLength(), metadata, context);
+    }
+
+    /**
+     * Spools the body and reads it
+     */
+    private E realise(final InputStream inputStream, final long contentLength,
+                      final ResponseMetadata metadata, final Context context) throws IOException {
+        final SpooledBody body;
+        try {
+            body = SpooledBody.spool(inputStream, contentLength, mThreshold, context);
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+        try {
+            return read(body, metadata, context);
+        } finally {
+            body.close();
+        }
+    }
+
+    /**
+     * This method reads the object of type E from the given SpooledBody. The SpooledBody is
+     * closed when this method returns so it must not be retained.
+     *
+     * @param body     The SpooledBody with the whole response
+     * @param metadata The metadata of the response or null if not available
+     * @param context  The Context
+     * @return The object of type E
+     * @throws java.io.IOException In case of error reading the body
+     */
+    protected abstract E read(SpooledBody body, ResponseMetadata metadata, Context context) throws IOException;
+
+}
@@ -2,6 +2,7 @@ package uk.co.massimocarli.restmethod.http.deserializer;
 
 import android.content.Context;
 import android.text.TextUtils;
+import uk.co.massimocarli.restmethod.rest.ResponseMetadata;
 import uk.co.massimocarli.restmethod.util.IOUtils;
 
 import java.io.IOException;
@@ -9,11 +10,12 @@ import java.io.InputStream;
 
 /**
  * This is the implementation of the Deserializer that reads the value from the Request as
- * a String with a given encoding if any
+ * a String with a given encoding if any. When the response is available the String is
+ * presized from its Content-Length.
  * <p/>
  * Created by Massimo Carli on 05/11/2013.
  */
-public final class StringDeserializer implements Deserializer<String> {
+public final class StringDeserializer implements ResponseDeserializer<String> {
 
     /**
      * The name for this Deserializer implementation
@@ -68,15 +70,29 @@ public final class StringDeserializer implements Deserializer<String> {
 
     @Override
     public String realise(InputStream inputStream, Context context) throws IOException {
+        return realise(inputStream, -1L);
+    }
+
+    @Override
+    public String realise(final InputStream inputStream, final ResponseMetadata metadata,
+                          final Context context) throws IOException {
+        return realise(inputStream, metadata.getContentLength());
+    }
+
+    /**
+     * Reads the String from the stream
+     *
+     * @param inputStream    The stream to read from
+     * @param expectedLength The expected length in bytes or -1 if not known
+     * @return The String
+     * @throws IOException In case of error
+     */
+    private String realise(final InputStream inputStream, final long expectedLength) throws IOException {
         // Here we have to read the data from the inputStream
         // We get the String given the InputStream with the given encoding if
         // present
-        String encodedString = null;
-        if (TextUtils.isEmpty(mEncoding)) {
-            encodedString = IOUtils.toString(inputStream);
-        } else {
-            encodedString = IOUtils.toString(inputStream, mEncoding);
-        }
+        final String encoding = TextUtils.isEmpty(mEncoding) ? IOUtils.DEFAULT_ENCODING : mEncoding;
+        final String encodedString = IOUtils.toStringForLength(inputStream, encoding, expectedLength);
         IOUtils.closeQuietly(inputStream);
         // We return the given String
         return encodedString;
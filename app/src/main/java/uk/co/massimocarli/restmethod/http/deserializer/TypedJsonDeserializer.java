@@ -0,0 +1,68 @@
+package uk.co.massimocarli.restmethod.http.deserializer;
+
+import android.content.Context;
+import android.util.JsonReader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This is the Deserializer that reads the JSON directly into the instances of a class without
+ * creating the JSONObject. The mapping is made by the JsonBinder of the class.
+ */
+public class TypedJsonDeserializer<T> extends JsonStreamDeserializer<T> {
+
+    /**
+     * The JsonBinder for the objects
+     */
+    private final JsonBinder<T> mJsonBinder;
+
+    /**
+     * Private constructor
+     *
+     * @param jsonBinder The JsonBinder for the objects
+     */
+    private TypedJsonDeserializer(final JsonBinder<T> jsonBinder) {
+        this.mJsonBinder = jsonBinder;
+    }
+
+    /**
+     * Creates the TypedJsonDeserializer for a JSON object
+     *
+     * @param type The class of the object
+     * @param <T>  The type of the object
+     * @return The TypedJsonDeserializer for the given class
+     */
+    public static <T> TypedJsonDeserializer<T> of(final Class<T> type) {
+        return new TypedJsonDeserializer<T>(JsonBinder.of(type));
+    }
+
+    /**
+     * Creates the Deserializer for a JSON array of objects
+     *
+     * @param type The class of the objects
+     * @param <T>  The type of the objects
+     * @return The Deserializer for the List of objects of the given class
+     */
+    public static <T> Deserializer<List<T>> listOf(final Class<T> type) {
+        final JsonBinder<T> jsonBinder = JsonBinder.of(type);
+        return new JsonStreamDeserializer<List<T>>() {
+            @Override
+            protected List<T> read(final JsonReader jsonReader, final Context context) throws IOException {
+                final List<T> list = new ArrayList<T>();
+                jsonReader.beginArray();
+                while (jsonReader.hasNext()) {
+                    list.add(jsonBinder.read(jsonReader));
+                }
+                jsonReader.endArray();
+                return list;
+            }
+        };
+    }
+
+    @Override
+    protected T read(final JsonReader jsonReader, final Context context) throws IOException {
+        return mJsonBinder.read(jsonReader);
+    }
+}
@@ -0,0 +1,523 @@
+package uk.co.massimocarli.restmethod.http.download;
+
+import android.content.Context;
+import android.util.Log;
+import uk.co.massimocarli.restmethod.http.urlconnection.UrlConnectionResponseMetadata;
+import uk.co.massimocarli.restmethod.http.urlconnection.UrlConnectionUtility;
+import uk.co.massimocarli.restmethod.rest.CancellationHandle;
+import uk.co.massimocarli.restmethod.rest.ResponseMetadata;
+import uk.co.massimocarli.restmethod.rest.RestClientConf;
+import uk.co.massimocarli.restmethod.rest.RestCommand;
+import uk.co.massimocarli.restmethod.rest.RestCommandBuilder;
+import uk.co.massimocarli.restmethod.rest.RestCommandExecutor;
+import uk.co.massimocarli.restmethod.rest.RestCommandResult;
+import uk.co.massimocarli.restmethod.util.BufferPool;
+import uk.co.massimocarli.restmethod.util.ContentRangeUtils;
+import uk.co.massimocarli.restmethod.util.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This is the class that downloads a File with more connections in parallel. A first request
+ * with <code>Range: bytes=0-0</code> tells if the server supports ranges and the length of the
+ * File. Then the File is preallocated and split into segments that are downloaded concurrently
+ * and written at their offset with the positional writes of the FileChannel. A segment that
+ * fails, also with a 5xx, 408 or 429 response, is retried from the last byte written. Any other
+ * response, or a Content-Range that doesn't match, means the resource has changed and the
+ * download fails without retries.
+ * <p/>
+ * If the server doesn't support ranges the File is downloaded with the response of the first
+ * request. The CancellationHandle of the RestCommand stops all the segments.
+ */
+public class SegmentedDownloader {
+
+    /**
+     * The Tag for the log of this class
+     */
+    private static final String TAG_LOG = SegmentedDownloader.class.getName();
+
+    /**
+     * The default number of segments
+     */
+    public static final int DEFAULT_SEGMENTS = 4;
+
+    /**
+     * The default min size of a segment
+     */
+    public static final long DEFAULT_MIN_SEGMENT_SIZE = 256 * 1024;
+
+    /**
+     * The default number of retries for a single segment
+     */
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    /*
+     * The headers we use
+     */
+    private static final String RANGE_HEADER = "Range";
+    private static final String IF_RANGE_HEADER = "If-Range";
+    private static final String CONTENT_RANGE_HEADER = "Content-Range";
+    private static final String ETAG_HEADER = "ETag";
+    private static final String LAST_MODIFIED_HEADER = "Last-Modified";
+    private static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+    private static final String IDENTITY_ENCODING = "identity";
+
+    /**
+     * The Http status code for partial content
+     */
+    private static final int HTTP_PARTIAL_CONTENT = 206;
+
+    /**
+     * The Http status code of a server that limits the requests
+     */
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * The base delay in milliseconds before a retry. It's doubled at every failure
+     */
+    private static final long RETRY_BASE_DELAY = 500L;
+
+    /**
+     * The suffix of the temporary file
+     */
+    private static final String TMP_SUFFIX = "_tmp";
+
+    /**
+     * The Configuration for the connections
+     */
+    private final RestClientConf mRestClientConf;
+
+    /**
+     * The max number of segments
+     */
+    private final int mSegments;
+
+    /**
+     * The min size of a segment
+     */
+    private final long mMinSegmentSize;
+
+    /**
+     * The max number of consecutive failures of a segment
+     */
+    private final int mMaxRetries;
+
+    /**
+     * The private constructor
+     */
+    private SegmentedDownloader(final RestClientConf restClientConf, final int segments,
+                                final long minSegmentSize, final int maxRetries) {
+        this.mRestClientConf = restClientConf;
+        this.mSegments = segments;
+        this.mMinSegmentSize = minSegmentSize;
+        this.mMaxRetries = maxRetries;
+    }
+
+    /**
+     * This version of the static Factory method returns a new instance at every call
+     *
+     * @param restClientConf The configuration for the connections
+     * @return A new instance of the SegmentedDownloader
+     */
+    public static SegmentedDownloader create(final RestClientConf restClientConf) {
+        return new SegmentedDownloader(restClientConf, DEFAULT_SEGMENTS, DEFAULT_MIN_SEGMENT_SIZE,
+                                       DEFAULT_MAX_RETRIES);
+    }
+
+    /**
+     * This version of the static Factory method returns a new instance at every call
+     *
+     * @return A new instance of the SegmentedDownloader with default configuration
+     */
+    public static SegmentedDownloader create() {
+        return create(RestClientConf.getDefault());
+    }
+
+    /**
+     * Returns a copy of this SegmentedDownloader with the given max number of segments
+     *
+     * @param segments The max number of segments and so of connections
+     * @return The new SegmentedDownloader
+     */
+    public SegmentedDownloader withSegments(final int segments) {
+        if (segments <= 0) {
+            throw new IllegalArgumentException("The number of segments must be positive");
+        }
+        return new SegmentedDownloader(mRestClientConf, segments, mMinSegmentSize, mMaxRetries);
+    }
+
+    /**
+     * Returns a copy of this SegmentedDownloader with the given min size of a segment. Small
+     * Files are split in less segments
+     *
+     * @param minSegmentSize The min size of a segment
+     * @return The new SegmentedDownloader
+     */
+    public SegmentedDownloader withMinSegmentSize(final long minSegmentSize) {
+        return new SegmentedDownloader(mRestClientConf, mSegments, Math.max(1L, minSegmentSize), mMaxRetries);
+    }
+
+    /**
+     * Returns a copy of this SegmentedDownloader with the given number of retries
+     *
+     * @param maxRetries The max number of consecutive failures of a segment
+     * @return The new SegmentedDownloader
+     */
+    public SegmentedDownloader withMaxRetries(final int maxRetries) {
+        return new SegmentedDownloader(mRestClientConf, mSegments, mMinSegmentSize, maxRetries);
+    }
+
+    /**
+     * This method downloads the resource of the given GET RestCommand into the given File
+     *
+     * @param context     The Context
+     * @param restCommand The GET RestCommand for the resource
+     * @param file        The File to save
+     * @return The RestCommandResult with the File or a null result in case of Http error
+     * @throws RestCommandExecutor.RestCommandException In case of error. The File is not created
+     */
+    public RestCommandResult<File> download(final Context context, final RestCommand restCommand,
+                                            final File file) throws RestCommandExecutor.RestCommandException {
+        final File tmpFile = new File(file.getAbsolutePath() + TMP_SUFFIX);
+        final File containerDir = file.getParentFile();
+        if (containerDir != null && !containerDir.exists()) {
+            containerDir.mkdirs();
+        }
+        HttpURLConnection probeConnection = null;
+        CancellationHandle.OnCancelListener probeListener = null;
+        RandomAccessFile randomAccessFile = null;
+        boolean completed = false;
+        try {
+            final RestCommand probeCommand = rangeCommand(restCommand, "bytes=0-0", null);
+            probeConnection = openConnection(context, probeCommand);
+            probeListener = abortOnCancel(restCommand, probeConnection);
+            final ResponseMetadata probeMetadata = UrlConnectionResponseMetadata.from(probeConnection);
+            if (!probeMetadata.isSuccessful()) {
+                return RestCommandResult.get(null, probeMetadata);
+            }
+            randomAccessFile = new RandomAccessFile(tmpFile, "rw");
+            final FileChannel channel = randomAccessFile.getChannel();
+            final long totalLength = ContentRangeUtils.parseTotalLength(probeMetadata.getHeader(CONTENT_RANGE_HEADER));
+            if (probeMetadata.getStatusCode() == HTTP_PARTIAL_CONTENT && totalLength < 0) {
+                throw new IOException("Length of " + restCommand.getUrl() + " not available");
+            } else if (probeMetadata.getStatusCode() != HTTP_PARTIAL_CONTENT) {
+                // No support for ranges so the response contains all the File
+                Log.d(TAG_LOG, "Ranges not supported for " + restCommand.getUrl());
+                randomAccessFile.setLength(0);
+                writeFully(probeConnection.getInputStream(), channel, 0L, -1L);
+            } else {
+                IOUtils.closeQuietly(probeConnection.getInputStream());
+                probeConnection.disconnect();
+                probeConnection = null;
+                String validator = probeMetadata.getHeader(ETAG_HEADER);
+                if (validator == null || validator.startsWith("W/")) {
+                    validator = probeMetadata.getHeader(LAST_MODIFIED_HEADER);
+                }
+                // We reserve the space of the File
+                randomAccessFile.setLength(totalLength);
+                downloadSegments(context, restCommand, validator, channel, totalLength);
+            }
+            channel.force(false);
+            IOUtils.closeQuietly(randomAccessFile);
+            randomAccessFile = null;
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Unable to rename " + tmpFile + " to " + file);
+            }
+            completed = true;
+            return RestCommandResult.get(file, HttpURLConnection.HTTP_OK, "OK");
+        } catch (IOException e) {
+            if (restCommand.isCancelled()) {
+                Log.d(TAG_LOG, "Download cancelled " + restCommand.getUrl());
+                throw new RestCommandExecutor.CancelledException();
+            }
+            Log.e(TAG_LOG, "Error downloading " + restCommand.getUrl(), e);
+            throw new RestCommandExecutor.RestCommandException("Error downloading " + restCommand.getUrl(), e);
+        } finally {
+            removeListener(restCommand, probeListener);
+            if (probeConnection != null) {
+                probeConnection.disconnect();
+            }
+            IOUtils.closeQuietly(randomAccessFile);
+            if (!completed) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Downloads all the segments in parallel
+     */
+    private void downloadSegments(final Context context, final RestCommand restCommand, final String validator,
+                                  final FileChannel channel, final long totalLength) throws IOException {
+        final int segments = (int) Math.max(1L, Math.min(mSegments, totalLength / mMinSegmentSize));
+        final long segmentSize = (totalLength + segments - 1) / segments;
+        Log.d(TAG_LOG, "Downloading " + totalLength + " bytes in " + segments + " segments");
+        final ExecutorService executor = Executors.newFixedThreadPool(segments);
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>(segments);
+        try {
+            for (long first = 0; first < totalLength; first += segmentSize) {
+                final long last = Math.min(first + segmentSize, totalLength) - 1;
+                futures.add(executor.submit(new Segment(context, restCommand, validator, channel, first, last)));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Download interrupted");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Error downloading segment: " + cause);
+        } finally {
+            // The other segments are useless if one fails
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * The task that downloads a single segment
+     */
+    private final class Segment implements Callable<Void> {
+
+        private final Context mContext;
+        private final RestCommand mRestCommand;
+        private final String mValidator;
+        private final FileChannel mChannel;
+        private final long mFirst;
+        private final long mLast;
+
+        private Segment(final Context context, final RestCommand restCommand, final String validator,
+                        final FileChannel channel, final long first, final long last) {
+            this.mContext = context;
+            this.mRestCommand = restCommand;
+            this.mValidator = validator;
+            this.mChannel = channel;
+            this.mFirst = first;
+            this.mLast = last;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            long position = mFirst;
+            int failures = 0;
+            while (position <= mLast) {
+                HttpURLConnection connection = null;
+                CancellationHandle.OnCancelListener listener = null;
+                final long start = position;
+                try {
+                    final RestCommand segmentCommand = rangeCommand(mRestCommand, "bytes=" + start + "-" + mLast,
+                                                                    mValidator);
+                    connection = openConnection(mContext, segmentCommand);
+                    listener = abortOnCancel(mRestCommand, connection);
+                    final int responseCode = connection.getResponseCode();
+                    if (isTransient(responseCode)) {
+                        // The server could answer the next time so we retry
+                        throw new IOException("Response " + responseCode + " for segment " + start + "-" + mLast);
+                    }
+                    if (responseCode != HTTP_PARTIAL_CONTENT
+                            || ContentRangeUtils.parseRangeStart(connection.getHeaderField(CONTENT_RANGE_HEADER))
+                            != start) {
+                        // The resource has changed or the server stopped supporting ranges
+                        throw new ResourceChangedException("Unexpected response " + responseCode + " for segment "
+                                                                   + start + "-" + mLast);
+                    }
+                    position = writeFully(connection.getInputStream(), mChannel, start, mLast - start + 1);
+                    if (position <= mLast) {
+                        throw new IOException("Segment ended at " + position + " instead of " + (mLast + 1));
+                    }
+                } catch (ResourceChangedException e) {
+                    throw e;
+                } catch (IOException e) {
+                    // We keep what we have already written
+                    position = Math.max(position, start + lastWritten(e));
+                    if (position > start) {
+                        // The attempt wrote some bytes so only the failures after them are counted
+                        failures = 0;
+                    }
+                    failures++;
+                    if (failures > mMaxRetries || Thread.currentThread().isInterrupted()
+                            || mRestCommand.isCancelled()) {
+                        throw e;
+                    }
+                    Log.w(TAG_LOG, "Error downloading segment " + mFirst + "-" + mLast + " at " + position
+                            + ". Retry " + failures, e);
+                    waitBeforeRetry(failures);
+                } finally {
+                    removeListener(mRestCommand, listener);
+                    if (connection != null) {
+                        connection.disconnect();
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Copies the data of the stream into the channel at the given position
+     *
+     * @param inputStream The stream to read from. It's closed at the end
+     * @param channel     The channel to write to
+     * @param position    The position of the first byte
+     * @param maxLength   The max number of bytes to read or -1 for all
+     * @return The position after the last byte written
+     * @throws IOException In case of error. The exception is a PartialWriteException with the
+     *                     bytes written if some bytes were written before the error
+     */
+    private static long writeFully(final InputStream inputStream, final FileChannel channel,
+                                   final long position, final long maxLength) throws IOException {
+        final int bufferSize = BufferPool.bufferSizeFor(maxLength);
+        final byte[] bufferArray = BufferPool.acquireBytes(bufferSize);
+        long current = position;
+        try {
+            final ByteBuffer buffer = ByteBuffer.wrap(bufferArray, 0, bufferSize);
+            int read;
+            while ((maxLength < 0 || current - position < maxLength)
+                    && (read = inputStream.read(bufferArray, 0,
+                                                (int) (maxLength < 0 ? bufferSize
+                                                        : Math.min(bufferSize, maxLength - (current - position)))))
+                    != -1) {
+                buffer.clear();
+                buffer.limit(read);
+                while (buffer.hasRemaining()) {
+                    current += channel.write(buffer, current);
+                }
+            }
+            return current;
+        } catch (IOException e) {
+            if (current > position) {
+                throw new PartialWriteException(e, current - position);
+            }
+            throw e;
+        } finally {
+            BufferPool.releaseBytes(bufferArray);
+            IOUtils.closeQuietly(inputStream);
+        }
+    }
+
+    /**
+     * @return The number of bytes written before the given exception
+     */
+    private static long lastWritten(final IOException e) {
+        return e instanceof PartialWriteException ? ((PartialWriteException) e).mWritten : 0L;
+    }
+
+    /**
+     * Creates a copy of the RestCommand for the given range
+     */
+    private static RestCommand rangeCommand(final RestCommand restCommand, final String range,
+                                            final String validator) {
+        // The ranges must be on the bytes of the file and not on the compressed ones
+        final RestCommandBuilder builder = restCommand.newBuilder()
+                .addHeader(ACCEPT_ENCODING_HEADER, IDENTITY_ENCODING)
+                .addHeader(RANGE_HEADER, range);
+        if (validator != null) {
+            builder.addHeader(IF_RANGE_HEADER, validator);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Opens the connection for the given RestCommand
+     */
+    private HttpURLConnection openConnection(final Context context, final RestCommand restCommand) throws IOException {
+        final HttpURLConnection connection = UrlConnectionUtility.fromRestCommand(context, restCommand);
+        if (mRestClientConf != null) {
+            connection.setConnectTimeout((int) mRestClientConf.getConnectionTimeout());
+            connection.setReadTimeout((int) mRestClientConf.getSoTimeout());
+        }
+        return connection;
+    }
+
+    /**
+     * Disconnects the given connection when the RestCommand is cancelled
+     *
+     * @return The listener to remove at the end or null if the RestCommand cannot be cancelled
+     */
+    private static CancellationHandle.OnCancelListener abortOnCancel(final RestCommand restCommand,
+                                                                     final HttpURLConnection connection) {
+        final CancellationHandle cancellationHandle = restCommand.getCancellationHandle();
+        if (cancellationHandle == null) {
+            return null;
+        }
+        final CancellationHandle.OnCancelListener listener = new CancellationHandle.OnCancelListener() {
+            @Override
+            public void onCancel() {
+                connection.disconnect();
+            }
+        };
+        cancellationHandle.addOnCancelListener(listener);
+        return listener;
+    }
+
+    /**
+     * Removes the listener added with abortOnCancel
+     */
+    private static void removeListener(final RestCommand restCommand,
+                                       final CancellationHandle.OnCancelListener listener) {
+        if (listener != null) {
+            restCommand.getCancellationHandle().removeOnCancelListener(listener);
+        }
+    }
+
+    /**
+     * @return True if the response code is for an error of the server that could not happen again
+     */
+    private static boolean isTransient(final int responseCode) {
+        return responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR
+                || responseCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+                || responseCode == HTTP_TOO_MANY_REQUESTS;
+    }
+
+    /**
+     * Waits before the next retry with an exponential backoff
+     */
+    private static void waitBeforeRetry(final int failures) throws IOException {
+        try {
+            Thread.sleep(RETRY_BASE_DELAY << Math.min(failures - 1, 5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Download interrupted");
+        }
+    }
+
+    /**
+     * The exception for the errors after some bytes have been written
+     */
+    private static final class PartialWriteException extends IOException {
+
+        private final long mWritten;
+
+        private PartialWriteException(final IOException cause, final long written) {
+            super(cause.getMessage());
+            initCause(cause);
+            this.mWritten = written;
+        }
+    }
+
+    /**
+     * The exception when the resource changes during the download. It's not retried
+     */
+    private static final class ResourceChangedException extends IOException {
+
+        private ResourceChangedException(final String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package uk.co.massimocarli.restmethod.http.upload;
+
+import uk.co.massimocarli.restmethod.http.https.KeyStoreAdapter;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This is the description of a File to upload in chunks to a given upload Url using the
+ * ResumableUploader. The same upload (same url and same File) is resumed from the last offset
+ * acknowledged by the server.
+ */
+public final class ResumableUpload {
+
+    /**
+     * The default size of a chunk is 256KB
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * The default number of retries for a single chunk
+     */
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    /**
+     * The Url of the upload session
+     */
+    private final String mUploadUrl;
+
+    /**
+     * The File to upload
+     */
+    private final File mFile;
+
+    /**
+     * The Content-Type of the File
+     */
+    private String mContentType = "application/octet-stream";
+
+    /**
+     * The size of every chunk
+     */
+    private int mChunkSize = DEFAULT_CHUNK_SIZE;
+
+    /**
+     * The max number of consecutive failures before giving up
+     */
+    private int mMaxRetries = DEFAULT_MAX_RETRIES;
+
+    /**
+     * The additional headers for every request
+     */
+    private final Map<String, String> mHeaders = new HashMap<String, String>();
+
+    /**
+     * This is the Adapter for the optional certificate
+     */
+    private KeyStoreAdapter mKeyStoreAdapter;
+
+    /**
+     * Creates a ResumableUpload for the given url and File
+     *
+     * @param uploadUrl The url of the upload session
+     * @param file      The File to upload
+     */
+    private ResumableUpload(final String uploadUrl, final File file) {
+        this.mUploadUrl = uploadUrl;
+        this.mFile = file;
+    }
+
+    /**
+     * Static factory method for a ResumableUpload
+     *
+     * @param uploadUrl The url of the upload session
+     * @param file      The File to upload
+     * @return The ResumableUpload for the given url and File
+     */
+    public static ResumableUpload create(final String uploadUrl, final File file) {
+        return new ResumableUpload(uploadUrl, file);
+    }
+
+    /**
+     * Sets the Content-Type of the File to upload
+     *
+     * @param contentType The Content-Type of the File
+     * @return The ResumableUpload itself to manage chaining
+     */
+    public ResumableUpload withContentType(final String contentType) {
+        this.mContentType = contentType;
+        return this;
+    }
+
+    /**
+     * Sets the size of the chunks
+     *
+     * @param chunkSize The size in bytes of every chunk
+     * @return The ResumableUpload itself to manage chaining
+     */
+    public ResumableUpload withChunkSize(final int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("The chunk size must be positive!");
+        }
+        this.mChunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Sets the number of consecutive failures we tolerate before giving up
+     *
+     * @param maxRetries The max number of retries
+     * @return The ResumableUpload itself to manage chaining
+     */
+    public ResumableUpload withMaxRetries(final int maxRetries) {
+        this.mMaxRetries = maxRetries;
+        return this;
+    }
+
+    /**
+     * Adds an header to every request of the upload
+     *
+     * @param name  The name of the header
+     * @param value The value of the header
+     * @return The ResumableUpload itself to manage chaining
+     */
+    public ResumableUpload addHeader(final String name, final String value) {
+        this.mHeaders.put(name, value);
+        return this;
+    }
+
+    /**
+     * Sets the KeyStoreAdapter to manage certificates
+     *
+     * @param keyStoreAdapter The KeyStoreAdapter for certificate management
+     * @return The ResumableUpload itself to manage chaining
+     */
+    public ResumableUpload isSecure(final KeyStoreAdapter keyStoreAdapter) {
+        this.mKeyStoreAdapter = keyStoreAdapter;
+        return this;
+    }
+
+    /**
+     * @return The Url of the upload session
+     */
+    public String getUploadUrl() {
+        return mUploadUrl;
+    }
+
+    /**
+     * @return The File to upload
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return The Content-Type of the File
+     */
+    public String getContentType() {
+        return mContentType;
+    }
+
+    /**
+     * @return The size of every chunk
+     */
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    /**
+     * @return The max number of consecutive failures
+     */
+    public int getMaxRetries() {
+        return mMaxRetries;
+    }
+
+    /**
+     * @return The additional headers
+     */
+    public Map<String, String> getHeaders() {
+        return mHeaders;
+    }
+
+    /**
+     * @return The KeyStoreAdapter if any
+     */
+    public KeyStoreAdapter getKeyStoreAdapter() {
+        return mKeyStoreAdapter;
+    }
+
+}
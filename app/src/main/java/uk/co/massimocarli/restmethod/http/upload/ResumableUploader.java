@@ -0,0 +1,338 @@
+package uk.co.massimocarli.restmethod.http.upload;
+
+import android.content.Context;
+import android.util.Log;
+import uk.co.massimocarli.restmethod.http.deserializer.Deserializer;
+import uk.co.massimocarli.restmethod.http.deserializer.ResponseDeserializerAdapter;
+import uk.co.massimocarli.restmethod.http.urlconnection.UrlConnectionResponseMetadata;
+import uk.co.massimocarli.restmethod.http.urlconnection.UrlConnectionUtility;
+import uk.co.massimocarli.restmethod.rest.ResponseMetadata;
+import uk.co.massimocarli.restmethod.rest.RestClientConf;
+import uk.co.massimocarli.restmethod.rest.RestCommand;
+import uk.co.massimocarli.restmethod.rest.RestCommandBuilder;
+import uk.co.massimocarli.restmethod.rest.RestCommandExecutor;
+import uk.co.massimocarli.restmethod.rest.RestCommandResult;
+import uk.co.massimocarli.restmethod.util.BufferPool;
+import uk.co.massimocarli.restmethod.util.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.util.Map;
+
+/**
+ * This is the class that uploads a File in chunks so that a failure doesn't force the upload to
+ * restart from zero. The protocol is the one of the resumable uploads:
+ * <ul>
+ * <li>every chunk is sent with a PUT to the upload url with the header
+ * <code>Content-Range: bytes first-last/total</code></li>
+ * <li>the server answers <code>308</code> with the header <code>Range: bytes=0-last</code>
+ * for the bytes it has acknowledged or with a 2xx code when the upload is complete</li>
+ * <li>the status of the upload is asked with an empty PUT with the header
+ * <code>Content-Range: bytes *&#47;total</code></li>
+ * </ul>
+ * The acknowledged offset is persisted on disk after every chunk so the upload can resume after
+ * an error or the restart of the process.
+ * <p/>
+ * A 308 that doesn't acknowledge more bytes after a chunk, or that still asks for bytes when the
+ * server has all the File, is a failure as an error of the connection. The number of requests
+ * that don't acknowledge new bytes is also limited so a server that never completes the upload
+ * cannot keep the thread forever. An upload that is still advancing is never stopped.
+ */
+public class ResumableUploader {
+
+    /**
+     * The Tag for the log of this class
+     */
+    private static final String TAG_LOG = ResumableUploader.class.getName();
+
+    /**
+     * The Http Status code the server uses to say that the upload is not complete
+     */
+    public static final int HTTP_RESUME_INCOMPLETE = 308;
+
+    /**
+     * The header for the range of the bytes we send
+     */
+    public static final String CONTENT_RANGE_HEADER = "Content-Range";
+
+    /**
+     * The header for the range of the bytes acknowledged by the server
+     */
+    public static final String RANGE_HEADER = "Range";
+
+    /**
+     * The base delay in milliseconds before a retry. It's doubled at every failure
+     */
+    private static final long RETRY_BASE_DELAY = 500L;
+
+    /*
+     * The requests allowed for every failure without progress: the chunk and a status query
+     */
+    private static final int REQUESTS_PER_CHUNK = 2;
+
+    /**
+     * The Configuration for the connections
+     */
+    private final RestClientConf mRestClientConf;
+
+    /**
+     * The private constructor
+     *
+     * @param restClientConf The configuration for the connections
+     */
+    private ResumableUploader(final RestClientConf restClientConf) {
+        this.mRestClientConf = restClientConf;
+    }
+
+    /**
+     * This version of the static Factory method returns a new instance at every call
+     *
+     * @param restClientConf The configuration for the connections
+     * @return A new instance of the ResumableUploader
+     */
+    public static ResumableUploader create(final RestClientConf restClientConf) {
+        return new ResumableUploader(restClientConf);
+    }
+
+    /**
+     * This version of the static Factory method returns a new instance at every call
+     *
+     * @return A new instance of the ResumableUploader with default configuration
+     */
+    public static ResumableUploader create() {
+        return new ResumableUploader(RestClientConf.getDefault());
+    }
+
+    /**
+     * This method uploads the File of the given ResumableUpload starting from the last offset
+     * acknowledged by the server if any.
+     *
+     * @param context      The Context
+     * @param upload       The upload to execute
+     * @param deserializer The Deserializer for the final response of the server
+     * @param <T>          The type of the result
+     * @return The RestCommandResult for the final response of the server
+     * @throws RestCommandExecutor.RestCommandException In case the upload fails more than the
+     *                                                  max number of retries or too many requests
+     *                                                  don't acknowledge new bytes
+     */
+    public <T> RestCommandResult<T> upload(final Context context, final ResumableUpload upload,
+                                           final Deserializer<? extends T> deserializer)
+            throws RestCommandExecutor.RestCommandException {
+        final File file = upload.getFile();
+        final long totalLength = file.length();
+        final UploadStateStore stateStore = new UploadStateStore(context, upload);
+        RandomAccessFile source = null;
+        try {
+            source = new RandomAccessFile(file, "r");
+        } catch (IOException e) {
+            Log.e(TAG_LOG, "Error opening " + file, e);
+            throw new RestCommandExecutor.RestCommandException("Error opening " + file, e);
+        }
+        final byte[] buffer = BufferPool.acquireBytes(BufferPool.DEFAULT_BUFFER_SIZE);
+        try {
+            long offset = stateStore.readOffset();
+            // If we have a previous state we ask the server because it could have received
+            // more than what we know
+            boolean queryStatus = offset > 0;
+            if (offset < 0) {
+                offset = 0;
+            }
+            int failures = 0;
+            // The requests since the server acknowledged more bytes than ever before. The offset
+            // can go back so the failures alone don't stop a server that loses what it received
+            final int maxStalledRequests = REQUESTS_PER_CHUNK * (upload.getMaxRetries() + 2);
+            long highestOffset = offset;
+            int stalledRequests = 0;
+            while (true) {
+                if (++stalledRequests > maxStalledRequests) {
+                    Log.e(TAG_LOG, "Too many requests without progress uploading " + file + " at offset " + offset);
+                    throw new RestCommandExecutor.RestCommandException("Too many requests uploading " + file, null);
+                }
+                HttpURLConnection connection = null;
+                final boolean sendChunk = !queryStatus && offset < totalLength;
+                try {
+                    if (!sendChunk) {
+                        connection = openConnection(context, upload, "bytes */" + totalLength);
+                        connection.setFixedLengthStreamingMode(0);
+                        connection.getOutputStream().close();
+                    } else {
+                        final int chunkLength = (int) Math.min(upload.getChunkSize(), totalLength - offset);
+                        final String contentRange = "bytes " + offset + "-" + (offset + chunkLength - 1)
+                                + "/" + totalLength;
+                        connection = openConnection(context, upload, contentRange);
+                        connection.setFixedLengthStreamingMode(chunkLength);
+                        final OutputStream output = connection.getOutputStream();
+                        try {
+                            writeChunk(source, offset, chunkLength, buffer, output);
+                        } finally {
+                            output.close();
+                        }
+                    }
+                    final int responseCode = connection.getResponseCode();
+                    if (responseCode == HTTP_RESUME_INCOMPLETE) {
+                        final long acknowledged = parseAcknowledgedOffset(connection.getHeaderField(RANGE_HEADER));
+                        if (acknowledged > totalLength) {
+                            throw new IOException("Server acknowledged " + acknowledged + " bytes of "
+                                                          + totalLength + " uploading " + file);
+                        }
+                        final boolean progress = acknowledged > offset;
+                        if (acknowledged > highestOffset) {
+                            highestOffset = acknowledged;
+                            stalledRequests = 0;
+                        }
+                        offset = acknowledged;
+                        stateStore.writeOffset(offset);
+                        queryStatus = false;
+                        Log.d(TAG_LOG, "Server acknowledged " + offset + "/" + totalLength + " bytes");
+                        if (offset >= totalLength) {
+                            // The server has all the bytes but it didn't complete the upload
+                            throw new IOException("Upload of " + file + " not completed by the server");
+                        }
+                        if (sendChunk && !progress) {
+                            throw new IOException("No progress uploading " + file + " at offset " + offset);
+                        }
+                        if (progress) {
+                            failures = 0;
+                        }
+                    } else if (responseCode >= HttpURLConnection.HTTP_OK
+                            && responseCode < HttpURLConnection.HTTP_MULT_CHOICE) {
+                        // The upload is complete
+                        stateStore.clear();
+                        final ResponseMetadata metadata = UrlConnectionResponseMetadata.from(connection);
+                        final T result = ResponseDeserializerAdapter.realise(deserializer, connection.getInputStream(),
+                                                                             metadata, context);
+                        return RestCommandResult.get(result, metadata);
+                    } else if (responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                        // This could be temporary so we retry
+                        throw new IOException("Server error " + responseCode + " uploading " + file);
+                    } else {
+                        // The upload session is not valid anymore so we cannot resume it
+                        stateStore.clear();
+                        final ResponseMetadata metadata = UrlConnectionResponseMetadata.from(connection);
+                        final InputStream errorStream = connection.getErrorStream();
+                        final T result = errorStream != null
+                                ? ResponseDeserializerAdapter.realise(deserializer, errorStream, metadata, context)
+                                : null;
+                        return RestCommandResult.get(result, metadata);
+                    }
+                } catch (IOException e) {
+                    failures++;
+                    if (failures > upload.getMaxRetries()) {
+                        Log.e(TAG_LOG, "Error uploading " + file + " at offset " + offset, e);
+                        throw new RestCommandExecutor.RestCommandException("Error uploading " + file, e);
+                    }
+                    Log.w(TAG_LOG, "Error uploading " + file + " at offset " + offset + ". Retry " + failures, e);
+                    // We don't know what the server received so we ask for it
+                    queryStatus = true;
+                    waitBeforeRetry(failures);
+                } finally {
+                    if (connection != null) {
+                        connection.disconnect();
+                    }
+                }
+            }
+        } finally {
+            BufferPool.releaseBytes(buffer);
+            IOUtils.closeQuietly(source);
+        }
+    }
+
+    /**
+     * Creates the connection for a request of the upload
+     *
+     * @param context      The Context
+     * @param upload       The upload
+     * @param contentRange The value for the Content-Range header
+     * @return The HttpURLConnection ready for the body
+     * @throws IOException In case of error
+     */
+    private HttpURLConnection openConnection(final Context context, final ResumableUpload upload,
+                                             final String contentRange) throws IOException {
+        final RestCommandBuilder builder = RestCommandBuilder.put(upload.getUploadUrl())
+                .addHeader("Content-Type", upload.getContentType())
+                .addHeader(CONTENT_RANGE_HEADER, contentRange);
+        for (Map.Entry<String, String> header : upload.getHeaders().entrySet()) {
+            builder.addHeader(header.getKey(), header.getValue());
+        }
+        if (upload.getKeyStoreAdapter() != null) {
+            builder.isSecure(upload.getKeyStoreAdapter());
+        }
+        final RestCommand restCommand = builder.build();
+        final HttpURLConnection connection = UrlConnectionUtility.fromRestCommand(context, restCommand);
+        // The 308 code is not a redirect for this protocol
+        connection.setInstanceFollowRedirects(false);
+        if (mRestClientConf != null) {
+            connection.setConnectTimeout((int) mRestClientConf.getConnectionTimeout());
+            connection.setReadTimeout((int) mRestClientConf.getSoTimeout());
+        }
+        return connection;
+    }
+
+    /**
+     * Copies a chunk of the File into the OutputStream
+     *
+     * @param source      The File to read from
+     * @param offset      The offset of the chunk
+     * @param chunkLength The length of the chunk
+     * @param buffer      The buffer to use for the copy
+     * @param output      The OutputStream to write to
+     * @throws IOException In case of error
+     */
+    private static void writeChunk(final RandomAccessFile source, final long offset, final int chunkLength,
+                                   final byte[] buffer, final OutputStream output) throws IOException {
+        source.seek(offset);
+        int remaining = chunkLength;
+        while (remaining > 0) {
+            final int read = source.read(buffer, 0, Math.min(buffer.length, remaining));
+            if (read == -1) {
+                throw new IOException("Unexpected end of file at " + (offset + chunkLength - remaining));
+            }
+            output.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    /**
+     * Reads the offset acknowledged by the server from the Range header
+     *
+     * @param rangeHeader The value of the Range header as bytes=0-last
+     * @return The first byte not acknowledged by the server
+     * @throws IOException If the header is not valid
+     */
+    static long parseAcknowledgedOffset(final String rangeHeader) throws IOException {
+        if (rangeHeader == null) {
+            // The server didn't receive anything
+            return 0L;
+        }
+        final int dashIndex = rangeHeader.lastIndexOf('-');
+        if (dashIndex < 0) {
+            throw new IOException("Range header not valid " + rangeHeader);
+        }
+        try {
+            return Long.parseLong(rangeHeader.substring(dashIndex + 1).trim()) + 1;
+        } catch (NumberFormatException nfe) {
+            throw new IOException("Range header not valid " + rangeHeader);
+        }
+    }
+
+    /**
+     * Waits before the next retry with an exponential backoff
+     *
+     * @param failures The number of consecutive failures
+     * @throws RestCommandExecutor.RestCommandException If the thread is interrupted while waiting
+     */
+    private static void waitBeforeRetry(final int failures) throws RestCommandExecutor.RestCommandException {
+        try {
+            Thread.sleep(RETRY_BASE_DELAY << Math.min(failures - 1, 5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RestCommandExecutor.RestCommandException("Upload interrupted", e);
+        }
+    }
+
+}
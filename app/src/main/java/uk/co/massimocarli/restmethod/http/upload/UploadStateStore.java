@@ -0,0 +1,138 @@
+package uk.co.massimocarli.restmethod.http.upload;
+
+import android.content.Context;
+import android.util.Log;
+import uk.co.massimocarli.restmethod.util.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * This class persists the progress of the ResumableUpload on disk so that an upload can be
+ * resumed even after the restart of the process. Every upload has its own small file into
+ * the private directory of the application.
+ */
+final class UploadStateStore {
+
+    /**
+     * The Tag for the Log
+     */
+    private static final String TAG_LOG = UploadStateStore.class.getName();
+
+    /**
+     * The name of the directory for the states
+     */
+    private static final String STATE_DIR = "resumable_uploads";
+
+    /*
+     * The keys of the properties
+     */
+    private static final String URL_KEY = "url";
+    private static final String PATH_KEY = "path";
+    private static final String LENGTH_KEY = "length";
+    private static final String LAST_MODIFIED_KEY = "lastModified";
+    private static final String OFFSET_KEY = "offset";
+
+    /**
+     * The File with the state of the upload
+     */
+    private final File mStateFile;
+
+    /**
+     * The upload whose state is managed by this store
+     */
+    private final ResumableUpload mUpload;
+
+    /**
+     * Creates the UploadStateStore for a given upload
+     *
+     * @param context The Context
+     * @param upload  The upload to manage
+     */
+    UploadStateStore(final Context context, final ResumableUpload upload) {
+        final File stateDir = new File(context.getFilesDir(), STATE_DIR);
+        if (!stateDir.exists()) {
+            stateDir.mkdirs();
+        }
+        final String key = upload.getUploadUrl() + "|" + upload.getFile().getAbsolutePath();
+        mStateFile = new File(stateDir, Integer.toHexString(key.hashCode()) + ".state");
+        mUpload = upload;
+    }
+
+    /**
+     * Reads the last offset acknowledged by the server for the upload
+     *
+     * @return The last offset or -1 if not available or if the File has changed
+     */
+    long readOffset() {
+        if (!mStateFile.exists()) {
+            return -1L;
+        }
+        final Properties properties = new Properties();
+        FileInputStream input = null;
+        try {
+            input = new FileInputStream(mStateFile);
+            properties.load(input);
+        } catch (IOException e) {
+            Log.w(TAG_LOG, "Error reading state for " + mUpload.getUploadUrl(), e);
+            return -1L;
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+        final File file = mUpload.getFile();
+        if (!mUpload.getUploadUrl().equals(properties.getProperty(URL_KEY))
+                || !file.getAbsolutePath().equals(properties.getProperty(PATH_KEY))
+                || !String.valueOf(file.length()).equals(properties.getProperty(LENGTH_KEY))
+                || !String.valueOf(file.lastModified()).equals(properties.getProperty(LAST_MODIFIED_KEY))) {
+            // The state is related to a different upload or the File has been changed
+            Log.d(TAG_LOG, "State for " + mUpload.getUploadUrl() + " is stale");
+            clear();
+            return -1L;
+        }
+        try {
+            return Long.parseLong(properties.getProperty(OFFSET_KEY, "-1"));
+        } catch (NumberFormatException nfe) {
+            return -1L;
+        }
+    }
+
+    /**
+     * Saves the offset acknowledged by the server. We write to a temporary file and then we
+     * rename it so a crash never leaves a broken state.
+     *
+     * @param offset The offset to save
+     */
+    void writeOffset(final long offset) {
+        final File file = mUpload.getFile();
+        final Properties properties = new Properties();
+        properties.setProperty(URL_KEY, mUpload.getUploadUrl());
+        properties.setProperty(PATH_KEY, file.getAbsolutePath());
+        properties.setProperty(LENGTH_KEY, String.valueOf(file.length()));
+        properties.setProperty(LAST_MODIFIED_KEY, String.valueOf(file.lastModified()));
+        properties.setProperty(OFFSET_KEY, String.valueOf(offset));
+        final File tmpFile = new File(mStateFile.getAbsolutePath() + "_tmp");
+        FileOutputStream output = null;
+        try {
+            output = new FileOutputStream(tmpFile);
+            properties.store(output, null);
+            output.getFD().sync();
+        } catch (IOException e) {
+            Log.w(TAG_LOG, "Error saving state for " + mUpload.getUploadUrl(), e);
+            return;
+        } finally {
+            IOUtils.closeQuietly(output);
+        }
+        tmpFile.renameTo(mStateFile);
+    }
+
+    /**
+     * Deletes the state of the upload
+     */
+    void clear() {
+        mStateFile.delete();
+    }
+
+}
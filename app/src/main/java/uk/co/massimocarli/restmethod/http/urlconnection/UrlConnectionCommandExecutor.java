@@ -4,11 +4,15 @@ import android.content.Context;
 import android.os.Build;
 import android.util.Log;
 import uk.co.massimocarli.restmethod.http.deserializer.Deserializer;
+import uk.co.massimocarli.restmethod.http.deserializer.ResponseDeserializerAdapter;
+import uk.co.massimocarli.restmethod.rest.CancellationHandle;
+import uk.co.massimocarli.restmethod.rest.ResponseMetadata;
 import uk.co.massimocarli.restmethod.rest.RestClientConf;
 import uk.co.massimocarli.restmethod.rest.RestCommand;
 import uk.co.massimocarli.restmethod.rest.RestCommandExecutor;
 import uk.co.massimocarli.restmethod.rest.RestCommandResult;
 import uk.co.massimocarli.restmethod.stats.TrafficCounterDecorator;
+import uk.co.massimocarli.restmethod.stats.TrafficMeter;
 import uk.co.massimocarli.restmethod.stats.TrafficStats;
 
 import java.io.IOException;
@@ -89,21 +93,42 @@ public class UrlConnectionCommandExecutor implements RestCommandExecutor {
         InputStream inputStream = null;
         // We test if the traffic stats is enabled
         final boolean trafficStatsEnabled = restCommand.isTrafficStatsEnabled();
-        TrafficCounterDecorator trafficDeserializer = null;
+        // The TrafficMeter counts the body of the request, the body of the response and
+        // the headers
+        final TrafficMeter trafficMeter = trafficStatsEnabled ? TrafficMeter.create() : null;
         if (trafficStatsEnabled) {
-            trafficDeserializer = new TrafficCounterDecorator<T>(deserializer);
-            deserializer = trafficDeserializer;
+            deserializer = new TrafficCounterDecorator<T>(deserializer, trafficMeter);
         }
+        final CancellationHandle cancellationHandle = restCommand.getCancellationHandle();
+        CancellationHandle.OnCancelListener onCancelListener = null;
         try {
+            if (cancellationHandle != null) {
+                cancellationHandle.throwIfCancelled();
+            }
             // We get the Http or Https implementations depending on the protocol. If https
             // the HttpsURLConnection is a specialisation of HTTPUrlConnection
-            httpUrlConnection = UrlConnectionUtility.fromRestCommand(context, restCommand);
+            httpUrlConnection = UrlConnectionUtility.openConnection(context, restCommand);
+            if (cancellationHandle != null) {
+                // The disconnection from another thread makes the blocked reads fail
+                final HttpURLConnection connectionToAbort = httpUrlConnection;
+                onCancelListener = new CancellationHandle.OnCancelListener() {
+                    @Override
+                    public void onCancel() {
+                        connectionToAbort.disconnect();
+                    }
+                };
+                cancellationHandle.addOnCancelListener(onCancelListener);
+            }
             // Here we configure it with some specific configuration issues
             if (mHttpClientConf != null) {
                 configureUrlConnection(httpUrlConnection);
             }
-            // We get the InputStream from the connection
-            final int httpResponseCode = httpUrlConnection.getResponseCode();
+            // The document is sent after the registration of the cancellation so an upload
+            // can be cancelled too
+            UrlConnectionUtility.writeDocument(httpUrlConnection, restCommand, trafficMeter);
+            // We get the metadata and the InputStream from the connection
+            final ResponseMetadata metadata = UrlConnectionResponseMetadata.from(httpUrlConnection);
+            final int httpResponseCode = metadata.getStatusCode();
             if (httpResponseCode >= HttpURLConnection.HTTP_OK && httpResponseCode < HttpURLConnection.HTTP_MULT_CHOICE) {
                 // If the code is ok we have to read from the inputStream
                 inputStream = httpUrlConnection.getInputStream();
@@ -111,27 +136,38 @@ public class UrlConnectionCommandExecutor implements RestCommandExecutor {
                 // If the code is ok we have to read from the errorStream
                 inputStream = httpUrlConnection.getErrorStream();
             }
-            final String httpResponseMessage = httpUrlConnection.getResponseMessage();
+            if (cancellationHandle != null) {
+                // The Deserializer stops at the first read after the cancellation
+                inputStream = cancellationHandle.wrap(inputStream);
+            }
             // We parse the stream with the given Deserializer
-            final T result = deserializer.realise(inputStream, context);
+            final T result = ResponseDeserializerAdapter.realise(deserializer, inputStream, metadata, context);
             // We get the response
-            final RestCommandResult restCommandResult = RestCommandResult.get(result, httpResponseCode,
-                                                                              httpResponseMessage);
+            final RestCommandResult<T> restCommandResult = RestCommandResult.get(result, metadata);
             // If the traffic is enabled we read the data and add to the stats
             if (trafficStatsEnabled) {
-                final long dataRead = trafficDeserializer.getDataCount();
-                Log.d(TAG_LOG, "Traffic stats enabled and data read: " + dataRead);
-                TrafficStats.getInstance(context).addTraffic(dataRead);
+                trafficMeter.addHeaders(restCommand, restCommandResult.getMetadata());
+                final long dataRead = trafficMeter.getTotalBytes();
+                Log.d(TAG_LOG, "Traffic stats enabled and data read: " + trafficMeter);
+                TrafficStats.getInstance(context).addTraffic(dataRead, restCommand.getUrl());
                 restCommandResult.setTrafficData(dataRead);
             }
             // We return the response
             return restCommandResult;
         } catch (IOException e) {
+            if (cancellationHandle != null && cancellationHandle.isCancelled()) {
+                // The error is the effect of the cancellation
+                Log.d(TAG_LOG, "RestCommand cancelled " + restCommand.getUrl());
+                throw new CancelledException();
+            }
             e.printStackTrace();
             // In this case we throw the exception up
             Log.e(TAG_LOG, "Error executing httpRequest", e);
             throw new RestCommandException("Error executing httpRequest", e);
         } finally {
+            if (onCancelListener != null) {
+                cancellationHandle.removeOnCancelListener(onCancelListener);
+            }
             if (httpUrlConnection != null) {
                 httpUrlConnection.disconnect();
             }
@@ -0,0 +1,93 @@
+package uk.co.massimocarli.restmethod.http.urlconnection;
+
+import uk.co.massimocarli.restmethod.rest.ResponseMetadata;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This is the ResponseMetadata that reads the information from an HttpURLConnection. The
+ * HttpURLConnection keeps the headers of the response so we just delegate to it.
+ */
+public final class UrlConnectionResponseMetadata extends ResponseMetadata {
+
+    /**
+     * The prefix of the headers the platform adds to the response
+     */
+    private static final String PLATFORM_HEADER_PREFIX = "X-Android-";
+
+    /**
+     * The HttpURLConnection with the response
+     */
+    private final HttpURLConnection mHttpURLConnection;
+
+    /**
+     * The status code
+     */
+    private final int mStatusCode;
+
+    /**
+     * The status message
+     */
+    private final String mStatusMessage;
+
+    /**
+     * Private constructor
+     */
+    private UrlConnectionResponseMetadata(final HttpURLConnection httpURLConnection, final int statusCode,
+                                          final String statusMessage) {
+        this.mHttpURLConnection = httpURLConnection;
+        this.mStatusCode = statusCode;
+        this.mStatusMessage = statusMessage;
+    }
+
+    /**
+     * This static factory method creates the ResponseMetadata for the given connection
+     *
+     * @param httpURLConnection The connection with the response
+     * @return The ResponseMetadata of the response
+     * @throws java.io.IOException In case of error reading the response
+     */
+    public static UrlConnectionResponseMetadata from(final HttpURLConnection httpURLConnection) throws IOException {
+        return new UrlConnectionResponseMetadata(httpURLConnection, httpURLConnection.getResponseCode(),
+                                                 httpURLConnection.getResponseMessage());
+    }
+
+    @Override
+    public int getStatusCode() {
+        return mStatusCode;
+    }
+
+    @Override
+    public String getStatusMessage() {
+        return mStatusMessage;
+    }
+
+    @Override
+    public String getHeader(final String name) {
+        return mHttpURLConnection.getHeaderField(name);
+    }
+
+    @Override
+    public long getHeadersLength() {
+        final Map<String, List<String>> headerFields = mHttpURLConnection.getHeaderFields();
+        if (headerFields == null) {
+            return -1L;
+        }
+        // The status line has a null name. Every line ends with CRLF and the name is
+        // followed by ": ". The headers the platform adds were not sent by the server
+        long length = 0L;
+        for (Map.Entry<String, List<String>> headerField : headerFields.entrySet()) {
+            final String name = headerField.getKey();
+            if (name != null && name.startsWith(PLATFORM_HEADER_PREFIX)) {
+                continue;
+            }
+            for (String value : headerField.getValue()) {
+                length += name != null ? name.length() + value.length() + 4 : value.length() + 2;
+            }
+        }
+        return length + 2;
+    }
+}
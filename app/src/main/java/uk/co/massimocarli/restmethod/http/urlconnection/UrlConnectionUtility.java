@@ -2,25 +2,20 @@ package uk.co.massimocarli.restmethod.http.urlconnection;
 
 import android.content.Context;
 import android.util.Log;
-
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ResponseHandler;
-import org.apache.http.entity.BufferedHttpEntity;
-import uk.co.massimocarli.restmethod.http.deserializer.Deserializer;
+import uk.co.massimocarli.restmethod.http.RestCommandEncoder;
 import uk.co.massimocarli.restmethod.http.https.KeyStoreAdapter;
+import uk.co.massimocarli.restmethod.rest.CancellationHandle;
+import uk.co.massimocarli.restmethod.rest.FileDocument;
+import uk.co.massimocarli.restmethod.rest.MultipartDocument;
 import uk.co.massimocarli.restmethod.rest.RestCommand;
-import uk.co.massimocarli.restmethod.rest.RestCommandExecutor;
-import uk.co.massimocarli.restmethod.rest.RestCommandResult;
+import uk.co.massimocarli.restmethod.stats.TrafficMeter;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.net.URLEncoder;
 import java.security.KeyStore;
-import java.util.Map;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
@@ -55,6 +50,36 @@ public final class UrlConnectionUtility {
      */
     public static HttpURLConnection fromRestCommand(final Context context,
                                                     final RestCommand restCommand) throws IOException {
+        return fromRestCommand(context, restCommand, null);
+    }
+
+    /**
+     * This method returns the HttpURLConnection to use for managing the given RestCommand. The
+     * bytes of the document of the request are counted by the given TrafficMeter
+     *
+     * @param restCommand  The RestCommand to execute with the URLConnection
+     * @param trafficMeter The TrafficMeter for the body of the request or null
+     * @return The HttpURLConnection to use for the connection
+     * @throws java.io.IOException The Exception in case of error
+     */
+    public static HttpURLConnection fromRestCommand(final Context context, final RestCommand restCommand,
+                                                    final TrafficMeter trafficMeter) throws IOException {
+        final HttpURLConnection httpURLConnection = openConnection(context, restCommand);
+        writeDocument(httpURLConnection, restCommand, trafficMeter);
+        return httpURLConnection;
+    }
+
+    /**
+     * This method returns the HttpURLConnection for the given RestCommand with the method and
+     * the headers but without the document. The caller can configure the connection or register
+     * its cancellation before the document is sent with writeDocument()
+     *
+     * @param restCommand The RestCommand to execute with the URLConnection
+     * @return The HttpURLConnection not connected yet
+     * @throws java.io.IOException The Exception in case of error
+     */
+    public static HttpURLConnection openConnection(final Context context,
+                                                   final RestCommand restCommand) throws IOException {
         // We create the URL to connect to
         final URL requestURL = createURLWithParams(restCommand);
         // We create the HttpURLConnection to return
@@ -107,84 +132,111 @@ public final class UrlConnectionUtility {
         }
         // We manage the possible headers
         if (restCommand.hasHeaders()) {
-            for (Map.Entry<String, String> header : restCommand.getHeaders()) {
-                httpURLConnection.setRequestProperty(header.getKey(), header.getValue());
-                Log.d(TAG_LOG, "HTTP header " + header.getKey() + " added with value " + header.getValue());
+            final int headersCount = restCommand.headersCount();
+            for (int i = 0; i < headersCount; i++) {
+                httpURLConnection.setRequestProperty(restCommand.getHeaderName(i), restCommand.getHeaderValue(i));
             }
         }
+        return httpURLConnection;
+    }
+
+    /**
+     * This method sends the document of the RestCommand, if any, through the given connection.
+     * The bytes are counted by the given TrafficMeter and the writes fail as soon as the
+     * CancellationHandle of the RestCommand is cancelled
+     *
+     * @param httpURLConnection The connection from openConnection()
+     * @param restCommand       The RestCommand with the document
+     * @param trafficMeter      The TrafficMeter for the body of the request or null
+     * @throws java.io.IOException The Exception in case of error
+     */
+    public static void writeDocument(final HttpURLConnection httpURLConnection, final RestCommand restCommand,
+                                     final TrafficMeter trafficMeter) throws IOException {
+        final CancellationHandle cancellationHandle = restCommand.getCancellationHandle();
         // We manage parameters
-        if (httpMethod.isDocumentAllowed()) {
-            if (restCommand.hasParams()) {
-                StringBuilder paramToEncode = new StringBuilder();
-                final int paramNumber = restCommand.paramsCount();
-                int currentParam = 0;
-                for (Map.Entry<String, String> param : restCommand.getParams()) {
-                    paramToEncode.append(param.getKey()).append("=").append(
-                            URLEncoder.encode(param.getValue(), restCommand.getCharset()));
-                    if (currentParam < paramNumber - 1) {
-                        paramToEncode.append("&");
+        if (restCommand.getHttpMethod().isDocumentAllowed()) {
+            if (restCommand.hasMultipartDocument()) {
+                // We stream the parts one at a time straight to the connection
+                final MultipartDocument multipartDocument = restCommand.getMultipartDocument();
+                httpURLConnection.setRequestProperty("Content-Type", multipartDocument.getContentType());
+                final long contentLength = multipartDocument.getContentLength();
+                if (contentLength >= 0 && contentLength <= Integer.MAX_VALUE) {
+                    httpURLConnection.setFixedLengthStreamingMode((int) contentLength);
+                } else {
+                    httpURLConnection.setChunkedStreamingMode(0);
+                }
+                final OutputStream output = openOutputStream(httpURLConnection, trafficMeter, cancellationHandle);
+                try {
+                    if (contentLength >= 0) {
+                        multipartDocument.writeTo(output, contentLength);
+                    } else {
+                        multipartDocument.writeTo(output);
                     }
-                    currentParam++;
-                    Log.d(TAG_LOG, "HTTP param " + param.getKey() + " added with value " + param.getValue());
+                    output.flush();
+                } finally {
+                    output.close();
+                }
+                Log.d(TAG_LOG, "Multipart entity with " + multipartDocument.partsCount() + " parts added to the request ");
+            } else if (restCommand.hasFileDocument()) {
+                // The File is streamed with the length it has now
+                final FileDocument fileDocument = restCommand.getFileDocument();
+                if (httpURLConnection.getRequestProperty("Content-Type") == null) {
+                    httpURLConnection.setRequestProperty("Content-Type", fileDocument.getContentType());
+                }
+                final long contentLength = fileDocument.getContentLength();
+                if (contentLength < 0) {
+                    throw new FileNotFoundException("File " + fileDocument.getFile() + " not found");
                 }
-                final String encondedParams = paramToEncode.toString();
-                httpURLConnection.setRequestProperty("Content-Length",
-                                                     String.valueOf(encondedParams.getBytes().length));
-                final OutputStream output = httpURLConnection.getOutputStream();
-                output.write(encondedParams.getBytes());
+                if (contentLength <= Integer.MAX_VALUE) {
+                    httpURLConnection.setFixedLengthStreamingMode((int) contentLength);
+                } else {
+                    httpURLConnection.setChunkedStreamingMode(0);
+                }
+                final OutputStream output = openOutputStream(httpURLConnection, trafficMeter, cancellationHandle);
+                try {
+                    fileDocument.writeTo(output, contentLength);
+                    output.flush();
+                } finally {
+                    output.close();
+                }
+                Log.d(TAG_LOG, "File entity of " + contentLength + " bytes added to the request ");
+            } else if (restCommand.hasParams()) {
+                final byte[] encodedParams = restCommand.getEncodedFormBody();
+                if (httpURLConnection.getRequestProperty("Content-Type") == null) {
+                    httpURLConnection.setRequestProperty("Content-Type", RestCommandEncoder.getFormContentType(restCommand));
+                }
+                httpURLConnection.setFixedLengthStreamingMode(encodedParams.length);
+                final OutputStream output = openOutputStream(httpURLConnection, trafficMeter, cancellationHandle);
+                output.write(encodedParams);
                 output.flush();
                 output.close();
-                Log.d(TAG_LOG, "String entity added to the request ");
+                Log.d(TAG_LOG, "Form entity added to the request ");
             } else if (restCommand.hasStringDocument()) {
                 // We manage String document
-                final OutputStream output = httpURLConnection.getOutputStream();
+                final OutputStream output = openOutputStream(httpURLConnection, trafficMeter, cancellationHandle);
                 output.write(restCommand.getStringDocument().getBytes(restCommand.getCharset()));
                 Log.d(TAG_LOG, "String entity added to the request ");
             } else if (restCommand.hasBinaryDocument()) {
                 // The request is Post or Put so we use another abstraction
-                final OutputStream output = httpURLConnection.getOutputStream();
+                final OutputStream output = openOutputStream(httpURLConnection, trafficMeter, cancellationHandle);
                 output.write(restCommand.getBinaryDocument());
                 Log.d(TAG_LOG, "Binary entity added to the request ");
             }
         }
-        return httpURLConnection;
     }
 
     /**
-     * This method creates the ResponseHandler fom the Deserializer
-     *
-     * @param context      The Context
-     * @param deserializer The Deserializer to user for parsing the HttpResponse
-     * @return The responseHandler We can use to manage the type object of type T.
+     * Returns the OutputStream for the body of the request counting its bytes and checking the
+     * cancellation if needed
      */
-    public static <T> ResponseHandler<RestCommandResult<T>> createHttpDeserializer(final Context context,
-                                                                                   final Deserializer<? extends T> deserializer) {
-        return new ResponseHandler<RestCommandResult<T>>() {
-
-            @Override
-            public RestCommandResult<T> handleResponse(
-                    HttpResponse httpResponse) throws RestCommandExecutor.RestCommandException {
-                final int httpStatusCode = httpResponse.getStatusLine().getStatusCode();
-                final String httpStatusMessage = httpResponse.getStatusLine().getReasonPhrase();
-                try {
-                    // We check for the httpResponse
-                    // We get the proper Entity from the httpResponse
-                    final HttpEntity receivedHttpEntity = httpResponse.getEntity();
-                    // We create the Buffered Entity from that
-                    BufferedHttpEntity bufferedEntity = new BufferedHttpEntity(receivedHttpEntity);
-                    // We read the InputStream from the entity
-                    InputStream resultInputStream = bufferedEntity.getContent();
-                    // Using the Deserializer we get the object T
-                    final T result = deserializer.realise(resultInputStream, context);
-                    // We return the value from the InputStreamConsumer
-                    return RestCommandResult.get(result, httpStatusCode, httpStatusMessage);
-                } catch (IOException ioe) {
-                    ioe.printStackTrace();
-                    Log.e(TAG_LOG, "Error managing response", ioe);
-                    throw new RestCommandExecutor.RestCommandException("Error managing response", ioe, httpStatusCode);
-                }
-            }
-        };
+    private static OutputStream openOutputStream(final HttpURLConnection httpURLConnection,
+                                                 final TrafficMeter trafficMeter,
+                                                 final CancellationHandle cancellationHandle) throws IOException {
+        OutputStream output = httpURLConnection.getOutputStream();
+        if (cancellationHandle != null) {
+            output = cancellationHandle.wrap(output);
+        }
+        return trafficMeter != null ? trafficMeter.countRequest(output) : output;
     }
 
     /**
@@ -197,24 +249,8 @@ public final class UrlConnectionUtility {
      * @throws java.io.IOException The Exception in case of error
      */
     public static URL createURLWithParams(final RestCommand restCommand) throws IOException {
-        // We manage the possible parameters
-        StringBuilder url = new StringBuilder(restCommand.getUrl());
-        if (restCommand.getHttpMethod().isQueryStringSupported() && restCommand.hasParams()) {
-            url.append("?");
-            final int paramNumber = restCommand.paramsCount();
-            int currentParam = 0;
-            for (Map.Entry<String, String> param : restCommand.getParams()) {
-                url.append(param.getKey()).append("=").append(
-                        URLEncoder.encode(param.getValue(), restCommand.getCharset()));
-                currentParam++;
-                if (currentParam < paramNumber - 1) {
-                    url.append("&");
-                }
-                Log.d(TAG_LOG, "HTTP param " + param.getKey() + " added with value " + param.getValue());
-            }
-        }
         // We create the URL to connect to
-        final URL requestURL = new URL(url.toString());
+        final URL requestURL = new URL(restCommand.getEncodedUrl());
         return requestURL;
     }
 
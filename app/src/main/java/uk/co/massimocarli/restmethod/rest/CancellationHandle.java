@@ -0,0 +1,183 @@
+package uk.co.massimocarli.restmethod.rest;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This is the handle to cancel a RestCommand. It's added to the RestCommand with the
+ * RestCommandBuilder and the executors register the actions that stop the work in progress as
+ * the disconnection of the HttpURLConnection or the abort of the HttpUriRequest. The streams of
+ * the response wrapped by the handle fail as soon as the handle is cancelled so the Deserializer
+ * is interrupted too. In the same way the streams of the body of the request stop the upload.
+ * <p/>
+ * A CancellationHandle can be shared by more RestCommands that are cancelled together as the
+ * ones of the same screen.
+ */
+public final class CancellationHandle {
+
+    /**
+     * The interface of the actions to execute when the handle is cancelled
+     */
+    public interface OnCancelListener {
+
+        /**
+         * Called once when the handle is cancelled. It could be called on a thread different
+         * from the one executing the RestCommand
+         */
+        void onCancel();
+    }
+
+    /**
+     * The listeners to notify
+     */
+    private final List<OnCancelListener> mListeners = new ArrayList<OnCancelListener>(2);
+
+    /**
+     * True when cancelled
+     */
+    private volatile boolean mCancelled;
+
+    /**
+     * This is the static factory method for a new CancellationHandle
+     *
+     * @return A new CancellationHandle not cancelled
+     */
+    public static CancellationHandle create() {
+        return new CancellationHandle();
+    }
+
+    /**
+     * Private constructor
+     */
+    private CancellationHandle() {
+    }
+
+    /**
+     * Cancels the RestCommands of this handle. The call after the first has no effect
+     */
+    public void cancel() {
+        final OnCancelListener[] listeners;
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            listeners = mListeners.toArray(new OnCancelListener[mListeners.size()]);
+            mListeners.clear();
+        }
+        // We notify out of the lock because a listener could block for a while
+        for (OnCancelListener listener : listeners) {
+            listener.onCancel();
+        }
+    }
+
+    /**
+     * @return True if the handle has been cancelled
+     */
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Throws a CancelledException if the handle has been cancelled
+     *
+     * @throws RestCommandExecutor.CancelledException If the handle has been cancelled
+     */
+    public void throwIfCancelled() throws RestCommandExecutor.CancelledException {
+        if (mCancelled) {
+            throw new RestCommandExecutor.CancelledException();
+        }
+    }
+
+    /**
+     * Adds a listener. If the handle is already cancelled the listener is called immediately
+     *
+     * @param listener The listener to add
+     */
+    public void addOnCancelListener(final OnCancelListener listener) {
+        synchronized (this) {
+            if (!mCancelled) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.onCancel();
+    }
+
+    /**
+     * Removes a listener. The executors must remove their listeners when the work is completed
+     *
+     * @param listener The listener to remove
+     */
+    public synchronized void removeOnCancelListener(final OnCancelListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * @return The number of listeners registered and not removed yet
+     */
+    public synchronized int getListenersCount() {
+        return mListeners.size();
+    }
+
+    /**
+     * Wraps the given stream so that its reads fail when the handle is cancelled
+     *
+     * @param inputStream The stream to wrap. It can be null
+     * @return The wrapped stream or null if the given one is null
+     */
+    public InputStream wrap(final InputStream inputStream) {
+        if (inputStream == null) {
+            return null;
+        }
+        return new FilterInputStream(inputStream) {
+
+            @Override
+            public int read() throws IOException {
+                throwIfCancelled();
+                return super.read();
+            }
+
+            @Override
+            public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+                throwIfCancelled();
+                return super.read(buffer, offset, length);
+            }
+
+            @Override
+            public long skip(final long byteCount) throws IOException {
+                throwIfCancelled();
+                return super.skip(byteCount);
+            }
+        };
+    }
+
+    /**
+     * Wraps the given stream so that its writes fail when the handle is cancelled
+     *
+     * @param outputStream The stream to wrap
+     * @return The wrapped stream
+     */
+    public OutputStream wrap(final OutputStream outputStream) {
+        return new FilterOutputStream(outputStream) {
+
+            @Override
+            public void write(final int oneByte) throws IOException {
+                throwIfCancelled();
+                out.write(oneByte);
+            }
+
+            @Override
+            public void write(final byte[] buffer, final int offset, final int length) throws IOException {
+                throwIfCancelled();
+                // The FilterOutputStream writes one byte at a time
+                out.write(buffer, offset, length);
+            }
+        };
+    }
+}
@@ -0,0 +1,97 @@
+package uk.co.massimocarli.restmethod.rest;
+
+import uk.co.massimocarli.restmethod.util.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * This is the document of a request whose body is the content of a File. The File is not read
+ * into memory but it's streamed to the connection with positional reads when the request is sent.
+ * The length of the body is the length of the File when the request is sent so the transport
+ * can use a fixed length streaming mode.
+ * <p/>
+ * A FileDocument is immutable.
+ */
+public final class FileDocument {
+
+    /**
+     * The File with the content
+     */
+    private final File mFile;
+
+    /**
+     * The Content-Type of the content
+     */
+    private final String mContentType;
+
+    /**
+     * Private constructor
+     */
+    private FileDocument(final File file, final String contentType) {
+        this.mFile = file;
+        this.mContentType = contentType;
+    }
+
+    /**
+     * This static factory method creates a FileDocument for the given File
+     *
+     * @param file        The File to send
+     * @param contentType The Content-Type of the File
+     * @return The FileDocument for the File
+     */
+    public static FileDocument create(final File file, final String contentType) {
+        if (file == null) {
+            throw new IllegalArgumentException("File cannot be null");
+        }
+        return new FileDocument(file, contentType != null ? contentType
+                : MultipartDocument.DEFAULT_BINARY_CONTENT_TYPE);
+    }
+
+    /**
+     * @return The File with the content
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return The Content-Type of the content
+     */
+    public String getContentType() {
+        return mContentType;
+    }
+
+    /**
+     * @return The current length of the File or -1 if it doesn't exist
+     */
+    public long getContentLength() {
+        return mFile.exists() ? mFile.length() : -1L;
+    }
+
+    /**
+     * Writes the first contentLength bytes of the File into the given OutputStream. The length
+     * is the one sent to the server so the request fails if the File is shorter.
+     *
+     * @param outputStream  The OutputStream to write to
+     * @param contentLength The number of bytes to write
+     * @throws IOException In case of error reading the File or writing the stream
+     */
+    public void writeTo(final OutputStream outputStream, final long contentLength) throws IOException {
+        FileInputStream input = null;
+        try {
+            input = new FileInputStream(mFile);
+            IOUtils.copy(input.getChannel(), 0L, contentLength, outputStream);
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mFile + " (" + mContentType + ")";
+    }
+
+}
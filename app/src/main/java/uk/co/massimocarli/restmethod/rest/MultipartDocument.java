@@ -0,0 +1,389 @@
+package uk.co.massimocarli.restmethod.rest;
+
+import uk.co.massimocarli.restmethod.util.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Random;
+
+/**
+ * This is the document for a multipart/form-data request. Every part is kept as a reference to
+ * its source (memory or File) and it's streamed straight to the connection when the request
+ * is sent so we never build the whole body in memory. The length of the body is calculated
+ * from the parts so the transport can use a fixed length streaming mode: the lengths of the
+ * Files are read once when the request is sent and exactly those bytes are written.
+ * <p/>
+ * A MultipartDocument is immutable. Adding a part returns a new document with the same boundary.
+ */
+public final class MultipartDocument {
+
+    /**
+     * The default Content-Type for binary parts
+     */
+    public static final String DEFAULT_BINARY_CONTENT_TYPE = "application/octet-stream";
+
+    /**
+     * The Content-Type prefix for the multipart document
+     */
+    private static final String MULTIPART_CONTENT_TYPE = "multipart/form-data; boundary=";
+
+    /**
+     * The charset we use for the part headers
+     */
+    private static final String HEADER_CHARSET = "UTF-8";
+
+    /**
+     * The line separator for the multipart protocol
+     */
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    /**
+     * The prefix for every boundary
+     */
+    private static final byte[] TWO_DASHES = {'-', '-'};
+
+    /**
+     * The Random we use to create the boundaries
+     */
+    private static final Random sRandom = new Random();
+
+    /**
+     * The boundary between the parts
+     */
+    private final String mBoundary;
+
+    /**
+     * The boundary as bytes
+     */
+    private final byte[] mBoundaryBytes;
+
+    /**
+     * The parts of the document
+     */
+    private final Part[] mParts;
+
+    /**
+     * Creates an empty MultipartDocument with a random boundary
+     */
+    MultipartDocument() {
+        mBoundary = "----RestMethodBoundary" + Long.toHexString(sRandom.nextLong())
+                + Long.toHexString(System.currentTimeMillis());
+        mBoundaryBytes = ascii(mBoundary);
+        mParts = new Part[0];
+    }
+
+    /**
+     * Creates a MultipartDocument with the parts of another one plus a new part
+     *
+     * @param document The document to copy
+     * @param newPart  The part to add
+     */
+    private MultipartDocument(final MultipartDocument document, final Part newPart) {
+        mBoundary = document.mBoundary;
+        mBoundaryBytes = document.mBoundaryBytes;
+        mParts = new Part[document.mParts.length + 1];
+        System.arraycopy(document.mParts, 0, mParts, 0, document.mParts.length);
+        mParts[document.mParts.length] = newPart;
+    }
+
+    /**
+     * Returns a copy of this document with a new text field
+     *
+     * @param name    The name of the field
+     * @param value   The value of the field
+     * @param charset The charset to use for the value
+     * @return The new MultipartDocument
+     */
+    MultipartDocument withFormField(final String name, final String value, final String charset) {
+        try {
+            final byte[] content = value.getBytes(charset);
+            return new MultipartDocument(this, new ByteArrayPart(name, null, null, content));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalArgumentException("Charset " + charset + " not supported!", e);
+        }
+    }
+
+    /**
+     * Returns a copy of this document with a new binary part from memory
+     *
+     * @param name        The name of the part
+     * @param fileName    The file name for the part if any
+     * @param contentType The Content-Type of the part
+     * @param content     The content of the part
+     * @return The new MultipartDocument
+     */
+    MultipartDocument withBinaryPart(final String name, final String fileName, final String contentType,
+                                     final byte[] content) {
+        return new MultipartDocument(this, new ByteArrayPart(name, fileName, contentType, content));
+    }
+
+    /**
+     * Returns a copy of this document with a new part whose content is read from a File when
+     * the request is sent
+     *
+     * @param name        The name of the part
+     * @param file        The File with the content
+     * @param contentType The Content-Type of the part
+     * @return The new MultipartDocument
+     */
+    MultipartDocument withFilePart(final String name, final File file, final String contentType) {
+        return new MultipartDocument(this, new FilePart(name, file, contentType));
+    }
+
+    /**
+     * @return The Content-Type header value for this document with its boundary
+     */
+    public String getContentType() {
+        return MULTIPART_CONTENT_TYPE + mBoundary;
+    }
+
+    /**
+     * @return The number of parts into the document
+     */
+    public int partsCount() {
+        return mParts.length;
+    }
+
+    /**
+     * @return The length of the whole body in bytes or -1 if not available
+     */
+    public long getContentLength() {
+        return getContentLength(getPartLengths());
+    }
+
+    /**
+     * Writes the whole document to the given OutputStream one part at a time. The stream
+     * is not closed at the end.
+     *
+     * @param outputStream The OutputStream to write to
+     * @throws java.io.IOException In case of error writing or reading the parts
+     */
+    public void writeTo(final OutputStream outputStream) throws IOException {
+        final long[] partLengths = getPartLengths();
+        if (getContentLength(partLengths) < 0) {
+            throw new FileNotFoundException("The File of a part doesn't exist");
+        }
+        writeTo(outputStream, partLengths);
+    }
+
+    /**
+     * Writes the whole document to the given OutputStream with the length returned by
+     * getContentLength() and sent to the server. The stream is not closed at the end.
+     *
+     * @param outputStream  The OutputStream to write to
+     * @param contentLength The length of the body sent to the server
+     * @throws java.io.IOException In case of error or if the Files changed their length
+     */
+    public void writeTo(final OutputStream outputStream, final long contentLength) throws IOException {
+        final long[] partLengths = getPartLengths();
+        final long currentLength = getContentLength(partLengths);
+        if (currentLength != contentLength) {
+            throw new IOException("The body has " + currentLength + " bytes but " + contentLength
+                                          + " have been declared");
+        }
+        writeTo(outputStream, partLengths);
+    }
+
+    /**
+     * @return The length of the content of every part read only once
+     */
+    private long[] getPartLengths() {
+        final long[] partLengths = new long[mParts.length];
+        for (int i = 0; i < mParts.length; i++) {
+            partLengths[i] = mParts[i].getContentLength();
+        }
+        return partLengths;
+    }
+
+    /**
+     * @return The length of the whole body with the given lengths of the parts or -1 if a length
+     * is not available
+     */
+    private long getContentLength(final long[] partLengths) {
+        long contentLength = 0L;
+        for (int i = 0; i < mParts.length; i++) {
+            if (partLengths[i] < 0) {
+                return -1L;
+            }
+            // --boundary CRLF headers CRLF content CRLF
+            contentLength += TWO_DASHES.length + mBoundaryBytes.length + CRLF.length
+                    + mParts[i].mHeaderBytes.length + CRLF.length + partLengths[i] + CRLF.length;
+        }
+        // --boundary-- CRLF
+        contentLength += TWO_DASHES.length + mBoundaryBytes.length + TWO_DASHES.length + CRLF.length;
+        return contentLength;
+    }
+
+    /**
+     * Writes the parts with the given lengths
+     */
+    private void writeTo(final OutputStream outputStream, final long[] partLengths) throws IOException {
+        for (int i = 0; i < mParts.length; i++) {
+            outputStream.write(TWO_DASHES);
+            outputStream.write(mBoundaryBytes);
+            outputStream.write(CRLF);
+            outputStream.write(mParts[i].mHeaderBytes);
+            outputStream.write(CRLF);
+            mParts[i].writeContentTo(outputStream, partLengths[i]);
+            outputStream.write(CRLF);
+        }
+        outputStream.write(TWO_DASHES);
+        outputStream.write(mBoundaryBytes);
+        outputStream.write(TWO_DASHES);
+        outputStream.write(CRLF);
+    }
+
+    /**
+     * Escapes a value of the Content-Disposition header as the browsers do so the quotes and
+     * the line breaks can't end the value or the header
+     *
+     * @param value The value to escape
+     * @return The escaped value
+     */
+    private static String escapeQuoted(final String value) {
+        final StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    escaped.append("%22");
+                    break;
+                case '\r':
+                    escaped.append("%0D");
+                    break;
+                case '\n':
+                    escaped.append("%0A");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Utility method that returns the bytes of an ASCII String
+     *
+     * @param value The String to encode
+     * @return The bytes for the given String
+     */
+    private static byte[] ascii(final String value) {
+        try {
+            return value.getBytes(HEADER_CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(HEADER_CHARSET + " is always supported");
+        }
+    }
+
+    /**
+     * This is the abstraction of a single part of the document. The headers are encoded
+     * once when the part is created.
+     */
+    private static abstract class Part {
+
+        /**
+         * The encoded headers of the part, every one followed by CRLF
+         */
+        private final byte[] mHeaderBytes;
+
+        /**
+         * Creates a Part with the given information
+         *
+         * @param name        The name of the part
+         * @param fileName    The optional file name
+         * @param contentType The Content-Type of the part
+         */
+        Part(final String name, final String fileName, final String contentType) {
+            final StringBuilder headers = new StringBuilder("Content-Disposition: form-data; name=\"")
+                    .append(escapeQuoted(name)).append('"');
+            if (fileName != null) {
+                headers.append("; filename=\"").append(escapeQuoted(fileName)).append('"');
+            }
+            headers.append("\r\n");
+            if (contentType != null) {
+                headers.append("Content-Type: ").append(contentType).append("\r\n");
+            }
+            mHeaderBytes = ascii(headers.toString());
+        }
+
+        /**
+         * @return The length of the content of the part or -1 if not available
+         */
+        abstract long getContentLength();
+
+        /**
+         * Writes the content of the part into the given OutputStream
+         *
+         * @param outputStream  The OutputStream to write to
+         * @param contentLength The length returned by getContentLength() for this write
+         * @throws java.io.IOException In case of error
+         */
+        abstract void writeContentTo(OutputStream outputStream, long contentLength) throws IOException;
+    }
+
+    /**
+     * The Part whose content is in memory
+     */
+    private static final class ByteArrayPart extends Part {
+
+        /**
+         * The content of the part
+         */
+        private final byte[] mContent;
+
+        ByteArrayPart(final String name, final String fileName, final String contentType,
+                      final byte[] content) {
+            super(name, fileName, contentType);
+            mContent = content;
+        }
+
+        @Override
+        long getContentLength() {
+            return mContent.length;
+        }
+
+        @Override
+        void writeContentTo(final OutputStream outputStream, final long contentLength) throws IOException {
+            outputStream.write(mContent);
+        }
+    }
+
+    /**
+     * The Part whose content is read from a File only when it's sent
+     */
+    private static final class FilePart extends Part {
+
+        /**
+         * The File with the content
+         */
+        private final File mFile;
+
+        FilePart(final String name, final File file, final String contentType) {
+            super(name, file.getName(), contentType);
+            mFile = file;
+        }
+
+        @Override
+        long getContentLength() {
+            return mFile.exists() ? mFile.length() : -1L;
+        }
+
+        @Override
+        void writeContentTo(final OutputStream outputStream, final long contentLength) throws IOException {
+            FileInputStream inputStream = null;
+            try {
+                // The bytes added after the length was read are not sent and a File that
+                // became shorter makes the copy fail
+                inputStream = new FileInputStream(mFile);
+                IOUtils.copy(inputStream.getChannel(), 0L, contentLength, outputStream);
+            } finally {
+                IOUtils.closeQuietly(inputStream);
+            }
+        }
+    }
+
+}
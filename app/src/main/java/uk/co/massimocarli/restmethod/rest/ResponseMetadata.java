@@ -0,0 +1,123 @@
+package uk.co.massimocarli.restmethod.rest;
+
+/**
+ * This is the abstraction of the information about a response that a Deserializer can use
+ * before reading the body: the status, the Content-Length, the Content-Type with its charset and
+ * the other headers. The headers are read from the response of the underlying client only
+ * when asked so they are never copied.
+ */
+public abstract class ResponseMetadata {
+
+    /**
+     * The name of the Content-Length header
+     */
+    public static final String CONTENT_LENGTH_HEADER = "Content-Length";
+
+    /**
+     * The name of the Content-Type header
+     */
+    public static final String CONTENT_TYPE_HEADER = "Content-Type";
+
+    /**
+     * The name of the charset param of the Content-Type
+     */
+    private static final String CHARSET_PARAM = "charset=";
+
+    /**
+     * @return The HTTP status code
+     */
+    public abstract int getStatusCode();
+
+    /**
+     * @return The HTTP status message
+     */
+    public abstract String getStatusMessage();
+
+    /**
+     * Returns the value of the header with the given name. If more headers with the same name
+     * are present, the first one is returned.
+     *
+     * @param name The name of the header. The name is case insensitive
+     * @return The value of the header or null if not present
+     */
+    public abstract String getHeader(String name);
+
+    /**
+     * @return True if the status code is 2xx
+     */
+    public boolean isSuccessful() {
+        final int statusCode = getStatusCode();
+        return statusCode >= 200 && statusCode < 300;
+    }
+
+    /**
+     * @return The length of the body from the Content-Length header or -1 if not known
+     */
+    public long getContentLength() {
+        final String contentLength = getHeader(CONTENT_LENGTH_HEADER);
+        if (contentLength == null) {
+            return -1L;
+        }
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException nfe) {
+            return -1L;
+        }
+    }
+
+    /**
+     * @return The media type of the body without the params as application/json or null if
+     * not known
+     */
+    public String getContentType() {
+        final String contentType = getHeader(CONTENT_TYPE_HEADER);
+        if (contentType == null) {
+            return null;
+        }
+        final int paramsIndex = contentType.indexOf(';');
+        return (paramsIndex < 0 ? contentType : contentType.substring(0, paramsIndex)).trim();
+    }
+
+    /**
+     * Returns the charset of the body from the Content-Type header
+     *
+     * @param defaultCharset The charset to return if not present
+     * @return The charset of the body or the default one if not present
+     */
+    public String getCharset(final String defaultCharset) {
+        final String contentType = getHeader(CONTENT_TYPE_HEADER);
+        if (contentType == null) {
+            return defaultCharset;
+        }
+        final int charsetIndex = contentType.toLowerCase().indexOf(CHARSET_PARAM);
+        if (charsetIndex < 0) {
+            return defaultCharset;
+        }
+        final int start = charsetIndex + CHARSET_PARAM.length();
+        int end = contentType.indexOf(';', start);
+        if (end < 0) {
+            end = contentType.length();
+        }
+        String charset = contentType.substring(start, end).trim();
+        if (charset.length() > 1 && charset.charAt(0) == '"' && charset.charAt(charset.length() - 1) == '"') {
+            charset = charset.substring(1, charset.length() - 1);
+        }
+        return charset.length() > 0 ? charset : defaultCharset;
+    }
+
+    /**
+     * Returns the estimate of the bytes of the status line and of the headers of the response
+     * as they were sent by the server. The implementations that don't know them return -1.
+     *
+     * @return The estimate of the bytes of the headers or -1 if not available
+     */
+    public long getHeadersLength() {
+        return -1L;
+    }
+
+    @Override
+    public String toString() {
+        return getStatusCode() + " : " + getStatusMessage() + " (" + getHeader(CONTENT_TYPE_HEADER) + ", "
+                + getContentLength() + " bytes)";
+    }
+}
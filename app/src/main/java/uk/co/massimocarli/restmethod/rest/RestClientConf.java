@@ -30,6 +30,11 @@ public class RestClientConf {
      */
     private long mSoTimeout;
 
+    /**
+     * If true the HttpClient implementation reads the whole response in memory before the
+     * Deserializer. The default is false so the response is streamed
+     */
+    private boolean mBufferedResponses;
 
     private RestClientConf() {
     }
@@ -48,6 +53,29 @@ public class RestClientConf {
         return mSoTimeout;
     }
 
+    /**
+     * @return True if the responses are read in memory before the Deserializer
+     */
+    public boolean isBufferedResponses() {
+        return mBufferedResponses;
+    }
+
+    /**
+     * Returns a copy of this configuration with the given buffering of the responses. The
+     * buffering doubles the memory for every response and delays the Deserializer so it's
+     * useful only when the Deserializer needs to read the data more than once
+     *
+     * @param bufferedResponses If true the responses are read in memory before the Deserializer
+     * @return The new RestClientConf
+     */
+    public RestClientConf withBufferedResponses(final boolean bufferedResponses) {
+        final RestClientConf conf = new RestClientConf();
+        conf.mConnectionTimeout = mConnectionTimeout;
+        conf.mSoTimeout = mSoTimeout;
+        conf.mBufferedResponses = bufferedResponses;
+        return conf;
+    }
+
     /**
      * @return The default HttpClientConf with default values
      */
@@ -1,16 +1,27 @@
 package uk.co.massimocarli.restmethod.rest;
 
+import uk.co.massimocarli.restmethod.http.RestCommandEncoder;
 import uk.co.massimocarli.restmethod.http.https.KeyStoreAdapter;
+import uk.co.massimocarli.restmethod.util.EncodingUtils;
 
-import java.util.HashMap;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 /**
- * This is the abstraction of a HTTP Request of a specific type
+ * This is the abstraction of a HTTP Request of a specific type. A RestCommand is immutable so
+ * it can be shared and executed from different threads at the same time. It's created using a
+ * RestCommandBuilder and a modified copy can be created using the newBuilder() method.
+ * <p/>
+ * Params and headers are kept into arrays with names and values one after the other.
  * <p/>
  * Created by Massimo Carli on 30/10/2013.
  */
-public class RestCommand {
+public final class RestCommand {
 
     /**
      * This is the default charset to use for the params encoding
@@ -54,10 +65,15 @@ public class RestCommand {
 
     }
 
+    /**
+     * The empty array for params and headers
+     */
+    static final String[] EMPTY = new String[0];
+
     /**
      * This is the HTTP Method of this RestCommand
      */
-    private HTTP_METHOD mHttpMethod;
+    private final HTTP_METHOD mHttpMethod;
 
     /**
      * This is the end point Url for this RestCommand
@@ -65,149 +81,164 @@ public class RestCommand {
     private final String mUrl;
 
     /**
-     * The Map for the params of the request
+     * The params of the request as name, value, name, value...
      */
-    private final Map<String, String> mParams = new HashMap<String, String>();
+    private final String[] mParams;
 
     /**
-     * The Map for the headers of the request
+     * The headers of the request as name, value, name, value...
      */
-    private final Map<String, String> mHeaders = new HashMap<String, String>();
+    private final String[] mHeaders;
 
     /**
      * This is document of type String we can add to the request.
      */
-    private String mStringDocument;
+    private final String mStringDocument;
 
     /**
      * This is document of type byte[] we can add to the request.
      */
-    private byte[] mBinaryDocument;
+    private final byte[] mBinaryDocument;
+
+    /**
+     * This is the multipart/form-data document we can add to the request.
+     */
+    private final MultipartDocument mMultipartDocument;
+
+    /**
+     * This is the document with the content of a File we can add to the request.
+     */
+    private final FileDocument mFileDocument;
 
     /**
      * The Charset fot this request
      */
-    private String mCharset = DEFAULT_CHARSET;
+    private final String mCharset;
 
     /**
      * If true the stats for traffic are enabled. The default is true
      */
-    private boolean mTrafficStatsEnabled = true;
+    private final boolean mTrafficStatsEnabled;
 
     /**
      * This is the Adapter for the optional certificate
      */
-    private KeyStoreAdapter mKeyStoreAdapter;
+    private final KeyStoreAdapter mKeyStoreAdapter;
 
     /**
-     * Creates a RestCommand for a given HttpMethod and url
-     *
-     * @param httpMethod The method http to use for this request
-     * @param url        The url to send the request to
+     * The handle to cancel this RestCommand if any
      */
-    RestCommand(final HTTP_METHOD httpMethod, final String url) {
-        this.mHttpMethod = httpMethod;
-        this.mUrl = url;
-    }
+    private final CancellationHandle mCancellationHandle;
 
     /**
-     * This method adds a param to the request
-     *
-     * @param name  The name of the param to send
-     * @param value The value for the param
+     * The url with the querystring. It's calculated the first time we need it
      */
-    void addParam(final String name, final String value) {
-        mParams.put(name, value);
-    }
+    private volatile String mEncodedUrl;
 
     /**
-     * This method adds a set of params to the request
-     *
-     * @param params The params to add to the request
+     * The params encoded as a form body. It's calculated the first time we need it
      */
-    void addParams(final Map<String, String> params) {
-        mParams.putAll(params);
-    }
+    private volatile byte[] mEncodedFormBody;
 
     /**
-     * This set a String document to the request
-     *
-     * @param stringDocument The String document to add ot the request
+     * The key to use for caching the response of this RestCommand
      */
-    void setStringDocument(final String stringDocument) {
-        if (!this.mHttpMethod.isDocumentAllowed()) {
-            throw new IllegalStateException(
-                    "HTTP Method " + this.mHttpMethod + " doesn't support document into the request!");
-        }
-        if (mBinaryDocument != null) {
-            throw new IllegalStateException("You cannot add a String document if a binary one is already present");
-        }
-        this.mStringDocument = stringDocument;
-    }
+    private volatile String mCacheKey;
 
     /**
-     * This set a binary document to the request
-     *
-     * @param binaryDocument The binary document to add ot the request
+     * Creates a RestCommand with the data from the given RestCommandBuilder. The arrays are
+     * not copied so the RestCommandBuilder must never change them after this.
      */
-    void setBinaryDocument(final byte[] binaryDocument) {
-        if (!this.mHttpMethod.isDocumentAllowed()) {
-            throw new IllegalStateException(
-                    "HTTP Method " + this.mHttpMethod + " doesn't support document into the request!");
-        }
-        if (mStringDocument != null) {
-            throw new IllegalStateException("You cannot add a binary document if a string one is already present");
-        }
+    RestCommand(final HTTP_METHOD httpMethod, final String url, final String[] params,
+                final String[] headers, final String stringDocument, final byte[] binaryDocument,
+                final MultipartDocument multipartDocument, final FileDocument fileDocument,
+                final String charset, final boolean trafficStatsEnabled,
+                final KeyStoreAdapter keyStoreAdapter, final CancellationHandle cancellationHandle) {
+        this.mHttpMethod = httpMethod;
+        this.mUrl = url;
+        this.mParams = params;
+        this.mHeaders = headers;
+        this.mStringDocument = stringDocument;
         this.mBinaryDocument = binaryDocument;
+        this.mMultipartDocument = multipartDocument;
+        this.mFileDocument = fileDocument;
+        this.mCharset = charset;
+        this.mTrafficStatsEnabled = trafficStatsEnabled;
+        this.mKeyStoreAdapter = keyStoreAdapter;
+        this.mCancellationHandle = cancellationHandle;
     }
 
     /**
-     * This method adds a set of params to the request
-     *
-     * @param headers The headers to add to the request
+     * @return A RestCommandBuilder with all the data of this RestCommand to create a modified copy
      */
-    void addHeaders(final Map<String, String> headers) {
-        mHeaders.putAll(headers);
+    public RestCommandBuilder newBuilder() {
+        return RestCommandBuilder.from(this);
     }
 
     /**
-     * This method adds a Header to the request
-     *
-     * @param name  The name of the header to send
-     * @param value The value for the header
+     * @return True if the request has params and false otherwise
      */
-    void addHeader(final String name, final String value) {
-        mHeaders.put(name, value);
+    public boolean hasParams() {
+        return mParams.length > 0;
     }
 
     /**
-     * This method set the charset to use for the parameter encoding
-     *
-     * @param charset The charset to use for parameters encoding
+     * @return The number of params
      */
-    void withCharset(final String charset) {
-        this.mCharset = charset;
+    public int paramsCount() {
+        return mParams.length >> 1;
     }
 
     /**
-     * @return True if the request has params and false otherwise
+     * @param index The index of the param
+     * @return The name of the param at the given index
      */
-    public boolean hasParams() {
-        return !mParams.isEmpty();
+    public String getParamName(final int index) {
+        return mParams[index << 1];
     }
 
     /**
-     * @return The number of params
+     * @param index The index of the param
+     * @return The value of the param at the given index
      */
-    public int paramsCount() {
-        return mParams.size();
+    public String getParamValue(final int index) {
+        return mParams[(index << 1) + 1];
     }
 
     /**
      * @return The number of headers
      */
     public int headersCount() {
-        return mHeaders.size();
+        return mHeaders.length >> 1;
+    }
+
+    /**
+     * @param index The index of the header
+     * @return The name of the header at the given index
+     */
+    public String getHeaderName(final int index) {
+        return mHeaders[index << 1];
+    }
+
+    /**
+     * @param index The index of the header
+     * @return The value of the header at the given index
+     */
+    public String getHeaderValue(final int index) {
+        return mHeaders[(index << 1) + 1];
+    }
+
+    /**
+     * @param name The name of the header
+     * @return The value of the header with the given name or null if not present
+     */
+    public String getHeader(final String name) {
+        for (int i = 0; i < mHeaders.length; i += 2) {
+            if (mHeaders[i].equalsIgnoreCase(name)) {
+                return mHeaders[i + 1];
+            }
+        }
+        return null;
     }
 
     /**
@@ -221,21 +252,21 @@ public class RestCommand {
      * @return The Iterable object for the Params
      */
     public Iterable<Map.Entry<String, String>> getParams() {
-        return mParams.entrySet();
+        return new EntryIterable(mParams);
     }
 
     /**
      * @return True if the request has headers and false otherwise
      */
     public boolean hasHeaders() {
-        return !mHeaders.isEmpty();
+        return mHeaders.length > 0;
     }
 
     /**
      * @return The Iterator for the Headers
      */
     public Iterable<Map.Entry<String, String>> getHeaders() {
-        return mHeaders.entrySet();
+        return new EntryIterable(mHeaders);
     }
 
     /**
@@ -253,12 +284,83 @@ public class RestCommand {
     }
 
     /**
-     * Set the KeyStoreAdapter to use for https connection
+     * The url with the params into the querystring if the method supports it. It's
+     * calculated only once.
+     *
+     * @return The url to invoke
+     * @throws java.io.UnsupportedEncodingException If the charset is not supported
+     */
+    public String getEncodedUrl() throws UnsupportedEncodingException {
+        String encodedUrl = mEncodedUrl;
+        if (encodedUrl == null) {
+            encodedUrl = RestCommandEncoder.buildUrl(this);
+            mEncodedUrl = encodedUrl;
+        }
+        return encodedUrl;
+    }
+
+    /**
+     * The params encoded as a form body. It's calculated only once so the returned array
+     * must not be modified.
      *
-     * @param keyStoreAdapter The Adapter to use for connection
+     * @return The form body
+     * @throws java.io.UnsupportedEncodingException If the charset is not supported
+     */
+    public byte[] getEncodedFormBody() throws UnsupportedEncodingException {
+        byte[] encodedFormBody = mEncodedFormBody;
+        if (encodedFormBody == null) {
+            encodedFormBody = RestCommandEncoder.buildFormBody(this);
+            mEncodedFormBody = encodedFormBody;
+        }
+        return encodedFormBody;
+    }
+
+    /**
+     * Returns the key to use to cache the response of this RestCommand. The key contains the
+     * digest of the body so the requests with different bodies have different keys. The
+     * multipart and the File documents are not read to calculate a key so the RestCommands
+     * with them can't be cached. It's calculated only once.
+     *
+     * @return The key to use to cache the response or null if the response can't be cached
+     */
+    public String getCacheKey() {
+        String cacheKey = mCacheKey;
+        if (cacheKey == null) {
+            if (mHttpMethod.isDocumentAllowed() && (hasMultipartDocument() || hasFileDocument())) {
+                return null;
+            }
+            try {
+                cacheKey = mHttpMethod.name() + " " + getEncodedUrl();
+                final byte[] body = getBodyForCacheKey();
+                if (body != null) {
+                    cacheKey += " " + EncodingUtils.toHexString(MessageDigest.getInstance("SHA-1").digest(body));
+                }
+            } catch (UnsupportedEncodingException e) {
+                // The RestCommand can't be sent either
+                return null;
+            } catch (NoSuchAlgorithmException e) {
+                throw new AssertionError("SHA-1 is always supported");
+            }
+            mCacheKey = cacheKey;
+        }
+        return cacheKey;
+    }
+
+    /**
+     * @return The body sent with the request as the executors send it or null if none
+     * @throws UnsupportedEncodingException If the charset is not supported
      */
-    public void setKeyStoreAdapter(final KeyStoreAdapter keyStoreAdapter) {
-        this.mKeyStoreAdapter = keyStoreAdapter;
+    private byte[] getBodyForCacheKey() throws UnsupportedEncodingException {
+        if (!mHttpMethod.isDocumentAllowed()) {
+            return null;
+        } else if (hasParams()) {
+            return getEncodedFormBody();
+        } else if (hasStringDocument()) {
+            return mStringDocument.getBytes(mCharset);
+        } else if (hasBinaryDocument()) {
+            return mBinaryDocument;
+        }
+        return null;
     }
 
     /**
@@ -268,6 +370,20 @@ public class RestCommand {
         return mKeyStoreAdapter;
     }
 
+    /**
+     * @return The CancellationHandle of this RestCommand or null if it cannot be cancelled
+     */
+    public CancellationHandle getCancellationHandle() {
+        return mCancellationHandle;
+    }
+
+    /**
+     * @return True if the RestCommand has been cancelled with its CancellationHandle
+     */
+    public boolean isCancelled() {
+        return mCancellationHandle != null && mCancellationHandle.isCancelled();
+    }
+
     /**
      * @return The String document if any
      */
@@ -283,7 +399,7 @@ public class RestCommand {
     }
 
     /**
-     * @return The binary document if any
+     * @return The binary document if any. The array is not copied so it must not be modified
      */
     public byte[] getBinaryDocument() {
         return mBinaryDocument;
@@ -297,12 +413,31 @@ public class RestCommand {
     }
 
     /**
-     * Enabled or disable traffic stats
-     *
-     * @param trafficStatsEnabled If true the traffic are enabled (default).
+     * @return The multipart document if any
      */
-    public void setTrafficStatsEnabled(final boolean trafficStatsEnabled) {
-        this.mTrafficStatsEnabled = trafficStatsEnabled;
+    public MultipartDocument getMultipartDocument() {
+        return mMultipartDocument;
+    }
+
+    /**
+     * @return True if the request has a multipart document
+     */
+    public boolean hasMultipartDocument() {
+        return mMultipartDocument != null;
+    }
+
+    /**
+     * @return The document with the content of a File if any
+     */
+    public FileDocument getFileDocument() {
+        return mFileDocument;
+    }
+
+    /**
+     * @return True if the request has a document with the content of a File
+     */
+    public boolean hasFileDocument() {
+        return mFileDocument != null;
     }
 
     /**
@@ -312,4 +447,67 @@ public class RestCommand {
         return mTrafficStatsEnabled;
     }
 
+    /**
+     * @return The raw array of the params. It's shared with the RestCommandBuilder
+     */
+    String[] rawParams() {
+        return mParams;
+    }
+
+    /**
+     * @return The raw array of the headers. It's shared with the RestCommandBuilder
+     */
+    String[] rawHeaders() {
+        return mHeaders;
+    }
+
+    @Override
+    public String toString() {
+        return mHttpMethod + " " + mUrl;
+    }
+
+    /**
+     * The Iterable on the entries of an array with names and values
+     */
+    private static final class EntryIterable implements Iterable<Map.Entry<String, String>> {
+
+        /**
+         * The array with names and values
+         */
+        private final String[] mNamesAndValues;
+
+        EntryIterable(final String[] namesAndValues) {
+            this.mNamesAndValues = namesAndValues;
+        }
+
+        @Override
+        public Iterator<Map.Entry<String, String>> iterator() {
+            return new Iterator<Map.Entry<String, String>>() {
+
+                private int mIndex;
+
+                @Override
+                public boolean hasNext() {
+                    return mIndex < mNamesAndValues.length;
+                }
+
+                @Override
+                public Map.Entry<String, String> next() {
+                    if (mIndex >= mNamesAndValues.length) {
+                        throw new NoSuchElementException();
+                    }
+                    final Map.Entry<String, String> entry = new AbstractMap.SimpleImmutableEntry<String, String>(
+                            mNamesAndValues[mIndex], mNamesAndValues[mIndex + 1]);
+                    mIndex += 2;
+                    return entry;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException("RestCommand is immutable");
+                }
+            };
+        }
+    }
+
 }
@@ -1,29 +1,166 @@
 package uk.co.massimocarli.restmethod.rest;
 
+import uk.co.massimocarli.restmethod.http.MessagePackWriter;
 import uk.co.massimocarli.restmethod.http.https.KeyStoreAdapter;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
- * The Builder for the Rest requests to send to the Server
+ * The Builder for the Rest requests to send to the Server. Every call to build() returns a new
+ * immutable RestCommand so the same RestCommandBuilder can be used to create different commands.
+ * The arrays of params and headers are shared with the built RestCommands and copied only
+ * when they are changed after a build().
  * <p/>
  * Created by Massimo Carli on 30/10/2013.
  */
 public final class RestCommandBuilder {
 
     /**
-     * The RestCommand bound to this specific RestCommandBuilder
+     * The initial capacity for the arrays of params and headers (name and value)
      */
-    private final RestCommand mRestCommand;
+    private static final int INITIAL_CAPACITY = 8;
 
     /**
-     * Creates a RestCommandBuilder for a given RestCommand
+     * The header names we use most of the times. We use always the same instances for them
+     */
+    private static final Map<String, String> sHeaderNames = new HashMap<String, String>();
+
+    static {
+        final String[] headerNames = {"Accept", "Accept-Encoding", "Accept-Language", "Authorization",
+                "Cache-Control", "Connection", "Content-Length", "Content-Range", "Content-Type", "Cookie",
+                "If-Modified-Since", "If-None-Match", "If-Range", "Range", "User-Agent"};
+        for (String headerName : headerNames) {
+            sHeaderNames.put(headerName, headerName);
+        }
+    }
+
+    /**
+     * The HTTP Method of the RestCommand
+     */
+    private final RestCommand.HTTP_METHOD mHttpMethod;
+
+    /**
+     * The url of the RestCommand
+     */
+    private String mUrl;
+
+    /**
+     * The params as name, value, name, value...
+     */
+    private String[] mParams = RestCommand.EMPTY;
+
+    /**
+     * The number of used positions into mParams
+     */
+    private int mParamsSize;
+
+    /**
+     * True if mParams is shared with a RestCommand and it must be copied before a change
+     */
+    private boolean mParamsShared = true;
+
+    /**
+     * The headers as name, value, name, value...
+     */
+    private String[] mHeaders = RestCommand.EMPTY;
+
+    /**
+     * The number of used positions into mHeaders
+     */
+    private int mHeadersSize;
+
+    /**
+     * True if mHeaders is shared with a RestCommand and it must be copied before a change
+     */
+    private boolean mHeadersShared = true;
+
+    /**
+     * The String document if any
+     */
+    private String mStringDocument;
+
+    /**
+     * The binary document if any
+     */
+    private byte[] mBinaryDocument;
+
+    /**
+     * The multipart document if any
+     */
+    private MultipartDocument mMultipartDocument;
+
+    /**
+     * The document with the content of a File
+     */
+    private FileDocument mFileDocument;
+
+    /**
+     * The charset for the request
+     */
+    private String mCharset = RestCommand.DEFAULT_CHARSET;
+
+    /**
+     * If true the stats for traffic are enabled
+     */
+    private boolean mTrafficStatsEnabled = true;
+
+    /**
+     * The Adapter for the optional certificate
+     */
+    private KeyStoreAdapter mKeyStoreAdapter;
+
+    /**
+     * The handle to cancel the RestCommand
+     */
+    private CancellationHandle mCancellationHandle;
+
+    /**
+     * Creates a RestCommandBuilder for a given method and url
+     *
+     * @param httpMethod The HTTP Method for the request
+     * @param url        The url for the request
+     */
+    private RestCommandBuilder(final RestCommand.HTTP_METHOD httpMethod, final String url) {
+        this.mHttpMethod = httpMethod;
+        this.mUrl = url;
+    }
+
+    /**
+     * Get the RestCommandBuilder for a given HTTP Method
      *
-     * @param restCommand The RestCommand to build
+     * @param httpMethod The HTTP Method for the request
+     * @param url        The url for the request
+     * @return The RestCommandBuilder to manage the request
      */
-    private RestCommandBuilder(final RestCommand restCommand) {
-        this.mRestCommand = restCommand;
+    static RestCommandBuilder create(final RestCommand.HTTP_METHOD httpMethod, final String url) {
+        return new RestCommandBuilder(httpMethod, url);
+    }
 
+    /**
+     * Get the RestCommandBuilder with all the data of the given RestCommand
+     *
+     * @param restCommand The RestCommand to copy
+     * @return The RestCommandBuilder to create a modified copy of the RestCommand
+     */
+    static RestCommandBuilder from(final RestCommand restCommand) {
+        final RestCommandBuilder builder = new RestCommandBuilder(restCommand.getHttpMethod(), restCommand.getUrl());
+        // The arrays are shared until we change them
+        builder.mParams = restCommand.rawParams();
+        builder.mParamsSize = builder.mParams.length;
+        builder.mHeaders = restCommand.rawHeaders();
+        builder.mHeadersSize = builder.mHeaders.length;
+        builder.mStringDocument = restCommand.getStringDocument();
+        builder.mBinaryDocument = restCommand.getBinaryDocument();
+        builder.mMultipartDocument = restCommand.getMultipartDocument();
+        builder.mFileDocument = restCommand.getFileDocument();
+        builder.mCharset = restCommand.getCharset();
+        builder.mTrafficStatsEnabled = restCommand.isTrafficStatsEnabled();
+        builder.mKeyStoreAdapter = restCommand.getKeyStoreAdapter();
+        builder.mCancellationHandle = restCommand.getCancellationHandle();
+        return builder;
     }
 
     /**
@@ -33,7 +170,7 @@ public final class RestCommandBuilder {
      * @return The RestCommandBuilder to manage a GET request
      */
     public static RestCommandBuilder get(final String url) {
-        RestCommandBuilder builder = new RestCommandBuilder(new RestCommand(RestCommand.HTTP_METHOD.GET, url));
+        RestCommandBuilder builder = new RestCommandBuilder(RestCommand.HTTP_METHOD.GET, url);
         return builder;
     }
 
@@ -44,7 +181,7 @@ public final class RestCommandBuilder {
      * @return The RestCommandBuilder to manage a POST request
      */
     public static RestCommandBuilder post(final String url) {
-        RestCommandBuilder builder = new RestCommandBuilder(new RestCommand(RestCommand.HTTP_METHOD.POST, url));
+        RestCommandBuilder builder = new RestCommandBuilder(RestCommand.HTTP_METHOD.POST, url);
         return builder;
     }
 
@@ -55,7 +192,7 @@ public final class RestCommandBuilder {
      * @return The RestCommandBuilder to manage a PUT request
      */
     public static RestCommandBuilder put(final String url) {
-        RestCommandBuilder builder = new RestCommandBuilder(new RestCommand(RestCommand.HTTP_METHOD.PUT, url));
+        RestCommandBuilder builder = new RestCommandBuilder(RestCommand.HTTP_METHOD.PUT, url);
         return builder;
     }
 
@@ -66,19 +203,44 @@ public final class RestCommandBuilder {
      * @return The RestCommandBuilder to manage a PUT request
      */
     public static RestCommandBuilder delete(final String url) {
-        RestCommandBuilder builder = new RestCommandBuilder(new RestCommand(RestCommand.HTTP_METHOD.DELETE, url));
+        RestCommandBuilder builder = new RestCommandBuilder(RestCommand.HTTP_METHOD.DELETE, url);
         return builder;
     }
 
     /**
-     * This method add a param to the request
+     * This method changes the url of the request
+     *
+     * @param url The new url for the request
+     * @return The RestCommandBuilder itself to manage chaining
+     */
+    public RestCommandBuilder withUrl(final String url) {
+        this.mUrl = url;
+        return this;
+    }
+
+    /**
+     * This method add a param to the request. If a param with the same name is already
+     * present its value is replaced
      *
      * @param name  The name of the param
      * @param value The value for the param
      * @return The RestCommandBuilder itself to manage chaining
      */
     public RestCommandBuilder addParam(final String name, final String value) {
-        this.mRestCommand.addParam(name, value);
+        if (mMultipartDocument != null) {
+            throw new IllegalStateException("A multipart document is already present. Use form fields instead");
+        }
+        final int index = indexOf(mParams, mParamsSize, name, false);
+        if (index >= 0) {
+            mParams = mParamsShared ? mParams.clone() : mParams;
+            mParamsShared = false;
+            mParams[index + 1] = value;
+        } else {
+            mParams = ensureCapacity(mParams, mParamsSize, mParamsShared);
+            mParamsShared = false;
+            mParams[mParamsSize++] = name;
+            mParams[mParamsSize++] = value;
+        }
         return this;
     }
 
@@ -89,19 +251,32 @@ public final class RestCommandBuilder {
      * @return The RestCommandBuilder itself to manage chaining
      */
     public RestCommandBuilder addParams(final Map<String, String> params) {
-        this.mRestCommand.addParams(params);
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            addParam(param.getKey(), param.getValue());
+        }
         return this;
     }
 
     /**
-     * This method add an header to the request
+     * This method add an header to the request. If an header with the same name is already
+     * present its value is replaced
      *
      * @param name  The name of the header
      * @param value The value for the header
      * @return The RestCommandBuilder itself to manage chaining
      */
     public RestCommandBuilder addHeader(final String name, final String value) {
-        this.mRestCommand.addHeader(name, value);
+        final int index = indexOf(mHeaders, mHeadersSize, name, true);
+        if (index >= 0) {
+            mHeaders = mHeadersShared ? mHeaders.clone() : mHeaders;
+            mHeadersShared = false;
+            mHeaders[index + 1] = value;
+        } else {
+            mHeaders = ensureCapacity(mHeaders, mHeadersSize, mHeadersShared);
+            mHeadersShared = false;
+            mHeaders[mHeadersSize++] = internHeaderName(name);
+            mHeaders[mHeadersSize++] = value;
+        }
         return this;
     }
 
@@ -112,7 +287,9 @@ public final class RestCommandBuilder {
      * @return The RestCommandBuilder itself to manage chaining
      */
     public RestCommandBuilder addHeaders(final Map<String, String> headers) {
-        this.mRestCommand.addParams(headers);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            addHeader(header.getKey(), header.getValue());
+        }
         return this;
     }
 
@@ -123,7 +300,17 @@ public final class RestCommandBuilder {
      * @return The RestCommandBuilder itself to manage chaining
      */
     public RestCommandBuilder setStringDocument(final String stringDocument) {
-        this.mRestCommand.setStringDocument(stringDocument);
+        checkDocumentAllowed();
+        if (mBinaryDocument != null) {
+            throw new IllegalStateException("You cannot add a String document if a binary one is already present");
+        }
+        if (mMultipartDocument != null) {
+            throw new IllegalStateException("A multipart document is already present");
+        }
+        if (mFileDocument != null) {
+            throw new IllegalStateException("A file document is already present");
+        }
+        this.mStringDocument = stringDocument;
         return this;
     }
 
@@ -134,7 +321,134 @@ public final class RestCommandBuilder {
      * @return The RestCommandBuilder itself to manage chaining
      */
     public RestCommandBuilder setStringDocument(final byte[] binaryDocument) {
-        this.mRestCommand.setBinaryDocument(binaryDocument);
+        return setBinaryDocument(binaryDocument);
+    }
+
+    /**
+     * This sets a binary document  as an input. The array is not copied so it must not be
+     * changed after this call
+     *
+     * @param binaryDocument The binary document to send
+     * @return The RestCommandBuilder itself to manage chaining
+     */
+    public RestCommandBuilder setBinaryDocument(final byte[] binaryDocument) {
+        checkDocumentAllowed();
+        if (mStringDocument != null) {
+            throw new IllegalStateException("You cannot add a binary document if a string one is already present");
+        }
+        if (mMultipartDocument != null) {
+            throw new IllegalStateException("A multipart document is already present");
+        }
+        if (mFileDocument != null) {
+            throw new IllegalStateException("A file document is already present");
+        }
+        this.mBinaryDocument = binaryDocument;
+        return this;
+    }
+
+    /**
+     * This sets the content of a File as the document to send. The File is streamed to the
+     * connection with positional reads when the request is sent so it's never read into
+     * memory. The Content-Type header is added from the document if not present.
+     *
+     * @param fileDocument The FileDocument to send
+     * @return The RestCommandBuilder itself to manage chaining
+     */
+    public RestCommandBuilder setFileDocument(final FileDocument fileDocument) {
+        checkDocumentAllowed();
+        if (mStringDocument != null || mBinaryDocument != null) {
+            throw new IllegalStateException("You cannot add a file document if another one is already present");
+        }
+        if (mMultipartDocument != null) {
+            throw new IllegalStateException("A multipart document is already present");
+        }
+        this.mFileDocument = fileDocument;
+        return this;
+    }
+
+    /**
+     * This sets the content of a File as the document to send
+     *
+     * @param file        The File to send
+     * @param contentType The Content-Type of the File
+     * @return The RestCommandBuilder itself to manage chaining
+     */
+    public RestCommandBuilder setFileDocument(final File file, final String contentType) {
+        return setFileDocument(FileDocument.create(file, contentType));
+    }
+
+    /**
+     * This adds a text field to the multipart/form-data document of the request
+     *
+     * @param name  The name of the field
+     * @param value The value of the field
+     * @return The RestCommandBuilder itself to manage chaining
+     */
+    public RestCommandBuilder addFormField(final String name, final String value) {
+        mMultipartDocument = getOrCreateMultipartDocument().withFormField(name, value, mCharset);
+        return this;
+    }
+
+    /**
+     * This adds a binary part to the multipart/form-data document of the request
+     *
+     * @param name        The name of the part
+     * @param fileName    The file name for the part if any
+     * @param contentType The Content-Type of the part
+     * @param content     The content of the part
+     * @return The RestCommandBuilder itself to manage chaining
+     */
+    public RestCommandBuilder addBinaryPart(final String name, final String fileName,
+                                            final String contentType, final byte[] content) {
+        mMultipartDocument = getOrCreateMultipartDocument().withBinaryPart(name, fileName, contentType, content);
+        return this;
+    }
+
+    /**
+     * This adds a part to the multipart/form-data document of the request. The content of the
+     * file is streamed to the connection only when the request is sent
+     *
+     * @param name        The name of the part
+     * @param file        The File to send
+     * @param contentType The Content-Type of the part
+     * @return The RestCommandBuilder itself to manage chaining
+     */
+    public RestCommandBuilder addFilePart(final String name, final File file, final String contentType) {
+        mMultipartDocument = getOrCreateMultipartDocument().withFilePart(name, file, contentType);
+        return this;
+    }
+
+    /**
+     * This adds a part to the multipart/form-data document of the request using the default
+     * binary Content-Type
+     *
+     * @param name The name of the part
+     * @param file The File to send
+     * @return The RestCommandBuilder itself to manage chaining
+     */
+    public RestCommandBuilder addFilePart(final String name, final File file) {
+        return addFilePart(name, file, MultipartDocument.DEFAULT_BINARY_CONTENT_TYPE);
+    }
+
+    /**
+     * This sets the charset to use for the params encoding
+     *
+     * @param charset The charset for the params
+     * @return The RestCommandBuilder itself to manage chaining
+     */
+    public RestCommandBuilder withCharset(final String charset) {
+        this.mCharset = charset;
+        return this;
+    }
+
+    /**
+     * Enabled or disable traffic stats
+     *
+     * @param trafficStatsEnabled If true the traffic are enabled (default).
+     * @return The RestCommandBuilder itself to manage chaining
+     */
+    public RestCommandBuilder withTrafficStats(final boolean trafficStatsEnabled) {
+        this.mTrafficStatsEnabled = trafficStatsEnabled;
         return this;
     }
 
@@ -144,8 +458,38 @@ public final class RestCommandBuilder {
      * @return The RestCommandBuilder itself to manage chaining
      */
     public RestCommandBuilder isJson() {
-        this.mRestCommand.addHeader("Content-Type", "application/json");
-        this.mRestCommand.addHeader("Accept", "application/json");
+        addHeader("Content-Type", "application/json");
+        addHeader("Accept", "application/json");
+        return this;
+    }
+
+    /**
+     * This asks the response as MessagePack. The server can still answer with JSON so the
+     * response should be read with the ContentNegotiatingDeserializer
+     *
+     * @return The RestCommandBuilder itself to manage chaining
+     */
+    public RestCommandBuilder acceptMessagePack() {
+        addHeader("Accept", MessagePackWriter.CONTENT_TYPE + ", application/json;q=0.5");
+        return this;
+    }
+
+    /**
+     * This sets the given value encoded as MessagePack as the document to send with its
+     * Content-Type
+     *
+     * @param value A JSONObject, a JSONArray, a Map, a Collection or a simple value
+     * @return The RestCommandBuilder itself to manage chaining
+     */
+    public RestCommandBuilder setMessagePackDocument(final Object value) {
+        final byte[] document;
+        try {
+            document = MessagePackWriter.toByteArray(value);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Value not valid for MessagePack", e);
+        }
+        setBinaryDocument(document);
+        addHeader("Content-Type", MessagePackWriter.CONTENT_TYPE);
         return this;
     }
 
@@ -156,15 +500,112 @@ public final class RestCommandBuilder {
      * @return The RestCommandBuilder itself to manage chaining
      */
     public RestCommandBuilder isSecure(final KeyStoreAdapter keyStoreAdapter) {
-        this.mRestCommand.setKeyStoreAdapter(keyStoreAdapter);
+        this.mKeyStoreAdapter = keyStoreAdapter;
         return this;
     }
 
     /**
-     * @return The created RestCommand
+     * This method adds the CancellationHandle to stop the RestCommand while queued or executed
+     *
+     * @param cancellationHandle The CancellationHandle for the RestCommand
+     * @return The RestCommandBuilder itself to manage chaining
+     */
+    public RestCommandBuilder withCancellationHandle(final CancellationHandle cancellationHandle) {
+        this.mCancellationHandle = cancellationHandle;
+        return this;
+    }
+
+    /**
+     * @return A new immutable RestCommand with the current data of this builder
      */
     public RestCommand build() {
-        return this.mRestCommand;
+        // The arrays are trimmed only if needed and then shared with the RestCommand
+        mParams = trim(mParams, mParamsSize);
+        mHeaders = trim(mHeaders, mHeadersSize);
+        mParamsShared = true;
+        mHeadersShared = true;
+        return new RestCommand(mHttpMethod, mUrl, mParams, mHeaders, mStringDocument, mBinaryDocument,
+                               mMultipartDocument, mFileDocument, mCharset, mTrafficStatsEnabled,
+                               mKeyStoreAdapter, mCancellationHandle);
+    }
+
+    /**
+     * @return The MultipartDocument for this request creating it if not present
+     */
+    private MultipartDocument getOrCreateMultipartDocument() {
+        if (mMultipartDocument == null) {
+            checkDocumentAllowed();
+            if (mStringDocument != null || mBinaryDocument != null || mFileDocument != null) {
+                throw new IllegalStateException("You cannot add a multipart document if another one is already present");
+            }
+            if (mParamsSize > 0) {
+                throw new IllegalStateException("You cannot add a multipart document to a request with params. Use form fields instead");
+            }
+            mMultipartDocument = new MultipartDocument();
+        }
+        return mMultipartDocument;
+    }
+
+    /**
+     * Checks that the HTTP Method supports a document into the request
+     */
+    private void checkDocumentAllowed() {
+        if (!mHttpMethod.isDocumentAllowed()) {
+            throw new IllegalStateException(
+                    "HTTP Method " + mHttpMethod + " doesn't support document into the request!");
+        }
+    }
+
+    /**
+     * Looks for a name into an array of names and values
+     *
+     * @return The index of the name or -1 if not present
+     */
+    private static int indexOf(final String[] namesAndValues, final int size, final String name,
+                               final boolean ignoreCase) {
+        for (int i = 0; i < size; i += 2) {
+            final String current = namesAndValues[i];
+            if (ignoreCase ? current.equalsIgnoreCase(name) : current.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns an array with room for another name and value. The array is copied if it's
+     * full or if it's shared
+     */
+    private static String[] ensureCapacity(final String[] namesAndValues, final int size, final boolean shared) {
+        if (!shared && size + 2 <= namesAndValues.length) {
+            return namesAndValues;
+        }
+        final String[] newArray = new String[Math.max(INITIAL_CAPACITY, Math.max(size + 2, namesAndValues.length * 2))];
+        System.arraycopy(namesAndValues, 0, newArray, 0, size);
+        return newArray;
+    }
+
+    /**
+     * Returns an array with only the used positions
+     */
+    private static String[] trim(final String[] namesAndValues, final int size) {
+        if (size == 0) {
+            return RestCommand.EMPTY;
+        }
+        if (namesAndValues.length == size) {
+            return namesAndValues;
+        }
+        final String[] trimmed = new String[size];
+        System.arraycopy(namesAndValues, 0, trimmed, 0, size);
+        return trimmed;
+    }
+
+    /**
+     * @return The shared instance of the given header name
+     */
+    private static String internHeaderName(final String name) {
+        final String headerName = sHeaderNames.get(name);
+        return headerName != null ? headerName : name.intern();
     }
 
 }
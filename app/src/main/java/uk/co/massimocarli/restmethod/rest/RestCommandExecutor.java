@@ -69,4 +69,17 @@ public interface RestCommandExecutor {
         }
     }
 
+    /**
+     * This is the exception when the RestCommand has been cancelled with its CancellationHandle
+     */
+    public class CancelledException extends RestCommandException {
+
+        /**
+         * Creates a CancelledException
+         */
+        public CancelledException() {
+            super("RestCommand cancelled", null);
+        }
+    }
+
 }
@@ -24,6 +24,11 @@ public final class RestCommandResult<T> {
      */
     private final String mStatusMessage;
 
+    /**
+     * The metadata of the response if available
+     */
+    private final ResponseMetadata mMetadata;
+
     /**
      * The bytes of this request if available if available
      */
@@ -36,10 +41,12 @@ public final class RestCommandResult<T> {
      * @param statusCode    The http status code
      * @param statusMessage The http status message
      */
-    private RestCommandResult(final T result, final int statusCode, final String statusMessage) {
+    private RestCommandResult(final T result, final int statusCode, final String statusMessage,
+                              final ResponseMetadata metadata) {
         this.mResult = result;
         this.mStatusCode = statusCode;
         this.mStatusMessage = statusMessage;
+        this.mMetadata = metadata;
     }
 
 
@@ -53,7 +60,19 @@ public final class RestCommandResult<T> {
      * @return The RestCommandResult with the given data
      */
     public static <T> RestCommandResult<T> get(final T result, final int statusCode, final String statusMessage) {
-        return new RestCommandResult(result, statusCode, statusMessage);
+        return new RestCommandResult<T>(result, statusCode, statusMessage, null);
+    }
+
+    /**
+     * Creates a RestCommandResult for a given Result and the metadata of the response
+     *
+     * @param result   The result of the RestCommand
+     * @param metadata The metadata of the response
+     * @param <T>      The type of the result
+     * @return The RestCommandResult with the given data
+     */
+    public static <T> RestCommandResult<T> get(final T result, final ResponseMetadata metadata) {
+        return new RestCommandResult<T>(result, metadata.getStatusCode(), metadata.getStatusMessage(), metadata);
     }
 
     /**
@@ -70,6 +89,24 @@ public final class RestCommandResult<T> {
         return mStatusMessage;
     }
 
+    /**
+     * Returns the value of a header of the response. The header is read from the response
+     * only when asked.
+     *
+     * @param name The name of the header. The name is case insensitive
+     * @return The value of the header or null if not present or not available
+     */
+    public String getHeader(final String name) {
+        return mMetadata != null ? mMetadata.getHeader(name) : null;
+    }
+
+    /**
+     * @return The metadata of the response or null if not available
+     */
+    public ResponseMetadata getMetadata() {
+        return mMetadata;
+    }
+
     /**
      * @return The result of type T
      */
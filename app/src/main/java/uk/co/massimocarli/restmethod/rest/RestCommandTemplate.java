@@ -0,0 +1,269 @@
+package uk.co.massimocarli.restmethod.rest;
+
+import uk.co.massimocarli.restmethod.util.EncodingUtils;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This is a precompiled template for the RestCommands to the same endpoint. The url template
+ * contains placeholders as <code>http://host/users/{id}/photos</code>. The template is parsed
+ * only once and the static parts, the static params and the static headers are kept ready to
+ * use so the creation of a RestCommand only encodes the values of the placeholders.
+ * <p/>
+ * A RestCommandTemplate is immutable and it can be shared between threads.
+ */
+public final class RestCommandTemplate {
+
+    /**
+     * The HTTP Method of the RestCommands
+     */
+    private final RestCommand.HTTP_METHOD mHttpMethod;
+
+    /**
+     * The original url template
+     */
+    private final String mUrlTemplate;
+
+    /**
+     * The static parts of the url. They are one more than the placeholders
+     */
+    private final String[] mStaticParts;
+
+    /**
+     * The names of the placeholders
+     */
+    private final String[] mPlaceholders;
+
+    /**
+     * For every placeholder it's true if it's in the querystring of the url
+     */
+    private final boolean[] mInQueryString;
+
+    /**
+     * True if the url template contains a querystring
+     */
+    private final boolean mHasQueryString;
+
+    /**
+     * The static params already encoded as name=value&amp;name=value
+     */
+    private final String mStaticQuery;
+
+    /**
+     * The static headers
+     */
+    private final Map<String, String> mHeaders;
+
+    /**
+     * The charset for the encoding of the values
+     */
+    private final String mCharset;
+
+    /**
+     * The length of the static parts we use to presize the url
+     */
+    private final int mStaticLength;
+
+    /**
+     * Creates a RestCommandTemplate from the parsed template
+     */
+    private RestCommandTemplate(final RestCommand.HTTP_METHOD httpMethod, final String urlTemplate,
+                                final String[] staticParts, final String[] placeholders,
+                                final boolean[] inQueryString, final String staticQuery,
+                                final Map<String, String> headers, final String charset) {
+        this.mHttpMethod = httpMethod;
+        this.mUrlTemplate = urlTemplate;
+        this.mStaticParts = staticParts;
+        this.mPlaceholders = placeholders;
+        this.mInQueryString = inQueryString;
+        this.mHasQueryString = urlTemplate.indexOf('?') >= 0;
+        this.mStaticQuery = staticQuery;
+        this.mHeaders = headers;
+        this.mCharset = charset;
+        int staticLength = staticQuery.length() + 1;
+        for (String staticPart : staticParts) {
+            staticLength += staticPart.length();
+        }
+        this.mStaticLength = staticLength;
+    }
+
+    /**
+     * This static factory method parses the url template and creates the RestCommandTemplate
+     *
+     * @param httpMethod  The HTTP Method of the RestCommands
+     * @param urlTemplate The url with the placeholders as {name}
+     * @return The RestCommandTemplate for the given url template
+     */
+    public static RestCommandTemplate compile(final RestCommand.HTTP_METHOD httpMethod, final String urlTemplate) {
+        final List<String> staticParts = new ArrayList<String>();
+        final List<String> placeholders = new ArrayList<String>();
+        final List<Boolean> inQueryString = new ArrayList<Boolean>();
+        final int queryStart = urlTemplate.indexOf('?');
+        int current = 0;
+        while (true) {
+            final int open = urlTemplate.indexOf('{', current);
+            if (open < 0) {
+                staticParts.add(urlTemplate.substring(current));
+                break;
+            }
+            final int close = urlTemplate.indexOf('}', open);
+            if (close < 0) {
+                throw new IllegalArgumentException("Placeholder not closed in " + urlTemplate);
+            }
+            staticParts.add(urlTemplate.substring(current, open));
+            placeholders.add(urlTemplate.substring(open + 1, close));
+            inQueryString.add(queryStart >= 0 && open > queryStart);
+            current = close + 1;
+        }
+        final boolean[] inQueryStringArray = new boolean[inQueryString.size()];
+        for (int i = 0; i < inQueryStringArray.length; i++) {
+            inQueryStringArray[i] = inQueryString.get(i);
+        }
+        return new RestCommandTemplate(httpMethod, urlTemplate,
+                                       staticParts.toArray(new String[staticParts.size()]),
+                                       placeholders.toArray(new String[placeholders.size()]),
+                                       inQueryStringArray, "", new HashMap<String, String>(),
+                                       RestCommand.DEFAULT_CHARSET);
+    }
+
+    /**
+     * Returns a copy of this template with a static param. The param is encoded only once
+     *
+     * @param name  The name of the param
+     * @param value The value of the param
+     * @return The new RestCommandTemplate
+     */
+    public RestCommandTemplate withStaticParam(final String name, final String value) {
+        final StringBuilder builder = EncodingUtils.acquireBuilder();
+        try {
+            builder.append(mStaticQuery);
+            if (builder.length() > 0) {
+                builder.append('&');
+            }
+            EncodingUtils.appendFormEncoded(builder, name, mCharset).append('=');
+            EncodingUtils.appendFormEncoded(builder, value, mCharset);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalArgumentException("Charset " + mCharset + " not supported!", e);
+        }
+        return new RestCommandTemplate(mHttpMethod, mUrlTemplate, mStaticParts, mPlaceholders,
+                                       mInQueryString, builder.toString(), mHeaders, mCharset);
+    }
+
+    /**
+     * Returns a copy of this template with a static header
+     *
+     * @param name  The name of the header
+     * @param value The value of the header
+     * @return The new RestCommandTemplate
+     */
+    public RestCommandTemplate withHeader(final String name, final String value) {
+        final Map<String, String> headers = new HashMap<String, String>(mHeaders);
+        headers.put(name, value);
+        return new RestCommandTemplate(mHttpMethod, mUrlTemplate, mStaticParts, mPlaceholders,
+                                       mInQueryString, mStaticQuery, headers, mCharset);
+    }
+
+    /**
+     * Returns a copy of this template with the given charset. The static params must be
+     * added after this.
+     *
+     * @param charset The charset for the encoding
+     * @return The new RestCommandTemplate
+     */
+    public RestCommandTemplate withCharset(final String charset) {
+        return new RestCommandTemplate(mHttpMethod, mUrlTemplate, mStaticParts, mPlaceholders,
+                                       mInQueryString, mStaticQuery, mHeaders, charset);
+    }
+
+    /**
+     * This method returns the url for the given values of the placeholders
+     *
+     * @param values The values for the placeholders in the same order of the url template
+     * @return The expanded url
+     */
+    public String expand(final String... values) {
+        if (values.length != mPlaceholders.length) {
+            throw new IllegalArgumentException("Expected " + mPlaceholders.length + " values but got "
+                                                       + values.length + " for " + mUrlTemplate);
+        }
+        final StringBuilder builder = EncodingUtils.acquireBuilder();
+        builder.ensureCapacity(mStaticLength + 16 * values.length);
+        try {
+            for (int i = 0; i < values.length; i++) {
+                builder.append(mStaticParts[i]);
+                if (mInQueryString[i]) {
+                    EncodingUtils.appendFormEncoded(builder, values[i], mCharset);
+                } else {
+                    EncodingUtils.appendPathEncoded(builder, values[i], mCharset);
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalArgumentException("Charset " + mCharset + " not supported!", e);
+        }
+        builder.append(mStaticParts[values.length]);
+        if (mStaticQuery.length() > 0) {
+            builder.append(mHasQueryString ? '&' : '?').append(mStaticQuery);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * This method returns the url for the given values of the placeholders
+     *
+     * @param values The values for the placeholders by name
+     * @return The expanded url
+     */
+    public String expand(final Map<String, String> values) {
+        final String[] orderedValues = new String[mPlaceholders.length];
+        for (int i = 0; i < mPlaceholders.length; i++) {
+            final String value = values.get(mPlaceholders[i]);
+            if (value == null) {
+                throw new IllegalArgumentException("Missing value for " + mPlaceholders[i] + " in " + mUrlTemplate);
+            }
+            orderedValues[i] = value;
+        }
+        return expand(orderedValues);
+    }
+
+    /**
+     * Creates the RestCommandBuilder for the given values of the placeholders. The builder
+     * already contains the static headers of the template.
+     *
+     * @param values The values for the placeholders in the same order of the url template
+     * @return The RestCommandBuilder to complete the RestCommand
+     */
+    public RestCommandBuilder newBuilder(final String... values) {
+        final RestCommandBuilder builder = RestCommandBuilder.create(mHttpMethod, expand(values))
+                .withCharset(mCharset);
+        for (Map.Entry<String, String> header : mHeaders.entrySet()) {
+            builder.addHeader(header.getKey(), header.getValue());
+        }
+        return builder;
+    }
+
+    /**
+     * @return The HTTP Method of the RestCommands
+     */
+    public RestCommand.HTTP_METHOD getHttpMethod() {
+        return mHttpMethod;
+    }
+
+    /**
+     * @return The url template
+     */
+    public String getUrlTemplate() {
+        return mUrlTemplate;
+    }
+
+    /**
+     * @return The number of placeholders
+     */
+    public int placeholdersCount() {
+        return mPlaceholders.length;
+    }
+
+}
@@ -2,17 +2,22 @@ package uk.co.massimocarli.restmethod.stats;
 
 import android.content.Context;
 import uk.co.massimocarli.restmethod.http.deserializer.Deserializer;
+import uk.co.massimocarli.restmethod.http.deserializer.ResponseDeserializer;
+import uk.co.massimocarli.restmethod.http.deserializer.ResponseDeserializerAdapter;
+import uk.co.massimocarli.restmethod.rest.ResponseMetadata;
 
 import java.io.IOException;
 import java.io.InputStream;
 
 /**
  * This is a decorator for the Deserializer that adds the information related to the
- * data received
+ * data received. The metadata of the response are passed to the decorated Deserializer.
+ * The bytes of the body are counted by the TrafficMeter that can be shared with the
+ * executor to count the body of the request and the headers too.
  * <p/>
  * Created by Massimo Carli on 15/01/2014.
  */
-public class TrafficCounterDecorator<T> implements Deserializer<T> {
+public class TrafficCounterDecorator<T> implements ResponseDeserializer<T> {
 
     /**
      * The Function to decorate.
@@ -20,9 +25,9 @@ public class TrafficCounterDecorator<T> implements Deserializer<T> {
     private Deserializer<? extends T> mDecoratee;
 
     /**
-     * The number of bytes read.
+     * The TrafficMeter that counts the bytes read.
      */
-    private long mDataCount;
+    private final TrafficMeter mTrafficMeter;
 
     /**
      * Creates a Deserializer that counts the data read.
@@ -30,50 +35,51 @@ public class TrafficCounterDecorator<T> implements Deserializer<T> {
      * @param decoratee The Deserializer to decorate
      */
     public TrafficCounterDecorator(final Deserializer<? extends T> decoratee) {
+        this(decoratee, TrafficMeter.create());
+    }
+
+    /**
+     * Creates a Deserializer that counts the data read with the given TrafficMeter.
+     *
+     * @param decoratee    The Deserializer to decorate
+     * @param trafficMeter The TrafficMeter for the bytes of the response
+     */
+    public TrafficCounterDecorator(final Deserializer<? extends T> decoratee, final TrafficMeter trafficMeter) {
         this.mDecoratee = decoratee;
-        mDataCount = 0L;
+        this.mTrafficMeter = trafficMeter;
     }
 
     @Override
     public T realise(final InputStream inputStream, final Context context) throws IOException {
-        return mDecoratee.realise(new InputStream() {
-
-            @Override
-            public int read() throws IOException {
-                mDataCount++;
-                return inputStream.read();
-            }
-
-            @Override
-            public int read(final byte[] buffer) throws IOException {
-                final int dataRead = super.read(buffer);
-                mDataCount += dataRead;
-                return dataRead;
-            }
-
-            @Override
-            public int read(final byte[] buffer, final int offset, final int length)
-                    throws IOException {
-                final int dataRead = super.read(buffer, offset, length);
-                mDataCount += dataRead;
-                return dataRead;
-            }
+        return mDecoratee.realise(mTrafficMeter.countResponse(inputStream), context);
+    }
 
-        }, context);
+    @Override
+    public T realise(final InputStream inputStream, final ResponseMetadata metadata,
+                     final Context context) throws IOException {
+        return ResponseDeserializerAdapter.realise(mDecoratee, mTrafficMeter.countResponse(inputStream),
+                                                   metadata, context);
     }
 
     /**
      * @return The number of byte read after the last reset.
      */
     public final long getDataCount() {
-        return mDataCount;
+        return mTrafficMeter.getResponseBytes();
+    }
+
+    /**
+     * @return The TrafficMeter of this decorator
+     */
+    public final TrafficMeter getTrafficMeter() {
+        return mTrafficMeter;
     }
 
     /**
      * Resets the counted byte.
      */
     public final void reset() {
-        mDataCount = 0;
+        mTrafficMeter.reset();
     }
 
     /**
@@ -0,0 +1,917 @@
+package uk.co.massimocarli.restmethod.stats;
+
+import android.content.Context;
+import android.util.Log;
+import uk.co.massimocarli.restmethod.util.IOUtils;
+import uk.co.massimocarli.restmethod.util.NetworkTypeMonitor.NetworkType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This is the history of the traffic per minute, per network type and per endpoint. The data
+ * are kept into a file of fixed size that is memory mapped so the kernel saves the pages even
+ * if the process is killed.
+ * <p/>
+ * The file contains:
+ * <ul>
+ * <li>a header with the sizes of the store</li>
+ * <li>the table of the endpoints. When it's full the endpoints not used by the minutes of the
+ * history are reclaimed and only if none is free the new endpoints are counted as "other"</li>
+ * <li>a ring of buckets, one for every minute of the history. Every bucket has a fixed number
+ * of cells with the bytes and the requests of an endpoint on a network type plus a cell for
+ * every network type where the endpoints that don't fit are counted as "other"</li>
+ * </ul>
+ * The bucket of a minute is reused after the number of minutes of the history so the size of
+ * the file never changes. The endpoints are the host and the path of the urls where the
+ * segments that look like ids are replaced with {id}.
+ * <p/>
+ * The threads of the requests only add a sample to a lock-free queue. The samples are written
+ * into the file by drain(), that the TrafficStats invokes from its writer thread, and before
+ * every query.
+ */
+public final class TrafficHistory {
+
+    /**
+     * The Tag for the Log.
+     */
+    private static final String TAG_LOG = TrafficHistory.class.getName();
+
+    /**
+     * The default number of minutes of the history: one week
+     */
+    public static final int DEFAULT_MINUTES = 7 * 24 * 60;
+
+    /**
+     * The name of the endpoint for the traffic of the endpoints that don't fit into the store
+     */
+    public static final String OTHER_ENDPOINT = "(other)";
+
+    /**
+     * The max number of samples waiting for the drain. The samples after this are dropped
+     */
+    public static final int MAX_PENDING_SAMPLES = 4096;
+
+    /*
+     * The name of the file into the files directory
+     */
+    private static final String FILE_NAME = "traffic_history.bin";
+
+    /*
+     * The header: magic, version, minutes, endpoints count
+     */
+    private static final int MAGIC = 0x52544831;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int MINUTES_OFFSET = 8;
+    private static final int ENDPOINTS_COUNT_OFFSET = 12;
+
+    /*
+     * The table of the endpoints. Every entry is the length and the UTF-8 bytes of the name.
+     * The index 0 is the one of the other endpoints
+     */
+    private static final int MAX_ENDPOINTS = 256;
+    private static final int ENDPOINT_ENTRY_SIZE = 64;
+    private static final int MAX_ENDPOINT_BYTES = ENDPOINT_ENTRY_SIZE - 2;
+    private static final int OTHER_ENDPOINT_INDEX = 0;
+    private static final int ENDPOINTS_OFFSET = HEADER_SIZE;
+
+    /*
+     * The buckets. Every bucket has the minute, the number of cells used and the cells. A cell
+     * has the endpoint index (short), the network type (byte), a padding byte, the requests
+     * (int) and the bytes (long). The last cells are the ones of the other endpoints, one for
+     * every network type
+     */
+    private static final int NETWORK_TYPES = NetworkType.values().length;
+    private static final int CELL_SIZE = 16;
+    private static final int REGULAR_CELLS = 12;
+    private static final int CELLS_PER_BUCKET = REGULAR_CELLS + NETWORK_TYPES;
+    private static final int BUCKET_HEADER_SIZE = 8;
+    private static final int BUCKET_USED_CELLS_OFFSET = 4;
+    private static final int BUCKET_SIZE = BUCKET_HEADER_SIZE + CELLS_PER_BUCKET * CELL_SIZE;
+    private static final int BUCKETS_OFFSET = ENDPOINTS_OFFSET + MAX_ENDPOINTS * ENDPOINT_ENTRY_SIZE;
+
+    /*
+     * The minute of the buckets without data
+     */
+    private static final int NO_MINUTE = -1;
+
+    /*
+     * The offsets into a cell
+     */
+    private static final int CELL_ENDPOINT_OFFSET = 0;
+    private static final int CELL_NETWORK_OFFSET = 2;
+    private static final int CELL_REQUESTS_OFFSET = 4;
+    private static final int CELL_BYTES_OFFSET = 8;
+
+    /*
+     * The milliseconds in a minute
+     */
+    private static final long MINUTE = 60 * 1000L;
+
+    /*
+     * The placeholder for the segments of the path that look like ids
+     */
+    private static final String ID_SEGMENT = "{id}";
+
+    /*
+     * The max number of urls whose endpoint is cached
+     */
+    private static final int MAX_CACHED_URLS = 512;
+
+    /**
+     * The instance of the Singleton.
+     */
+    private static TrafficHistory sInstance;
+
+    /**
+     * The mapping of the file
+     */
+    private final MappedByteBuffer mBuffer;
+
+    /**
+     * The number of minutes of the history
+     */
+    private final int mMinutes;
+
+    /**
+     * The names of the endpoints
+     */
+    private final List<String> mEndpoints = new ArrayList<String>();
+
+    /**
+     * The indexes of the endpoints
+     */
+    private final Map<String, Integer> mEndpointIndexes = new HashMap<String, Integer>();
+
+    /**
+     * The indexes of the table reclaimed and not used yet
+     */
+    private final ArrayDeque<Integer> mFreeIndexes = new ArrayDeque<Integer>();
+
+    /**
+     * The endpoints of the last urls
+     */
+    private final Map<String, String> mEndpointCache = new HashMap<String, String>();
+
+    /**
+     * The samples not written yet
+     */
+    private final ConcurrentLinkedQueue<Sample> mPendingSamples = new ConcurrentLinkedQueue<Sample>();
+
+    /**
+     * The number of samples not written yet
+     */
+    private final AtomicInteger mPendingCount = new AtomicInteger();
+
+    /**
+     * The number of samples dropped because too many were waiting
+     */
+    private final AtomicLong mDroppedSamples = new AtomicLong();
+
+    /**
+     * The newest minute with data
+     */
+    private int mNewestMinute;
+
+    /**
+     * The minute of the last reclaim of the endpoints. We reclaim at most once a minute
+     */
+    private int mLastReclaimMinute = NO_MINUTE;
+
+    /**
+     * The traffic of a request not written yet
+     */
+    private static final class Sample {
+
+        private final long mTimeMillis;
+        private final String mUrl;
+        private final NetworkType mNetworkType;
+        private final long mBytes;
+
+        private Sample(final long timeMillis, final String url, final NetworkType networkType, final long bytes) {
+            this.mTimeMillis = timeMillis;
+            this.mUrl = url;
+            this.mNetworkType = networkType;
+            this.mBytes = bytes;
+        }
+    }
+
+    /**
+     * This is the usage of an endpoint or of all of them in a range of time
+     */
+    public static final class EndpointUsage {
+
+        /**
+         * The endpoint or null for the total of all of them
+         */
+        private final String mEndpoint;
+
+        /**
+         * The bytes
+         */
+        private long mBytes;
+
+        /**
+         * The number of requests
+         */
+        private long mRequests;
+
+        /**
+         * Creates an EndpointUsage with no traffic
+         */
+        private EndpointUsage(final String endpoint) {
+            this.mEndpoint = endpoint;
+        }
+
+        /**
+         * @return The endpoint or null for the total of all the endpoints
+         */
+        public String getEndpoint() {
+            return mEndpoint;
+        }
+
+        /**
+         * @return The bytes of the requests
+         */
+        public long getBytes() {
+            return mBytes;
+        }
+
+        /**
+         * @return The number of requests
+         */
+        public long getRequests() {
+            return mRequests;
+        }
+
+        @Override
+        public String toString() {
+            return mEndpoint + " : " + mBytes + " bytes in " + mRequests + " requests";
+        }
+    }
+
+    /**
+     * Private constructor
+     */
+    private TrafficHistory(final MappedByteBuffer buffer, final int minutes) throws IOException {
+        this.mBuffer = buffer;
+        this.mMinutes = minutes;
+        if (buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(VERSION_OFFSET) != VERSION
+                || buffer.getInt(MINUTES_OFFSET) != minutes) {
+            // A new file or a file with another layout
+            clear();
+            return;
+        }
+        final int endpointsCount = buffer.getInt(ENDPOINTS_COUNT_OFFSET);
+        if (endpointsCount < 1 || endpointsCount > MAX_ENDPOINTS) {
+            throw new IOException("File not valid with " + endpointsCount + " endpoints");
+        }
+        for (int i = 0; i < endpointsCount; i++) {
+            final String endpoint = readEndpoint(i);
+            mEndpoints.add(endpoint);
+            mEndpointIndexes.put(endpoint, i);
+        }
+        mNewestMinute = NO_MINUTE;
+        for (int i = 0; i < minutes; i++) {
+            mNewestMinute = Math.max(mNewestMinute, buffer.getInt(BUCKETS_OFFSET + i * BUCKET_SIZE));
+        }
+    }
+
+    /**
+     * Opens the TrafficHistory of the given File creating it if it doesn't exist. A File with
+     * a different number of minutes is cleared. It reads and writes the File so it must not be
+     * called from the main thread or from the threads of the requests.
+     *
+     * @param file    The File of the store
+     * @param minutes The number of minutes of the history
+     * @return The TrafficHistory of the File
+     * @throws IOException In case of error opening or mapping the File
+     */
+    public static TrafficHistory open(final File file, final int minutes) throws IOException {
+        if (minutes <= 0) {
+            throw new IllegalArgumentException("The minutes must be positive");
+        }
+        final long size = fileSize(minutes);
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            if (randomAccessFile.length() != size) {
+                // The new bytes are zeros so the file will be cleared
+                randomAccessFile.setLength(0L);
+                randomAccessFile.setLength(size);
+            }
+            // The mapping remains valid after the close of the channel
+            final MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, size);
+            return new TrafficHistory(buffer, minutes);
+        } finally {
+            IOUtils.closeQuietly(randomAccessFile);
+        }
+    }
+
+    /**
+     * Get the reference to the Singleton for the TrafficHistory of the application with the
+     * default number of minutes. The first call opens the File so it must not be done from the
+     * main thread or from the threads of the requests.
+     *
+     * @param context The Context for the files directory
+     * @return The TrafficHistory singleton.
+     * @throws IOException In case of error opening the store
+     */
+    public static synchronized TrafficHistory get(final Context context) throws IOException {
+        if (sInstance == null) {
+            sInstance = open(new File(context.getFilesDir(), FILE_NAME), DEFAULT_MINUTES);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the size of the File for the given number of minutes
+     *
+     * @param minutes The number of minutes of the history
+     * @return The size of the File in bytes
+     */
+    public static long fileSize(final int minutes) {
+        return BUCKETS_OFFSET + (long) minutes * BUCKET_SIZE;
+    }
+
+    /**
+     * Records the traffic of a request now
+     *
+     * @param url         The url of the request
+     * @param networkType The type of the network
+     * @param bytes       The bytes of the request
+     */
+    public void record(final String url, final NetworkType networkType, final long bytes) {
+        record(System.currentTimeMillis(), url, networkType, bytes);
+    }
+
+    /**
+     * Records the traffic of a request at a given time. It doesn't lock and it doesn't parse
+     * the url: the sample is only queued until the next drain()
+     *
+     * @param timeMillis  The time of the request
+     * @param url         The url of the request
+     * @param networkType The type of the network
+     * @param bytes       The bytes of the request
+     */
+    public void record(final long timeMillis, final String url, final NetworkType networkType, final long bytes) {
+        if (mPendingCount.incrementAndGet() > MAX_PENDING_SAMPLES) {
+            // Nobody drains the samples so we don't keep them
+            mPendingCount.decrementAndGet();
+            mDroppedSamples.incrementAndGet();
+            return;
+        }
+        mPendingSamples.offer(new Sample(timeMillis, url, networkType, bytes));
+    }
+
+    /**
+     * Writes the samples recorded into the File. It's called by the writer of the TrafficStats
+     * and before every query.
+     */
+    public synchronized void drain() {
+        Sample sample;
+        while ((sample = mPendingSamples.poll()) != null) {
+            mPendingCount.decrementAndGet();
+            write(sample);
+        }
+    }
+
+    /**
+     * @return The number of samples dropped because too many were waiting for the drain
+     */
+    public long getDroppedSamples() {
+        return mDroppedSamples.get();
+    }
+
+    /**
+     * Returns the total usage in a range of time
+     *
+     * @param fromMillis  The start of the range included
+     * @param toMillis    The end of the range excluded
+     * @param networkType The type of network or null for all of them
+     * @return The EndpointUsage with the total of all the endpoints
+     */
+    public EndpointUsage getUsage(final long fromMillis, final long toMillis, final NetworkType networkType) {
+        final EndpointUsage total = new EndpointUsage(null);
+        for (EndpointUsage usage : getEndpointUsages(fromMillis, toMillis, networkType)) {
+            total.mBytes += usage.mBytes;
+            total.mRequests += usage.mRequests;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the endpoints with the most bytes in a range of time
+     *
+     * @param fromMillis  The start of the range included
+     * @param toMillis    The end of the range excluded
+     * @param networkType The type of network or null for all of them
+     * @param count       The max number of endpoints. It must be positive
+     * @return The EndpointUsages of the endpoints with most bytes first
+     */
+    public List<EndpointUsage> getTopEndpoints(final long fromMillis, final long toMillis,
+                                               final NetworkType networkType, final int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("The count must be positive");
+        }
+        final List<EndpointUsage> usages = getEndpointUsages(fromMillis, toMillis, networkType);
+        Collections.sort(usages, new Comparator<EndpointUsage>() {
+            @Override
+            public int compare(final EndpointUsage lhs, final EndpointUsage rhs) {
+                return lhs.mBytes < rhs.mBytes ? 1 : (lhs.mBytes == rhs.mBytes ? 0 : -1);
+            }
+        });
+        return usages.size() > count ? new ArrayList<EndpointUsage>(usages.subList(0, count)) : usages;
+    }
+
+    /**
+     * Returns the bytes of every minute in a range of time. The range ends at the newest minute
+     * with data or now if later and it's limited to the minutes of the history
+     *
+     * @param fromMillis  The start of the range included
+     * @param toMillis    The end of the range excluded
+     * @param networkType The type of network or null for all of them
+     * @return The bytes for every minute from the first one of the range
+     */
+    public synchronized long[] getBytesPerMinute(final long fromMillis, final long toMillis,
+                                                 final NetworkType networkType) {
+        drain();
+        final int nowMinute = (int) (System.currentTimeMillis() / MINUTE);
+        final int toMinute = Math.min(lastMinute(toMillis), Math.max(mNewestMinute, nowMinute));
+        final int fromMinute = (int) Math.max(Math.max(fromMillis / MINUTE, (long) toMinute - mMinutes + 1), 0L);
+        final long[] bytes = new long[Math.max(toMinute - fromMinute + 1, 0)];
+        final int firstLiveMinute = Math.max(fromMinute, oldestMinute());
+        final int lastLiveMinute = Math.min(toMinute, mNewestMinute);
+        for (int minute = firstLiveMinute; minute <= lastLiveMinute; minute++) {
+            final int bucket = bucketOffset(minute);
+            if (mBuffer.getInt(bucket) != minute) {
+                continue;
+            }
+            for (int i = 0; i < CELLS_PER_BUCKET; i++) {
+                final int cell = bucket + BUCKET_HEADER_SIZE + i * CELL_SIZE;
+                if (matches(cell, networkType)) {
+                    bytes[minute - fromMinute] += mBuffer.getLong(cell + CELL_BYTES_OFFSET);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the samples recorded and asks the kernel to write the pages of the store to the
+     * storage device
+     */
+    public void force() {
+        drain();
+        mBuffer.force();
+    }
+
+    /**
+     * Deletes all the history
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < mBuffer.capacity(); i += 8) {
+            mBuffer.putLong(i, 0L);
+        }
+        for (int i = 0; i < mMinutes; i++) {
+            mBuffer.putInt(BUCKETS_OFFSET + i * BUCKET_SIZE, NO_MINUTE);
+        }
+        mBuffer.putInt(MAGIC_OFFSET, MAGIC);
+        mBuffer.putInt(VERSION_OFFSET, VERSION);
+        mBuffer.putInt(MINUTES_OFFSET, mMinutes);
+        mEndpoints.clear();
+        mEndpointIndexes.clear();
+        mFreeIndexes.clear();
+        mEndpointCache.clear();
+        writeEndpoint(OTHER_ENDPOINT_INDEX, OTHER_ENDPOINT);
+        mEndpoints.add(OTHER_ENDPOINT);
+        mEndpointIndexes.put(OTHER_ENDPOINT, OTHER_ENDPOINT_INDEX);
+        mBuffer.putInt(ENDPOINTS_COUNT_OFFSET, 1);
+        mNewestMinute = NO_MINUTE;
+    }
+
+    /**
+     * @return The number of minutes of the history
+     */
+    public int getMinutes() {
+        return mMinutes;
+    }
+
+    /**
+     * Returns the endpoint of an url as the host and the path with the segments that look
+     * like ids replaced by {id}. The user info and the query are removed.
+     *
+     * @param url The url
+     * @return The endpoint of the url
+     */
+    public static String endpointOf(final String url) {
+        int start = url.indexOf("://");
+        start = start >= 0 ? start + 3 : 0;
+        int end = url.length();
+        int authorityEnd = end;
+        for (int i = start; i < end; i++) {
+            final char c = url.charAt(i);
+            if (c == '/' && authorityEnd == url.length()) {
+                authorityEnd = i;
+            } else if (c == '?' || c == '#') {
+                end = i;
+                authorityEnd = Math.min(authorityEnd, i);
+                break;
+            }
+        }
+        // The user and the password are not saved
+        final int userInfoEnd = url.lastIndexOf('@', authorityEnd - 1);
+        if (userInfoEnd >= start) {
+            start = userInfoEnd + 1;
+        }
+        final StringBuilder endpoint = new StringBuilder(end - start);
+        appendHost(endpoint, url, start, authorityEnd);
+        int segmentStart = authorityEnd + 1;
+        while (segmentStart <= end) {
+            int segmentEnd = url.indexOf('/', segmentStart);
+            if (segmentEnd < 0 || segmentEnd > end) {
+                segmentEnd = end;
+            }
+            endpoint.append('/');
+            if (isId(url, segmentStart, segmentEnd)) {
+                endpoint.append(ID_SEGMENT);
+            } else {
+                endpoint.append(url, segmentStart, segmentEnd);
+            }
+            segmentStart = segmentEnd + 1;
+        }
+        return endpoint.toString();
+    }
+
+    /**
+     * Appends the host and the port replacing the labels of a host name that look like ids, as
+     * the hashes of the CDNs, with {id}. The IP addresses are kept.
+     */
+    private static void appendHost(final StringBuilder endpoint, final String url, final int start, final int end) {
+        int hostEnd = end;
+        boolean letters = false;
+        if (start < end && url.charAt(start) != '[') {
+            for (int i = start; i < end; i++) {
+                final char c = url.charAt(i);
+                if (c == ':') {
+                    hostEnd = i;
+                    break;
+                }
+                letters |= Character.isLetter(c);
+            }
+        }
+        if (!letters) {
+            endpoint.append(url, start, end);
+            return;
+        }
+        int labelStart = start;
+        while (labelStart <= hostEnd) {
+            int labelEnd = url.indexOf('.', labelStart);
+            if (labelEnd < 0 || labelEnd > hostEnd) {
+                labelEnd = hostEnd;
+            }
+            if (labelStart > start) {
+                endpoint.append('.');
+            }
+            if (isId(url, labelStart, labelEnd)) {
+                endpoint.append(ID_SEGMENT);
+            } else {
+                endpoint.append(url, labelStart, labelEnd);
+            }
+            labelStart = labelEnd + 1;
+        }
+        // The port
+        endpoint.append(url, hostEnd, end);
+    }
+
+    /**
+     * @return True if the segment looks like an id: a number, a token of 8 or more characters
+     * with digits or only hex digits as an uuid or a hash, or a shorter token mixing letters
+     * and at least two digits
+     */
+    private static boolean isId(final String url, final int start, final int end) {
+        final int length = end - start;
+        if (length == 0) {
+            return false;
+        }
+        int digits = 0;
+        int letters = 0;
+        boolean hex = true;
+        for (int i = start; i < end; i++) {
+            final char c = url.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits++;
+            } else if (Character.isLetter(c)) {
+                letters++;
+                hex &= (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+            } else {
+                hex = false;
+            }
+        }
+        if (digits == length) {
+            return true;
+        }
+        if (length >= 8 && (digits > 0 || hex)) {
+            return true;
+        }
+        return length >= 6 && digits >= 2 && letters > 0;
+    }
+
+    /**
+     * Writes a sample into its bucket
+     */
+    private void write(final Sample sample) {
+        if (sample.mTimeMillis < 0) {
+            return;
+        }
+        final int minute = (int) Math.min(sample.mTimeMillis / MINUTE, Integer.MAX_VALUE - 1);
+        if (mNewestMinute != NO_MINUTE && minute <= mNewestMinute - mMinutes) {
+            // Older than the history, as after a change of the clock
+            return;
+        }
+        mNewestMinute = Math.max(mNewestMinute, minute);
+        final int bucket = bucketOffset(minute);
+        if (mBuffer.getInt(bucket) != minute) {
+            // The bucket has the data of an old minute
+            clearBucket(bucket, minute);
+        }
+        final String endpoint = resolveEndpoint(sample.mUrl);
+        final int network = sample.mNetworkType.ordinal();
+        final int cells = bucket + BUCKET_HEADER_SIZE;
+        final Integer knownIndex = mEndpointIndexes.get(endpoint);
+        final int usedCells = usedCells(bucket);
+        if (knownIndex == null || knownIndex != OTHER_ENDPOINT_INDEX) {
+            if (knownIndex != null) {
+                for (int i = 0; i < usedCells; i++) {
+                    final int cell = cells + i * CELL_SIZE;
+                    if (mBuffer.getShort(cell + CELL_ENDPOINT_OFFSET) == knownIndex
+                            && mBuffer.get(cell + CELL_NETWORK_OFFSET) == network) {
+                        addToCell(cell, sample.mBytes);
+                        return;
+                    }
+                }
+            }
+            if (usedCells < REGULAR_CELLS) {
+                // We add the endpoint to the table only if it has a cell
+                final int endpointIndex = knownIndex != null ? knownIndex : addEndpoint(endpoint, minute);
+                if (endpointIndex != OTHER_ENDPOINT_INDEX) {
+                    final int cell = cells + usedCells * CELL_SIZE;
+                    mBuffer.putShort(cell + CELL_ENDPOINT_OFFSET, (short) endpointIndex);
+                    mBuffer.put(cell + CELL_NETWORK_OFFSET, (byte) network);
+                    addToCell(cell, sample.mBytes);
+                    mBuffer.putInt(bucket + BUCKET_USED_CELLS_OFFSET, usedCells + 1);
+                    return;
+                }
+            }
+        }
+        // The endpoint doesn't fit so we count it as other
+        addToCell(cells + (REGULAR_CELLS + network) * CELL_SIZE, sample.mBytes);
+    }
+
+    /**
+     * @return The endpoint of the url from the cache if possible
+     */
+    private String resolveEndpoint(final String url) {
+        String endpoint = mEndpointCache.get(url);
+        if (endpoint == null) {
+            if (mEndpointCache.size() >= MAX_CACHED_URLS) {
+                mEndpointCache.clear();
+            }
+            endpoint = endpointOf(url);
+            mEndpointCache.put(url, endpoint);
+        }
+        return endpoint;
+    }
+
+    /**
+     * Returns the usage of every endpoint in a range of time
+     */
+    private synchronized List<EndpointUsage> getEndpointUsages(final long fromMillis, final long toMillis,
+                                                               final NetworkType networkType) {
+        drain();
+        final EndpointUsage[] usages = new EndpointUsage[mEndpoints.size()];
+        final int fromMinute = (int) Math.max(Math.max(fromMillis / MINUTE, (long) oldestMinute()), 0L);
+        final int toMinute = Math.min(lastMinute(toMillis), mNewestMinute);
+        for (int minute = fromMinute; minute <= toMinute; minute++) {
+            final int bucket = bucketOffset(minute);
+            if (mBuffer.getInt(bucket) != minute) {
+                continue;
+            }
+            for (int i = 0; i < CELLS_PER_BUCKET; i++) {
+                final int cell = bucket + BUCKET_HEADER_SIZE + i * CELL_SIZE;
+                if (!matches(cell, networkType)) {
+                    continue;
+                }
+                int endpointIndex = mBuffer.getShort(cell + CELL_ENDPOINT_OFFSET);
+                if (endpointIndex < 0 || endpointIndex >= usages.length) {
+                    // A cell of a write not completed by a previous process
+                    endpointIndex = OTHER_ENDPOINT_INDEX;
+                }
+                EndpointUsage usage = usages[endpointIndex];
+                if (usage == null) {
+                    usage = new EndpointUsage(mEndpoints.get(endpointIndex));
+                    usages[endpointIndex] = usage;
+                }
+                usage.mBytes += mBuffer.getLong(cell + CELL_BYTES_OFFSET);
+                usage.mRequests += mBuffer.getInt(cell + CELL_REQUESTS_OFFSET);
+            }
+        }
+        final List<EndpointUsage> result = new ArrayList<EndpointUsage>();
+        for (EndpointUsage usage : usages) {
+            if (usage != null) {
+                result.add(usage);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return True if the cell has requests on the given network type
+     */
+    private boolean matches(final int cell, final NetworkType networkType) {
+        return mBuffer.getInt(cell + CELL_REQUESTS_OFFSET) > 0
+                && (networkType == null || mBuffer.get(cell + CELL_NETWORK_OFFSET) == networkType.ordinal());
+    }
+
+    /**
+     * @return The oldest minute of the history, counted from the newest minute with data
+     */
+    private int oldestMinute() {
+        return Math.max(mNewestMinute - mMinutes + 1, 0);
+    }
+
+    /**
+     * @return The last minute of a range ending at the given time excluded
+     */
+    private static int lastMinute(final long toMillis) {
+        return (int) Math.min((toMillis - 1) / MINUTE, Integer.MAX_VALUE - 1);
+    }
+
+    /**
+     * @return The offset of the bucket of the given minute
+     */
+    private int bucketOffset(final int minute) {
+        return BUCKETS_OFFSET + (minute % mMinutes) * BUCKET_SIZE;
+    }
+
+    /**
+     * @return The number of regular cells used in the bucket limited to the valid values
+     */
+    private int usedCells(final int bucket) {
+        return Math.min(Math.max(mBuffer.getInt(bucket + BUCKET_USED_CELLS_OFFSET), 0), REGULAR_CELLS);
+    }
+
+    /**
+     * Clears a bucket and assigns it to the given minute
+     */
+    private void clearBucket(final int bucket, final int minute) {
+        for (int i = 0; i < BUCKET_SIZE; i += 8) {
+            mBuffer.putLong(bucket + i, 0L);
+        }
+        mBuffer.putInt(bucket, minute);
+        // The cells of the other endpoints have their network type
+        for (int network = 0; network < NETWORK_TYPES; network++) {
+            mBuffer.put(bucket + BUCKET_HEADER_SIZE + (REGULAR_CELLS + network) * CELL_SIZE + CELL_NETWORK_OFFSET,
+                        (byte) network);
+        }
+    }
+
+    /**
+     * Adds a request with the given bytes to a cell
+     */
+    private void addToCell(final int cell, final long bytes) {
+        mBuffer.putInt(cell + CELL_REQUESTS_OFFSET, mBuffer.getInt(cell + CELL_REQUESTS_OFFSET) + 1);
+        mBuffer.putLong(cell + CELL_BYTES_OFFSET, mBuffer.getLong(cell + CELL_BYTES_OFFSET) + bytes);
+    }
+
+    /**
+     * Adds an endpoint to the table reclaiming the indexes not used anymore if it's full
+     *
+     * @return The index of the endpoint or the one of the other endpoints if the table is full
+     */
+    private int addEndpoint(final String endpoint, final int minute) {
+        if (mFreeIndexes.isEmpty() && mEndpoints.size() >= MAX_ENDPOINTS && minute != mLastReclaimMinute) {
+            mLastReclaimMinute = minute;
+            reclaimEndpoints();
+        }
+        final int newIndex;
+        if (!mFreeIndexes.isEmpty()) {
+            newIndex = mFreeIndexes.poll();
+        } else if (mEndpoints.size() < MAX_ENDPOINTS) {
+            newIndex = mEndpoints.size();
+            mEndpoints.add(null);
+            mBuffer.putInt(ENDPOINTS_COUNT_OFFSET, newIndex + 1);
+        } else {
+            return OTHER_ENDPOINT_INDEX;
+        }
+        final String storedEndpoint = writeEndpoint(newIndex, endpoint);
+        mEndpoints.set(newIndex, storedEndpoint);
+        // The endpoints too long are truncated so we map both the names
+        mEndpointIndexes.put(endpoint, newIndex);
+        mEndpointIndexes.put(storedEndpoint, newIndex);
+        return newIndex;
+    }
+
+    /**
+     * Frees the indexes of the endpoints not used by any minute of the history. The buckets
+     * older than the history are cleared so they don't use any endpoint
+     */
+    private void reclaimEndpoints() {
+        final boolean[] used = new boolean[mEndpoints.size()];
+        used[OTHER_ENDPOINT_INDEX] = true;
+        final int oldestMinute = oldestMinute();
+        for (int i = 0; i < mMinutes; i++) {
+            final int bucket = BUCKETS_OFFSET + i * BUCKET_SIZE;
+            final int minute = mBuffer.getInt(bucket);
+            if (minute == NO_MINUTE) {
+                continue;
+            }
+            if (minute < oldestMinute) {
+                clearBucket(bucket, NO_MINUTE);
+                continue;
+            }
+            final int usedCells = usedCells(bucket);
+            for (int j = 0; j < usedCells; j++) {
+                final int endpointIndex = mBuffer.getShort(bucket + BUCKET_HEADER_SIZE + j * CELL_SIZE
+                                                                   + CELL_ENDPOINT_OFFSET);
+                if (endpointIndex >= 0 && endpointIndex < used.length) {
+                    used[endpointIndex] = true;
+                }
+            }
+        }
+        mFreeIndexes.clear();
+        for (int i = 0; i < used.length; i++) {
+            if (!used[i]) {
+                mFreeIndexes.add(i);
+            }
+        }
+        final Iterator<Integer> indexes = mEndpointIndexes.values().iterator();
+        while (indexes.hasNext()) {
+            if (!used[indexes.next()]) {
+                indexes.remove();
+            }
+        }
+        Log.d(TAG_LOG, "Reclaimed " + mFreeIndexes.size() + " endpoints");
+    }
+
+    /**
+     * Writes an endpoint into the table truncating it if too long
+     *
+     * @return The endpoint as written
+     */
+    private String writeEndpoint(final int index, final String endpoint) {
+        byte[] bytes;
+        try {
+            bytes = endpoint.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        final int length = Math.min(bytes.length, MAX_ENDPOINT_BYTES);
+        final int entry = ENDPOINTS_OFFSET + index * ENDPOINT_ENTRY_SIZE;
+        mBuffer.putShort(entry, (short) length);
+        for (int i = 0; i < length; i++) {
+            mBuffer.put(entry + 2 + i, bytes[i]);
+        }
+        if (length < bytes.length) {
+            Log.d(TAG_LOG, "Endpoint " + endpoint + " truncated");
+            return readEndpoint(index);
+        }
+        return endpoint;
+    }
+
+    /**
+     * Reads an endpoint from the table
+     */
+    private String readEndpoint(final int index) {
+        final int entry = ENDPOINTS_OFFSET + index * ENDPOINT_ENTRY_SIZE;
+        final int length = Math.min(Math.max(mBuffer.getShort(entry), 0), MAX_ENDPOINT_BYTES);
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = mBuffer.get(entry + 2 + i);
+        }
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+}
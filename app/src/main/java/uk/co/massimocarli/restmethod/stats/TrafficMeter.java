@@ -0,0 +1,242 @@
+package uk.co.massimocarli.restmethod.stats;
+
+import uk.co.massimocarli.restmethod.rest.ResponseMetadata;
+import uk.co.massimocarli.restmethod.rest.RestCommand;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * This is the meter of the traffic of a single request. It counts the bytes of the body sent
+ * with the request, the bytes of the body of the response and an estimate of the bytes of the
+ * headers in both directions. The bodies are counted by the streams returned by countRequest
+ * and countResponse that pass the bulk reads and writes straight to the wrapped streams so they
+ * only add an increment to every call.
+ * <p/>
+ * A TrafficMeter is used by one request at a time. The request body is written before the
+ * response is read so the counters don't need synchronization.
+ */
+public final class TrafficMeter {
+
+    /*
+     * The bytes of the request line without the method and the url
+     */
+    private static final String REQUEST_LINE_SUFFIX = " HTTP/1.1\r\n";
+
+    /**
+     * The estimate of the headers the clients add to every request as Host, User-Agent,
+     * Connection, Accept-Encoding and Content-Length
+     */
+    private static final int DEFAULT_REQUEST_HEADERS_LENGTH = 160;
+
+    /*
+     * The bytes of the separator between name and value and of the end of every header
+     */
+    private static final int HEADER_OVERHEAD = 4;
+
+    /*
+     * The bytes of the empty line at the end of the headers
+     */
+    private static final int HEADERS_END_LENGTH = 2;
+
+    /**
+     * The bytes of the body of the request
+     */
+    private long mRequestBytes;
+
+    /**
+     * The bytes of the body of the response
+     */
+    private long mResponseBytes;
+
+    /**
+     * The estimate of the bytes of the headers
+     */
+    private long mHeaderBytes;
+
+    /**
+     * Private constructor
+     */
+    private TrafficMeter() {
+    }
+
+    /**
+     * This static factory method creates a TrafficMeter for a request
+     *
+     * @return A new TrafficMeter with all the counters at zero
+     */
+    public static TrafficMeter create() {
+        return new TrafficMeter();
+    }
+
+    /**
+     * Returns an OutputStream that counts the bytes written into the given one
+     *
+     * @param outputStream The OutputStream for the body of the request
+     * @return The OutputStream that counts the bytes
+     */
+    public OutputStream countRequest(final OutputStream outputStream) {
+        return new CountingOutputStream(outputStream);
+    }
+
+    /**
+     * Returns an InputStream that counts the bytes read from the given one
+     *
+     * @param inputStream The InputStream of the body of the response
+     * @return The InputStream that counts the bytes or null if the given one is null
+     */
+    public InputStream countResponse(final InputStream inputStream) {
+        return inputStream != null ? new CountingInputStream(inputStream) : null;
+    }
+
+    /**
+     * Adds the estimate of the bytes of the headers of the request and of the response
+     *
+     * @param restCommand The RestCommand of the request
+     * @param metadata    The metadata of the response or null if not available
+     */
+    public void addHeaders(final RestCommand restCommand, final ResponseMetadata metadata) {
+        mHeaderBytes += estimateRequestHeadersLength(restCommand);
+        if (metadata != null) {
+            final long responseHeadersLength = metadata.getHeadersLength();
+            if (responseHeadersLength > 0) {
+                mHeaderBytes += responseHeadersLength;
+            }
+        }
+    }
+
+    /**
+     * @return The bytes of the body of the request
+     */
+    public long getRequestBytes() {
+        return mRequestBytes;
+    }
+
+    /**
+     * @return The bytes of the body of the response
+     */
+    public long getResponseBytes() {
+        return mResponseBytes;
+    }
+
+    /**
+     * @return The estimate of the bytes of the headers of the request and of the response
+     */
+    public long getHeaderBytes() {
+        return mHeaderBytes;
+    }
+
+    /**
+     * @return The total of the bytes sent and received
+     */
+    public long getTotalBytes() {
+        return mRequestBytes + mResponseBytes + mHeaderBytes;
+    }
+
+    /**
+     * Sets all the counters to zero
+     */
+    public void reset() {
+        mRequestBytes = 0L;
+        mResponseBytes = 0L;
+        mHeaderBytes = 0L;
+    }
+
+    /**
+     * Estimates the bytes of the request line and of the headers of the given RestCommand
+     *
+     * @param restCommand The RestCommand
+     * @return The estimate of the bytes of the headers
+     */
+    public static long estimateRequestHeadersLength(final RestCommand restCommand) {
+        long length;
+        try {
+            length = restCommand.getEncodedUrl().length();
+        } catch (UnsupportedEncodingException e) {
+            length = restCommand.getUrl().length();
+        }
+        length += restCommand.getHttpMethod().name().length() + 1 + REQUEST_LINE_SUFFIX.length();
+        final int headersCount = restCommand.headersCount();
+        for (int i = 0; i < headersCount; i++) {
+            length += restCommand.getHeaderName(i).length() + restCommand.getHeaderValue(i).length()
+                    + HEADER_OVERHEAD;
+        }
+        return length + DEFAULT_REQUEST_HEADERS_LENGTH + HEADERS_END_LENGTH;
+    }
+
+    @Override
+    public String toString() {
+        return "TrafficMeter [request=" + mRequestBytes + ", response=" + mResponseBytes
+                + ", headers=" + mHeaderBytes + "]";
+    }
+
+    /**
+     * The InputStream that counts the bytes of the response
+     */
+    private final class CountingInputStream extends FilterInputStream {
+
+        CountingInputStream(final InputStream inputStream) {
+            super(inputStream);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int data = in.read();
+            if (data != -1) {
+                mResponseBytes++;
+            }
+            return data;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            final int dataRead = in.read(buffer, offset, length);
+            if (dataRead > 0) {
+                mResponseBytes += dataRead;
+            }
+            return dataRead;
+        }
+
+        @Override
+        public long skip(final long byteCount) throws IOException {
+            final long skipped = in.skip(byteCount);
+            if (skipped > 0) {
+                mResponseBytes += skipped;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            // A reset would count the same bytes twice
+            return false;
+        }
+    }
+
+    /**
+     * The OutputStream that counts the bytes of the request
+     */
+    private final class CountingOutputStream extends FilterOutputStream {
+
+        CountingOutputStream(final OutputStream outputStream) {
+            super(outputStream);
+        }
+
+        @Override
+        public void write(final int data) throws IOException {
+            out.write(data);
+            mRequestBytes++;
+        }
+
+        @Override
+        public void write(final byte[] buffer, final int offset, final int length) throws IOException {
+            out.write(buffer, offset, length);
+            mRequestBytes += length;
+        }
+    }
+
+}
@@ -1,27 +1,72 @@
 package uk.co.massimocarli.restmethod.stats;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.res.Configuration;
+import android.os.Process;
 import android.util.Log;
-import uk.co.massimocarli.restmethod.util.ConnectionUtil;
+import uk.co.massimocarli.restmethod.util.NetworkTypeMonitor;
+import uk.co.massimocarli.restmethod.util.StripedCounter;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This is a Singleton that contains all the information about the content downloaded
- * with the RestMethod.
+ * with the RestMethod. The traffic of the requests is added without locks into StripedCounters
+ * and the type of the network is read from the NetworkTypeMonitor so the executors can
+ * complete many requests at the same time without contention and without IPC calls.
+ * <p/>
+ * The totals are loaded and saved by a background writer so the requests never wait for the
+ * disk, not even the first one that creates the TrafficStats. The writes are coalesced: the
+ * traffic is saved at most FLUSH_INTERVAL milliseconds, or the interval that has been set, after
+ * it was added, immediately when more than FLUSH_THRESHOLD bytes are not saved and when the
+ * system says the application is in background or low on memory. An OnStatsSavedListener is
+ * notified after every save.
+ * <p/>
+ * The traffic added with the url of the request is also recorded per minute and per endpoint
+ * into the TrafficHistory. The requests only queue the samples and the writer drains them into
+ * the file.
  *
  * @author Massimo Carli - 11 Jun 2013
  */
 public final class TrafficStats {
 
+    /**
+     * This is the interface for the object that is notified when the totals have been saved
+     */
+    public interface OnStatsSavedListener {
+
+        /**
+         * Called by the writer thread after the totals have been saved
+         *
+         * @param trafficStats The TrafficStats whose totals have been saved
+         */
+        void onStatsSaved(TrafficStats trafficStats);
+    }
+
     /**
      * The Tag for the Log.
      */
     private static final String TAG_LOG = TrafficStats.class.getName();
 
     /**
-     * The number of buffered save ops
+     * The max time in milliseconds the traffic is kept only in memory
+     */
+    public static final long FLUSH_INTERVAL = 5000L;
+
+    /**
+     * The bytes of traffic not saved after which we save without waiting for the interval
      */
-    private static final int SKIP_INTERVAL = 50;
+    public static final long FLUSH_THRESHOLD = 1024 * 1024;
 
     /*
      * The Key we use for the preferences to use
@@ -33,168 +78,444 @@ public final class TrafficStats {
     /**
      * The instance of the Singleton.
      */
-    private static TrafficStats sInstance;
+    private static volatile TrafficStats sInstance;
 
-    private Context mContext;
+    /**
+     * The monitor of the type of the network
+     */
+    private final NetworkTypeMonitor mNetworkTypeMonitor;
 
     /**
      * The total 3G traffic in bytes since the last reset.
      */
-    private long m3GTotalTraffic;
+    private final StripedCounter m3GTotalTraffic = new StripedCounter();
 
     /**
      * The 3G traffic in the last session. We only control the start of the session.
      */
-    private long m3GSessionTraffic;
+    private final StripedCounter m3GSessionTraffic = new StripedCounter();
 
     /**
      * The total WiFi traffic in bytes since the last reset.
      */
-    private long mWiFiTotalTraffic;
+    private final StripedCounter mWiFiTotalTraffic = new StripedCounter();
 
     /**
      * The WiFi traffic in the last session. We only control the start of the session.
      */
-    private long mWiFiSessionTraffic;
+    private final StripedCounter mWiFiSessionTraffic = new StripedCounter();
+
+    /**
+     * The application Context
+     */
+    private final Context mContext;
+
+    /**
+     * The history of the traffic per endpoint or null if it's not opened yet or not available
+     */
+    private volatile TrafficHistory mHistory;
 
     /**
      * The last time we reset a session.
      */
-    private long mLastSessionTime;
+    private volatile long mLastSessionTime;
 
     /**
      * The last time we reset all data.
      */
-    private long mLastResetTime;
+    private volatile long mLastResetTime;
+
+    /**
+     * The max time in milliseconds the traffic is kept only in memory
+     */
+    private volatile long mFlushInterval = FLUSH_INTERVAL;
+
+    /**
+     * The listener of the saves if any
+     */
+    private volatile OnStatsSavedListener mOnStatsSavedListener;
 
     /**
-     * The prefs for the data
+     * True if the totals have been reset so the saved ones must not be loaded anymore
+     */
+    private boolean mStatsReset;
+
+    /**
+     * The prefs for the data. They are used only by the writer thread
      */
     private SharedPreferences mPrefs;
 
     /**
-     * A counter for skipping some save
+     * The single thread that writes the preferences
+     */
+    private final ScheduledExecutorService mWriter;
+
+    /**
+     * The traffic added after the last save
      */
-    private int mSaveCounter;
+    private final StripedCounter mUnsavedTraffic = new StripedCounter();
 
     /**
-     * The Private constructor.
+     * True when a save is scheduled after the FLUSH_INTERVAL
+     */
+    private final AtomicBoolean mDelayedSaveScheduled = new AtomicBoolean();
+
+    /**
+     * True when a save is scheduled because of the FLUSH_THRESHOLD
+     */
+    private final AtomicBoolean mImmediateSaveScheduled = new AtomicBoolean();
+
+    /**
+     * The task that saves the traffic if some is not saved
+     */
+    private final Runnable mSaveTask = new Runnable() {
+        @Override
+        public void run() {
+            writeStats(false);
+        }
+    };
+
+    /**
+     * The task that saves the totals in any case
+     */
+    private final Runnable mForcedSaveTask = new Runnable() {
+        @Override
+        public void run() {
+            writeStats(true);
+        }
+    };
+
+    /**
+     * The task that loads the saved totals and opens the history
+     */
+    private final Runnable mLoadTask = new Runnable() {
+        @Override
+        public void run() {
+            mPrefs = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+            // The traffic added before the load is added to the saved one
+            synchronized (TrafficStats.this) {
+                if (!mStatsReset) {
+                    addSavedStats();
+                }
+            }
+            try {
+                mHistory = TrafficHistory.get(mContext);
+            } catch (IOException e) {
+                Log.e(TAG_LOG, "Unable to open the traffic history", e);
+            }
+        }
+    };
+
+    /**
+     * The task that replaces the totals with the saved ones
+     */
+    private final Runnable mRestoreTask = new Runnable() {
+        @Override
+        public void run() {
+            Log.d(TAG_LOG, "restore stats");
+            if (mPrefs.contains(WIFI_TOTAL_KEY)) {
+                mWiFiTotalTraffic.reset();
+            }
+            if (mPrefs.contains(MOBILE_TOTAL_KEY)) {
+                m3GTotalTraffic.reset();
+            }
+            addSavedStats();
+        }
+    };
+
+    /**
+     * The Private constructor. It doesn't read the disk: the saved totals and the history are
+     * loaded by the writer thread.
      *
      * @param context The Context for the ConnectivityManager lookup
      */
     private TrafficStats(final Context context) {
         mContext = context;
-        mPrefs = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mNetworkTypeMonitor = NetworkTypeMonitor.get(context);
+        mWriter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "traffic-stats-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // The process can be killed without notice when in background so we save when
+        // the system tells us we are hidden or low on memory
+        context.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(final int level) {
+                flush();
+            }
+
+            @Override
+            public void onLowMemory() {
+                flush();
+            }
+
+            @Override
+            public void onConfigurationChanged(final Configuration newConfig) {
+                // Nothing to do
+            }
+        });
+        // The first task of the writer so the saves always find the prefs
+        mWriter.execute(mLoadTask);
     }
 
     /**
-     * Get the reference to the Singleton for the TrafficStats.
+     * Get the reference to the Singleton for the TrafficStats. Only the first call is
+     * synchronized.
      *
      * @param context The Context we use only the first time to get the ConnectivityManager
      * @return The TrafficStats singleton.
      */
-    public static synchronized TrafficStats getInstance(final Context context) {
-        if (sInstance == null) {
-            sInstance = new TrafficStats(context);
-            sInstance.mLastResetTime = System.currentTimeMillis();
-            sInstance.mLastSessionTime = sInstance.mLastResetTime;
-            sInstance.restoreStats();
+    public static TrafficStats getInstance(final Context context) {
+        TrafficStats instance = sInstance;
+        if (instance == null) {
+            synchronized (TrafficStats.class) {
+                instance = sInstance;
+                if (instance == null) {
+                    final Context appContext = context.getApplicationContext();
+                    instance = new TrafficStats(appContext != null ? appContext : context);
+                    instance.mLastResetTime = System.currentTimeMillis();
+                    instance.mLastSessionTime = instance.mLastResetTime;
+                    sInstance = instance;
+                }
+            }
         }
-        return sInstance;
+        return instance;
     }
 
     /**
-     * This method adds the traffic and returns the total.
+     * This method adds the traffic and returns the total. It doesn't lock and it doesn't
+     * ask the ConnectivityManager for the type of the network.
      *
      * @param traffic The traffic to add.
      * @return The total traffic
      */
-    public synchronized long addTraffic(final long traffic) {
-        // We check for the time of current connection and increment the counters
+    public long addTraffic(final long traffic) {
+        // We check for the type of current connection and increment the counters
         // accordingly.
-        final boolean isWifi = ConnectionUtil.isConnectedToWifi(mContext);
-        if (isWifi) {
-            mWiFiTotalTraffic += traffic;
-            mWiFiSessionTraffic += traffic;
-            Log.d(TAG_LOG, "Added " + traffic + " to the WiFi counter");
-            return getTotalTraffic();
+        switch (mNetworkTypeMonitor.getNetworkType()) {
+            case WIFI:
+                mWiFiTotalTraffic.add(traffic);
+                mWiFiSessionTraffic.add(traffic);
+                scheduleSave(traffic);
+                return getTotalTraffic();
+            case MOBILE:
+                m3GTotalTraffic.add(traffic);
+                m3GSessionTraffic.add(traffic);
+                scheduleSave(traffic);
+                return getTotalTraffic();
+            default:
+                // In this case there's something wrong....
+                Log.w(TAG_LOG, "Traffics seems to be neither WiFi nor 3G! ");
+                return getTotalTraffic();
         }
-        // We check if it's for 3G
-        final boolean is3g = ConnectionUtil.isConnectedOrConnectingTo3G(mContext);
-        if (is3g) {
-            m3GTotalTraffic += traffic;
-            m3GSessionTraffic += traffic;
-            Log.d(TAG_LOG, "Added " + traffic + " to the 3G counter");
-            return getTotalTraffic();
-        } else {
-            // In this case there's something wrong....
-            Log.e(TAG_LOG, "Traffics seems to be neither WiFi nor 3G! ");
+    }
+
+    /**
+     * This method adds the traffic of a request and records it into the TrafficHistory
+     * for the endpoint of the url.
+     *
+     * @param traffic The traffic to add.
+     * @param url     The url of the request
+     * @return The total traffic
+     */
+    public long addTraffic(final long traffic, final String url) {
+        final TrafficHistory history = mHistory;
+        if (history != null) {
+            // The sample is only queued: the writer drains it into the file at the next save
+            history.record(url, mNetworkTypeMonitor.getNetworkType(), traffic);
+            scheduleSave(0L);
         }
-        return m3GTotalTraffic;
+        return addTraffic(traffic);
     }
 
-    public synchronized void saveStats(boolean forced) {
-        mSaveCounter = forced ? 0 : mSaveCounter + 1;
-        if (mSaveCounter % SKIP_INTERVAL == 0) {
-            Log.d(TAG_LOG, "save stats");
-            mPrefs.edit()
-                    .putLong(WIFI_TOTAL_KEY, mWiFiTotalTraffic)
-                    .putLong(MOBILE_TOTAL_KEY, m3GTotalTraffic)
-                    .commit();
+    /**
+     * Schedules the save of the traffic just added. Only the first traffic after a save
+     * schedules the task so the adds don't contend.
+     *
+     * @param traffic The traffic added
+     */
+    private void scheduleSave(final long traffic) {
+        mUnsavedTraffic.add(traffic);
+        if (!mDelayedSaveScheduled.get() && mDelayedSaveScheduled.compareAndSet(false, true)) {
+            mWriter.schedule(mSaveTask, mFlushInterval, TimeUnit.MILLISECONDS);
+        } else if (!mImmediateSaveScheduled.get() && mUnsavedTraffic.sum() >= FLUSH_THRESHOLD
+                && mImmediateSaveScheduled.compareAndSet(false, true)) {
+            mWriter.execute(mSaveTask);
         }
     }
 
-    public void restoreStats() {
-        Log.d(TAG_LOG, "restore stats");
-        if (mPrefs.contains(WIFI_TOTAL_KEY)) {
-            mWiFiTotalTraffic = mPrefs.getLong(WIFI_TOTAL_KEY, 0);
+    /**
+     * Writes the totals into the preferences. It's invoked only by the writer thread
+     *
+     * @param forced If true the totals are written even if no traffic was added
+     */
+    private void writeStats(final boolean forced) {
+        // We clear the flags before reading the counters so the traffic added during the
+        // write schedules another save
+        mDelayedSaveScheduled.set(false);
+        mImmediateSaveScheduled.set(false);
+        final TrafficHistory history = mHistory;
+        if (history != null) {
+            history.drain();
+        }
+        final long unsavedTraffic = mUnsavedTraffic.sumThenReset();
+        if (!forced && unsavedTraffic == 0L) {
+            return;
+        }
+        if (history != null) {
+            // The pages of the history are saved by the kernel but we write them now
+            // to keep them if the device is switched off
+            history.force();
+        }
+        Log.d(TAG_LOG, "save stats");
+        final boolean saved = mPrefs.edit()
+                .putLong(WIFI_TOTAL_KEY, mWiFiTotalTraffic.sum())
+                .putLong(MOBILE_TOTAL_KEY, m3GTotalTraffic.sum())
+                .commit();
+        if (!saved) {
+            // We try again at the next save
+            mUnsavedTraffic.add(unsavedTraffic);
+            Log.w(TAG_LOG, "Unable to save the traffic stats");
+            return;
         }
-        if (mPrefs.contains(MOBILE_TOTAL_KEY)) {
-            m3GTotalTraffic = mPrefs.getLong(MOBILE_TOTAL_KEY, 0);
+        final OnStatsSavedListener listener = mOnStatsSavedListener;
+        if (listener != null) {
+            listener.onStatsSaved(this);
+        }
+    }
+
+    /**
+     * Sets the max time the traffic is kept only in memory. It's used by the saves scheduled
+     * after this call.
+     *
+     * @param flushInterval The max time in milliseconds. The default is FLUSH_INTERVAL
+     */
+    public void setFlushInterval(final long flushInterval) {
+        if (flushInterval <= 0) {
+            throw new IllegalArgumentException("The flush interval must be positive");
+        }
+        mFlushInterval = flushInterval;
+    }
+
+    /**
+     * Sets the listener notified by the writer thread after every save
+     *
+     * @param listener The OnStatsSavedListener or null to remove it
+     */
+    public void setOnStatsSavedListener(final OnStatsSavedListener listener) {
+        mOnStatsSavedListener = listener;
+    }
+
+    /**
+     * Asks the writer to save the totals. It never waits for the disk.
+     *
+     * @param forced If true the totals are written even if no traffic was added after the last save
+     */
+    public void saveStats(boolean forced) {
+        mWriter.execute(forced ? mForcedSaveTask : mSaveTask);
+    }
+
+    /**
+     * Asks the writer to save the traffic not saved yet. It never waits for the disk.
+     */
+    public void flush() {
+        saveStats(false);
+    }
+
+    /**
+     * Saves the totals and waits for the end of the write. It must not be called from
+     * the threads of the requests or from the main thread.
+     *
+     * @param timeout The max time to wait in milliseconds
+     * @return True if the totals have been written in time
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public boolean awaitSave(final long timeout) throws InterruptedException {
+        final Future<?> save = mWriter.submit(mForcedSaveTask);
+        try {
+            save.get(timeout, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (ExecutionException e) {
+            Log.e(TAG_LOG, "Error saving the traffic stats", e.getCause());
+            return false;
+        } catch (TimeoutException e) {
+            return false;
         }
     }
 
+    /**
+     * Asks the writer to replace the totals with the saved ones. It never waits for the disk.
+     */
+    public void restoreStats() {
+        mWriter.execute(mRestoreTask);
+    }
+
+    /**
+     * Adds the saved totals to the counters. It's invoked only by the writer thread
+     */
+    private void addSavedStats() {
+        mWiFiTotalTraffic.add(mPrefs.getLong(WIFI_TOTAL_KEY, 0));
+        m3GTotalTraffic.add(mPrefs.getLong(MOBILE_TOTAL_KEY, 0));
+    }
+
+    /**
+     * @return The history of the traffic per endpoint or null if it's not opened yet or not available
+     */
+    public TrafficHistory getHistory() {
+        return mHistory;
+    }
+
     /**
      * @return The session 3G traffic.
      */
     public long get3GSessionTraffic() {
-        return m3GSessionTraffic;
+        return m3GSessionTraffic.sum();
     }
 
     /**
      * @return The 3G total traffic.
      */
     public long get3GTotalTraffic() {
-        return m3GTotalTraffic;
+        return m3GTotalTraffic.sum();
     }
 
     /**
      * @return The session Wifi traffic.
      */
     public long getWiFiSessionTraffic() {
-        return mWiFiSessionTraffic;
+        return mWiFiSessionTraffic.sum();
     }
 
     /**
      * @return The WiFi total traffic.
      */
     public long getWiFiTotalTraffic() {
-        return mWiFiTotalTraffic;
+        return mWiFiTotalTraffic.sum();
     }
 
     /**
      * @return The total traffic.
      */
     public long getTotalTraffic() {
-        return mWiFiTotalTraffic + m3GTotalTraffic;
+        return mWiFiTotalTraffic.sum() + m3GTotalTraffic.sum();
     }
 
     /**
      * Starts a new session.
      */
     public synchronized void startSession() {
-        mWiFiSessionTraffic = 0L;
-        m3GSessionTraffic = 0L;
+        mWiFiSessionTraffic.reset();
+        m3GSessionTraffic.reset();
         mLastSessionTime = System.currentTimeMillis();
     }
 
@@ -204,8 +525,9 @@ public final class TrafficStats {
     public synchronized void reset() {
         startSession();
         mLastResetTime = mLastSessionTime;
-        m3GTotalTraffic = 0L;
-        mWiFiTotalTraffic = 0L;
+        mStatsReset = true;
+        m3GTotalTraffic.reset();
+        mWiFiTotalTraffic.reset();
         saveStats(true);
     }
 
@@ -227,7 +549,7 @@ public final class TrafficStats {
      * @return The last session data
      */
     public long getLastSessionData() {
-        return m3GSessionTraffic + mWiFiSessionTraffic;
+        return m3GSessionTraffic.sum() + mWiFiSessionTraffic.sum();
     }
 
     @Override
@@ -0,0 +1,177 @@
+package uk.co.massimocarli.restmethod.util;
+
+/**
+ * This is the pool of the buffers we use for the I/O. Every thread keeps at most one buffer
+ * for every size class so there's no lock and no contention. A buffer is taken from the pool
+ * with an acquire method and it must be given back with the related release method when it's
+ * not used anymore. If the buffer of the size class is already in use (nested copies) or
+ * the size is bigger than the biggest class, a new buffer is created.
+ */
+public final class BufferPool {
+
+    /**
+     * The sizes of the classes of buffers. They are powers of two
+     */
+    private static final int[] SIZE_CLASSES = {2 * 1024, 8 * 1024, 32 * 1024, 64 * 1024};
+
+    /**
+     * The buffer size to use when the length of the payload is not known
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * The smallest buffer size
+     */
+    public static final int MIN_BUFFER_SIZE = SIZE_CLASSES[0];
+
+    /**
+     * The biggest buffer size we keep into the pool
+     */
+    public static final int MAX_BUFFER_SIZE = SIZE_CLASSES[SIZE_CLASSES.length - 1];
+
+    /*
+     * The byte buffers of the current thread for every size class
+     */
+    private static final ThreadLocal<byte[][]> sByteBuffers = new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[SIZE_CLASSES.length][];
+        }
+    };
+
+    /*
+     * The char buffers of the current thread for every size class
+     */
+    private static final ThreadLocal<char[][]> sCharBuffers = new ThreadLocal<char[][]>() {
+        @Override
+        protected char[][] initialValue() {
+            return new char[SIZE_CLASSES.length][];
+        }
+    };
+
+    /**
+     * Private constructor.
+     */
+    private BufferPool() {
+        throw new AssertionError("Never instantiate me! I'm an Utility class!!!");
+    }
+
+    /**
+     * Returns the size of the buffer to use for a payload of the given length. Small payloads
+     * use small buffers and the big ones use the biggest buffer of the pool.
+     *
+     * @param expectedLength The expected length of the payload or -1 if not known
+     * @return The size of the buffer to use
+     */
+    public static int bufferSizeFor(final long expectedLength) {
+        if (expectedLength < 0) {
+            return DEFAULT_BUFFER_SIZE;
+        }
+        for (int sizeClass : SIZE_CLASSES) {
+            if (expectedLength <= sizeClass) {
+                return sizeClass;
+            }
+        }
+        return MAX_BUFFER_SIZE;
+    }
+
+    /**
+     * Takes a byte buffer from the pool
+     *
+     * @param minSize The min size of the buffer
+     * @return A byte buffer of at least the given size
+     */
+    public static byte[] acquireBytes(final int minSize) {
+        final int sizeClass = sizeClassIndex(minSize);
+        if (sizeClass < 0) {
+            return new byte[minSize];
+        }
+        final byte[][] buffers = sByteBuffers.get();
+        final byte[] buffer = buffers[sizeClass];
+        if (buffer == null) {
+            return new byte[SIZE_CLASSES[sizeClass]];
+        }
+        buffers[sizeClass] = null;
+        return buffer;
+    }
+
+    /**
+     * Gives back a byte buffer to the pool
+     *
+     * @param buffer The buffer to give back. It can be null
+     */
+    public static void releaseBytes(final byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        final int sizeClass = exactSizeClassIndex(buffer.length);
+        if (sizeClass >= 0) {
+            final byte[][] buffers = sByteBuffers.get();
+            if (buffers[sizeClass] == null) {
+                buffers[sizeClass] = buffer;
+            }
+        }
+    }
+
+    /**
+     * Takes a char buffer from the pool
+     *
+     * @param minSize The min size of the buffer
+     * @return A char buffer of at least the given size
+     */
+    public static char[] acquireChars(final int minSize) {
+        final int sizeClass = sizeClassIndex(minSize);
+        if (sizeClass < 0) {
+            return new char[minSize];
+        }
+        final char[][] buffers = sCharBuffers.get();
+        final char[] buffer = buffers[sizeClass];
+        if (buffer == null) {
+            return new char[SIZE_CLASSES[sizeClass]];
+        }
+        buffers[sizeClass] = null;
+        return buffer;
+    }
+
+    /**
+     * Gives back a char buffer to the pool
+     *
+     * @param buffer The buffer to give back. It can be null
+     */
+    public static void releaseChars(final char[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        final int sizeClass = exactSizeClassIndex(buffer.length);
+        if (sizeClass >= 0) {
+            final char[][] buffers = sCharBuffers.get();
+            if (buffers[sizeClass] == null) {
+                buffers[sizeClass] = buffer;
+            }
+        }
+    }
+
+    /**
+     * @return The index of the smallest size class that contains the given size or -1
+     */
+    private static int sizeClassIndex(final int size) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (size <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The index of the size class of exactly the given size or -1
+     */
+    private static int exactSizeClassIndex(final int size) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (size == SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
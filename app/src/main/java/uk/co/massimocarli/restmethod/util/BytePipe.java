@@ -0,0 +1,211 @@
+package uk.co.massimocarli.restmethod.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * This is a bounded pipe of bytes between a producer and a consumer thread. The producer writes
+ * into the sink and blocks when the pipe is full, the consumer reads from the source and blocks
+ * when the pipe is empty. Differently from PipedInputStream it doesn't depend on the liveness
+ * of the threads so it can be used with thread pools, and the producer can pass its error to
+ * the consumer.
+ */
+public final class BytePipe {
+
+    /**
+     * The ring buffer with the bytes
+     */
+    private final byte[] mBuffer;
+
+    /**
+     * The position of the next byte to read
+     */
+    private int mReadPosition;
+
+    /**
+     * The number of bytes available to read
+     */
+    private int mAvailable;
+
+    /**
+     * True when the producer has closed the sink
+     */
+    private boolean mSinkClosed;
+
+    /**
+     * True when the consumer has closed the source
+     */
+    private boolean mSourceClosed;
+
+    /**
+     * The error of the producer if any
+     */
+    private IOException mFailure;
+
+    /**
+     * The stream for the consumer
+     */
+    private final InputStream mSource = new InputStream() {
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+            return BytePipe.this.read(bytes, offset, length);
+        }
+
+        @Override
+        public int available() {
+            synchronized (BytePipe.this) {
+                return mAvailable;
+            }
+        }
+
+        @Override
+        public void close() {
+            closeSource();
+        }
+    };
+
+    /**
+     * The stream for the producer
+     */
+    private final OutputStream mSink = new OutputStream() {
+
+        @Override
+        public void write(final int oneByte) throws IOException {
+            write(new byte[]{(byte) oneByte}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+            BytePipe.this.write(bytes, offset, length);
+        }
+
+        @Override
+        public void close() {
+            closeSink();
+        }
+    };
+
+    /**
+     * Creates a BytePipe with the given capacity
+     *
+     * @param capacity The max number of bytes in the pipe
+     */
+    public BytePipe(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The capacity must be positive");
+        }
+        mBuffer = new byte[capacity];
+    }
+
+    /**
+     * @return The InputStream for the consumer
+     */
+    public InputStream source() {
+        return mSource;
+    }
+
+    /**
+     * @return The OutputStream for the producer
+     */
+    public OutputStream sink() {
+        return mSink;
+    }
+
+    /**
+     * Closes the sink with an error. The consumer receives the error after the bytes already
+     * in the pipe
+     *
+     * @param failure The error of the producer
+     */
+    public synchronized void fail(final IOException failure) {
+        mFailure = failure;
+        mSinkClosed = true;
+        notifyAll();
+    }
+
+    /**
+     * @return True if the consumer has closed the source so the producer can stop
+     */
+    public synchronized boolean isSourceClosed() {
+        return mSourceClosed;
+    }
+
+    private synchronized int read(final byte[] bytes, final int offset, final int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        try {
+            while (mAvailable == 0) {
+                if (mSourceClosed) {
+                    throw new IOException("Pipe closed");
+                }
+                if (mSinkClosed) {
+                    if (mFailure != null) {
+                        throw mFailure;
+                    }
+                    return -1;
+                }
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Read interrupted");
+        }
+        int read = 0;
+        while (read < length && mAvailable > 0) {
+            final int chunk = Math.min(length - read, Math.min(mAvailable, mBuffer.length - mReadPosition));
+            System.arraycopy(mBuffer, mReadPosition, bytes, offset + read, chunk);
+            mReadPosition = (mReadPosition + chunk) % mBuffer.length;
+            mAvailable -= chunk;
+            read += chunk;
+        }
+        notifyAll();
+        return read;
+    }
+
+    private synchronized void write(final byte[] bytes, final int offset, final int length) throws IOException {
+        int written = 0;
+        try {
+            while (written < length) {
+                while (mAvailable == mBuffer.length && !mSourceClosed) {
+                    wait();
+                }
+                if (mSourceClosed) {
+                    throw new IOException("Pipe closed by the consumer");
+                }
+                if (mSinkClosed) {
+                    throw new IOException("Pipe closed by the producer");
+                }
+                final int writePosition = (mReadPosition + mAvailable) % mBuffer.length;
+                final int chunk = Math.min(length - written,
+                                           Math.min(mBuffer.length - mAvailable, mBuffer.length - writePosition));
+                System.arraycopy(bytes, offset + written, mBuffer, writePosition, chunk);
+                mAvailable += chunk;
+                written += chunk;
+                notifyAll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Write interrupted");
+        }
+    }
+
+    private synchronized void closeSink() {
+        mSinkClosed = true;
+        notifyAll();
+    }
+
+    private synchronized void closeSource() {
+        mSourceClosed = true;
+        mAvailable = 0;
+        notifyAll();
+    }
+}
@@ -0,0 +1,63 @@
+package uk.co.massimocarli.restmethod.util;
+
+/**
+ * Utility class for the Content-Range header of the partial responses as
+ * <code>bytes first-last/total</code>. It's used by the downloads that resume or split the
+ * transfer of a File.
+ */
+public final class ContentRangeUtils {
+
+    /*
+     * The unit of the ranges we support
+     */
+    private static final String BYTES_UNIT = "bytes ";
+
+    /**
+     * Private constructor.
+     */
+    private ContentRangeUtils() {
+        throw new AssertionError("Never instantiate me! I'm an Utility class!!!");
+    }
+
+    /**
+     * Reads the first byte of the Content-Range header as bytes first-last/total
+     *
+     * @param contentRange The value of the Content-Range header
+     * @return The first byte or -1 if not valid
+     */
+    public static long parseRangeStart(final String contentRange) {
+        if (contentRange == null || !contentRange.startsWith(BYTES_UNIT)) {
+            return -1L;
+        }
+        final int dashIndex = contentRange.indexOf('-');
+        if (dashIndex < 0) {
+            return -1L;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(BYTES_UNIT.length(), dashIndex).trim());
+        } catch (NumberFormatException nfe) {
+            return -1L;
+        }
+    }
+
+    /**
+     * Reads the total length from the Content-Range header as bytes first-last/total
+     *
+     * @param contentRange The value of the Content-Range header
+     * @return The total length or -1 if not known
+     */
+    public static long parseTotalLength(final String contentRange) {
+        if (contentRange == null) {
+            return -1L;
+        }
+        final int slashIndex = contentRange.lastIndexOf('/');
+        if (slashIndex < 0 || contentRange.endsWith("*")) {
+            return -1L;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slashIndex + 1).trim());
+        } catch (NumberFormatException nfe) {
+            return -1L;
+        }
+    }
+}
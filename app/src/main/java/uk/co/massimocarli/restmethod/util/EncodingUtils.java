@@ -0,0 +1,258 @@
+package uk.co.massimocarli.restmethod.util;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Utility class for the percent encoding of the urls and of the form bodies. The encoding is
+ * written straight into a StringBuilder so we don't create intermediate Strings for every
+ * value. The UTF-8 encoding is made inline while other charsets use the JDK encoder.
+ */
+public final class EncodingUtils {
+
+    /*
+     * The max capacity of the StringBuilder we keep for every thread
+     */
+    private static final int MAX_RETAINED_CAPACITY = 8 * 1024;
+
+    /*
+     * The initial capacity of the StringBuilder of every thread
+     */
+    private static final int INITIAL_CAPACITY = 256;
+
+    /*
+     * The hex digits for the percent encoding
+     */
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /*
+     * The hex digits for the representation of binary values as digests
+     */
+    private static final char[] LOWER_HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /*
+     * The chars that are not encoded in a form value (the same of java.net.URLEncoder)
+     */
+    private static final boolean[] FORM_SAFE = new boolean[128];
+
+    /*
+     * The chars that are not encoded in a path segment
+     */
+    private static final boolean[] PATH_SAFE = new boolean[128];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            FORM_SAFE[c] = true;
+            FORM_SAFE[Character.toUpperCase(c)] = true;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            FORM_SAFE[c] = true;
+        }
+        FORM_SAFE['.'] = true;
+        FORM_SAFE['-'] = true;
+        FORM_SAFE['*'] = true;
+        FORM_SAFE['_'] = true;
+        System.arraycopy(FORM_SAFE, 0, PATH_SAFE, 0, FORM_SAFE.length);
+        PATH_SAFE['*'] = false;
+        PATH_SAFE['~'] = true;
+    }
+
+    /*
+     * The StringBuilder we reuse for every thread
+     */
+    private static final ThreadLocal<StringBuilder> sBuilder = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(INITIAL_CAPACITY);
+        }
+    };
+
+    /**
+     * Private constructor.
+     */
+    private EncodingUtils() {
+        throw new AssertionError("Never instantiate me! I'm an Utility class!!!");
+    }
+
+    /**
+     * Returns the empty StringBuilder of the current thread. The StringBuilder is shared so
+     * the caller must consume it before calling another method that uses it.
+     *
+     * @return The empty StringBuilder of the current thread
+     */
+    public static StringBuilder acquireBuilder() {
+        StringBuilder builder = sBuilder.get();
+        if (builder.capacity() > MAX_RETAINED_CAPACITY) {
+            // We don't want to retain too much memory for every thread
+            builder = new StringBuilder(INITIAL_CAPACITY);
+            sBuilder.set(builder);
+        }
+        builder.setLength(0);
+        return builder;
+    }
+
+    /**
+     * Appends the given value encoded as application/x-www-form-urlencoded. The result is
+     * the same of java.net.URLEncoder but the UTF-16 values don't have a byte order mark
+     * before every run of encoded chars.
+     *
+     * @param builder The StringBuilder to append to
+     * @param value   The value to encode
+     * @param charset The charset to use
+     * @return The StringBuilder itself
+     * @throws java.io.UnsupportedEncodingException If the charset is not supported
+     */
+    public static StringBuilder appendFormEncoded(final StringBuilder builder, final String value,
+                                                  final String charset) throws UnsupportedEncodingException {
+        return appendEncoded(builder, value, charset, FORM_SAFE, true);
+    }
+
+    /**
+     * Appends the given value encoded for a segment of the path of an url. The space is
+     * encoded as %20.
+     *
+     * @param builder The StringBuilder to append to
+     * @param value   The value to encode
+     * @param charset The charset to use
+     * @return The StringBuilder itself
+     * @throws java.io.UnsupportedEncodingException If the charset is not supported
+     */
+    public static StringBuilder appendPathEncoded(final StringBuilder builder, final String value,
+                                                  final String charset) throws UnsupportedEncodingException {
+        return appendEncoded(builder, value, charset, PATH_SAFE, false);
+    }
+
+    /**
+     * Returns the bytes of a String that contains only ASCII chars as the one we get from the
+     * encoding. We don't need a lookup of the charset for this.
+     *
+     * @param value The ASCII value
+     * @return The bytes for the given value
+     */
+    public static byte[] toAsciiBytes(final CharSequence value) {
+        final int length = value.length();
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) value.charAt(i);
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the lowercase hex representation of the given bytes as used for the digests
+     *
+     * @param bytes The bytes to convert
+     * @return The hex String with two chars for every byte
+     */
+    public static String toHexString(final byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = LOWER_HEX_DIGITS[(bytes[i] >> 4) & 0x0F];
+            chars[i * 2 + 1] = LOWER_HEX_DIGITS[bytes[i] & 0x0F];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Encodes the value into the StringBuilder
+     */
+    private static StringBuilder appendEncoded(final StringBuilder builder, final String value,
+                                               final String charset, final boolean[] safeChars,
+                                               final boolean spaceAsPlus) throws UnsupportedEncodingException {
+        final int length = value.length();
+        // We look for the first char to encode. In many cases there isn't any
+        int firstToEncode = 0;
+        while (firstToEncode < length && isSafe(value.charAt(firstToEncode), safeChars)) {
+            firstToEncode++;
+        }
+        builder.append(value, 0, firstToEncode);
+        if (firstToEncode == length) {
+            return builder;
+        }
+        if (!isUtf8(charset)) {
+            // Other charsets are rare so we use the encoder of the JDK. As URLEncoder does, we
+            // copy the safe chars and we encode every run of the other chars because the bytes
+            // of an ASCII char are not the char itself in every charset
+            int i = firstToEncode;
+            while (i < length) {
+                final char c = value.charAt(i);
+                if (isSafe(c, safeChars)) {
+                    builder.append(c);
+                    i++;
+                } else if (c == ' ' && spaceAsPlus) {
+                    builder.append('+');
+                    i++;
+                } else {
+                    final int runStart = i;
+                    do {
+                        i++;
+                    } while (i < length && !isSafe(value.charAt(i), safeChars)
+                            && !(value.charAt(i) == ' ' && spaceAsPlus));
+                    final byte[] bytes = value.substring(runStart, i).getBytes(withoutByteOrderMark(charset));
+                    for (byte encoded : bytes) {
+                        appendEscaped(builder, encoded & 0xFF);
+                    }
+                }
+            }
+            return builder;
+        }
+        for (int i = firstToEncode; i < length; i++) {
+            final char c = value.charAt(i);
+            if (isSafe(c, safeChars)) {
+                builder.append(c);
+            } else if (c == ' ' && spaceAsPlus) {
+                builder.append('+');
+            } else if (c < 0x80) {
+                appendEscaped(builder, c);
+            } else if (c < 0x800) {
+                appendEscaped(builder, 0xC0 | (c >> 6));
+                appendEscaped(builder, 0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                appendEscaped(builder, 0xF0 | (codePoint >> 18));
+                appendEscaped(builder, 0x80 | ((codePoint >> 12) & 0x3F));
+                appendEscaped(builder, 0x80 | ((codePoint >> 6) & 0x3F));
+                appendEscaped(builder, 0x80 | (codePoint & 0x3F));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // An unpaired surrogate is replaced by '?' as the JDK encoder does
+                appendEscaped(builder, '?');
+            } else {
+                appendEscaped(builder, 0xE0 | (c >> 12));
+                appendEscaped(builder, 0x80 | ((c >> 6) & 0x3F));
+                appendEscaped(builder, 0x80 | (c & 0x3F));
+            }
+        }
+        return builder;
+    }
+
+    /**
+     * @return True if the char doesn't need encoding
+     */
+    private static boolean isSafe(final char c, final boolean[] safeChars) {
+        return c < 128 && safeChars[c];
+    }
+
+    /**
+     * Appends the %XX form of the given byte
+     */
+    private static void appendEscaped(final StringBuilder builder, final int unsignedByte) {
+        builder.append('%').append(HEX_DIGITS[(unsignedByte >> 4) & 0x0F]).append(HEX_DIGITS[unsignedByte & 0x0F]);
+    }
+
+    /**
+     * @return The charset to encode a value with. The UTF-16 encoder of the JDK writes a byte
+     * order mark before every value so we use the big endian one that writes the same bytes
+     * without the mark
+     */
+    private static String withoutByteOrderMark(final String charset) {
+        return "UTF-16".equalsIgnoreCase(charset) || "UTF16".equalsIgnoreCase(charset) ? "UTF-16BE" : charset;
+    }
+
+    /**
+     * @return True if the given charset is UTF-8
+     */
+    private static boolean isUtf8(final String charset) {
+        return "UTF-8".equalsIgnoreCase(charset) || "UTF8".equalsIgnoreCase(charset);
+    }
+
+}
@@ -7,16 +7,17 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.Reader;
-import java.io.StringWriter;
 import java.io.Writer;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
 
 /**
- * Utility class to manage Streams and generic IO issues.
+ * Utility class to manage Streams and generic IO issues. The buffers are taken from the
+ * BufferPool so the copies don't create garbage.
  *
  * @author Massimo Carli - Mar 20, 2013
  */
@@ -25,7 +26,12 @@ public final class IOUtils {
     /*
      * The default for the buffer size.
      */
-    private static final int DEFAULT_BUFFE_SIZE = 2048;
+    private static final int DEFAULT_BUFFE_SIZE = BufferPool.DEFAULT_BUFFER_SIZE;
+
+    /*
+     * The max capacity we reserve in advance for the expected length of a payload
+     */
+    private static final int MAX_PRESIZE = 16 * 1024 * 1024;
 
     /*
      * The default encoding we use when not specified
@@ -62,10 +68,14 @@ public final class IOUtils {
      */
     public static void copy(final InputStream in, final OutputStream out, final int bufferSize)
             throws IOException {
-        byte[] buffer = new byte[bufferSize];
-        int read = 0;
-        while ((read = in.read(buffer)) != -1) {
-            out.write(buffer, 0, read);
+        final byte[] buffer = BufferPool.acquireBytes(bufferSize);
+        try {
+            int read = 0;
+            while ((read = in.read(buffer, 0, bufferSize)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            BufferPool.releaseBytes(buffer);
         }
     }
 
@@ -92,10 +102,14 @@ public final class IOUtils {
      */
     public static void copy(final Reader in, final Writer out, final int bufferSize)
             throws IOException {
-        char[] buffer = new char[bufferSize];
-        int read = 0;
-        while ((read = in.read(buffer)) != -1) {
-            out.write(buffer, 0, read);
+        final char[] buffer = BufferPool.acquireChars(bufferSize);
+        try {
+            int read = 0;
+            while ((read = in.read(buffer, 0, bufferSize)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            BufferPool.releaseChars(buffer);
         }
     }
 
@@ -127,10 +141,11 @@ public final class IOUtils {
                             final int bufferSize) throws IOException {
         FileChannel inChannel = null;
         FileChannel outChannel = null;
+        final byte[] bufferArray = BufferPool.acquireBytes(bufferSize);
         try {
             inChannel = in.getChannel();
             outChannel = out.getChannel();
-            ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+            ByteBuffer buffer = ByteBuffer.wrap(bufferArray, 0, bufferSize);
             while (true) {
                 buffer.clear();
                 int read = inChannel.read(buffer);
@@ -138,14 +153,99 @@ public final class IOUtils {
                     break;
                 }
                 buffer.flip();
-                outChannel.write(buffer);
+                while (buffer.hasRemaining()) {
+                    outChannel.write(buffer);
+                }
             }
         } finally {
+            BufferPool.releaseBytes(bufferArray);
             closeQuietly(inChannel);
             closeQuietly(outChannel);
         }
     }
 
+    /**
+     * Copies data from an input stream to the current position of a FileChannel. The bytes
+     * are read into a pooled array that is wrapped, without copies, into the ByteBuffer for the
+     * channel and that feeds the optional digest while the data flow. Note that the stream and
+     * the channel are not closed at the end of the copy!.
+     *
+     * @param in           The input stream.
+     * @param out          The channel to write to.
+     * @param digest       The MessageDigest to update with the data or null
+     * @param syncInterval The number of bytes after which the channel is forced to the device
+     *                     or a not positive value to never force it
+     * @param bufferSize   The buffer size (in bytes).
+     * @return The number of bytes copied
+     * @throws java.io.IOException If an I/O error occurs.
+     */
+    public static long copy(final InputStream in, final FileChannel out, final MessageDigest digest,
+                            final long syncInterval, final int bufferSize) throws IOException {
+        final byte[] bufferArray = BufferPool.acquireBytes(bufferSize);
+        long total = 0L;
+        long notSynced = 0L;
+        try {
+            final ByteBuffer buffer = ByteBuffer.wrap(bufferArray, 0, bufferSize);
+            int read;
+            while ((read = in.read(bufferArray, 0, bufferSize)) != -1) {
+                if (digest != null) {
+                    digest.update(bufferArray, 0, read);
+                }
+                buffer.clear();
+                buffer.limit(read);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                total += read;
+                notSynced += read;
+                if (syncInterval > 0 && notSynced >= syncInterval) {
+                    out.force(false);
+                    notSynced = 0L;
+                }
+            }
+            return total;
+        } finally {
+            BufferPool.releaseBytes(bufferArray);
+        }
+    }
+
+    /**
+     * Copies a region of a FileChannel into an OutputStream. The region is read with positional
+     * reads through a single pooled buffer so the position of the channel is not changed and
+     * no mapping is left to the garbage collector. Note that the channel and the stream are not
+     * closed at the end of the copy!.
+     *
+     * @param in       The channel to read from.
+     * @param position The position of the region into the channel.
+     * @param count    The length of the region.
+     * @param out      The output stream.
+     * @throws java.io.IOException If an I/O error occurs or the channel is shorter than the region.
+     */
+    public static void copy(final FileChannel in, final long position, final long count,
+                            final OutputStream out) throws IOException {
+        if (in.size() < position + count) {
+            throw new IOException("The file has " + in.size() + " bytes but " + (position + count) + " are needed");
+        }
+        final byte[] bufferArray = BufferPool.acquireBytes(BufferPool.bufferSizeFor(count));
+        try {
+            final ByteBuffer buffer = ByteBuffer.wrap(bufferArray);
+            long current = position;
+            final long end = position + count;
+            while (current < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(bufferArray.length, end - current));
+                final int read = in.read(buffer, current);
+                if (read == -1) {
+                    throw new IOException("Unexpected end of file at " + current);
+                }
+                out.write(bufferArray, 0, read);
+                current += read;
+            }
+        } finally {
+            BufferPool.releaseBytes(bufferArray);
+        }
+    }
+
     /**
      * Copies data from a file to another, using a default buffer.
      *
@@ -167,11 +267,12 @@ public final class IOUtils {
      */
     public static void copy(final File source, final File target, final int bufferSize)
             throws IOException {
-        InputStream in = null;
-        OutputStream out = null;
+        FileInputStream in = null;
+        FileOutputStream out = null;
         try {
             in = new FileInputStream(source);
             out = new FileOutputStream(target);
+            // With the static types of the file streams we use the NIO version
             copy(in, out, bufferSize);
         } finally {
             closeQuietly(in);
@@ -206,10 +307,23 @@ public final class IOUtils {
      */
     public static String toString(final InputStream in, final String encoding)
             throws IOException {
-        InputStreamReader reader = new InputStreamReader(in, encoding);
-        StringWriter writer = new StringWriter();
-        copy(reader, writer, DEFAULT_BUFFE_SIZE);
-        return writer.getBuffer().toString();
+        return toStringForLength(in, encoding, -1L);
+    }
+
+    /**
+     * Read characters from an input stream to a string whose length in bytes is expected to
+     * be the given one. The text is decoded by the TextDecoder straight into a buffer sized
+     * from the expected length. Note that the input stream is not closed at the end of method!.
+     *
+     * @param in             The input stream.
+     * @param encoding       The characters encoding.
+     * @param expectedLength The expected length in bytes or -1 if not known
+     * @return The string.
+     * @throws java.io.IOException If an IO error occurs.
+     */
+    public static String toStringForLength(final InputStream in, final String encoding,
+                                           final long expectedLength) throws IOException {
+        return TextDecoder.decode(in, encoding, expectedLength);
     }
 
     /**
@@ -246,15 +360,47 @@ public final class IOUtils {
      */
     public static byte[] toByteArray(final InputStream input, final int bufferLength)
             throws IOException {
-        byte[] buffer = new byte[bufferLength];
-        int numRead = 0;
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        while ((numRead = input.read(buffer)) != -1) {
-            baos.write(buffer, 0, numRead);
-        }
+        copy(input, baos, bufferLength);
         byte[] dataRead = baos.toByteArray();
         baos.close();
         return dataRead;
     }
 
+    /**
+     * Read data from an InputStream whose length is expected to be the given one. If the
+     * length is known the data are read directly into the resulting array.
+     *
+     * @param input          The InputStream to read from
+     * @param expectedLength The expected length of the data or -1 if not known
+     * @return The content of the InputStream as byte[]
+     * @throws java.io.IOException In case of error reading from the InputStream
+     */
+    public static byte[] toByteArrayForLength(final InputStream input, final long expectedLength)
+            throws IOException {
+        if (expectedLength < 0 || expectedLength > MAX_PRESIZE) {
+            return toByteArray(input, BufferPool.bufferSizeFor(expectedLength));
+        }
+        final byte[] data = new byte[(int) expectedLength];
+        int count = 0;
+        while (count < data.length) {
+            final int read = input.read(data, count, data.length - count);
+            if (read == -1) {
+                // Less data than expected
+                return Arrays.copyOf(data, count);
+            }
+            count += read;
+        }
+        final int next = input.read();
+        if (next == -1) {
+            return data;
+        }
+        // More data than expected
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length * 2);
+        baos.write(data);
+        baos.write(next);
+        copy(input, baos);
+        return baos.toByteArray();
+    }
+
 }
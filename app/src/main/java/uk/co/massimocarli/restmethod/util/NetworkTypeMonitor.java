@@ -0,0 +1,150 @@
+package uk.co.massimocarli.restmethod.util;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+/**
+ * This is the Singleton that keeps the type of the active network. The ConnectivityManager is
+ * asked only at the creation and when the system broadcasts a change of the connectivity so
+ * reading the type costs a volatile read instead of an IPC call.
+ */
+public final class NetworkTypeMonitor {
+
+    /**
+     * The Tag for the Log.
+     */
+    private static final String TAG_LOG = NetworkTypeMonitor.class.getName();
+
+    /**
+     * The types of network we distinguish
+     */
+    public enum NetworkType {
+        /**
+         * A WiFi network
+         */
+        WIFI,
+        /**
+         * A mobile network connected or connecting
+         */
+        MOBILE,
+        /**
+         * Any other network as ethernet or bluetooth
+         */
+        OTHER,
+        /**
+         * No network
+         */
+        NONE
+    }
+
+    /**
+     * The instance of the Singleton.
+     */
+    private static volatile NetworkTypeMonitor sInstance;
+
+    /**
+     * The ConnectivityManager
+     */
+    private final ConnectivityManager mConnectivityManager;
+
+    /**
+     * The current type of network
+     */
+    private volatile NetworkType mNetworkType;
+
+    /**
+     * The type of network forced with setNetworkTypeOverride() or null
+     */
+    private volatile NetworkType mNetworkTypeOverride;
+
+    /**
+     * The Private constructor.
+     *
+     * @param context The application Context
+     */
+    private NetworkTypeMonitor(final Context context) {
+        mConnectivityManager = ConnectionUtil.getConnectivityManager(context);
+        mNetworkType = readNetworkType();
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(final Context receiverContext, final Intent intent) {
+                mNetworkType = readNetworkType();
+                Log.d(TAG_LOG, "Network type changed to " + mNetworkType);
+            }
+        }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    /**
+     * Get the reference to the Singleton for the NetworkTypeMonitor.
+     *
+     * @param context The Context we use only the first time to register the receiver
+     * @return The NetworkTypeMonitor singleton.
+     */
+    public static NetworkTypeMonitor get(final Context context) {
+        NetworkTypeMonitor instance = sInstance;
+        if (instance == null) {
+            synchronized (NetworkTypeMonitor.class) {
+                instance = sInstance;
+                if (instance == null) {
+                    final Context appContext = context.getApplicationContext();
+                    instance = new NetworkTypeMonitor(appContext != null ? appContext : context);
+                    sInstance = instance;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @return The type of the active network without any IPC call
+     */
+    public NetworkType getNetworkType() {
+        final NetworkType networkTypeOverride = mNetworkTypeOverride;
+        return networkTypeOverride != null ? networkTypeOverride : mNetworkType;
+    }
+
+    /**
+     * Forces the type of network returned by getNetworkType() whatever the active network is.
+     * It's useful to test the code that depends on the type of network.
+     *
+     * @param networkType The type of network to return or null to return the active one
+     */
+    public void setNetworkTypeOverride(final NetworkType networkType) {
+        mNetworkTypeOverride = networkType;
+    }
+
+    /**
+     * Reads the type of the active network from the ConnectivityManager in the same way of
+     * the ConnectionUtil: a WiFi connected or a mobile connected or connecting
+     *
+     * @return The type of the active network
+     */
+    private NetworkType readNetworkType() {
+        if (mConnectivityManager == null) {
+            return NetworkType.NONE;
+        }
+        final NetworkInfo info;
+        try {
+            info = mConnectivityManager.getActiveNetworkInfo();
+        } catch (NullPointerException npe) {
+            return NetworkType.NONE;
+        }
+        if (info == null || !info.isConnectedOrConnecting()) {
+            return NetworkType.NONE;
+        }
+        final int connectionType = info.getType();
+        if (connectionType == ConnectivityManager.TYPE_WIFI) {
+            return info.isConnected() ? NetworkType.WIFI : NetworkType.NONE;
+        }
+        if (connectionType == ConnectivityManager.TYPE_MOBILE) {
+            return NetworkType.MOBILE;
+        }
+        return info.isConnected() ? NetworkType.OTHER : NetworkType.NONE;
+    }
+
+}
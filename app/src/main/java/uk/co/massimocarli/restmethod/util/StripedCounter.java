@@ -0,0 +1,114 @@
+package uk.co.massimocarli.restmethod.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This is a counter for values updated by many threads and read rarely, in the same way of the
+ * LongAdder that is not available on Android. The value is split into stripes and every thread
+ * adds to the stripe of its id so the threads seldom contend the same memory. The stripes are
+ * spaced by a cache line so they don't share it. The value is the sum of the stripes.
+ * <p/>
+ * The add is lock-free. The sum and the reset are not atomic with respect to the concurrent
+ * adds: an add during a reset can be lost or kept.
+ */
+public final class StripedCounter {
+
+    /*
+     * The distance in longs between two stripes. 8 longs are the 64 bytes of a cache line
+     */
+    private static final int STRIPE_SPACING = 8;
+
+    /*
+     * The max number of stripes
+     */
+    private static final int MAX_STRIPES = 16;
+
+    /**
+     * The mask for the index of the stripe of a thread
+     */
+    private final int mStripeMask;
+
+    /**
+     * The stripes spaced by STRIPE_SPACING
+     */
+    private final AtomicLongArray mStripes;
+
+    /**
+     * Creates a StripedCounter with a number of stripes for the available processors
+     */
+    public StripedCounter() {
+        int stripes = 1;
+        final int target = Math.min(Runtime.getRuntime().availableProcessors() * 2, MAX_STRIPES);
+        while (stripes < target) {
+            stripes <<= 1;
+        }
+        mStripeMask = stripes - 1;
+        mStripes = new AtomicLongArray(stripes * STRIPE_SPACING);
+    }
+
+    /**
+     * Adds the given value
+     *
+     * @param value The value to add
+     */
+    public void add(final long value) {
+        mStripes.getAndAdd(stripeIndex(), value);
+    }
+
+    /**
+     * Adds one
+     */
+    public void increment() {
+        add(1L);
+    }
+
+    /**
+     * @return The sum of the stripes
+     */
+    public long sum() {
+        long sum = 0L;
+        for (int i = 0; i < mStripes.length(); i += STRIPE_SPACING) {
+            sum += mStripes.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * Sets all the stripes to zero
+     */
+    public void reset() {
+        for (int i = 0; i < mStripes.length(); i += STRIPE_SPACING) {
+            mStripes.set(i, 0L);
+        }
+    }
+
+    /**
+     * Sets all the stripes to zero and returns their sum
+     *
+     * @return The sum of the stripes before the reset
+     */
+    public long sumThenReset() {
+        long sum = 0L;
+        for (int i = 0; i < mStripes.length(); i += STRIPE_SPACING) {
+            sum += mStripes.getAndSet(i, 0L);
+        }
+        return sum;
+    }
+
+    /**
+     * @return The index into the array of the stripe of the current thread
+     */
+    private int stripeIndex() {
+        long id = Thread.currentThread().getId();
+        // The ids are consecutive so we mix the bits
+        id ^= id >>> 7;
+        id *= 0x9E3779B97F4A7C15L;
+        return ((int) (id >>> 32) & mStripeMask) * STRIPE_SPACING;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(sum());
+    }
+
+}
@@ -0,0 +1,178 @@
+package uk.co.massimocarli.restmethod.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Utility class that decodes the text of an InputStream into a String. For UTF-8, US-ASCII
+ * and ISO-8859-1 the bytes are read into a single array and decoded by the String constructor
+ * straight into the String. For the other charsets we use a CharsetDecoder that is reused by
+ * the same thread and that decodes into a CharBuffer sized from the expected length.
+ * Malformed input is replaced as InputStreamReader does.
+ */
+public final class TextDecoder {
+
+    /*
+     * The max capacity we reserve in advance for the expected length of a payload
+     */
+    private static final int MAX_PRESIZE = 16 * 1024 * 1024;
+
+    /*
+     * The Charsets by name
+     */
+    private static final ConcurrentHashMap<String, Charset> sCharsets = new ConcurrentHashMap<String, Charset>();
+
+    /*
+     * The CharsetDecoders of the current thread
+     */
+    private static final ThreadLocal<Map<Charset, CharsetDecoder>> sDecoders =
+            new ThreadLocal<Map<Charset, CharsetDecoder>>() {
+                @Override
+                protected Map<Charset, CharsetDecoder> initialValue() {
+                    return new HashMap<Charset, CharsetDecoder>(4);
+                }
+            };
+
+    /**
+     * Private constructor.
+     */
+    private TextDecoder() {
+        throw new AssertionError("Never instantiate me! I'm an Utility class!!!");
+    }
+
+    /**
+     * Decodes all the text of the InputStream. Note that the input stream is not closed at the
+     * end of method!.
+     *
+     * @param in             The InputStream to read from
+     * @param charsetName    The name of the charset
+     * @param expectedLength The expected length in bytes or -1 if not known
+     * @return The decoded String
+     * @throws java.io.IOException In case of error reading or if the charset is not supported
+     */
+    public static String decode(final InputStream in, final String charsetName,
+                                final long expectedLength) throws IOException {
+        final Charset charset = lookup(charsetName);
+        if (isSingleCopyCharset(charset)) {
+            return decodeSingleCopy(in, charset, expectedLength);
+        }
+        return decodeWithDecoder(in, charset, expectedLength);
+    }
+
+    /**
+     * @return The Charset for the given name
+     */
+    private static Charset lookup(final String charsetName) throws UnsupportedEncodingException {
+        Charset charset = sCharsets.get(charsetName);
+        if (charset == null) {
+            try {
+                charset = Charset.forName(charsetName);
+            } catch (IllegalArgumentException iae) {
+                throw new UnsupportedEncodingException(charsetName);
+            }
+            sCharsets.putIfAbsent(charsetName, charset);
+        }
+        return charset;
+    }
+
+    /**
+     * @return True if the String constructor decodes the charset directly into the String
+     */
+    private static boolean isSingleCopyCharset(final Charset charset) {
+        final String name = charset.name();
+        return "UTF-8".equals(name) || "US-ASCII".equals(name) || "ISO-8859-1".equals(name);
+    }
+
+    /**
+     * Reads all the bytes into a single array and creates the String from it
+     */
+    private static String decodeSingleCopy(final InputStream in, final Charset charset,
+                                           final long expectedLength) throws IOException {
+        byte[] data = new byte[expectedLength >= 0 ? (int) Math.min(expectedLength, MAX_PRESIZE) + 1
+                                                   : BufferPool.DEFAULT_BUFFER_SIZE];
+        int count = 0;
+        while (true) {
+            if (count == data.length) {
+                final byte[] newData = new byte[data.length * 2];
+                System.arraycopy(data, 0, newData, 0, count);
+                data = newData;
+            }
+            final int read = in.read(data, count, data.length - count);
+            if (read == -1) {
+                break;
+            }
+            count += read;
+        }
+        return new String(data, 0, count, charset);
+    }
+
+    /**
+     * Decodes the stream with the CharsetDecoder of the current thread
+     */
+    private static String decodeWithDecoder(final InputStream in, final Charset charset,
+                                            final long expectedLength) throws IOException {
+        final Map<Charset, CharsetDecoder> decoders = sDecoders.get();
+        CharsetDecoder decoder = decoders.get(charset);
+        if (decoder == null) {
+            decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            decoders.put(charset, decoder);
+        }
+        decoder.reset();
+        // With the expected length we reserve the max number of chars so we don't grow
+        CharBuffer output = CharBuffer.allocate(expectedLength >= 0
+                ? (int) Math.min(expectedLength * (double) decoder.maxCharsPerByte(), MAX_PRESIZE) + 1
+                : BufferPool.DEFAULT_BUFFER_SIZE);
+        final int bufferSize = BufferPool.bufferSizeFor(expectedLength);
+        final byte[] bufferArray = BufferPool.acquireBytes(bufferSize);
+        try {
+            final ByteBuffer input = ByteBuffer.wrap(bufferArray, 0, bufferSize);
+            boolean endOfInput = false;
+            while (!endOfInput) {
+                final int read = in.read(bufferArray, input.position(), bufferSize - input.position());
+                if (read == -1) {
+                    endOfInput = true;
+                } else {
+                    input.position(input.position() + read);
+                }
+                input.flip();
+                while (true) {
+                    final CoderResult result = decoder.decode(input, output, endOfInput);
+                    if (!result.isOverflow()) {
+                        break;
+                    }
+                    output = grow(output);
+                }
+                // The bytes of an incomplete char remain for the next read
+                input.compact();
+            }
+            while (decoder.flush(output).isOverflow()) {
+                output = grow(output);
+            }
+        } finally {
+            BufferPool.releaseBytes(bufferArray);
+        }
+        return new String(output.array(), 0, output.position());
+    }
+
+    /**
+     * @return A CharBuffer of double capacity with the content of the given one
+     */
+    private static CharBuffer grow(final CharBuffer buffer) {
+        final CharBuffer newBuffer = CharBuffer.allocate(buffer.capacity() * 2 + 1);
+        buffer.flip();
+        newBuffer.put(buffer);
+        return newBuffer;
+    }
+}